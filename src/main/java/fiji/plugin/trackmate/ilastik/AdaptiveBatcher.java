@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.Locale;
+
+/**
+ * Chooses how many frames to send to each inference, from the measured cost
+ * of the previous ones.
+ * <p>
+ * The cost of an inference is modeled as a fixed startup cost plus a cost
+ * per frame: starting ilastik and loading the project on one side, the
+ * computation on the other. The model is fitted by least squares on the
+ * measured inferences. Larger batches amortize the startup cost, but use
+ * more memory and give less frequent feedback, so the batch size is the
+ * smallest one for which the startup takes less than a fraction of the
+ * time, bounded by the memory budget.
+ * <p>
+ * The first batches have 1 and 2 frames, to measure the model. Batches then
+ * grow at most by a factor {@link #MAX_GROWTH} at a time, so that a model
+ * fitted on few noisy measures does not send a huge batch.
+ */
+public class AdaptiveBatcher
+{
+
+	/**
+	 * The default fraction of the time spent on frames rather than on the
+	 * startup, for the batch size chosen.
+	 */
+	public static final double DEFAULT_EFFICIENCY = 0.9;
+
+	/**
+	 * The maximal ratio between the size of a batch and the size of the
+	 * largest batch measured so far.
+	 */
+	public static final int MAX_GROWTH = 4;
+
+	private final int maxFrames;
+
+	private final double efficiency;
+
+	/*
+	 * Sums for the least-squares fit of t = startup + perFrame * n.
+	 */
+
+	private int nSamples;
+
+	private int largest;
+
+	private double sumN;
+
+	private double sumT;
+
+	private double sumNN;
+
+	private double sumNT;
+
+	private double startup = Double.NaN;
+
+	private double perFrame = Double.NaN;
+
+	/**
+	 * Creates a batcher.
+	 * 
+	 * @param maxFrames
+	 *            the maximal number of frames in a batch, for instance
+	 *            because of the memory budget. Must be at least 1.
+	 * @param efficiency
+	 *            the fraction of the time to spend on frames rather than on
+	 *            the startup, strictly between 0 and 1.
+	 */
+	public AdaptiveBatcher( final int maxFrames, final double efficiency )
+	{
+		if ( maxFrames < 1 )
+			throw new IllegalArgumentException( "The maximal batch size must be at least 1. Got " + maxFrames + "." );
+		if ( efficiency <= 0 || efficiency >= 1 )
+			throw new IllegalArgumentException( "The efficiency must be strictly between 0 and 1. Got " + efficiency + "." );
+		this.maxFrames = maxFrames;
+		this.efficiency = efficiency;
+	}
+
+	/**
+	 * Returns the number of frames to send to the next inference.
+	 * 
+	 * @return the batch size, from 1 to the maximal batch size.
+	 */
+	public int nextBatchSize()
+	{
+		if ( nSamples == 0 )
+			return 1;
+		if ( !isFitted() )
+			return Math.min( 2, maxFrames );
+
+		/*
+		 * startup / (startup + perFrame * n) <= 1 - efficiency.
+		 */
+		final double n = Math.ceil( startup * efficiency / ( 1. - efficiency ) / perFrame );
+		return ( int ) Math.max( 1, Math.min( Math.min( maxFrames, ( long ) MAX_GROWTH * largest ), n ) );
+	}
+
+	/**
+	 * Records the time taken by an inference.
+	 * 
+	 * @param nFrames
+	 *            the number of frames in the batch.
+	 * @param seconds
+	 *            the time it took, in seconds.
+	 */
+	public void record( final int nFrames, final double seconds )
+	{
+		nSamples++;
+		largest = Math.max( largest, nFrames );
+		sumN += nFrames;
+		sumT += seconds;
+		sumNN += ( double ) nFrames * nFrames;
+		sumNT += nFrames * seconds;
+
+		final double det = nSamples * sumNN - sumN * sumN;
+		if ( det <= 0 )
+			return; // All batches had the same size.
+
+		final double slope = ( nSamples * sumNT - sumN * sumT ) / det;
+		final double intercept = ( sumT - slope * sumN ) / nSamples;
+		/*
+		 * Noise can give a negative slope or intercept. Keep the model
+		 * usable: a small positive cost per frame, no negative startup.
+		 */
+		perFrame = Math.max( slope, 1e-3 * sumT / sumN );
+		startup = Math.max( 0., intercept );
+	}
+
+	/**
+	 * Returns <code>true</code> if enough inferences were measured to fit the
+	 * cost model.
+	 * 
+	 * @return whether the model is fitted.
+	 */
+	public boolean isFitted()
+	{
+		return !Double.isNaN( perFrame );
+	}
+
+	/**
+	 * Returns the fitted startup cost.
+	 * 
+	 * @return the startup cost in seconds, or NaN if the model is not fitted.
+	 */
+	public double getStartup()
+	{
+		return startup;
+	}
+
+	/**
+	 * Returns the fitted cost per frame.
+	 * 
+	 * @return the cost per frame in seconds, or NaN if the model is not
+	 *         fitted.
+	 */
+	public double getPerFrame()
+	{
+		return perFrame;
+	}
+
+	@Override
+	public String toString()
+	{
+		if ( !isFitted() )
+			return String.format( Locale.US, "Batch cost model not fitted yet (%d measures), batches of at most %d frames.", nSamples, maxFrames );
+		return String.format( Locale.US, "Batch cost model: %.2f s startup + %.3f s per frame, %.1f frames/s at %d frames per batch (at most %d).",
+				startup, perFrame, nextBatchSize() / ( startup + perFrame * nextBatchSize() ), nextBatchSize(), maxFrames );
+	}
+}
@@ -0,0 +1,335 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImgPlusViews;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * A coarse-to-fine detection, for sparse samples where most of the frame is
+ * empty background.
+ * <p>
+ * A scout pass classifies the input binned by a large factor, with the
+ * project of the detection or a lighter one trained on the same classes.
+ * The pixels of the class above a threshold are grouped in connected
+ * components, and the bounding box of each component, scaled to full
+ * resolution and dilated by {@link #dilation} pixels, is a candidate region,
+ * so that the parts of the objects the scout pass missed at their border are
+ * classified too. Overlapping regions are
+ * merged. Only the candidate regions are then classified at full
+ * resolution, packed in a {@link TileMosaic}.
+ * <p>
+ * A separate scout project must have the class to detect. If both projects
+ * name their classes, the class is looked up by name in the scout project.
+ * <p>
+ * In 3D, candidates are found on the maximum projection of the scout
+ * probabilities along Z, and regions span the whole depth.
+ */
+public class Cascade
+{
+
+	/**
+	 * The binning factor in X and Y of the scout pass.
+	 */
+	public final int factor;
+
+	/**
+	 * The project of the scout pass, or <code>null</code> to use the project
+	 * of the detection.
+	 */
+	public final String projectFilePath;
+
+	/**
+	 * The probability above which a scout pixel is a candidate.
+	 */
+	public final double threshold;
+
+	/**
+	 * The dilation of the candidate regions, in full-resolution pixels. The
+	 * regions are dilated by at least one scout pixel.
+	 */
+	public final int dilation;
+
+	public Cascade( final int factor, final String projectFilePath, final double threshold, final int dilation )
+	{
+		if ( factor < 2 )
+			throw new IllegalArgumentException( "The cascade factor must be at least 2. Got " + factor + "." );
+		if ( dilation < 0 )
+			throw new IllegalArgumentException( "The cascade dilation must be positive. Got " + dilation + "." );
+		this.factor = factor;
+		this.projectFilePath = ( projectFilePath == null || projectFilePath.isEmpty() ) ? null : projectFilePath;
+		this.threshold = threshold;
+		this.dilation = dilation;
+	}
+
+	/**
+	 * Runs the scout pass and returns the regions to classify at full
+	 * resolution.
+	 * 
+	 * @param cropped
+	 *            the input of the detection, zero-min.
+	 * @param frameDims
+	 *            the dimensions of a frame, in X, Y and Z if any.
+	 * @param projectFilePath
+	 *            the project of the detection, used if this cascade has no
+	 *            project of its own.
+	 * @param classId
+	 *            the index of the class to detect.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param options
+	 *            the inference options. The regions are aligned on the
+	 *            downsampling factor, and split in tiles of at most the tile
+	 *            size.
+	 * @param <T>
+	 *            the pixel type.
+	 * @return the scout result.
+	 * @throws IOException
+	 *             if the project cannot be read, or if the scout project does
+	 *             not have the class to detect.
+	 */
+	public < T extends RealType< T > & NativeType< T > > Scout scout(
+			final ImgPlus< T > cropped,
+			final long[] frameDims,
+			final String projectFilePath,
+			final long classId,
+			final int numThreads,
+			final IlastikRunnerOptions options ) throws IOException
+	{
+		final long scoutClassId = scoutClassId( this.projectFilePath, projectFilePath, classId );
+		final ImgPlus< T > binned = Downsampling.bin( cropped, Downsampling.getBinningFactors( cropped, factor, 1 ) );
+		final ImgPlus< FloatType > output = options.backend.predict(
+				binned,
+				this.projectFilePath == null ? projectFilePath : this.projectFilePath,
+				numThreads,
+				PredictionStorage.HEAP );
+		final ImgPlus< FloatType > proba = ImgPlusViews.hyperSlice( output, output.dimensionIndex( Axes.CHANNEL ), scoutClassId );
+
+		final int tDim = proba.dimensionIndex( Axes.TIME );
+		final int nFrames = tDim < 0 ? 1 : ( int ) proba.dimension( tDim );
+		final long f = options.downsamplingXY;
+		final long tileSize = ( ( options.tileSize + f - 1 ) / f ) * f;
+		final List< TileMosaic.Piece > pieces = new ArrayList<>();
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final RandomAccessibleInterval< FloatType > frame = tDim < 0 ? proba : Views.hyperSlice( proba, tDim, t );
+			final int width = ( int ) frame.dimension( 0 );
+			final int height = ( int ) frame.dimension( 1 );
+			final float[] projection = maxProjection( frame, width );
+			for ( final long[] box : regions( projection, width, height, threshold, factor, Math.max( factor, dilation ), frameDims, f, numThreads ) )
+			{
+				final long[] min = new long[ frameDims.length ];
+				final long[] max = new long[ frameDims.length ];
+				for ( int d = 0; d < frameDims.length; d++ )
+					max[ d ] = frameDims[ d ] - 1;
+				min[ 0 ] = box[ 0 ];
+				min[ 1 ] = box[ 1 ];
+				max[ 0 ] = box[ 2 ];
+				max[ 1 ] = box[ 3 ];
+				pieces.addAll( TileMosaic.split( min, max, tileSize, t ) );
+			}
+		}
+
+		long scoutPixels = 1;
+		for ( int d = 0; d < binned.numDimensions(); d++ )
+			if ( binned.axis( d ).type() != Axes.CHANNEL )
+				scoutPixels *= binned.dimension( d );
+		return new Scout( pieces, scoutPixels );
+	}
+
+	/**
+	 * Returns the index of the class to detect in the scout project.
+	 * 
+	 * @param scoutProjectFilePath
+	 *            the project of the scout pass, or <code>null</code> if it is
+	 *            the project of the detection.
+	 * @param projectFilePath
+	 *            the project of the detection.
+	 * @param classId
+	 *            the index of the class to detect in the project of the
+	 *            detection.
+	 * @return the index of the class of the same name in the scout project
+	 *         if both projects name their classes, the same index otherwise.
+	 * @throws IOException
+	 *             if the scout project does not have the class.
+	 */
+	static long scoutClassId( final String scoutProjectFilePath, final String projectFilePath, final long classId ) throws IOException
+	{
+		if ( scoutProjectFilePath == null )
+			return classId;
+		final List< String > scoutLabels = IlastikRunner.getClassLabels( scoutProjectFilePath );
+		if ( scoutLabels == null )
+			return classId;
+
+		final List< String > labels = IlastikRunner.getClassLabels( projectFilePath );
+		if ( labels != null && classId < labels.size() )
+		{
+			final String label = labels.get( ( int ) classId );
+			final int index = scoutLabels.indexOf( label );
+			if ( index < 0 )
+				throw new IOException( "The scout project " + scoutProjectFilePath + " has no class '" + label + "'. Its classes are " + scoutLabels + "." );
+			return index;
+		}
+		if ( classId >= scoutLabels.size() )
+			throw new IOException( "The scout project " + scoutProjectFilePath + " has " + scoutLabels.size() + " classes, cannot detect class " + classId + "." );
+		return classId;
+	}
+
+	/**
+	 * Returns the candidate regions of one frame, in full-resolution pixels,
+	 * as <code>{ minX, minY, maxX, maxY }</code>, merged so that no two of
+	 * them overlap.
+	 * 
+	 * @param scout
+	 *            the scout probabilities, in raster order.
+	 * @param width
+	 *            the width of the scout frame.
+	 * @param height
+	 *            the height of the scout frame.
+	 * @param threshold
+	 *            the probability above which a pixel is a candidate.
+	 * @param factor
+	 *            the binning factor of the scout pass.
+	 * @param dilation
+	 *            the dilation of the regions, in full-resolution pixels.
+	 * @param frameDims
+	 *            the full-resolution frame dimensions, X and Y first.
+	 * @param alignment
+	 *            the min of the regions is rounded down to a multiple of this
+	 *            value.
+	 * @param numThreads
+	 *            the number of threads to label the candidates with.
+	 * @return a new list of regions.
+	 */
+	static List< long[] > regions(
+			final float[] scout,
+			final int width,
+			final int height,
+			final double threshold,
+			final long factor,
+			final long dilation,
+			final long[] frameDims,
+			final long alignment,
+			final int numThreads )
+	{
+		final int[] labels = new int[ width * height ];
+		final int nLabels = ParallelLabeling.label( width, height, ( fromRow, toRow, mask ) -> {
+			final int offset = fromRow * width;
+			for ( int i = 0; i < ( toRow - fromRow ) * width; i++ )
+				mask[ i ] = scout[ offset + i ] > threshold;
+		}, labels, numThreads );
+
+		final long[][] boxes = new long[ nLabels ][];
+		for ( int y = 0; y < height; y++ )
+		{
+			for ( int x = 0; x < width; x++ )
+			{
+				final int l = labels[ y * width + x ];
+				if ( l == 0 )
+					continue;
+				final long[] box = boxes[ l - 1 ];
+				if ( box == null )
+					boxes[ l - 1 ] = new long[] { x, y, x, y };
+				else
+				{
+					box[ 0 ] = Math.min( box[ 0 ], x );
+					box[ 1 ] = Math.min( box[ 1 ], y );
+					box[ 2 ] = Math.max( box[ 2 ], x );
+					box[ 3 ] = Math.max( box[ 3 ], y );
+				}
+			}
+		}
+
+		// Scale, dilate and clamp.
+		final List< long[] > regions = new ArrayList<>( nLabels );
+		for ( final long[] box : boxes )
+		{
+			if ( box == null )
+				continue;
+			final long[] region = new long[ 4 ];
+			for ( int d = 0; d < 2; d++ )
+			{
+				final long min = Math.max( 0, box[ d ] * factor - dilation );
+				region[ d ] = ( min / alignment ) * alignment;
+				region[ d + 2 ] = Math.min( frameDims[ d ] - 1, ( box[ d + 2 ] + 1 ) * factor - 1 + dilation );
+			}
+			regions.add( region );
+		}
+
+		TileMosaic.mergeOverlapping( regions );
+		return regions;
+	}
+
+	private static float[] maxProjection( final RandomAccessibleInterval< FloatType > frame, final int width )
+	{
+		final float[] projection = new float[ ( int ) ( frame.dimension( 0 ) * frame.dimension( 1 ) ) ];
+		final Cursor< FloatType > cursor = Views.iterable( frame ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			final float v = cursor.next().get();
+			final int i = ( int ) ( ( cursor.getLongPosition( 1 ) - frame.min( 1 ) ) * width + cursor.getLongPosition( 0 ) - frame.min( 0 ) );
+			if ( v > projection[ i ] )
+				projection[ i ] = v;
+		}
+		return projection;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "factor " + factor + ", threshold " + threshold + ", dilation " + dilation + ", project " + ( projectFilePath == null ? "same" : projectFilePath );
+	}
+
+	/**
+	 * The outcome of the scout pass.
+	 */
+	public static class Scout
+	{
+
+		/**
+		 * The regions to classify at full resolution.
+		 */
+		public final List< TileMosaic.Piece > pieces;
+
+		/**
+		 * The number of pixels classified by the scout pass, per channel.
+		 */
+		public final long pixels;
+
+		public Scout( final List< TileMosaic.Piece > pieces, final long pixels )
+		{
+			this.pieces = pieces;
+			this.pixels = pixels;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * A 2D spot whose contour is stored packed, to keep the memory of large
+ * detections bounded.
+ * <p>
+ * The vertices of the contour are expressed in pixels, relative to the spot
+ * center, and rounded to {@link #QUANTUM} pixel. The first vertex is stored
+ * as is, the following ones as the difference to the previous one, all as
+ * <code>short</code>s. This takes 4 bytes per vertex instead of 16 for a
+ * {@link SpotRoi}. The {@link SpotRoi} is rebuilt each time
+ * {@link #getRoi()} is called.
+ */
+public class CompactContourSpot extends Spot
+{
+
+	/**
+	 * The precision of the stored vertices, in pixels.
+	 */
+	public static final double QUANTUM = 1. / 16.;
+
+	/**
+	 * The pixel sizes in X and Y. Shared by all the spots of a frame.
+	 */
+	private final double[] pixelSize;
+
+	/**
+	 * The contour, as x0, y0, dx1, dy1, dx2, dy2... in {@link #QUANTUM}
+	 * units. <code>null</code> if the spot has no contour.
+	 */
+	private short[] contour;
+
+	private CompactContourSpot( final Spot spot, final short[] contour, final double[] pixelSize )
+	{
+		super(
+				spot.getDoublePosition( 0 ),
+				spot.getDoublePosition( 1 ),
+				spot.getDoublePosition( 2 ),
+				spot.getFeature( Spot.RADIUS ),
+				spot.getFeature( Spot.QUALITY ) );
+		for ( final Map.Entry< String, Double > feature : spot.getFeatures().entrySet() )
+			putFeature( feature.getKey(), feature.getValue() );
+		this.pixelSize = pixelSize;
+		this.contour = contour;
+	}
+
+	/**
+	 * Returns a compact copy of a spot, with its contour simplified with the
+	 * specified tolerance. If the spot has no contour, or if its contour is
+	 * too large to be packed, the spot is returned unchanged.
+	 * 
+	 * @param spot
+	 *            the spot to compact.
+	 * @param pixelSize
+	 *            the pixel sizes in X and Y. The array is shared, not copied.
+	 * @param tolerance
+	 *            the maximal distance, in pixels, between the contour and
+	 *            its simplified version. 0 keeps all the vertices.
+	 * @return a new spot, or the specified spot.
+	 */
+	public static Spot compact( final Spot spot, final double[] pixelSize, final double tolerance )
+	{
+		final SpotRoi roi = spot.getRoi();
+		if ( roi == null )
+			return spot;
+
+		final int n = roi.x.length;
+		final double[] px = new double[ n ];
+		final double[] py = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			px[ i ] = roi.x[ i ] / pixelSize[ 0 ];
+			py[ i ] = roi.y[ i ] / pixelSize[ 1 ];
+		}
+		final boolean[] keep = simplify( px, py, tolerance );
+		final short[] contour = encode( px, py, keep );
+		if ( contour == null )
+			return spot;
+		return new CompactContourSpot( spot, contour, pixelSize );
+	}
+
+	@Override
+	public SpotRoi getRoi()
+	{
+		if ( contour == null )
+			return null;
+		final int n = contour.length / 2;
+		final double[] x = new double[ n ];
+		final double[] y = new double[ n ];
+		int qx = 0;
+		int qy = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			qx += contour[ 2 * i ];
+			qy += contour[ 2 * i + 1 ];
+			x[ i ] = qx * QUANTUM * pixelSize[ 0 ];
+			y[ i ] = qy * QUANTUM * pixelSize[ 1 ];
+		}
+		return new SpotRoi( x, y );
+	}
+
+	@Override
+	public void setRoi( final SpotRoi roi )
+	{
+		if ( roi == null )
+		{
+			contour = null;
+			return;
+		}
+		final int n = roi.x.length;
+		final double[] px = new double[ n ];
+		final double[] py = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			px[ i ] = roi.x[ i ] / pixelSize[ 0 ];
+			py[ i ] = roi.y[ i ] / pixelSize[ 1 ];
+		}
+		final short[] encoded = encode( px, py, null );
+		if ( encoded == null )
+			throw new IllegalArgumentException( "Contour too large to be stored in a compact spot." );
+		contour = encoded;
+	}
+
+	/**
+	 * Returns a copy of this spot, with its own ID. The packed contour is
+	 * shared, as it is never modified in place.
+	 * 
+	 * @return a new spot.
+	 */
+	public CompactContourSpot copy()
+	{
+		return new CompactContourSpot( this, contour, pixelSize );
+	}
+
+	/**
+	 * Returns the number of vertices of the contour.
+	 * 
+	 * @return the number of vertices, 0 if the spot has no contour.
+	 */
+	public int numVertices()
+	{
+		return contour == null ? 0 : contour.length / 2;
+	}
+
+	/**
+	 * Returns the memory used by the packed contour, in bytes.
+	 * 
+	 * @return the contour size in bytes.
+	 */
+	public long contourBytes()
+	{
+		return contour == null ? 0 : 16 + 2 * contour.length;
+	}
+
+	/**
+	 * Delta-codes the kept vertices, in {@link #QUANTUM} units.
+	 * 
+	 * @return the packed contour, or <code>null</code> if a coordinate or a
+	 *         difference does not fit in a <code>short</code>.
+	 */
+	private static short[] encode( final double[] px, final double[] py, final boolean[] keep )
+	{
+		int nKept = 0;
+		for ( int i = 0; i < px.length; i++ )
+			if ( keep == null || keep[ i ] )
+				nKept++;
+
+		final short[] out = new short[ 2 * nKept ];
+		long prevX = 0;
+		long prevY = 0;
+		int o = 0;
+		for ( int i = 0; i < px.length; i++ )
+		{
+			if ( keep != null && !keep[ i ] )
+				continue;
+			final long qx = Math.round( px[ i ] / QUANTUM );
+			final long qy = Math.round( py[ i ] / QUANTUM );
+			final long dx = qx - prevX;
+			final long dy = qy - prevY;
+			if ( dx < Short.MIN_VALUE || dx > Short.MAX_VALUE || dy < Short.MIN_VALUE || dy > Short.MAX_VALUE )
+				return null;
+			out[ o++ ] = ( short ) dx;
+			out[ o++ ] = ( short ) dy;
+			prevX = qx;
+			prevY = qy;
+		}
+		return out;
+	}
+
+	/**
+	 * Douglas-Peucker simplification of a closed polygon. The polygon is
+	 * split at its first vertex and at the vertex farthest from it, and each
+	 * half is simplified separately.
+	 * 
+	 * @return which vertices are kept.
+	 */
+	static boolean[] simplify( final double[] x, final double[] y, final double tolerance )
+	{
+		final int n = x.length;
+		final boolean[] keep = new boolean[ n ];
+		if ( tolerance <= 0 || n <= 4 )
+		{
+			Arrays.fill( keep, true );
+			return keep;
+		}
+
+		int far = 0;
+		double maxD2 = -1;
+		for ( int i = 1; i < n; i++ )
+		{
+			final double d2 = ( x[ i ] - x[ 0 ] ) * ( x[ i ] - x[ 0 ] ) + ( y[ i ] - y[ 0 ] ) * ( y[ i ] - y[ 0 ] );
+			if ( d2 > maxD2 )
+			{
+				maxD2 = d2;
+				far = i;
+			}
+		}
+		keep[ 0 ] = true;
+		keep[ far ] = true;
+		final double tol2 = tolerance * tolerance;
+		simplify( x, y, 0, far, tol2, keep );
+		simplify( x, y, far, n, tol2, keep );
+		return keep;
+	}
+
+	/**
+	 * Simplifies the chain of vertices from <code>start</code> to
+	 * <code>end</code>, both kept. <code>end</code> may be <code>n</code>,
+	 * standing for the first vertex.
+	 */
+	private static void simplify( final double[] x, final double[] y, final int start, final int end, final double tol2, final boolean[] keep )
+	{
+		final int n = x.length;
+		final int[] stack = new int[ 2 * n + 2 ];
+		int top = 0;
+		stack[ top++ ] = start;
+		stack[ top++ ] = end;
+		while ( top > 0 )
+		{
+			final int e = stack[ --top ];
+			final int s = stack[ --top ];
+			if ( e - s < 2 )
+				continue;
+
+			final double x0 = x[ s ];
+			final double y0 = y[ s ];
+			final double x1 = x[ e % n ];
+			final double y1 = y[ e % n ];
+			final double dx = x1 - x0;
+			final double dy = y1 - y0;
+			final double len2 = dx * dx + dy * dy;
+			int worst = -1;
+			double worstD2 = tol2;
+			for ( int i = s + 1; i < e; i++ )
+			{
+				final double ex = x[ i ] - x0;
+				final double ey = y[ i ] - y0;
+				final double d2;
+				if ( len2 == 0 )
+				{
+					d2 = ex * ex + ey * ey;
+				}
+				else
+				{
+					final double cross = ex * dy - ey * dx;
+					d2 = cross * cross / len2;
+				}
+				if ( d2 > worstD2 )
+				{
+					worstD2 = d2;
+					worst = i;
+				}
+			}
+			if ( worst < 0 )
+				continue;
+
+			keep[ worst ] = true;
+			stack[ top++ ] = s;
+			stack[ top++ ] = worst;
+			stack[ top++ ] = worst;
+			stack[ top++ ] = e;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.ops.MetadataUtil;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Utilities to bin an image before sending it to ilastik, and to bring the
+ * resulting probability maps back to the resolution of the source image.
+ */
+public class Downsampling
+{
+
+	private Downsampling()
+	{}
+
+	/**
+	 * Returns the binning factors to apply to each dimension of the specified
+	 * image. X and Y are binned by <code>factorXY</code>, Z by
+	 * <code>factorZ</code>, the other axes (channels, time) are left
+	 * untouched.
+	 * 
+	 * @param img
+	 *            the image to bin.
+	 * @param factorXY
+	 *            the binning factor in X and Y.
+	 * @param factorZ
+	 *            the binning factor in Z.
+	 * @return a new <code>long[]</code> array, one factor per dimension of the
+	 *         image.
+	 */
+	public static long[] getBinningFactors( final ImgPlus< ? > img, final int factorXY, final int factorZ )
+	{
+		final long[] factors = new long[ img.numDimensions() ];
+		for ( int d = 0; d < factors.length; d++ )
+		{
+			final AxisType type = img.axis( d ).type();
+			if ( type == Axes.X || type == Axes.Y )
+				factors[ d ] = factorXY;
+			else if ( type == Axes.Z )
+				factors[ d ] = factorZ;
+			else
+				factors[ d ] = 1;
+		}
+		return factors;
+	}
+
+	/**
+	 * Bins the specified image by averaging non-overlapping blocks of pixels.
+	 * The last block along each dimension may be smaller than the binning
+	 * factor, in which case it is averaged over the pixels it contains.
+	 * 
+	 * @param source
+	 *            the image to bin. Must be zero-min.
+	 * @param factors
+	 *            the binning factors, one per dimension of the source.
+	 * @param <T>
+	 *            the pixel type.
+	 * @return a new image, with the same type and axes as the source.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImgPlus< T > bin( final ImgPlus< T > source, final long[] factors )
+	{
+		final int n = source.numDimensions();
+		final long[] sourceDims = new long[ n ];
+		source.dimensions( sourceDims );
+		final long[] dims = new long[ n ];
+		long blockSize = 1;
+		for ( int d = 0; d < n; d++ )
+		{
+			dims[ d ] = ( sourceDims[ d ] + factors[ d ] - 1 ) / factors[ d ];
+			blockSize *= factors[ d ];
+		}
+
+		final Img< T > out = source.factory().create( dims );
+		final RandomAccess< T > ra = source.randomAccess();
+		final Cursor< T > cursor = out.localizingCursor();
+		final long[] origin = new long[ n ];
+		final long[] pos = new long[ n ];
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( origin );
+			double sum = 0.;
+			long count = 0;
+			BLOCK: for ( long k = 0; k < blockSize; k++ )
+			{
+				long rem = k;
+				for ( int d = 0; d < n; d++ )
+				{
+					pos[ d ] = origin[ d ] * factors[ d ] + rem % factors[ d ];
+					if ( pos[ d ] >= sourceDims[ d ] )
+						continue BLOCK;
+					rem /= factors[ d ];
+				}
+				ra.setPosition( pos );
+				sum += ra.get().getRealDouble();
+				count++;
+			}
+			cursor.get().setReal( sum / count );
+		}
+
+		final ImgPlus< T > binned = new ImgPlus<>( out );
+		MetadataUtil.copyImgPlusMetadata( source, binned );
+		return binned;
+	}
+
+	/**
+	 * Interpolates a probability map computed on a binned image back to the
+	 * resolution of the source image, with linear interpolation along each
+	 * binned dimension.
+	 * <p>
+	 * Pixel centers are aligned: the pixel at position <code>i</code> in the
+	 * binned image is considered to sit at position
+	 * <code>i * f + (f - 1) / 2</code> in the source image, where
+	 * <code>f</code> is the binning factor.
+	 * 
+	 * @param lowRes
+	 *            the probability map at low resolution.
+	 * @param factors
+	 *            the binning factors that were used, one per dimension of the
+	 *            probability map.
+	 * @param targetDims
+	 *            the dimensions of the full resolution image to generate.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 * @return a new float image, on the heap.
+	 */
+	public static < R extends RealType< R > > Img< FloatType > upsample(
+			final RandomAccessibleInterval< R > lowRes,
+			final long[] factors,
+			final long[] targetDims )
+	{
+		return upsample( lowRes, factors, targetDims, PredictionStorage.HEAP );
+	}
+
+	/**
+	 * Interpolates a probability map computed on a binned image back to the
+	 * resolution of the source image, as
+	 * {@link #upsample(RandomAccessibleInterval, long[], long[])} does, in
+	 * images of the specified storage.
+	 * 
+	 * @param lowRes
+	 *            the probability map at low resolution.
+	 * @param factors
+	 *            the binning factors that were used, one per dimension of the
+	 *            probability map.
+	 * @param targetDims
+	 *            the dimensions of the full resolution image to generate.
+	 * @param storage
+	 *            where to store the result and the intermediate images.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 * @return a new float image.
+	 */
+	public static < R extends RealType< R > > Img< FloatType > upsample(
+			final RandomAccessibleInterval< R > lowRes,
+			final long[] factors,
+			final long[] targetDims,
+			final PredictionStorage storage )
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray( lowRes );
+		RandomAccessibleInterval< ? extends RealType< ? > > current = Views.zeroMin( lowRes );
+		Img< FloatType > out = null;
+		for ( int d = 0; d < dims.length; d++ )
+		{
+			if ( dims[ d ] == targetDims[ d ] )
+				continue;
+			dims[ d ] = targetDims[ d ];
+			out = storage.floats( dims );
+			upsampleAlong( current, out, d, factors[ d ] );
+			current = out;
+		}
+		if ( out == null )
+		{
+			// Nothing to interpolate: copy.
+			out = storage.floats( dims );
+			final Cursor< ? extends RealType< ? > > cIn = Views.flatIterable( current ).cursor();
+			final Cursor< FloatType > cOut = Views.flatIterable( out ).cursor();
+			while ( cIn.hasNext() )
+				cOut.next().setReal( cIn.next().getRealFloat() );
+		}
+		return out;
+	}
+
+	private static void upsampleAlong( final RandomAccessibleInterval< ? extends RealType< ? > > source, final Img< FloatType > target, final int dim, final long factor )
+	{
+		final int nIn = ( int ) source.dimension( dim );
+		final int nOut = ( int ) target.dimension( dim );
+		final double shift = ( factor - 1 ) / 2.;
+		final long[] i0 = new long[ nOut ];
+		final long[] i1 = new long[ nOut ];
+		final float[] w = new float[ nOut ];
+		for ( int x = 0; x < nOut; x++ )
+		{
+			final double u = Math.max( 0., Math.min( nIn - 1, ( x - shift ) / factor ) );
+			i0[ x ] = ( long ) Math.floor( u );
+			i1[ x ] = Math.min( i0[ x ] + 1, nIn - 1 );
+			w[ x ] = ( float ) ( u - i0[ x ] );
+		}
+
+		// Never move the source out of its bounds, even along the planes.
+		final RandomAccess< ? extends RealType< ? > > ra = source.randomAccess();
+		final Cursor< FloatType > cursor = target.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final int x = cursor.getIntPosition( dim );
+			for ( int d = 0; d < target.numDimensions(); d++ )
+				ra.setPosition( d == dim ? i0[ x ] : cursor.getLongPosition( d ), d );
+			final float a = ra.get().getRealFloat();
+			ra.setPosition( i1[ x ], dim );
+			final float b = ra.get().getRealFloat();
+			cursor.get().set( ( 1f - w[ x ] ) * a + w[ x ] * b );
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import net.imagej.ImgPlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Compares the objects detected with downsampled inference to the ones
+ * detected at full resolution on a sample frame, to help pick a downsampling
+ * factor that does not degrade the detection.
+ * <p>
+ * Spots of the two detections are matched greedily by increasing distance,
+ * within a maximal distance. The report gives the position error and the
+ * relative error on the area (or volume in 3D) of matched spots, and the
+ * number of spots that could not be matched.
+ */
+public class DownsamplingValidation
+{
+
+	private DownsamplingValidation()
+	{}
+
+	/**
+	 * Runs the detection on one frame, at full resolution and with the
+	 * specified downsampling options, and compares the results.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval (space and time) to operate on. Only the first
+	 *            time-point of the interval is used.
+	 * @param channel
+	 *            the channel to operate on when a model trained on a single
+	 *            channel is specified.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classId
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param options
+	 *            the downsampling options to validate.
+	 * @param maxDistance
+	 *            the maximal distance, in physical units, between two spots
+	 *            that can be matched.
+	 * @return a new {@link Report}.
+	 * @throws IOException
+	 *             if the ilastik file cannot be found.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Report validate(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final IlastikRunnerOptions options,
+			final double maxDistance ) throws IOException
+	{
+		// Restrict to the first time-point.
+		final int n = interval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		interval.min( min );
+		interval.max( max );
+		if ( n > 2 )
+			max[ n - 1 ] = min[ n - 1 ];
+		final Interval frame = new FinalInterval( min, max );
+
+		final long startFull = System.currentTimeMillis();
+		final SpotCollection full = IlastikRunner.run( img, frame, channel, projectFilePath, classId, probaThreshold );
+		final long endFull = System.currentTimeMillis();
+		final SpotCollection downsampled = IlastikRunner.run( img, frame, channel, projectFilePath, classId, probaThreshold, options );
+		final long endDownsampled = System.currentTimeMillis();
+
+		final Report report = compare( toList( full ), toList( downsampled ), maxDistance );
+		report.timeFull = endFull - startFull;
+		report.timeDownsampled = endDownsampled - endFull;
+		report.options = options;
+		return report;
+	}
+
+	/**
+	 * Compares two lists of spots found in the same frame.
+	 * 
+	 * @param reference
+	 *            the spots found at full resolution.
+	 * @param candidates
+	 *            the spots found with downsampled inference.
+	 * @param maxDistance
+	 *            the maximal distance between two spots that can be matched.
+	 * @return a new {@link Report}.
+	 */
+	public static Report compare( final List< Spot > reference, final List< Spot > candidates, final double maxDistance )
+	{
+		final double maxSqDist = maxDistance * maxDistance;
+		final List< double[] > pairs = new ArrayList<>();
+		for ( int i = 0; i < reference.size(); i++ )
+			for ( int j = 0; j < candidates.size(); j++ )
+			{
+				final double sqDist = squareDistance( reference.get( i ), candidates.get( j ) );
+				if ( sqDist <= maxSqDist )
+					pairs.add( new double[] { sqDist, i, j } );
+			}
+		pairs.sort( ( p1, p2 ) -> Double.compare( p1[ 0 ], p2[ 0 ] ) );
+
+		final boolean[] refMatched = new boolean[ reference.size() ];
+		final boolean[] candMatched = new boolean[ candidates.size() ];
+		final Report report = new Report();
+		report.nReference = reference.size();
+		report.nDownsampled = candidates.size();
+		double sumDist = 0.;
+		double sumAreaError = 0.;
+		for ( final double[] pair : pairs )
+		{
+			final int i = ( int ) pair[ 1 ];
+			final int j = ( int ) pair[ 2 ];
+			if ( refMatched[ i ] || candMatched[ j ] )
+				continue;
+			refMatched[ i ] = true;
+			candMatched[ j ] = true;
+			report.nMatched++;
+
+			final double dist = Math.sqrt( pair[ 0 ] );
+			sumDist += dist;
+			report.maxPositionError = Math.max( report.maxPositionError, dist );
+
+			final double refSize = size( reference.get( i ) );
+			final double candSize = size( candidates.get( j ) );
+			final double areaError = refSize > 0. ? Math.abs( candSize - refSize ) / refSize : 0.;
+			sumAreaError += areaError;
+			report.maxRelativeAreaError = Math.max( report.maxRelativeAreaError, areaError );
+		}
+		if ( report.nMatched > 0 )
+		{
+			report.meanPositionError = sumDist / report.nMatched;
+			report.meanRelativeAreaError = sumAreaError / report.nMatched;
+		}
+		return report;
+	}
+
+	private static double squareDistance( final Spot s1, final Spot s2 )
+	{
+		double sum = 0.;
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double dx = s1.getDoublePosition( d ) - s2.getDoublePosition( d );
+			sum += dx * dx;
+		}
+		return sum;
+	}
+
+	/**
+	 * The area of the disk with the radius of the spot. The radius of the
+	 * spots is derived from the area of the object they were made from, so in
+	 * 2D this is the area of the object.
+	 */
+	private static double size( final Spot spot )
+	{
+		final double r = spot.getFeature( Spot.RADIUS ).doubleValue();
+		return Math.PI * r * r;
+	}
+
+	private static List< Spot > toList( final SpotCollection spots )
+	{
+		final List< Spot > list = new ArrayList<>();
+		for ( final Spot spot : spots.iterable( false ) )
+			list.add( spot );
+		return list;
+	}
+
+	/**
+	 * The differences between the full-resolution and the downsampled
+	 * detections.
+	 */
+	public static class Report
+	{
+
+		public IlastikRunnerOptions options;
+
+		public int nReference;
+
+		public int nDownsampled;
+
+		public int nMatched;
+
+		public double meanPositionError;
+
+		public double maxPositionError;
+
+		public double meanRelativeAreaError;
+
+		public double maxRelativeAreaError;
+
+		public long timeFull;
+
+		public long timeDownsampled;
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder str = new StringBuilder();
+			if ( options != null )
+				str.append( String.format( Locale.US, "Downsampling XY = %d, Z = %d, upsampled probabilities = %b.\n",
+						options.downsamplingXY, options.downsamplingZ, options.upsampleProbabilities ) );
+			str.append( String.format( Locale.US, "Spots at full resolution: %d, downsampled: %d, matched: %d.\n",
+					nReference, nDownsampled, nMatched ) );
+			str.append( String.format( Locale.US, "Unmatched at full resolution: %d, downsampled: %d.\n",
+					nReference - nMatched, nDownsampled - nMatched ) );
+			str.append( String.format( Locale.US, "Position error: mean %.3g, max %.3g.\n",
+					meanPositionError, maxPositionError ) );
+			str.append( String.format( Locale.US, "Relative area error: mean %.1f%%, max %.1f%%.\n",
+					100. * meanRelativeAreaError, 100. * maxRelativeAreaError ) );
+			if ( timeFull > 0 )
+				str.append( String.format( Locale.US, "Processing time: full %d ms, downsampled %d ms (x%.1f).\n",
+						timeFull, timeDownsampled, ( double ) timeFull / Math.max( 1, timeDownsampled ) ) );
+			return str.toString();
+		}
+	}
+}
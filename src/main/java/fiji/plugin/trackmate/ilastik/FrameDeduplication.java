@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.SpotRoi;
+import fiji.plugin.trackmate.ilastik.classifier.Fingerprint;
+import fiji.plugin.trackmate.ilastik.classifier.Parallel;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.ops.MetadataUtil;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.ImgView;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Finds the frames of a movie that have the same content, so that they are
+ * classified only once.
+ * <p>
+ * Paused stages or time points duplicated by a file conversion give movies
+ * in which some frames are exact copies of others. Each frame is hashed, in
+ * parallel, and frames with the same hash are compared pixel by pixel to
+ * rule out collisions. Only the first frame of each group of identical
+ * frames is sent to ilastik. The spots found in it are copied to the other
+ * frames of the group.
+ */
+public class FrameDeduplication
+{
+
+	private FrameDeduplication()
+	{}
+
+	/**
+	 * Returns, for each frame, the index of the first frame with the same
+	 * content. Frames that are not a copy of a previous frame are their own
+	 * representative.
+	 * 
+	 * @param img
+	 *            the image.
+	 * @param tDim
+	 *            the index of the time axis in the image.
+	 * @param numThreads
+	 *            the number of threads to hash the frames with.
+	 * @param <T>
+	 *            the pixel type.
+	 * @return a new array with one index per frame.
+	 */
+	public static < T extends RealType< T > > int[] findRepresentatives(
+			final RandomAccessibleInterval< T > img,
+			final int tDim,
+			final int numThreads )
+	{
+		final int nFrames = ( int ) img.dimension( tDim );
+		final long[] hashes = new long[ nFrames ];
+		Parallel.forEachChunk( nFrames, numThreads, ( from, to ) -> {
+			for ( long t = from; t < to; t++ )
+				hashes[ ( int ) t ] = hash( frame( img, tDim, ( int ) t ) );
+		} );
+
+		final int[] representatives = new int[ nFrames ];
+		final Map< Long, List< Integer > > candidates = new HashMap<>();
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			representatives[ t ] = t;
+			final List< Integer > sameHash = candidates.computeIfAbsent( hashes[ t ], k -> new ArrayList<>( 1 ) );
+			for ( final int c : sameHash )
+			{
+				if ( equal( frame( img, tDim, c ), frame( img, tDim, t ) ) )
+				{
+					representatives[ t ] = c;
+					break;
+				}
+			}
+			if ( representatives[ t ] == t )
+				sameHash.add( t );
+		}
+		return representatives;
+	}
+
+	/**
+	 * Returns a view on the specified frames of an image, stacked in the
+	 * specified order along its time axis. The view has the axes and the
+	 * calibration of the image.
+	 * 
+	 * @param img
+	 *            the image. Must have a time axis.
+	 * @param frames
+	 *            the indices of the frames to keep, in the image.
+	 * @param <T>
+	 *            the pixel type.
+	 * @return a new image.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImgPlus< T > selectFrames( final ImgPlus< T > img, final List< Integer > frames )
+	{
+		final int tDim = img.dimensionIndex( Axes.TIME );
+		final List< RandomAccessibleInterval< T > > slices = new ArrayList<>( frames.size() );
+		for ( final int t : frames )
+			slices.add( Views.hyperSlice( img, tDim, img.min( tDim ) + t ) );
+		RandomAccessibleInterval< T > stack = Views.stack( slices );
+		if ( tDim != img.numDimensions() - 1 )
+			stack = Views.moveAxis( stack, img.numDimensions() - 1, tDim );
+		final ImgPlus< T > out = new ImgPlus<>( ImgView.wrap( stack, img.factory() ) );
+		MetadataUtil.copyImgPlusMetadata( img, out );
+		return out;
+	}
+
+	/**
+	 * Builds the spots of all the frames from the spots of the representative
+	 * frames. The spots of a representative frame are kept as they are, and
+	 * copied to each frame it represents.
+	 * 
+	 * @param uniqueSpots
+	 *            the spots found in the representative frames, keyed by the
+	 *            rank of the frame among the representatives plus
+	 *            <code>uniqueT0</code>.
+	 * @param uniqueT0
+	 *            the key of the first representative frame in
+	 *            <code>uniqueSpots</code>.
+	 * @param representatives
+	 *            the representative of each frame, as returned by
+	 *            {@link #findRepresentatives(RandomAccessibleInterval, int, int)}.
+	 * @param t0
+	 *            the index of the first frame in the output collection.
+	 * @return a new spot collection.
+	 */
+	public static SpotCollection expand( final SpotCollection uniqueSpots, final int uniqueT0, final int[] representatives, final int t0 )
+	{
+		final int[] rank = new int[ representatives.length ];
+		int n = 0;
+		for ( int t = 0; t < representatives.length; t++ )
+			if ( representatives[ t ] == t )
+				rank[ t ] = n++;
+
+		final SpotCollection spots = new SpotCollection();
+		for ( int t = 0; t < representatives.length; t++ )
+		{
+			final int r = representatives[ t ];
+			final List< Spot > spotsThisFrame = new ArrayList<>();
+			// The runner omits the frames it skipped entirely.
+			if ( uniqueSpots.keySet().contains( uniqueT0 + rank[ r ] ) )
+				for ( final Spot spot : uniqueSpots.iterable( uniqueT0 + rank[ r ], false ) )
+					spotsThisFrame.add( r == t ? spot : copy( spot ) );
+			spots.put( t + t0, spotsThisFrame );
+		}
+		return spots;
+	}
+
+	/**
+	 * Returns a copy of a spot, with its own ID.
+	 * 
+	 * @param spot
+	 *            the spot to copy.
+	 * @return a new spot.
+	 */
+	public static Spot copy( final Spot spot )
+	{
+		if ( spot instanceof CompactContourSpot )
+			return ( ( CompactContourSpot ) spot ).copy();
+		if ( spot instanceof LazyContourSpot )
+			return ( ( LazyContourSpot ) spot ).copy();
+
+		final Spot copy = new Spot( spot, spot.getFeature( Spot.RADIUS ), spot.getFeature( Spot.QUALITY ) );
+		for ( final Map.Entry< String, Double > feature : spot.getFeatures().entrySet() )
+			copy.putFeature( feature.getKey(), feature.getValue() );
+		final SpotRoi roi = spot.getRoi();
+		if ( roi != null )
+			copy.setRoi( roi.copy() );
+		return copy;
+	}
+
+	/**
+	 * Computes a 64-bit hash of the pixel values, dimensions and pixel type of
+	 * an image.
+	 */
+	static < T extends RealType< T > > long hash( final RandomAccessibleInterval< T > img )
+	{
+		final IterableInterval< T > pixels = Views.flatIterable( img );
+		final Fingerprint fingerprint = new Fingerprint( Intervals.dimensionsAsLongArray( img ), pixels.firstElement().getClass().getName() );
+		for ( final T p : pixels )
+			fingerprint.add( p.getRealFloat() );
+		return fingerprint.get();
+	}
+
+	private static < T extends RealType< T > > boolean equal( final RandomAccessibleInterval< T > a, final RandomAccessibleInterval< T > b )
+	{
+		final Cursor< T > ca = Views.flatIterable( a ).cursor();
+		final Cursor< T > cb = Views.flatIterable( b ).cursor();
+		while ( ca.hasNext() )
+			if ( ca.next().getRealDouble() != cb.next().getRealDouble() )
+				return false;
+		return true;
+	}
+
+	private static < T > RandomAccessibleInterval< T > frame( final RandomAccessibleInterval< T > img, final int tDim, final int t )
+	{
+		return Views.hyperSlice( img, tDim, img.min( tDim ) + t );
+	}
+}
@@ -0,0 +1,599 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.DetectionUtils;
+import fiji.plugin.trackmate.detection.MaskUtils;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Extracts the spots of one frame of a probability map, taking into account
+ * the binning of the input, the ROI, and the position of the probability map
+ * in the source image.
+ */
+public class FrameExtractor
+{
+
+	/** Binning factors of the probability map, in X, Y and Z if any. */
+	private final long[] binning;
+
+	/** Dimensions of the frame at full resolution. */
+	private final long[] frameDims;
+
+	/** Position of the frame top-left corner in the source image. */
+	private final long[] origin;
+
+	private final double[] calibration;
+
+	private final boolean upsample;
+
+	private final RoiMask roiMask;
+
+	private final double probaThreshold;
+
+	private final int numThreads;
+
+	private final SpotRepresentation representation;
+
+	private final double simplificationTolerance;
+
+	private final PredictionStorage storage;
+
+	/**
+	 * Creates an extractor that stores the spots with the contour computed by
+	 * TrackMate.
+	 * 
+	 * @param binning
+	 *            the binning factors that were applied before inference, in
+	 *            X, Y and Z if any.
+	 * @param frameDims
+	 *            the dimensions of the frame, at full resolution.
+	 * @param origin
+	 *            the position of the frame top-left corner in the source
+	 *            image, in pixels.
+	 * @param calibration
+	 *            the pixel sizes of the source image.
+	 * @param upsample
+	 *            if <code>true</code>, binned probability maps are
+	 *            interpolated back to full resolution before extraction.
+	 * @param roiMask
+	 *            the ROI outside of which probabilities are set to 0. Can be
+	 *            <code>null</code>.
+	 * @param probaThreshold
+	 *            the threshold on the probability.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 */
+	public FrameExtractor(
+			final long[] binning,
+			final long[] frameDims,
+			final long[] origin,
+			final double[] calibration,
+			final boolean upsample,
+			final RoiMask roiMask,
+			final double probaThreshold,
+			final int numThreads )
+	{
+		this( binning, frameDims, origin, calibration, upsample, roiMask, probaThreshold, numThreads, SpotRepresentation.CONTOUR, 0. );
+	}
+
+	/**
+	 * Creates an extractor.
+	 * 
+	 * @param binning
+	 *            the binning factors that were applied before inference, in
+	 *            X, Y and Z if any.
+	 * @param frameDims
+	 *            the dimensions of the frame, at full resolution.
+	 * @param origin
+	 *            the position of the frame top-left corner in the source
+	 *            image, in pixels.
+	 * @param calibration
+	 *            the pixel sizes of the source image.
+	 * @param upsample
+	 *            if <code>true</code>, binned probability maps are
+	 *            interpolated back to full resolution before extraction.
+	 * @param roiMask
+	 *            the ROI outside of which probabilities are set to 0. Can be
+	 *            <code>null</code>.
+	 * @param probaThreshold
+	 *            the threshold on the probability.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param representation
+	 *            how the 2D spots are stored.
+	 * @param simplificationTolerance
+	 *            the tolerance, in pixels, of the contour simplification of
+	 *            {@link SpotRepresentation#COMPACT_CONTOUR}.
+	 */
+	public FrameExtractor(
+			final long[] binning,
+			final long[] frameDims,
+			final long[] origin,
+			final double[] calibration,
+			final boolean upsample,
+			final RoiMask roiMask,
+			final double probaThreshold,
+			final int numThreads,
+			final SpotRepresentation representation,
+			final double simplificationTolerance )
+	{
+		this( binning, frameDims, origin, calibration, upsample, roiMask, probaThreshold, numThreads, representation, simplificationTolerance, PredictionStorage.HEAP );
+	}
+
+	/**
+	 * Creates an extractor whose interpolated and masked probability maps are
+	 * stored with the specified storage.
+	 * 
+	 * @param binning
+	 *            the binning factors that were applied before inference, in
+	 *            X, Y and Z if any.
+	 * @param frameDims
+	 *            the dimensions of the frame, at full resolution.
+	 * @param origin
+	 *            the position of the frame top-left corner in the source
+	 *            image, in pixels.
+	 * @param calibration
+	 *            the pixel sizes of the source image.
+	 * @param upsample
+	 *            if <code>true</code>, binned probability maps are
+	 *            interpolated back to full resolution before extraction.
+	 * @param roiMask
+	 *            the ROI outside of which probabilities are set to 0. Can be
+	 *            <code>null</code>.
+	 * @param probaThreshold
+	 *            the threshold on the probability.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param representation
+	 *            how the 2D spots are stored.
+	 * @param simplificationTolerance
+	 *            the tolerance, in pixels, of the contour simplification of
+	 *            {@link SpotRepresentation#COMPACT_CONTOUR}.
+	 * @param storage
+	 *            where to store the probability maps made by the extractor.
+	 */
+	public FrameExtractor(
+			final long[] binning,
+			final long[] frameDims,
+			final long[] origin,
+			final double[] calibration,
+			final boolean upsample,
+			final RoiMask roiMask,
+			final double probaThreshold,
+			final int numThreads,
+			final SpotRepresentation representation,
+			final double simplificationTolerance,
+			final PredictionStorage storage )
+	{
+		this.binning = binning;
+		this.frameDims = frameDims;
+		this.origin = origin;
+		this.calibration = calibration;
+		this.upsample = upsample;
+		this.roiMask = roiMask;
+		this.probaThreshold = probaThreshold;
+		this.numThreads = numThreads;
+		this.representation = representation;
+		this.simplificationTolerance = simplificationTolerance;
+		this.storage = storage;
+	}
+
+	/**
+	 * Returns <code>true</code> if the probability maps given to this
+	 * extractor are binned and not interpolated back to full resolution.
+	 * 
+	 * @return whether objects are extracted at low resolution.
+	 */
+	public boolean isLowRes()
+	{
+		if ( upsample )
+			return false;
+		for ( final long f : binning )
+			if ( f > 1 )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns the dimensions of the probability maps this extractor expects,
+	 * that is: the dimensions of the frame divided by the binning factors.
+	 * 
+	 * @return a new <code>long[]</code> array.
+	 */
+	public long[] getProbabilityDims()
+	{
+		final long[] dims = new long[ frameDims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+			dims[ d ] = ( frameDims[ d ] + binning[ d ] - 1 ) / binning[ d ];
+		return dims;
+	}
+
+	/**
+	 * Extracts the spots of one frame.
+	 * 
+	 * @param proba
+	 *            the probability map of one frame, zero-min, possibly binned.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 * @return a new list of spots, in the coordinates of the source image.
+	 */
+	public < R extends RealType< R > > List< Spot > extract( final RandomAccessibleInterval< R > proba )
+	{
+		return extract( proba, null, 0 );
+	}
+
+	/**
+	 * Extracts the spots of one frame, and writes its label image to a sink.
+	 * 
+	 * @param proba
+	 *            the probability map of one frame, zero-min, possibly binned.
+	 * @param labelSink
+	 *            the sink to write the label image of the frame to, or
+	 *            <code>null</code>.
+	 * @param frame
+	 *            the index of the frame in the movie.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 * @return a new list of spots, in the coordinates of the source image.
+	 */
+	public < R extends RealType< R > > List< Spot > extract( final RandomAccessibleInterval< R > proba, final LabelSink labelSink, final int frame )
+	{
+		final boolean lowRes = isLowRes();
+		final double[] extractionCalibration;
+		final List< Spot > spots;
+		if ( !lowRes && !Intervals.equalDimensions( proba, Intervals.createMinSize( minSize( frameDims ) ) ) )
+		{
+			final Img< FloatType > up = Downsampling.upsample( proba, binning, frameDims, storage );
+			if ( roiMask != null )
+				roiMask.apply( up, origin[ 0 ], origin[ 1 ], 1, 1 );
+			extractionCalibration = calibration;
+			spots = extractSpots( labelSink, frame, up, extractionCalibration, lowRes );
+		}
+		else if ( roiMask != null )
+		{
+			final Img< FloatType > masked = copy( proba, storage );
+			final long fx = lowRes ? binning[ 0 ] : 1;
+			final long fy = lowRes ? binning[ 1 ] : 1;
+			roiMask.apply( masked, origin[ 0 ], origin[ 1 ], fx, fy );
+			extractionCalibration = getExtractionCalibration();
+			spots = extractSpots( labelSink, frame, masked, extractionCalibration, lowRes );
+		}
+		else
+		{
+			extractionCalibration = getExtractionCalibration();
+			spots = extractSpots( labelSink, frame, proba, extractionCalibration, lowRes );
+		}
+
+		/*
+		 * Shift the spots (before this step, they have the top-left corner of
+		 * the interval as (0, 0) coordinates). If we extracted objects on the
+		 * binned probability map, a pixel center is shifted by half a binning
+		 * block.
+		 */
+		final double[] shift = new double[ frameDims.length ];
+		for ( int d = 0; d < shift.length; d++ )
+		{
+			shift[ d ] = origin[ d ] * calibration[ d ];
+			if ( lowRes )
+				shift[ d ] += ( binning[ d ] - 1 ) / 2. * calibration[ d ];
+		}
+		for ( final Spot spot : spots )
+		{
+			for ( int d = 0; d < shift.length; d++ )
+			{
+				final double pos = spot.getDoublePosition( d );
+				final double newPos = pos + shift[ d ];
+				spot.putFeature( Spot.POSITION_FEATURES[ d ], newPos );
+			}
+		}
+		return representation.convert( spots, extractionCalibration, simplificationTolerance );
+	}
+
+	/**
+	 * Extracts the spots of a probability map and writes its labels to the
+	 * sink, if any. The labels the spots are made from are handed to the sink
+	 * as they are. If the spots are not made from labels, the sink labels the
+	 * map again while the spots are created.
+	 */
+	private < R extends RealType< R > > List< Spot > extractSpots(
+			final LabelSink labelSink,
+			final int frame,
+			final RandomAccessibleInterval< R > map,
+			final double[] extractionCalibration,
+			final boolean lowRes )
+	{
+		if ( labelSink == null )
+			return extractSpots( map, extractionCalibration, probaThreshold, representation, numThreads, null );
+
+		final long[] mapBinning = new long[ binning.length ];
+		for ( int d = 0; d < binning.length; d++ )
+			mapBinning[ d ] = lowRes ? binning[ d ] : 1;
+		if ( !isLabeled( map, representation, numThreads ) )
+		{
+			labelSink.write( frame, map, probaThreshold, origin, mapBinning, numThreads );
+			return extractSpots( map, extractionCalibration, probaThreshold, representation, numThreads, null );
+		}
+		final long[] dims = Intervals.dimensionsAsLongArray( map );
+		return extractSpots( map, extractionCalibration, probaThreshold, representation, numThreads,
+				labels -> labelSink.write( frame, labels, dims, origin, mapBinning ) );
+	}
+
+	/**
+	 * Returns <code>true</code> if the spots of the specified map are made
+	 * from a labeling of the whole frame, that
+	 * {@link #extractSpots(RandomAccessibleInterval, double[], double, SpotRepresentation, int, Consumer)}
+	 * hands to its consumer.
+	 */
+	private static boolean isLabeled( final RandomAccessibleInterval< ? > map, final SpotRepresentation representation, final int numThreads )
+	{
+		return DetectionUtils.is2D( map ) && ( representation == SpotRepresentation.CENTROID
+				|| representation == SpotRepresentation.LAZY_CONTOUR
+				|| ParallelLabeling.accepts( map, numThreads ) );
+	}
+
+	/**
+	 * The pixel sizes to use for extraction: if objects are extracted at low
+	 * resolution, a pixel is larger by the binning factor.
+	 */
+	private double[] getExtractionCalibration()
+	{
+		if ( !isLowRes() )
+			return calibration;
+		final double[] cal = calibration.clone();
+		for ( int d = 0; d < binning.length; d++ )
+			cal[ d ] *= binning[ d ];
+		return cal;
+	}
+
+	/**
+	 * Creates spots from the objects found by thresholding one frame of a
+	 * probability map. In 2D the spots have a contour, in 3D they have the
+	 * volume of the region they were made from.
+	 * 
+	 * @param probaThisFrame
+	 *            the probability map of one frame, zero-min.
+	 * @param calibration
+	 *            the pixel sizes of the probability map.
+	 * @param probaThreshold
+	 *            the threshold on the probability.
+	 * @param representation
+	 *            how the 2D spots are to be stored. Spots without contour are
+	 *            created without tracing it.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param labelsConsumer
+	 *            if not <code>null</code>, receives the labels of the frame
+	 *            in raster order when the spots are made from a labeling of
+	 *            the 2D frame. It must not modify them.
+	 * @return a new list of spots, with coordinates relative to the top-left
+	 *         corner of the probability map.
+	 */
+	static < R extends RealType< R > > List< Spot > extractSpots(
+			final RandomAccessibleInterval< R > probaThisFrame,
+			final double[] calibration,
+			final double probaThreshold,
+			final SpotRepresentation representation,
+			final int numThreads,
+			final Consumer< int[] > labelsConsumer )
+	{
+		if ( DetectionUtils.is2D( probaThisFrame ) )
+		{
+			final boolean simplify = representation.simplifyContours();
+			if ( representation == SpotRepresentation.CENTROID )
+				return extractCentroids( probaThisFrame, calibration, probaThreshold, numThreads, false, labelsConsumer );
+			if ( representation == SpotRepresentation.LAZY_CONTOUR )
+				return extractCentroids( probaThisFrame, calibration, probaThreshold, numThreads, true, labelsConsumer );
+
+			/*
+			 * 2D: we compute and store the contour. Large frames are labeled
+			 * in parallel.
+			 */
+			if ( ParallelLabeling.accepts( probaThisFrame, numThreads ) )
+			{
+				final int width = ( int ) probaThisFrame.dimension( 0 );
+				final int height = ( int ) probaThisFrame.dimension( 1 );
+				final int[] labels = new int[ width * height ];
+				final int nLabels = ParallelLabeling.label( width, height, ParallelLabeling.reader( probaThisFrame, probaThreshold ), labels, numThreads );
+				if ( labelsConsumer != null )
+					labelsConsumer.accept( labels );
+				final ImgLabeling< Integer, IntType > labeling = ParallelLabeling.labeling( labels, width, height, nLabels );
+				return MaskUtils.fromLabelingWithROI(
+						labeling,
+						probaThisFrame,
+						calibration,
+						simplify,
+						probaThisFrame );
+			}
+			return MaskUtils.fromThresholdWithROI(
+					probaThisFrame,
+					probaThisFrame,
+					calibration,
+					probaThreshold,
+					simplify,
+					numThreads,
+					probaThisFrame );
+		}
+		else
+		{
+			/*
+			 * 3D: We create spots of the same volume that of the region.
+			 */
+			return MaskUtils.fromThreshold(
+					probaThisFrame,
+					probaThisFrame,
+					calibration,
+					probaThreshold,
+					numThreads,
+					probaThisFrame );
+		}
+	}
+
+	/**
+	 * Creates spots without contour from a 2D probability map, with the
+	 * {@link ProbabilityKernels} if it is stored in a primitive array and
+	 * with a cursor otherwise. Spots are the
+	 * same as the ones of <code>MaskUtils.fromLabeling</code>: they are at
+	 * the center of mass of the pixels of the object, their radius is the one
+	 * of a disc of the same area, and their quality is the maximal
+	 * probability in the object. If <code>lazy</code> is <code>true</code>,
+	 * they are {@link LazyContourSpot}s, that trace their contour in the
+	 * labels of the frame when it is first read.
+	 */
+	private static < R extends RealType< R > > List< Spot > extractCentroids(
+			final RandomAccessibleInterval< R > probaThisFrame,
+			final double[] calibration,
+			final double probaThreshold,
+			final int numThreads,
+			final boolean lazy,
+			final Consumer< int[] > labelsConsumer )
+	{
+		final int width = ( int ) probaThisFrame.dimension( 0 );
+		final int height = ( int ) probaThisFrame.dimension( 1 );
+		final int[] labels = new int[ width * height ];
+		final int nLabels = ParallelLabeling.label(
+				width,
+				height,
+				ParallelLabeling.reader( probaThisFrame, probaThreshold ),
+				labels,
+				numThreads );
+		if ( labelsConsumer != null )
+			labelsConsumer.accept( labels );
+
+		final double[] stats = new double[ nLabels * ProbabilityKernels.N_STATS ];
+		for ( int l = 0; l < nLabels; l++ )
+			stats[ l * ProbabilityKernels.N_STATS + 3 ] = Double.NEGATIVE_INFINITY;
+		final float[] floats = ProbabilityKernels.floats( probaThisFrame );
+		final byte[] bytes = ProbabilityKernels.uint8s( probaThisFrame );
+		if ( floats != null )
+			ProbabilityKernels.accumulate( labels, floats, width, 0, height, stats );
+		else if ( bytes != null )
+			ProbabilityKernels.accumulate( labels, bytes, width, 0, height, stats );
+		else
+			accumulate( labels, probaThisFrame, width, stats );
+
+		final LazyContourSpot.LabeledFrame labeledFrame = lazy
+				? new LazyContourSpot.LabeledFrame( labels, width, height, calibration )
+				: null;
+		final int[][] bounds = lazy ? boundingBoxes( labels, width, height, nLabels ) : null;
+
+		final List< Spot > spots = new ArrayList<>( nLabels );
+		for ( int l = 0; l < nLabels; l++ )
+		{
+			final int s = l * ProbabilityKernels.N_STATS;
+			final double count = stats[ s ];
+			final double x = calibration[ 0 ] * stats[ s + 1 ] / count;
+			final double y = calibration[ 1 ] * stats[ s + 2 ] / count;
+			final double area = count * calibration[ 0 ] * calibration[ 1 ];
+			final double radius = Math.sqrt( area / Math.PI );
+			spots.add( lazy
+					? new LazyContourSpot( x, y, radius, stats[ s + 3 ], labeledFrame, l + 1, bounds[ l ] )
+					: new Spot( x, y, 0., radius, stats[ s + 3 ] ) );
+		}
+		return spots;
+	}
+
+	/**
+	 * Accumulates the statistics of labeled objects over a frame that is not
+	 * stored in a primitive array, in the layout of
+	 * {@link ProbabilityKernels#accumulate(int[], float[], int, int, int, double[])}.
+	 */
+	private static < R extends RealType< R > > void accumulate( final int[] labels, final RandomAccessibleInterval< R > frame, final int width, final double[] stats )
+	{
+		final Cursor< R > cursor = Views.flatIterable( frame ).cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+		{
+			final double v = cursor.next().getRealDouble();
+			final int l = labels[ i ];
+			if ( l != 0 )
+			{
+				final int s = ( l - 1 ) * ProbabilityKernels.N_STATS;
+				stats[ s ] += 1.;
+				stats[ s + 1 ] += i % width;
+				stats[ s + 2 ] += i / width;
+				stats[ s + 3 ] = Math.max( stats[ s + 3 ], v );
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Returns the bounding box of each label, as min X, min Y, max X, max Y,
+	 * label 1 first.
+	 */
+	private static int[][] boundingBoxes( final int[] labels, final int width, final int height, final int nLabels )
+	{
+		final int[][] bounds = new int[ nLabels ][];
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = y * width;
+			for ( int x = 0; x < width; x++ )
+			{
+				final int l = labels[ row + x ];
+				if ( l == 0 )
+					continue;
+				final int[] box = bounds[ l - 1 ];
+				if ( box == null )
+				{
+					bounds[ l - 1 ] = new int[] { x, y, x, y };
+					continue;
+				}
+				box[ 0 ] = Math.min( box[ 0 ], x );
+				box[ 1 ] = Math.min( box[ 1 ], y );
+				box[ 2 ] = Math.max( box[ 2 ], x );
+				box[ 3 ] = Math.max( box[ 3 ], y );
+			}
+		}
+		return bounds;
+	}
+
+	private static < R extends RealType< R > > Img< FloatType > copy( final RandomAccessibleInterval< R > proba, final PredictionStorage storage )
+	{
+		final Img< FloatType > out = storage.floats( Intervals.dimensionsAsLongArray( proba ) );
+		final Cursor< R > cIn = Views.flatIterable( proba ).cursor();
+		final Cursor< FloatType > cOut = Views.flatIterable( out ).cursor();
+		while ( cIn.hasNext() )
+			cOut.next().setReal( cIn.next().getRealFloat() );
+		return out;
+	}
+
+	private static long[] minSize( final long[] dims )
+	{
+		final long[] minSize = new long[ 2 * dims.length ];
+		System.arraycopy( dims, 0, minSize, dims.length, dims.length );
+		return minSize;
+	}
+}
@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiji.plugin.trackmate.SpotCollection;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Runs the ilastik detection asynchronously, so that scripts can process
+ * several movies at once, or do other work while ilastik runs.
+ * <p>
+ * Each movie is split in chunks of frames, and each chunk is detected by a
+ * call to {@link IlastikRunner#run}. The result of each chunk, and of the
+ * whole movie, is given as a {@link CompletableFuture}.
+ * <p>
+ * All the chunks are processed on a bounded pool of platform threads, so
+ * that fanning out over many movies does not oversubscribe the processors.
+ * Chunks classified by an external backend spend most of their time waiting
+ * for the ilastik process. At most a fixed number of them run an external
+ * inference at once, since each ilastik process is sized to the ilastik RAM
+ * budget. They wait for their turn and for ilastik on virtual threads when
+ * the JVM supports them (Java 21 and later), and on a cached pool of daemon
+ * threads otherwise. Only the extraction of their spots is run on the
+ * compute pool, so that it is never blocked by ilastik.
+ * 
+ * <pre>
+ * try (IlastikAsyncRunner runner = new IlastikAsyncRunner( 4 ))
+ * {
+ * 	final List&lt; CompletableFuture&lt; SpotCollection &gt; &gt; results = new ArrayList&lt;&gt;();
+ * 	for ( final ImgPlus&lt; T &gt; img : movies )
+ * 		results.add( runner.submit( img, interval, 0, project, 1, 0.5, options, 10 ).getResult() );
+ * 	CompletableFuture.allOf( results.toArray( new CompletableFuture[ 0 ] ) ).join();
+ * }
+ * </pre>
+ */
+public class IlastikAsyncRunner implements AutoCloseable
+{
+
+	private final ExecutorService waitExecutor;
+
+	private final ForkJoinPool computeExecutor;
+
+	/**
+	 * The permits to run an external inference.
+	 */
+	private final Semaphore externalInferences;
+
+	/**
+	 * Creates an asynchronous runner that runs one external inference at a
+	 * time.
+	 * 
+	 * @param computeThreads
+	 *            the number of chunks processed in the JVM at once. Each of
+	 *            them uses the number of threads of its options.
+	 */
+	public IlastikAsyncRunner( final int computeThreads )
+	{
+		this( computeThreads, 1 );
+	}
+
+	/**
+	 * Creates an asynchronous runner.
+	 * 
+	 * @param computeThreads
+	 *            the number of chunks processed in the JVM at once. Each of
+	 *            them uses the number of threads of its options.
+	 * @param maxExternalInferences
+	 *            the number of inferences run at once by external backends.
+	 *            Each ilastik process may use the whole ilastik RAM budget.
+	 */
+	public IlastikAsyncRunner( final int computeThreads, final int maxExternalInferences )
+	{
+		this.waitExecutor = newWaitExecutor();
+		final AtomicInteger count = new AtomicInteger();
+		this.computeExecutor = new ForkJoinPool( Math.max( 1, computeThreads ), pool -> {
+			final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+			thread.setName( "TrackMate ilastik compute thread " + count.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		}, null, false );
+		this.externalInferences = new Semaphore( Math.max( 1, maxExternalInferences ) );
+	}
+
+	/**
+	 * Submits the detection on a movie. Returns immediately.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval (space and time) to operate on.
+	 * @param channel
+	 *            the channel in the source image to use for inference.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classId
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param options
+	 *            the optional parameters of the inference.
+	 * @param framesPerChunk
+	 *            the number of frames per chunk. 0 or less processes the
+	 *            movie in a single chunk.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 * @return the futures of the detection.
+	 */
+	public < T extends RealType< T > & NativeType< T > > Detection submit(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final IlastikRunnerOptions options,
+			final int framesPerChunk )
+	{
+		final boolean external = options.backend.isExternal();
+		final List< Interval > chunks = framesPerChunk <= 0 || interval.numDimensions() <= 2
+				? Collections.singletonList( interval )
+				: IlastikRunner.timeChunks( interval, framesPerChunk );
+
+		final List< CompletableFuture< SpotCollection > > chunkFutures = new ArrayList<>( chunks.size() );
+		for ( final Interval chunk : chunks )
+		{
+			final CompletableFuture< SpotCollection > future = new CompletableFuture<>();
+			final Runnable task = () -> {
+				// Skip the chunks cancelled before they started.
+				if ( future.isDone() )
+					return;
+				try
+				{
+					future.complete( IlastikRunner.run( img, chunk, channel, projectFilePath, classId, probaThreshold, options ) );
+				}
+				catch ( final IOException | RuntimeException e )
+				{
+					future.completeExceptionally( e );
+				}
+			};
+			if ( !external )
+			{
+				computeExecutor.execute( task );
+				chunkFutures.add( future );
+				continue;
+			}
+
+			/*
+			 * Run the inference on a wait thread, under an inference permit,
+			 * then extract the spots on the compute pool. The permit is given
+			 * back as soon as ilastik is done, so that the next chunk can
+			 * start ilastik while this one extracts its spots.
+			 */
+			waitExecutor.execute( () -> {
+				if ( future.isDone() )
+					return;
+				try
+				{
+					externalInferences.acquire();
+				}
+				catch ( final InterruptedException e )
+				{
+					future.completeExceptionally( new InterruptedIOException( "Interrupted while waiting for ilastik." ) );
+					return;
+				}
+				final IlastikRunner.Extraction extraction;
+				try
+				{
+					extraction = IlastikRunner.predict( img, chunk, channel, projectFilePath, classId, probaThreshold, options );
+				}
+				catch ( final IOException | RuntimeException e )
+				{
+					future.completeExceptionally( e );
+					return;
+				}
+				finally
+				{
+					externalInferences.release();
+				}
+				computeExecutor.execute( () -> {
+					if ( future.isDone() )
+						return;
+					try
+					{
+						future.complete( extraction.extract() );
+					}
+					catch ( final IOException | RuntimeException e )
+					{
+						future.completeExceptionally( e );
+					}
+				} );
+			} );
+			chunkFutures.add( future );
+		}
+
+		final CompletableFuture< SpotCollection > result = CompletableFuture
+				.allOf( chunkFutures.toArray( new CompletableFuture[ 0 ] ) )
+				.thenApply( v -> {
+					final SpotCollection spots = new SpotCollection();
+					for ( final CompletableFuture< SpotCollection > future : chunkFutures )
+						IlastikRunner.merge( spots, future.join() );
+					return spots;
+				} );
+		return new Detection( chunks, chunkFutures, result );
+	}
+
+	/**
+	 * Stops accepting new detections. Chunks already submitted are still
+	 * processed.
+	 */
+	@Override
+	public void close()
+	{
+		waitExecutor.shutdown();
+		computeExecutor.shutdown();
+	}
+
+	/**
+	 * Returns an executor that starts a virtual thread per task if the JVM
+	 * supports them. They are accessed by reflection, as this code is
+	 * compiled for Java 8.
+	 */
+	private static ExecutorService newWaitExecutor()
+	{
+		try
+		{
+			return ( ExecutorService ) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		}
+		catch ( final ReflectiveOperationException e )
+		{
+			final AtomicInteger count = new AtomicInteger();
+			return Executors.newCachedThreadPool( r -> {
+				final Thread thread = new Thread( r, "TrackMate ilastik wait thread " + count.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		}
+	}
+
+	/**
+	 * The futures of the detection on one movie.
+	 */
+	public static class Detection
+	{
+
+		private final List< Interval > chunks;
+
+		private final List< CompletableFuture< SpotCollection > > chunkFutures;
+
+		private final CompletableFuture< SpotCollection > result;
+
+		private Detection(
+				final List< Interval > chunks,
+				final List< CompletableFuture< SpotCollection > > chunkFutures,
+				final CompletableFuture< SpotCollection > result )
+		{
+			this.chunks = Collections.unmodifiableList( chunks );
+			this.chunkFutures = Collections.unmodifiableList( chunkFutures );
+			this.result = result;
+		}
+
+		/**
+		 * Returns the interval of each chunk, in the order of
+		 * {@link #getChunks()}.
+		 * 
+		 * @return the chunk intervals.
+		 */
+		public List< Interval > getChunkIntervals()
+		{
+			return chunks;
+		}
+
+		/**
+		 * Returns the future spots of each chunk, keyed by frame.
+		 * 
+		 * @return the chunk futures.
+		 */
+		public List< CompletableFuture< SpotCollection > > getChunks()
+		{
+			return chunkFutures;
+		}
+
+		/**
+		 * Returns the future spots of the whole movie. It completes
+		 * exceptionally if any chunk fails or is cancelled.
+		 * 
+		 * @return the movie future.
+		 */
+		public CompletableFuture< SpotCollection > getResult()
+		{
+			return result;
+		}
+
+		/**
+		 * Cancels the chunks that have not started yet. Chunks in process run
+		 * to completion.
+		 */
+		public void cancel()
+		{
+			for ( final CompletableFuture< SpotCollection > future : chunkFutures )
+				future.cancel( false );
+		}
+	}
+}
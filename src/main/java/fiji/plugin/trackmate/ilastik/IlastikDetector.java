@@ -22,6 +22,7 @@
 package fiji.plugin.trackmate.ilastik;
 
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 
 import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
@@ -56,6 +57,10 @@ public class IlastikDetector< T extends RealType< T > & NativeType< T > > implem
 
 	private final int channel;
 
+	protected final IlastikRunnerOptions options;
+
+	private PredictionCache.Reference predictionCacheReference;
+
 	/**
 	 * Instantiate an ilastik detector.
 	 * 
@@ -81,6 +86,38 @@ public class IlastikDetector< T extends RealType< T > & NativeType< T > > implem
 			final String classifierPath,
 			final int classIndex,
 			final double probaThreshold )
+	{
+		this( img, interval, channel, classifierPath, classIndex, probaThreshold, IlastikRunnerOptions.DEFAULT );
+	}
+
+	/**
+	 * Instantiate an ilastik detector with optional inference parameters.
+	 * 
+	 * @param img
+	 *            source image, possibly multiple frames, possibly multiple Zs,
+	 *            possibly multiple channels.
+	 * @param interval
+	 *            the interval on which to operate.
+	 * @param channel
+	 *            the channel in the source image on which to operate when a
+	 *            model trained on a single channel is specified.
+	 * @param classifierPath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classIndex
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param options
+	 *            the optional parameters of the inference.
+	 */
+	public IlastikDetector(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String classifierPath,
+			final int classIndex,
+			final double probaThreshold,
+			final IlastikRunnerOptions options )
 	{
 		this.img = img;
 		this.interval = interval;
@@ -88,6 +125,7 @@ public class IlastikDetector< T extends RealType< T > & NativeType< T > > implem
 		this.classifierPath = classifierPath;
 		this.classIndex = classIndex;
 		this.probaThreshold = probaThreshold;
+		this.options = options;
 		this.baseErrorMessage = BASE_ERROR_MESSAGE;
 	}
 
@@ -102,13 +140,17 @@ public class IlastikDetector< T extends RealType< T > & NativeType< T > > implem
 		
 		try
 		{
-			spots = IlastikRunner.run(
-					img,
-					interval,
-					channel,
-					classifierPath,
-					classIndex,
-					probaThreshold );
+			spots = options.preview ? runPreview() : runInference();
+		}
+		catch ( final CancellationException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Preview cancelled. " + e.getMessage();
+			return false;
+		}
+		catch ( final MemoryPlanner.NotEnoughMemoryException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + e.getMessage();
+			return false;
 		}
 		catch ( final IOException e )
 		{
@@ -120,15 +162,93 @@ public class IlastikDetector< T extends RealType< T > & NativeType< T > > implem
 		final long end = System.currentTimeMillis();
 		this.processingTime = end - start;
 
+		if ( options.prefetch > 0 )
+			PreviewPrefetcher.getInstance().prefetch(
+					img,
+					interval,
+					channel,
+					classifierPath,
+					classIndex,
+					probaThreshold,
+					options );
+
 		return true;
 	}
 
+	private SpotCollection runInference() throws IOException
+	{
+		final SpotCollection spots = runAndExport();
+		if ( options.predictionCache != null )
+			predictionCacheReference = options.predictionCache.getReference( options.logger );
+		return spots;
+	}
+
+	private SpotCollection runAndExport() throws IOException
+	{
+		if ( options.labelSink == null )
+			return IlastikRunner.run(
+					img,
+					interval,
+					channel,
+					classifierPath,
+					classIndex,
+					probaThreshold,
+					options );
+
+		// Wait for the last label image to be written.
+		try (LabelSink labelSink = options.labelSink)
+		{
+			return IlastikRunner.run(
+					img,
+					interval,
+					channel,
+					classifierPath,
+					classIndex,
+					probaThreshold,
+					options );
+		}
+	}
+
+	/**
+	 * Runs the inference through the preview executor, so that it is
+	 * cancelled if a newer preview is requested.
+	 */
+	private SpotCollection runPreview() throws IOException
+	{
+		try
+		{
+			// The prefetches would compete with the preview.
+			PreviewPrefetcher.getInstance().cancel();
+			return PreviewExecutor.getInstance().run( this::runInference, options.backend::cancel );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			throw e;
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( e.getMessage(), e );
+		}
+	}
+
 	@Override
 	public SpotCollection getResult()
 	{
 		return spots;
 	}
 
+	/**
+	 * Returns the reference of the cached probabilities of the last
+	 * detection, to save with its settings.
+	 * 
+	 * @return the reference, or <code>null</code> if the detection does not
+	 *         use a prediction cache.
+	 */
+	public PredictionCache.Reference getPredictionCacheReference()
+	{
+		return predictionCacheReference;
+	}
+
 	@Override
 	public boolean checkInput()
 	{
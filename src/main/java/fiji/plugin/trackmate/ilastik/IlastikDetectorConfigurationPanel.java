@@ -26,8 +26,55 @@ import static fiji.plugin.trackmate.gui.Fonts.BIG_FONT;
 import static fiji.plugin.trackmate.gui.Fonts.FONT;
 import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
 import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CLASSIFIER_FILEPATH;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_ADAPTIVE_BATCHING;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_CASCADE_DILATION;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_CASCADE_FACTOR;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_CASCADE_PROJECT;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_CASCADE_THRESHOLD;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_DEDUPLICATE_FRAMES;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_LABEL_EXPORT_FILE;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_MAX_DISPLACEMENT;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_PREDICTION_CACHE_FOLDER;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_BACKEND;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_BACKEND_ADDRESS;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_FEATURE_CACHE_MB;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_FEATURE_CACHE_OFF_HEAP_MB;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_DOWNSAMPLING_XY;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_DOWNSAMPLING_Z;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_PRESCREEN;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_PRESCREEN_MAX_INTENSITY;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_PRESCREEN_MAX_STD;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_SIMPLIFICATION_TOLERANCE;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_SPOT_REPRESENTATION;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_UPSAMPLE_PROBABILITIES;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_ADAPTIVE_BATCHING;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CASCADE_DILATION;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CASCADE_FACTOR;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CASCADE_PROJECT;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CASCADE_THRESHOLD;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_DEDUPLICATE_FRAMES;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_LABEL_EXPORT_FILE;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_MAX_DISPLACEMENT;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PREDICTION_CACHE_FOLDER;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PREDICTION_CACHE_IMAGE;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PREDICTION_CACHE_PROJECT;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_BACKEND;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_BACKEND_ADDRESS;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_FEATURE_CACHE_MB;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_FEATURE_CACHE_OFF_HEAP_MB;
 import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CLASS_INDEX;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_DOWNSAMPLING_XY;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_DOWNSAMPLING_Z;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PRESCREEN;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PRESCREEN_MAX_INTENSITY;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PRESCREEN_MAX_STD;
 import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PROBA_THRESHOLD;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_ROI;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_SIMPLIFICATION_TOLERANCE;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_SPOT_REPRESENTATION;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_UPSAMPLE_PROBABILITIES;
 
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
@@ -42,6 +89,8 @@ import java.util.List;
 import java.util.Map;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JSlider;
@@ -49,19 +98,28 @@ import javax.swing.JSpinner;
 import javax.swing.JSpinner.DefaultEditor;
 import javax.swing.JTextField;
 import javax.swing.SpinnerListModel;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingConstants;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.scijava.prefs.PrefService;
 
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.gui.GuiUtils;
+import fiji.plugin.trackmate.ilastik.classifier.FeatureCache;
 import fiji.plugin.trackmate.util.DetectionPreview;
 import fiji.plugin.trackmate.util.FileChooser;
 import fiji.plugin.trackmate.util.FileChooser.DialogType;
 import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 
 public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfigurationPanel
 {
@@ -86,6 +144,81 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 
 	private final JSpinner spinner;
 
+	private final JSpinner spinnerDownsampling;
+
+	private final JCheckBox chkboxUpsample;
+
+	/**
+	 * The Z binning factor is not editable in this panel, we just pass along
+	 * the value we received.
+	 */
+	private int downsamplingZ = DEFAULT_DOWNSAMPLING_Z;
+
+	/**
+	 * The settings below are scripting-only: the spot representation, the
+	 * adaptive batching, the frame deduplication, the server address, the
+	 * feature cache sizes, the cascade, the keyframes, the label export and
+	 * the prediction cache are set in the detector settings of a script or of
+	 * a saved TrackMate file, and are not editable in this panel. We just
+	 * pass along the values we received, so that editing the other settings
+	 * does not reset them.
+	 */
+	private String spotRepresentation = DEFAULT_SPOT_REPRESENTATION;
+
+	private double simplificationTolerance = DEFAULT_SIMPLIFICATION_TOLERANCE;
+
+	private boolean adaptiveBatching = DEFAULT_ADAPTIVE_BATCHING;
+
+	private boolean deduplicateFrames = DEFAULT_DEDUPLICATE_FRAMES;
+
+	private String backendAddress = DEFAULT_BACKEND_ADDRESS;
+
+	private int featureCacheMb = DEFAULT_FEATURE_CACHE_MB;
+
+	private int featureCacheOffHeapMb = DEFAULT_FEATURE_CACHE_OFF_HEAP_MB;
+
+	private int cascadeFactor = DEFAULT_CASCADE_FACTOR;
+
+	private String cascadeProject = DEFAULT_CASCADE_PROJECT;
+
+	private double cascadeThreshold = DEFAULT_CASCADE_THRESHOLD;
+
+	private int cascadeDilation = DEFAULT_CASCADE_DILATION;
+
+	private int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+
+	private double maxDisplacement = DEFAULT_MAX_DISPLACEMENT;
+
+	private String labelExportFile = DEFAULT_LABEL_EXPORT_FILE;
+
+	private String predictionCacheFolder = DEFAULT_PREDICTION_CACHE_FOLDER;
+
+	private String predictionCacheProject = "";
+
+	private String predictionCacheImage = "";
+
+	private final JCheckBox chkboxPrescreen;
+
+	private final JButton btnCalibrate;
+
+	private final JComboBox< String > cmbboxBackend;
+
+	private final ProjectWarmUp projectWarmUp = new ProjectWarmUp();
+
+	/**
+	 * The prescreening thresholds are not editable in this panel, they are
+	 * set by the calibration.
+	 */
+	private double prescreenMaxStd = DEFAULT_PRESCREEN_MAX_STD;
+
+	private double prescreenMaxIntensity = DEFAULT_PRESCREEN_MAX_INTENSITY;
+
+	/**
+	 * Thresholds are set to this fraction of the smallest statistics of tiles
+	 * with objects in the calibration frame.
+	 */
+	private static final double PRESCREEN_SAFETY = 0.8;
+
 	/**
 	 * Creates the panel.
 	 * 
@@ -101,9 +234,9 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 144, 0, 32 };
-		gridBagLayout.rowHeights = new int[] { 0, 0, 0, 27, 0, 0, 0, 0, 37, 23 };
+		gridBagLayout.rowHeights = new int[] { 0, 0, 0, 27, 0, 0, 0, 0, 0, 0, 0, 37, 23 };
 		gridBagLayout.columnWeights = new double[] { 0., 1., 0. };
-		gridBagLayout.rowWeights = new double[] { 0., 1., 0., 0., 0., 0., 0., 0., 0., 0. };
+		gridBagLayout.rowWeights = new double[] { 0., 1., 0., 0., 0., 0., 0., 0., 0., 0., 0., 0., 0. };
 		setLayout( gridBagLayout );
 
 		final JLabel lblDetector = new JLabel( TITLE, ICON, JLabel.RIGHT );
@@ -159,7 +292,10 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 		gbcLabelChannel.gridy = 2;
 		add( labelChannel, gbcLabelChannel );
 
-		sliderChannel.addChangeListener( l -> labelChannel.setText( "" + sliderChannel.getValue() ) );
+		sliderChannel.addChangeListener( l -> {
+			labelChannel.setText( "" + sliderChannel.getValue() );
+			PreviewPrefetcher.getInstance().cancel();
+		} );
 
 		/*
 		 * Model file.
@@ -244,6 +380,93 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 		gbcScore.gridy = 6;
 		add( ftfProbaThreshold, gbcScore );
 
+		/*
+		 * Downsampling.
+		 */
+
+		final JLabel lblDownsampling = new JLabel( "Downsampling factor:" );
+		lblDownsampling.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblDownsampling = new GridBagConstraints();
+		gbcLblDownsampling.anchor = GridBagConstraints.EAST;
+		gbcLblDownsampling.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblDownsampling.gridx = 0;
+		gbcLblDownsampling.gridy = 7;
+		add( lblDownsampling, gbcLblDownsampling );
+
+		spinnerDownsampling = new JSpinner( new SpinnerNumberModel( DEFAULT_DOWNSAMPLING_XY.intValue(), 1, 16, 1 ) );
+		spinnerDownsampling.setFont( SMALL_FONT );
+		final GridBagConstraints gbcSpinnerDownsampling = new GridBagConstraints();
+		gbcSpinnerDownsampling.fill = GridBagConstraints.HORIZONTAL;
+		gbcSpinnerDownsampling.insets = new Insets( 5, 5, 5, 5 );
+		gbcSpinnerDownsampling.gridx = 1;
+		gbcSpinnerDownsampling.gridy = 7;
+		add( spinnerDownsampling, gbcSpinnerDownsampling );
+
+		chkboxUpsample = new JCheckBox( "Upsample probabilities before extracting objects" );
+		chkboxUpsample.setFont( SMALL_FONT );
+		chkboxUpsample.setHorizontalTextPosition( SwingConstants.LEFT );
+		final GridBagConstraints gbcChkboxUpsample = new GridBagConstraints();
+		gbcChkboxUpsample.anchor = GridBagConstraints.EAST;
+		gbcChkboxUpsample.gridwidth = 3;
+		gbcChkboxUpsample.insets = new Insets( 5, 5, 5, 5 );
+		gbcChkboxUpsample.gridx = 0;
+		gbcChkboxUpsample.gridy = 8;
+		add( chkboxUpsample, gbcChkboxUpsample );
+
+		spinnerDownsampling.addChangeListener( e -> chkboxUpsample.setEnabled( ( ( Number ) spinnerDownsampling.getValue() ).intValue() > 1 ) );
+
+		/*
+		 * Prescreen.
+		 */
+
+		btnCalibrate = new JButton( "Calibrate" );
+		btnCalibrate.setFont( SMALL_FONT );
+		btnCalibrate.setToolTipText( "<html>Calibrate the detection of empty tiles <br>"
+				+ "on the current frame.</html>" );
+		final GridBagConstraints gbcBtnCalibrate = new GridBagConstraints();
+		gbcBtnCalibrate.anchor = GridBagConstraints.WEST;
+		gbcBtnCalibrate.insets = new Insets( 5, 5, 5, 5 );
+		gbcBtnCalibrate.gridx = 0;
+		gbcBtnCalibrate.gridy = 9;
+		add( btnCalibrate, gbcBtnCalibrate );
+
+		chkboxPrescreen = new JCheckBox( "Skip empty tiles" );
+		chkboxPrescreen.setFont( SMALL_FONT );
+		chkboxPrescreen.setHorizontalTextPosition( SwingConstants.LEFT );
+		final GridBagConstraints gbcChkboxPrescreen = new GridBagConstraints();
+		gbcChkboxPrescreen.anchor = GridBagConstraints.EAST;
+		gbcChkboxPrescreen.gridwidth = 2;
+		gbcChkboxPrescreen.insets = new Insets( 5, 5, 5, 5 );
+		gbcChkboxPrescreen.gridx = 1;
+		gbcChkboxPrescreen.gridy = 9;
+		add( chkboxPrescreen, gbcChkboxPrescreen );
+
+		/*
+		 * Backend.
+		 */
+
+		final JLabel lblBackend = new JLabel( "Run classifier with:" );
+		lblBackend.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblBackend = new GridBagConstraints();
+		gbcLblBackend.anchor = GridBagConstraints.EAST;
+		gbcLblBackend.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblBackend.gridx = 0;
+		gbcLblBackend.gridy = 10;
+		add( lblBackend, gbcLblBackend );
+
+		cmbboxBackend = new JComboBox<>( IlastikDetectorFactory.getBackendNames().toArray( new String[ 0 ] ) );
+		cmbboxBackend.setFont( SMALL_FONT );
+		cmbboxBackend.setToolTipText( "<html>'ilastik' runs the ilastik executable. <br>"
+				+ "'Java' evaluates the random forest of the project in Fiji, <br>"
+				+ "with features recomputed in Java. <br>"
+				+ "'Server' sends the pixels to an inference server.</html>" );
+		final GridBagConstraints gbcCmbboxBackend = new GridBagConstraints();
+		gbcCmbboxBackend.fill = GridBagConstraints.HORIZONTAL;
+		gbcCmbboxBackend.insets = new Insets( 5, 5, 5, 5 );
+		gbcCmbboxBackend.gridx = 1;
+		gbcCmbboxBackend.gridy = 10;
+		add( cmbboxBackend, gbcCmbboxBackend );
+
 		/*
 		 * Preview.
 		 */
@@ -251,7 +474,7 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 		final DetectionPreview detectionPreview = DetectionPreview.create()
 				.model( model )
 				.settings( settings )
-				.detectorFactory( getDetectorFactory() )
+				.detectorFactory( getDetectorFactory().forPreview() )
 				.detectionSettingsSupplier( () -> getSettings() )
 				.frameSupplier( () -> settings.imp.getFrame() - 1 )
 				.axisLabel( "Probability" )
@@ -262,7 +485,7 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 		gbcBtnPreview.fill = GridBagConstraints.BOTH;
 		gbcBtnPreview.insets = new Insets( 5, 5, 5, 5 );
 		gbcBtnPreview.gridx = 0;
-		gbcBtnPreview.gridy = 8;
+		gbcBtnPreview.gridy = 11;
 		add( detectionPreview.getPanel(), gbcBtnPreview );
 
 		/*
@@ -291,6 +514,8 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 		}
 
 		btnBrowse.addActionListener( l -> browse() );
+		cmbboxBackend.addActionListener( l -> warmUp() );
+		btnCalibrate.addActionListener( l -> calibratePrescreen() );
 		final PropertyChangeListener l = e -> prefService.put(
 				IlastikDetectorConfigurationPanel.class, KEY_CLASSIFIER_FILEPATH, modelFileTextField.getText() );
 		modelFileTextField.addPropertyChangeListener( "value", l );
@@ -299,7 +524,7 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 	@Override
 	public Map< String, Object > getSettings()
 	{
-		final HashMap< String, Object > settings = new HashMap<>( 2 );
+		final HashMap< String, Object > settings = new HashMap<>( 7 );
 
 		final int targetChannel = sliderChannel.getValue();
 		settings.put( KEY_TARGET_CHANNEL, targetChannel );
@@ -312,6 +537,33 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 
 		final double probaThreshold = ( ( Number ) ftfProbaThreshold.getValue() ).doubleValue();
 		settings.put( KEY_PROBA_THRESHOLD, probaThreshold );
+
+		settings.put( KEY_DOWNSAMPLING_XY, ( ( Number ) spinnerDownsampling.getValue() ).intValue() );
+		settings.put( KEY_DOWNSAMPLING_Z, downsamplingZ );
+		settings.put( KEY_SPOT_REPRESENTATION, spotRepresentation );
+		settings.put( KEY_SIMPLIFICATION_TOLERANCE, simplificationTolerance );
+		settings.put( KEY_ADAPTIVE_BATCHING, adaptiveBatching );
+		settings.put( KEY_DEDUPLICATE_FRAMES, deduplicateFrames );
+		settings.put( KEY_BACKEND_ADDRESS, backendAddress );
+		settings.put( KEY_FEATURE_CACHE_MB, featureCacheMb );
+		settings.put( KEY_FEATURE_CACHE_OFF_HEAP_MB, featureCacheOffHeapMb );
+		settings.put( KEY_CASCADE_FACTOR, cascadeFactor );
+		settings.put( KEY_CASCADE_PROJECT, cascadeProject );
+		settings.put( KEY_CASCADE_THRESHOLD, cascadeThreshold );
+		settings.put( KEY_CASCADE_DILATION, cascadeDilation );
+		settings.put( KEY_KEYFRAME_INTERVAL, keyframeInterval );
+		settings.put( KEY_MAX_DISPLACEMENT, maxDisplacement );
+		settings.put( KEY_LABEL_EXPORT_FILE, labelExportFile );
+		settings.put( KEY_PREDICTION_CACHE_FOLDER, predictionCacheFolder );
+		settings.put( KEY_PREDICTION_CACHE_PROJECT, predictionCacheProject );
+		settings.put( KEY_PREDICTION_CACHE_IMAGE, predictionCacheImage );
+		settings.put( KEY_UPSAMPLE_PROBABILITIES, chkboxUpsample.isSelected() );
+		settings.put( KEY_PRESCREEN, chkboxPrescreen.isSelected() );
+		settings.put( KEY_PRESCREEN_MAX_STD, prescreenMaxStd );
+		settings.put( KEY_PRESCREEN_MAX_INTENSITY, prescreenMaxIntensity );
+		settings.put( KEY_BACKEND, cmbboxBackend.getSelectedItem() );
+		if ( this.settings.roi != null )
+			settings.put( KEY_ROI, this.settings.roi );
 		return settings;
 	}
 
@@ -332,11 +584,41 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 
 		ftfProbaThreshold.setValue( settings.get( KEY_PROBA_THRESHOLD ) );
 
+		spinnerDownsampling.setValue( settings.getOrDefault( KEY_DOWNSAMPLING_XY, DEFAULT_DOWNSAMPLING_XY ) );
+		downsamplingZ = ( Integer ) settings.getOrDefault( KEY_DOWNSAMPLING_Z, DEFAULT_DOWNSAMPLING_Z );
+		spotRepresentation = ( String ) settings.getOrDefault( KEY_SPOT_REPRESENTATION, DEFAULT_SPOT_REPRESENTATION );
+		simplificationTolerance = ( Double ) settings.getOrDefault( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE );
+		adaptiveBatching = ( Boolean ) settings.getOrDefault( KEY_ADAPTIVE_BATCHING, DEFAULT_ADAPTIVE_BATCHING );
+		deduplicateFrames = ( Boolean ) settings.getOrDefault( KEY_DEDUPLICATE_FRAMES, DEFAULT_DEDUPLICATE_FRAMES );
+		backendAddress = ( String ) settings.getOrDefault( KEY_BACKEND_ADDRESS, DEFAULT_BACKEND_ADDRESS );
+		featureCacheMb = ( Integer ) settings.getOrDefault( KEY_FEATURE_CACHE_MB, DEFAULT_FEATURE_CACHE_MB );
+		featureCacheOffHeapMb = ( Integer ) settings.getOrDefault( KEY_FEATURE_CACHE_OFF_HEAP_MB, DEFAULT_FEATURE_CACHE_OFF_HEAP_MB );
+		cascadeFactor = ( Integer ) settings.getOrDefault( KEY_CASCADE_FACTOR, DEFAULT_CASCADE_FACTOR );
+		cascadeProject = ( String ) settings.getOrDefault( KEY_CASCADE_PROJECT, DEFAULT_CASCADE_PROJECT );
+		cascadeThreshold = ( Double ) settings.getOrDefault( KEY_CASCADE_THRESHOLD, DEFAULT_CASCADE_THRESHOLD );
+		cascadeDilation = ( Integer ) settings.getOrDefault( KEY_CASCADE_DILATION, DEFAULT_CASCADE_DILATION );
+		keyframeInterval = ( Integer ) settings.getOrDefault( KEY_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL );
+		maxDisplacement = ( Double ) settings.getOrDefault( KEY_MAX_DISPLACEMENT, DEFAULT_MAX_DISPLACEMENT );
+		labelExportFile = ( String ) settings.getOrDefault( KEY_LABEL_EXPORT_FILE, DEFAULT_LABEL_EXPORT_FILE );
+		predictionCacheFolder = ( String ) settings.getOrDefault( KEY_PREDICTION_CACHE_FOLDER, DEFAULT_PREDICTION_CACHE_FOLDER );
+		predictionCacheProject = ( String ) settings.getOrDefault( KEY_PREDICTION_CACHE_PROJECT, "" );
+		predictionCacheImage = ( String ) settings.getOrDefault( KEY_PREDICTION_CACHE_IMAGE, "" );
+		chkboxUpsample.setSelected( ( Boolean ) settings.getOrDefault( KEY_UPSAMPLE_PROBABILITIES, DEFAULT_UPSAMPLE_PROBABILITIES ) );
+		chkboxUpsample.setEnabled( ( ( Number ) spinnerDownsampling.getValue() ).intValue() > 1 );
+		chkboxPrescreen.setSelected( ( Boolean ) settings.getOrDefault( KEY_PRESCREEN, DEFAULT_PRESCREEN ) );
+		prescreenMaxStd = ( Double ) settings.getOrDefault( KEY_PRESCREEN_MAX_STD, DEFAULT_PRESCREEN_MAX_STD );
+		prescreenMaxIntensity = ( Double ) settings.getOrDefault( KEY_PRESCREEN_MAX_INTENSITY, DEFAULT_PRESCREEN_MAX_INTENSITY );
+		cmbboxBackend.setSelectedItem( settings.getOrDefault( KEY_BACKEND, DEFAULT_BACKEND ) );
 	}
 
 	@Override
 	public void clean()
-	{}
+	{
+		projectWarmUp.cancel();
+		PreviewPrefetcher.getInstance().cancel();
+		// The features of the previewed frames are not needed any more.
+		FeatureCache.getInstance().clear();
+	}
 
 	@Override
 	@SuppressWarnings( "rawtypes" )
@@ -356,6 +638,7 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 				modelFileTextField.setText( file.getAbsolutePath() );
 				prefService.put( IlastikDetectorConfigurationPanel.class, KEY_CLASSIFIER_FILEPATH, file.getAbsolutePath() );
 				refreshLabelNames();
+				warmUp();
 			}
 		}
 		finally
@@ -364,6 +647,83 @@ public class IlastikDetectorConfigurationPanel extends IlastikDetectorBaseConfig
 		}
 	}
 
+	/**
+	 * Prepares the selected project in the background, so that the preview
+	 * starts faster. Cancels the preparation of the previous selection.
+	 */
+	private void warmUp()
+	{
+		PreviewPrefetcher.getInstance().cancel();
+		final String path = modelFileTextField.getText();
+		if ( path == null || path.isEmpty() || !new File( path ).exists() )
+		{
+			projectWarmUp.cancel();
+			return;
+		}
+		final int nChannels = settings.imp == null ? 1 : settings.imp.getNChannels();
+		final InferenceBackend backend = IlastikDetectorFactory.getBackend( ( String ) cmbboxBackend.getSelectedItem(), getSettings() );
+		projectWarmUp.submit( path, nChannels, backend, model.getLogger() );
+	}
+
+	/**
+	 * Calibrates the detection of empty tiles on the current frame, in a
+	 * separate thread.
+	 */
+	private < T extends RealType< T > & NativeType< T > > void calibratePrescreen()
+	{
+		if ( settings.imp == null )
+			return;
+
+		btnCalibrate.setEnabled( false );
+		final Map< String, Object > detectionSettings = getSettings();
+		final Logger logger = model.getLogger();
+		new Thread( "TrackMate ilastik prescreen calibration thread" )
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					final ImgPlus< T > img = TMUtils.rawWraps( settings.imp );
+					final Interval interval = TMUtils.getInterval( img, settings );
+					final long[] min = Intervals.minAsLongArray( interval );
+					final long[] max = Intervals.maxAsLongArray( interval );
+					final int frame = settings.imp.getFrame() - 1;
+					min[ min.length - 1 ] = frame;
+					max[ max.length - 1 ] = frame;
+
+					logger.log( "Calibrating the detection of empty tiles on frame " + ( frame + 1 ) + ".\n" );
+					final TilePrescreen.Rule rule = TilePrescreen.calibrate(
+							img,
+							new FinalInterval( min, max ),
+							( Integer ) detectionSettings.get( KEY_TARGET_CHANNEL ) - 1,
+							( String ) detectionSettings.get( KEY_CLASSIFIER_FILEPATH ),
+							( Integer ) detectionSettings.get( KEY_CLASS_INDEX ),
+							( Double ) detectionSettings.get( KEY_PROBA_THRESHOLD ),
+							IlastikDetectorFactory.getRunnerOptions( detectionSettings ),
+							PRESCREEN_SAFETY );
+					if ( rule == null )
+					{
+						logger.error( "No object found in frame " + ( frame + 1 ) + ", cannot calibrate the detection of empty tiles.\n" );
+						return;
+					}
+					prescreenMaxStd = rule.maxStd;
+					prescreenMaxIntensity = rule.maxIntensity;
+					logger.log( "Tiles are " + rule + ".\n" );
+				}
+				catch ( final Exception e )
+				{
+					logger.error( "Problem calibrating the detection of empty tiles:\n" + e.getMessage() + '\n' );
+					e.printStackTrace();
+				}
+				finally
+				{
+					btnCalibrate.setEnabled( true );
+				}
+			}
+		}.start();
+	}
+
 	private void refreshLabelNames()
 	{
 		// Get new list of labels.
@@ -23,6 +23,7 @@ package fiji.plugin.trackmate.ilastik;
 
 import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.io.IOUtils.readBooleanAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readDoubleAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readIntegerAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readStringAttribute;
@@ -31,7 +32,10 @@ import static fiji.plugin.trackmate.io.IOUtils.writeTargetChannel;
 import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,7 +44,10 @@ import javax.swing.ImageIcon;
 
 import org.jdom2.Element;
 import org.scijava.plugin.Plugin;
+import org.scijava.plugin.PluginInfo;
+import org.scijava.plugin.PluginService;
 
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
@@ -48,7 +55,10 @@ import fiji.plugin.trackmate.detection.SpotGlobalDetector;
 import fiji.plugin.trackmate.detection.SpotGlobalDetectorFactory;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
 import fiji.plugin.trackmate.io.IOUtils;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.gui.Roi;
 import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
 import net.imglib2.Interval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
@@ -82,6 +92,254 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 
 	public static final Integer DEFAULT_CLASS_INDEX = Integer.valueOf( 0 );
 
+	/**
+	 * The key to the parameter that stores the binning factor applied in X
+	 * and Y to the input before inference. Values are strictly positive
+	 * integers, 1 meaning no binning.
+	 */
+	public static final String KEY_DOWNSAMPLING_XY = "DOWNSAMPLING_XY";
+
+	public static final Integer DEFAULT_DOWNSAMPLING_XY = Integer.valueOf( 1 );
+
+	/**
+	 * The key to the parameter that stores the binning factor applied in Z to
+	 * the input before inference. Values are strictly positive integers, 1
+	 * meaning no binning.
+	 */
+	public static final String KEY_DOWNSAMPLING_Z = "DOWNSAMPLING_Z";
+
+	public static final Integer DEFAULT_DOWNSAMPLING_Z = Integer.valueOf( 1 );
+
+	/**
+	 * The key to the parameter that specifies whether the probability maps
+	 * computed on a binned input are interpolated back to full resolution
+	 * before objects are extracted. Values are {@link Boolean}s.
+	 */
+	public static final String KEY_UPSAMPLE_PROBABILITIES = "UPSAMPLE_PROBABILITIES";
+
+	public static final Boolean DEFAULT_UPSAMPLE_PROBABILITIES = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that specifies whether tiles of the input that
+	 * are trivially empty are skipped during inference. Values are
+	 * {@link Boolean}s.
+	 */
+	public static final String KEY_PRESCREEN = "PRESCREEN";
+
+	public static final Boolean DEFAULT_PRESCREEN = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that stores the maximal standard deviation of
+	 * the intensity in a tile for it to be considered empty. Values are
+	 * {@link Double}s.
+	 */
+	public static final String KEY_PRESCREEN_MAX_STD = "PRESCREEN_MAX_STD";
+
+	public static final Double DEFAULT_PRESCREEN_MAX_STD = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that stores the maximal intensity in a tile for
+	 * it to be considered empty. Values are {@link Double}s.
+	 */
+	public static final String KEY_PRESCREEN_MAX_INTENSITY = "PRESCREEN_MAX_INTENSITY";
+
+	public static final Double DEFAULT_PRESCREEN_MAX_INTENSITY = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that specifies the backend used to compute the
+	 * class probabilities. Values are {@link String}s, the name of an
+	 * {@link InferenceBackend} plugin: {@link ProcessBackend#NAME} to run
+	 * ilastik in a separate process, {@link JavaBackend#NAME} to evaluate the
+	 * random forest of the project in the JVM, {@link SocketBackend#NAME} to
+	 * send the pixels to an {@link InferenceServer}, or the name of another
+	 * backend plugin.
+	 */
+	public static final String KEY_BACKEND = "BACKEND";
+
+	public static final String DEFAULT_BACKEND = ProcessBackend.NAME;
+
+	/**
+	 * The key to the parameter that specifies the address of the inference
+	 * server used by the {@link SocketBackend}. Values are {@link String}s,
+	 * as <code>host:port</code>.
+	 */
+	public static final String KEY_BACKEND_ADDRESS = "BACKEND_ADDRESS";
+
+	public static final String DEFAULT_BACKEND_ADDRESS = "localhost:" + SocketBackend.DEFAULT_PORT;
+
+	/**
+	 * The key to the parameter that specifies the memory the {@link JavaBackend}
+	 * may use on the heap to keep feature images between two predictions, see
+	 * {@link fiji.plugin.trackmate.ilastik.classifier.FeatureCache}. Values
+	 * are {@link Integer}s, in MB. 0 disables the cache.
+	 */
+	public static final String KEY_FEATURE_CACHE_MB = "FEATURE_CACHE_MB";
+
+	public static final Integer DEFAULT_FEATURE_CACHE_MB = Integer.valueOf( 512 );
+
+	/**
+	 * The key to the parameter that specifies the memory the feature cache of
+	 * the {@link JavaBackend} may use outside of the heap, for the features
+	 * evicted from the heap. Values are {@link Integer}s, in MB. 0 disables
+	 * the off-heap store.
+	 */
+	public static final String KEY_FEATURE_CACHE_OFF_HEAP_MB = "FEATURE_CACHE_OFF_HEAP_MB";
+
+	public static final Integer DEFAULT_FEATURE_CACHE_OFF_HEAP_MB = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that specifies where the class probabilities
+	 * are stored. Values are {@link String}s, names of the
+	 * {@link PredictionStorage} constants. Off-heap storage lets movies whose
+	 * probabilities do not fit in the heap be processed.
+	 */
+	public static final String KEY_PREDICTION_STORAGE = "PREDICTION_STORAGE";
+
+	public static final String DEFAULT_PREDICTION_STORAGE = PredictionStorage.HEAP.name();
+
+	/**
+	 * The key to the parameter that specifies how 2D spots are stored. Values
+	 * are {@link String}s, names of the {@link SpotRepresentation} constants.
+	 * Compact contours or centroids keep the memory bounded on dense, long
+	 * movies. Lazy contours are only traced for the spots whose ROI is read.
+	 */
+	public static final String KEY_SPOT_REPRESENTATION = "SPOT_REPRESENTATION";
+
+	public static final String DEFAULT_SPOT_REPRESENTATION = SpotRepresentation.CONTOUR.name();
+
+	/**
+	 * The key to the parameter that stores the tolerance, in pixels, of the
+	 * contour simplification for compact contours. Values are {@link Double}s.
+	 */
+	public static final String KEY_SIMPLIFICATION_TOLERANCE = "SIMPLIFICATION_TOLERANCE";
+
+	public static final Double DEFAULT_SIMPLIFICATION_TOLERANCE = Double.valueOf( 0.5 );
+
+	/**
+	 * The key to the parameter that specifies whether the number of frames
+	 * sent to each inference is tuned from the measured cost of the previous
+	 * ones. Values are {@link Boolean}s.
+	 */
+	public static final String KEY_ADAPTIVE_BATCHING = "ADAPTIVE_BATCHING";
+
+	public static final Boolean DEFAULT_ADAPTIVE_BATCHING = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that specifies whether frames with identical
+	 * content are classified only once. Values are {@link Boolean}s.
+	 */
+	public static final String KEY_DEDUPLICATE_FRAMES = "DEDUPLICATE_FRAMES";
+
+	public static final Boolean DEFAULT_DEDUPLICATE_FRAMES = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that specifies the binning factor of the scout
+	 * pass of a coarse-to-fine {@link Cascade}. Values are {@link Integer}s.
+	 * 1 disables the cascade.
+	 */
+	public static final String KEY_CASCADE_FACTOR = "CASCADE_FACTOR";
+
+	public static final Integer DEFAULT_CASCADE_FACTOR = Integer.valueOf( 1 );
+
+	/**
+	 * The key to the parameter that specifies the ilastik project of the scout
+	 * pass. Values are {@link String}s. An empty string uses the project of
+	 * the detection.
+	 */
+	public static final String KEY_CASCADE_PROJECT = "CASCADE_PROJECT";
+
+	public static final String DEFAULT_CASCADE_PROJECT = "";
+
+	/**
+	 * The key to the parameter that specifies the probability above which a
+	 * pixel of the scout pass is a candidate. Values are {@link Double}s.
+	 */
+	public static final String KEY_CASCADE_THRESHOLD = "CASCADE_THRESHOLD";
+
+	public static final Double DEFAULT_CASCADE_THRESHOLD = Double.valueOf( 0.3 );
+
+	/**
+	 * The key to the parameter that specifies the dilation of the candidate
+	 * regions of the scout pass, in full-resolution pixels. Values are
+	 * {@link Integer}s.
+	 */
+	public static final String KEY_CASCADE_DILATION = "CASCADE_DILATION";
+
+	public static final Integer DEFAULT_CASCADE_DILATION = Integer.valueOf( 16 );
+
+	/**
+	 * The key to the parameter that specifies the number of frames between
+	 * two keyframes, classified whole. The frames in between are only
+	 * classified around the objects of the keyframe before them, in a single
+	 * call to the backend, see {@link Keyframes}. Values are
+	 * {@link Integer}s. 1 classifies every frame whole.
+	 */
+	public static final String KEY_KEYFRAME_INTERVAL = "KEYFRAME_INTERVAL";
+
+	public static final Integer DEFAULT_KEYFRAME_INTERVAL = Integer.valueOf( 1 );
+
+	/**
+	 * The key to the parameter that specifies the maximal displacement of an
+	 * object between two frames, in pixels, used between keyframes. Values
+	 * are {@link Double}s.
+	 */
+	public static final String KEY_MAX_DISPLACEMENT = "MAX_DISPLACEMENT";
+
+	public static final Double DEFAULT_MAX_DISPLACEMENT = Double.valueOf( 10. );
+
+	/**
+	 * The key to the parameter that specifies the HDF5 file the label image
+	 * of the detected objects is written to, during detection. Values are
+	 * {@link String}s. An empty string exports nothing.
+	 */
+	public static final String KEY_LABEL_EXPORT_FILE = "LABEL_EXPORT_FILE";
+
+	public static final String DEFAULT_LABEL_EXPORT_FILE = "";
+
+	/**
+	 * The key to the parameter that specifies the folder where the class
+	 * probabilities are cached on disk, see {@link PredictionCache}. Values
+	 * are {@link String}s. An empty string disables the cache.
+	 */
+	public static final String KEY_PREDICTION_CACHE_FOLDER = "PREDICTION_CACHE_FOLDER";
+
+	public static final String DEFAULT_PREDICTION_CACHE_FOLDER = "";
+
+	/**
+	 * The key to the fingerprint of the ilastik project the cached
+	 * probabilities were computed with. Set after each detection from its
+	 * reference, see {@link IlastikDetector#getPredictionCacheReference()},
+	 * and checked when the detection runs again. Values are hexadecimal {@link String}s, empty
+	 * if unknown.
+	 */
+	public static final String KEY_PREDICTION_CACHE_PROJECT = "PREDICTION_CACHE_PROJECT";
+
+	/**
+	 * The key to the fingerprint of the image the cached probabilities were
+	 * computed from. Set and checked like
+	 * {@link #KEY_PREDICTION_CACHE_PROJECT}. Values are hexadecimal
+	 * {@link String}s, empty if unknown.
+	 */
+	public static final String KEY_PREDICTION_CACHE_IMAGE = "PREDICTION_CACHE_IMAGE";
+
+	/**
+	 * The key to the parameter that stores the ROI to restrict inference to.
+	 * Values are ImageJ {@link Roi}s, or <code>null</code> to process the
+	 * whole image. This parameter is not saved to XML: it is a copy of the ROI
+	 * of the TrackMate settings, which is saved with them. The configuration
+	 * panel and the batch processing copy it from the TrackMate settings.
+	 * TrackMate does not pass its settings to the detector factory, so a
+	 * script must put the ROI of its settings here for the detector to use
+	 * it; otherwise only its bounding box restricts the detection.
+	 */
+	public static final String KEY_ROI = "ROI";
+
+	/**
+	 * The number of frames predicted in the background on each side of a
+	 * previewed frame.
+	 */
+	public static final int PREVIEW_PREFETCH_FRAMES = 2;
+
 	/** A string key identifying this factory. */
 	public static final String DETECTOR_KEY = "ILASTIK_DETECTOR";
 
@@ -106,6 +364,18 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 			+ "these objects, with a quality equal to the maximal value of the "
 			+ "probability image in the cell. "
 			+ "<p>"
+			+ "For large and well separated objects, the image can be binned "
+			+ "before being sent to ilastik with the downsampling factor, which "
+			+ "makes the inference much faster. If a ROI is set, only the parts "
+			+ "of the image that touch it are sent to ilastik. Parts of the "
+			+ "image that are found to be empty from their intensity statistics "
+			+ "can also be skipped. "
+			+ "<p>"
+			+ "The random forest of a pixel classification project can also be "
+			+ "evaluated directly in Fiji with the 'Java' backend, without "
+			+ "starting ilastik. The features are recomputed in Java, so "
+			+ "probabilities can differ slightly from the ones of ilastik. "
+			+ "<p>"
 			+ "Documentation for this module "
 			+ "<a href=\"https://imagej.net/plugins/trackmate/trackmate-ilastik\">on the ImageJ Wiki</a>."
 			+ "<p>"
@@ -125,6 +395,9 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 
 	protected String errorMessage;
 
+	/** Whether the detectors of this factory run a preview. */
+	protected boolean preview = false;
+
 	/*
 	 * METHODS
 	 */
@@ -138,16 +411,228 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 		// In ImgLib2, dimensions are 0-based.
 		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
 
-		final IlastikDetector< T > detector = new IlastikDetector<>(
+		/*
+		 * A preview is cancelled if a newer one is requested, caches its
+		 * probabilities and predicts the neighbouring frames in the
+		 * background.
+		 */
+		IlastikRunnerOptions options = getRunnerOptions( settings );
+		final int timeDim = img.dimensionIndex( Axes.TIME );
+		final boolean isMovie = timeDim >= 0;
+		if ( preview )
+		{
+			options = IlastikRunnerOptions.create( options )
+					.cacheProbabilities( true )
+					.prefetch( isMovie ? PREVIEW_PREFETCH_FRAMES : 0 )
+					.preview( true )
+					.get();
+			if ( isMovie )
+				PreviewPrefetcher.getInstance().setBackend( getBackend( options.backend.getName(), settings ) );
+		}
+
+		/*
+		 * Label images are only exported for a full detection.
+		 */
+		final String labelExportFile = ( String ) settings.getOrDefault( KEY_LABEL_EXPORT_FILE, DEFAULT_LABEL_EXPORT_FILE );
+		if ( !options.preview && labelExportFile != null && !labelExportFile.isEmpty() )
+			options = IlastikRunnerOptions.create( options )
+					.labelSink( new LabelSink( new File( labelExportFile ), isMovie ? ( int ) img.dimension( timeDim ) : 1 ) )
+					.get();
+
+		/*
+		 * Store the reference of the cached probabilities in the settings, so
+		 * that it is saved with the TrackMate session.
+		 */
+		final Map< String, Object > detectorSettings = settings;
+		final IlastikDetector< T > detector = new IlastikDetector< T >(
 				img,
 				interval,
 				channel,
 				classifierPath,
 				classIndex,
-				probaThreshold );
+				probaThreshold,
+				options )
+		{
+			@Override
+			public boolean process()
+			{
+				final boolean ok = super.process();
+				if ( ok )
+					putPredictionCacheReference( getPredictionCacheReference(), detectorSettings );
+				return ok;
+			}
+		};
 		return detector;
 	}
 
+	/**
+	 * Stores the reference of the cached probabilities of a detection in its
+	 * settings, in the {@link #KEY_PREDICTION_CACHE_PROJECT} and
+	 * {@link #KEY_PREDICTION_CACHE_IMAGE} keys.
+	 * 
+	 * @param reference
+	 *            the reference, or <code>null</code> if the detection did not
+	 *            use a prediction cache. Then the settings are not modified.
+	 * @param settings
+	 *            the detector settings.
+	 */
+	public static void putPredictionCacheReference( final PredictionCache.Reference reference, final Map< String, Object > settings )
+	{
+		if ( reference == null )
+			return;
+		settings.put( KEY_PREDICTION_CACHE_PROJECT, Long.toHexString( reference.projectFingerprint ) );
+		settings.put( KEY_PREDICTION_CACHE_IMAGE, Long.toHexString( reference.imageFingerprint ) );
+	}
+
+	/**
+	 * Builds the optional parameters of the ilastik runner from a settings
+	 * map. Missing optional keys are replaced by their default value.
+	 * 
+	 * @param settings
+	 *            the detector settings map.
+	 * @return a new {@link IlastikRunnerOptions}.
+	 */
+	public static IlastikRunnerOptions getRunnerOptions( final Map< String, Object > settings )
+	{
+		final int downsamplingXY = ( Integer ) settings.getOrDefault( KEY_DOWNSAMPLING_XY, DEFAULT_DOWNSAMPLING_XY );
+		final int downsamplingZ = ( Integer ) settings.getOrDefault( KEY_DOWNSAMPLING_Z, DEFAULT_DOWNSAMPLING_Z );
+		final boolean upsample = ( Boolean ) settings.getOrDefault( KEY_UPSAMPLE_PROBABILITIES, DEFAULT_UPSAMPLE_PROBABILITIES );
+		final boolean prescreen = ( Boolean ) settings.getOrDefault( KEY_PRESCREEN, DEFAULT_PRESCREEN );
+		final TilePrescreen.Rule rule = prescreen
+				? new TilePrescreen.Rule(
+						( Double ) settings.getOrDefault( KEY_PRESCREEN_MAX_STD, DEFAULT_PRESCREEN_MAX_STD ),
+						( Double ) settings.getOrDefault( KEY_PRESCREEN_MAX_INTENSITY, DEFAULT_PRESCREEN_MAX_INTENSITY ) )
+				: null;
+		final SpotRepresentation representation = SpotRepresentation.valueOf( ( String ) settings.getOrDefault( KEY_SPOT_REPRESENTATION, DEFAULT_SPOT_REPRESENTATION ) );
+		final double tolerance = ( Double ) settings.getOrDefault( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE );
+		final boolean adaptiveBatching = ( Boolean ) settings.getOrDefault( KEY_ADAPTIVE_BATCHING, DEFAULT_ADAPTIVE_BATCHING );
+		final boolean deduplicate = ( Boolean ) settings.getOrDefault( KEY_DEDUPLICATE_FRAMES, DEFAULT_DEDUPLICATE_FRAMES );
+		final PredictionCache predictionCache = getPredictionCache( settings );
+		final int cascadeFactor = ( Integer ) settings.getOrDefault( KEY_CASCADE_FACTOR, DEFAULT_CASCADE_FACTOR );
+		final Cascade cascade = cascadeFactor > 1
+				? new Cascade(
+						cascadeFactor,
+						( String ) settings.getOrDefault( KEY_CASCADE_PROJECT, DEFAULT_CASCADE_PROJECT ),
+						( Double ) settings.getOrDefault( KEY_CASCADE_THRESHOLD, DEFAULT_CASCADE_THRESHOLD ),
+						( Integer ) settings.getOrDefault( KEY_CASCADE_DILATION, DEFAULT_CASCADE_DILATION ) )
+				: null;
+		final int keyframeInterval = ( Integer ) settings.getOrDefault( KEY_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL );
+		final Keyframes keyframes = keyframeInterval > 1
+				? new Keyframes( keyframeInterval, ( Double ) settings.getOrDefault( KEY_MAX_DISPLACEMENT, DEFAULT_MAX_DISPLACEMENT ) )
+				: null;
+		return IlastikRunnerOptions.create()
+				.downsampling( downsamplingXY, downsamplingZ )
+				.upsampleProbabilities( upsample )
+				.roi( ( Roi ) settings.get( KEY_ROI ) )
+				.prescreen( rule )
+				.logger( Logger.IJ_LOGGER )
+				.backend( getBackend( ( String ) settings.getOrDefault( KEY_BACKEND, DEFAULT_BACKEND ), settings ) )
+				.storage( PredictionStorage.valueOf( ( String ) settings.getOrDefault( KEY_PREDICTION_STORAGE, DEFAULT_PREDICTION_STORAGE ) ) )
+				.spotRepresentation( representation, tolerance )
+				.adaptiveBatching( adaptiveBatching )
+				.deduplicateFrames( deduplicate )
+				.predictionCache( predictionCache )
+				.cascade( cascade )
+				.keyframes( keyframes )
+				.get();
+	}
+
+	/**
+	 * Returns the disk cache of probabilities specified in the settings, or
+	 * <code>null</code> if there is none. The reference saved in the
+	 * settings is passed to the cache, which checks it against the reference
+	 * of each detection.
+	 * 
+	 * @param settings
+	 *            the detector settings.
+	 * @return a new cache, or <code>null</code>.
+	 */
+	private static PredictionCache getPredictionCache( final Map< String, Object > settings )
+	{
+		final String folder = ( String ) settings.getOrDefault( KEY_PREDICTION_CACHE_FOLDER, DEFAULT_PREDICTION_CACHE_FOLDER );
+		if ( folder == null || folder.isEmpty() )
+			return null;
+
+		final String project = ( String ) settings.getOrDefault( KEY_PREDICTION_CACHE_PROJECT, "" );
+		final String image = ( String ) settings.getOrDefault( KEY_PREDICTION_CACHE_IMAGE, "" );
+		final PredictionCache.Reference expected = project.isEmpty() || image.isEmpty()
+				? null
+				: new PredictionCache.Reference( new File( folder ), Long.parseUnsignedLong( project, 16 ), Long.parseUnsignedLong( image, 16 ) );
+		return new PredictionCache( new File( folder ), expected );
+	}
+
+	/**
+	 * Returns a new inference backend from its name, with its default
+	 * configuration.
+	 * 
+	 * @param name
+	 *            the backend name, as listed by {@link #getBackendNames()}.
+	 * @return a new backend.
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown.
+	 */
+	public static InferenceBackend getBackend( final String name )
+	{
+		return getBackend( name, new HashMap<>() );
+	}
+
+	/**
+	 * Returns a new inference backend from its name, configured with the
+	 * specified detector settings.
+	 * 
+	 * @param name
+	 *            the backend name, as listed by {@link #getBackendNames()}.
+	 * @param settings
+	 *            the detector settings to configure the backend with.
+	 * @return a new backend.
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown.
+	 */
+	public static InferenceBackend getBackend( final String name, final Map< String, Object > settings )
+	{
+		final InferenceBackend backend;
+		if ( ProcessBackend.NAME.equals( name ) )
+			backend = new ProcessBackend();
+		else if ( JavaBackend.NAME.equals( name ) )
+			backend = new JavaBackend();
+		else if ( SocketBackend.NAME.equals( name ) )
+			backend = new SocketBackend();
+		else
+			backend = createBackendPlugin( name );
+		backend.configure( settings );
+		return backend;
+	}
+
+	/**
+	 * Returns the names of the inference backends: the ones shipped with this
+	 * plugin, then the other {@link InferenceBackend} plugins found by
+	 * SciJava.
+	 * 
+	 * @return a new list of names.
+	 */
+	public static List< String > getBackendNames()
+	{
+		final List< String > names = new ArrayList<>( Arrays.asList( ProcessBackend.NAME, JavaBackend.NAME, SocketBackend.NAME ) );
+		for ( final PluginInfo< InferenceBackend > info : pluginService().getPluginsOfType( InferenceBackend.class ) )
+			if ( !names.contains( info.getName() ) )
+				names.add( info.getName() );
+		return names;
+	}
+
+	private static InferenceBackend createBackendPlugin( final String name )
+	{
+		final PluginService pluginService = pluginService();
+		for ( final PluginInfo< InferenceBackend > info : pluginService.getPluginsOfType( InferenceBackend.class ) )
+			if ( info.getName().equals( name ) )
+				return pluginService.createInstance( info );
+		throw new IllegalArgumentException( "Unknown inference backend: " + name );
+	}
+
+	private static PluginService pluginService()
+	{
+		return TMUtils.getContext().getService( PluginService.class );
+	}
+
 	@Override
 	public boolean forbidMultithreading()
 	{
@@ -180,6 +665,31 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 		ok = ok && writeAttribute( settings, element, KEY_CLASSIFIER_FILEPATH, String.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_CLASS_INDEX, Integer.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_PROBA_THRESHOLD, Double.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_DOWNSAMPLING_XY, Integer.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_DOWNSAMPLING_Z, Integer.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_UPSAMPLE_PROBABILITIES, Boolean.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_PRESCREEN, Boolean.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_PRESCREEN_MAX_STD, Double.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_PRESCREEN_MAX_INTENSITY, Double.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_BACKEND, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_BACKEND_ADDRESS, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_FEATURE_CACHE_MB, Integer.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_FEATURE_CACHE_OFF_HEAP_MB, Integer.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_PREDICTION_STORAGE, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_SPOT_REPRESENTATION, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_SIMPLIFICATION_TOLERANCE, Double.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_ADAPTIVE_BATCHING, Boolean.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_DEDUPLICATE_FRAMES, Boolean.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_CASCADE_FACTOR, Integer.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_CASCADE_PROJECT, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_CASCADE_THRESHOLD, Double.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_CASCADE_DILATION, Integer.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_KEYFRAME_INTERVAL, Integer.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_MAX_DISPLACEMENT, Double.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_LABEL_EXPORT_FILE, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_PREDICTION_CACHE_FOLDER, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_PREDICTION_CACHE_PROJECT, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_PREDICTION_CACHE_IMAGE, String.class, errorHolder );
 
 		if ( !ok )
 			errorMessage = errorHolder.toString();
@@ -197,6 +707,31 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 		ok = ok && readStringAttribute( element, settings, KEY_CLASSIFIER_FILEPATH, errorHolder );
 		ok = ok && readIntegerAttribute( element, settings, KEY_CLASS_INDEX, errorHolder );
 		ok = ok && readDoubleAttribute( element, settings, KEY_PROBA_THRESHOLD, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_DOWNSAMPLING_XY, Integer.class, DEFAULT_DOWNSAMPLING_XY, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_DOWNSAMPLING_Z, Integer.class, DEFAULT_DOWNSAMPLING_Z, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_UPSAMPLE_PROBABILITIES, Boolean.class, DEFAULT_UPSAMPLE_PROBABILITIES, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_PRESCREEN, Boolean.class, DEFAULT_PRESCREEN, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_PRESCREEN_MAX_STD, Double.class, DEFAULT_PRESCREEN_MAX_STD, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_PRESCREEN_MAX_INTENSITY, Double.class, DEFAULT_PRESCREEN_MAX_INTENSITY, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_BACKEND, String.class, DEFAULT_BACKEND, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_BACKEND_ADDRESS, String.class, DEFAULT_BACKEND_ADDRESS, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_FEATURE_CACHE_MB, Integer.class, DEFAULT_FEATURE_CACHE_MB, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_FEATURE_CACHE_OFF_HEAP_MB, Integer.class, DEFAULT_FEATURE_CACHE_OFF_HEAP_MB, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_PREDICTION_STORAGE, String.class, DEFAULT_PREDICTION_STORAGE, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_SPOT_REPRESENTATION, String.class, DEFAULT_SPOT_REPRESENTATION, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_SIMPLIFICATION_TOLERANCE, Double.class, DEFAULT_SIMPLIFICATION_TOLERANCE, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_ADAPTIVE_BATCHING, Boolean.class, DEFAULT_ADAPTIVE_BATCHING, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_DEDUPLICATE_FRAMES, Boolean.class, DEFAULT_DEDUPLICATE_FRAMES, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_CASCADE_FACTOR, Integer.class, DEFAULT_CASCADE_FACTOR, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_CASCADE_PROJECT, String.class, DEFAULT_CASCADE_PROJECT, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_CASCADE_THRESHOLD, Double.class, DEFAULT_CASCADE_THRESHOLD, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_CASCADE_DILATION, Integer.class, DEFAULT_CASCADE_DILATION, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_KEYFRAME_INTERVAL, Integer.class, DEFAULT_KEYFRAME_INTERVAL, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_MAX_DISPLACEMENT, Double.class, DEFAULT_MAX_DISPLACEMENT, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_LABEL_EXPORT_FILE, String.class, DEFAULT_LABEL_EXPORT_FILE, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_PREDICTION_CACHE_FOLDER, String.class, DEFAULT_PREDICTION_CACHE_FOLDER, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_PREDICTION_CACHE_PROJECT, String.class, "", errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_PREDICTION_CACHE_IMAGE, String.class, "", errorHolder );
 
 		if ( !ok )
 		{
@@ -206,6 +741,39 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 		return checkSettings( settings );
 	}
 
+	/**
+	 * Writes an optional parameter to the specified element, if it is present
+	 * in the settings map.
+	 */
+	protected static boolean writeOptionalAttribute( final Map< String, Object > settings, final Element element, final String key, final Class< ? > expectedClass, final StringBuilder errorHolder )
+	{
+		if ( !settings.containsKey( key ) )
+			return true;
+		return writeAttribute( settings, element, key, expectedClass, errorHolder );
+	}
+
+	/**
+	 * Reads an optional parameter from the specified element. If the element
+	 * does not have the attribute, for instance because it was saved with an
+	 * older version of this detector, the default value is put in the
+	 * settings map.
+	 */
+	protected static boolean readOptionalAttribute( final Element element, final Map< String, Object > settings, final String key, final Class< ? > expectedClass, final Object defaultValue, final StringBuilder errorHolder )
+	{
+		if ( element.getAttribute( key ) == null )
+		{
+			settings.put( key, defaultValue );
+			return true;
+		}
+		if ( expectedClass == Integer.class )
+			return readIntegerAttribute( element, settings, key, errorHolder );
+		if ( expectedClass == Double.class )
+			return readDoubleAttribute( element, settings, key, errorHolder );
+		if ( expectedClass == Boolean.class )
+			return readBooleanAttribute( element, settings, key, errorHolder );
+		return readStringAttribute( element, settings, key, errorHolder );
+	}
+
 	@Override
 	public ConfigurationPanel getDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
@@ -220,6 +788,29 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 		settings.put( KEY_CLASSIFIER_FILEPATH, "" );
 		settings.put( KEY_CLASS_INDEX, DEFAULT_CLASS_INDEX );
 		settings.put( KEY_PROBA_THRESHOLD, DEFAULT_PROBA_THRESHOLD );
+		settings.put( KEY_DOWNSAMPLING_XY, DEFAULT_DOWNSAMPLING_XY );
+		settings.put( KEY_DOWNSAMPLING_Z, DEFAULT_DOWNSAMPLING_Z );
+		settings.put( KEY_UPSAMPLE_PROBABILITIES, DEFAULT_UPSAMPLE_PROBABILITIES );
+		settings.put( KEY_PRESCREEN, DEFAULT_PRESCREEN );
+		settings.put( KEY_PRESCREEN_MAX_STD, DEFAULT_PRESCREEN_MAX_STD );
+		settings.put( KEY_PRESCREEN_MAX_INTENSITY, DEFAULT_PRESCREEN_MAX_INTENSITY );
+		settings.put( KEY_BACKEND, DEFAULT_BACKEND );
+		settings.put( KEY_BACKEND_ADDRESS, DEFAULT_BACKEND_ADDRESS );
+		settings.put( KEY_FEATURE_CACHE_MB, DEFAULT_FEATURE_CACHE_MB );
+		settings.put( KEY_FEATURE_CACHE_OFF_HEAP_MB, DEFAULT_FEATURE_CACHE_OFF_HEAP_MB );
+		settings.put( KEY_PREDICTION_STORAGE, DEFAULT_PREDICTION_STORAGE );
+		settings.put( KEY_SPOT_REPRESENTATION, DEFAULT_SPOT_REPRESENTATION );
+		settings.put( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE );
+		settings.put( KEY_ADAPTIVE_BATCHING, DEFAULT_ADAPTIVE_BATCHING );
+		settings.put( KEY_DEDUPLICATE_FRAMES, DEFAULT_DEDUPLICATE_FRAMES );
+		settings.put( KEY_CASCADE_FACTOR, DEFAULT_CASCADE_FACTOR );
+		settings.put( KEY_CASCADE_PROJECT, DEFAULT_CASCADE_PROJECT );
+		settings.put( KEY_CASCADE_THRESHOLD, DEFAULT_CASCADE_THRESHOLD );
+		settings.put( KEY_CASCADE_DILATION, DEFAULT_CASCADE_DILATION );
+		settings.put( KEY_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL );
+		settings.put( KEY_MAX_DISPLACEMENT, DEFAULT_MAX_DISPLACEMENT );
+		settings.put( KEY_LABEL_EXPORT_FILE, DEFAULT_LABEL_EXPORT_FILE );
+		settings.put( KEY_PREDICTION_CACHE_FOLDER, DEFAULT_PREDICTION_CACHE_FOLDER );
 		return settings;
 	}
 
@@ -232,12 +823,179 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 		ok = ok & checkParameter( settings, KEY_CLASSIFIER_FILEPATH, String.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_CLASS_INDEX, Integer.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_PROBA_THRESHOLD, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_DOWNSAMPLING_XY, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_DOWNSAMPLING_Z, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_UPSAMPLE_PROBABILITIES, Boolean.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_PRESCREEN, Boolean.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_PRESCREEN_MAX_STD, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_PRESCREEN_MAX_INTENSITY, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_BACKEND, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_BACKEND_ADDRESS, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_FEATURE_CACHE_MB, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_FEATURE_CACHE_OFF_HEAP_MB, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_PREDICTION_STORAGE, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_SPOT_REPRESENTATION, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_SIMPLIFICATION_TOLERANCE, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_ADAPTIVE_BATCHING, Boolean.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_DEDUPLICATE_FRAMES, Boolean.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_CASCADE_FACTOR, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_CASCADE_PROJECT, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_CASCADE_THRESHOLD, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_CASCADE_DILATION, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_KEYFRAME_INTERVAL, Integer.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_MAX_DISPLACEMENT, Double.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_LABEL_EXPORT_FILE, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_PREDICTION_CACHE_FOLDER, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_PREDICTION_CACHE_PROJECT, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_PREDICTION_CACHE_IMAGE, String.class, errorHolder );
+		final Object roi = settings.get( KEY_ROI );
+		if ( roi != null && !( roi instanceof Roi ) )
+		{
+			errorHolder.append( "Value for parameter " + KEY_ROI + " is not an ImageJ ROI, but a " + roi.getClass().getSimpleName() + ".\n" );
+			ok = false;
+		}
 		final List< String > mandatoryKeys = new ArrayList<>();
 		mandatoryKeys.add( KEY_TARGET_CHANNEL );
 		mandatoryKeys.add( KEY_CLASSIFIER_FILEPATH );
 		mandatoryKeys.add( KEY_CLASS_INDEX );
 		mandatoryKeys.add( KEY_PROBA_THRESHOLD );
-		ok = ok & checkMapKeys( settings, mandatoryKeys, null, errorHolder );
+		final List< String > optionalKeys = new ArrayList<>();
+		optionalKeys.add( KEY_DOWNSAMPLING_XY );
+		optionalKeys.add( KEY_DOWNSAMPLING_Z );
+		optionalKeys.add( KEY_UPSAMPLE_PROBABILITIES );
+		optionalKeys.add( KEY_PRESCREEN );
+		optionalKeys.add( KEY_PRESCREEN_MAX_STD );
+		optionalKeys.add( KEY_PRESCREEN_MAX_INTENSITY );
+		optionalKeys.add( KEY_BACKEND );
+		optionalKeys.add( KEY_BACKEND_ADDRESS );
+		optionalKeys.add( KEY_FEATURE_CACHE_MB );
+		optionalKeys.add( KEY_FEATURE_CACHE_OFF_HEAP_MB );
+		optionalKeys.add( KEY_PREDICTION_STORAGE );
+		optionalKeys.add( KEY_SPOT_REPRESENTATION );
+		optionalKeys.add( KEY_SIMPLIFICATION_TOLERANCE );
+		optionalKeys.add( KEY_ADAPTIVE_BATCHING );
+		optionalKeys.add( KEY_DEDUPLICATE_FRAMES );
+		optionalKeys.add( KEY_CASCADE_FACTOR );
+		optionalKeys.add( KEY_CASCADE_PROJECT );
+		optionalKeys.add( KEY_CASCADE_THRESHOLD );
+		optionalKeys.add( KEY_CASCADE_DILATION );
+		optionalKeys.add( KEY_KEYFRAME_INTERVAL );
+		optionalKeys.add( KEY_MAX_DISPLACEMENT );
+		optionalKeys.add( KEY_LABEL_EXPORT_FILE );
+		optionalKeys.add( KEY_PREDICTION_CACHE_FOLDER );
+		optionalKeys.add( KEY_PREDICTION_CACHE_PROJECT );
+		optionalKeys.add( KEY_PREDICTION_CACHE_IMAGE );
+		optionalKeys.add( KEY_ROI );
+		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
+		if ( ok )
+		{
+			final int downsamplingXY = ( Integer ) settings.getOrDefault( KEY_DOWNSAMPLING_XY, DEFAULT_DOWNSAMPLING_XY );
+			final int downsamplingZ = ( Integer ) settings.getOrDefault( KEY_DOWNSAMPLING_Z, DEFAULT_DOWNSAMPLING_Z );
+			if ( downsamplingXY < 1 || downsamplingZ < 1 )
+			{
+				errorHolder.append( "Downsampling factors must be at least 1, got " + downsamplingXY + " in XY and " + downsamplingZ + " in Z.\n" );
+				ok = false;
+			}
+			final String backend = ( String ) settings.getOrDefault( KEY_BACKEND, DEFAULT_BACKEND );
+			if ( !ProcessBackend.NAME.equals( backend ) && !JavaBackend.NAME.equals( backend ) && !SocketBackend.NAME.equals( backend ) )
+			{
+				// Only start SciJava for third-party backends.
+				final List< String > backendNames = getBackendNames();
+				if ( !backendNames.contains( backend ) )
+				{
+					errorHolder.append( "Unknown inference backend: " + backend + ". Expected one of " + backendNames + ".\n" );
+					ok = false;
+				}
+			}
+			if ( SocketBackend.NAME.equals( backend ) )
+			{
+				try
+				{
+					new SocketBackend().setAddress( ( String ) settings.getOrDefault( KEY_BACKEND_ADDRESS, DEFAULT_BACKEND_ADDRESS ) );
+				}
+				catch ( final IllegalArgumentException e )
+				{
+					errorHolder.append( e.getMessage() + "\n" );
+					ok = false;
+				}
+			}
+			final int featureCacheMb = ( Integer ) settings.getOrDefault( KEY_FEATURE_CACHE_MB, DEFAULT_FEATURE_CACHE_MB );
+			final int featureCacheOffHeapMb = ( Integer ) settings.getOrDefault( KEY_FEATURE_CACHE_OFF_HEAP_MB, DEFAULT_FEATURE_CACHE_OFF_HEAP_MB );
+			if ( featureCacheMb < 0 || featureCacheOffHeapMb < 0 )
+			{
+				errorHolder.append( "The sizes of the feature cache must be positive, got " + featureCacheMb + " MB on the heap and " + featureCacheOffHeapMb + " MB off-heap.\n" );
+				ok = false;
+			}
+			final String storage = ( String ) settings.getOrDefault( KEY_PREDICTION_STORAGE, DEFAULT_PREDICTION_STORAGE );
+			try
+			{
+				PredictionStorage.valueOf( storage );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				errorHolder.append( "Unknown prediction storage: " + storage + ". Expected one of " + Arrays.toString( PredictionStorage.values() ) + ".\n" );
+				ok = false;
+			}
+			final int cascadeFactor = ( Integer ) settings.getOrDefault( KEY_CASCADE_FACTOR, DEFAULT_CASCADE_FACTOR );
+			final double cascadeThreshold = ( Double ) settings.getOrDefault( KEY_CASCADE_THRESHOLD, DEFAULT_CASCADE_THRESHOLD );
+			final int cascadeDilation = ( Integer ) settings.getOrDefault( KEY_CASCADE_DILATION, DEFAULT_CASCADE_DILATION );
+			if ( cascadeFactor < 1 || cascadeThreshold < 0. || cascadeThreshold > 1. || cascadeDilation < 0 )
+			{
+				errorHolder.append( "The cascade factor must be at least 1, its threshold between 0 and 1 and its dilation positive, got "
+						+ cascadeFactor + ", " + cascadeThreshold + " and " + cascadeDilation + ".\n" );
+				ok = false;
+			}
+			final String cascadeProject = ( String ) settings.getOrDefault( KEY_CASCADE_PROJECT, DEFAULT_CASCADE_PROJECT );
+			if ( cascadeFactor > 1 && cascadeProject != null && !cascadeProject.isEmpty() )
+			{
+				try
+				{
+					Cascade.scoutClassId( cascadeProject, ( String ) settings.get( KEY_CLASSIFIER_FILEPATH ), ( Integer ) settings.get( KEY_CLASS_INDEX ) );
+				}
+				catch ( final IOException e )
+				{
+					errorHolder.append( e.getMessage() + "\n" );
+					ok = false;
+				}
+			}
+			final int keyframeInterval = ( Integer ) settings.getOrDefault( KEY_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL );
+			final double maxDisplacement = ( Double ) settings.getOrDefault( KEY_MAX_DISPLACEMENT, DEFAULT_MAX_DISPLACEMENT );
+			if ( keyframeInterval < 1 || maxDisplacement < 0. )
+			{
+				errorHolder.append( "The keyframe interval must be at least 1 and the maximal displacement positive, got " + keyframeInterval + " and " + maxDisplacement + ".\n" );
+				ok = false;
+			}
+			for ( final String key : new String[] { KEY_PREDICTION_CACHE_PROJECT, KEY_PREDICTION_CACHE_IMAGE } )
+			{
+				final String fingerprint = ( String ) settings.getOrDefault( key, "" );
+				try
+				{
+					if ( !fingerprint.isEmpty() )
+						Long.parseUnsignedLong( fingerprint, 16 );
+				}
+				catch ( final NumberFormatException e )
+				{
+					errorHolder.append( "Invalid fingerprint for " + key + ": " + fingerprint + ".\n" );
+					ok = false;
+				}
+			}
+			final String representation = ( String ) settings.getOrDefault( KEY_SPOT_REPRESENTATION, DEFAULT_SPOT_REPRESENTATION );
+			try
+			{
+				SpotRepresentation.valueOf( representation );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				errorHolder.append( "Unknown spot representation: " + representation + ". Expected one of " + Arrays.toString( SpotRepresentation.values() ) + ".\n" );
+				ok = false;
+			}
+			final double tolerance = ( Double ) settings.getOrDefault( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE );
+			if ( tolerance < 0 )
+			{
+				errorHolder.append( "The simplification tolerance cannot be negative, got " + tolerance + ".\n" );
+				ok = false;
+			}
+		}
 		if ( !ok )
 			errorMessage = errorHolder.toString();
 
@@ -261,6 +1019,17 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 		return ok;
 	}
 
+	/**
+	 * Checks the class of an optional parameter, if it is present in the
+	 * settings map.
+	 */
+	protected static boolean checkOptionalParameter( final Map< String, Object > settings, final String key, final Class< ? > expectedClass, final StringBuilder errorHolder )
+	{
+		if ( !settings.containsKey( key ) )
+			return true;
+		return checkParameter( settings, key, expectedClass, errorHolder );
+	}
+
 	@Override
 	public String getInfoText()
 	{
@@ -291,9 +1060,26 @@ public class IlastikDetectorFactory< T extends RealType< T > & NativeType< T > >
 		return true;
 	}
 
+	/**
+	 * Returns a copy of this factory whose detectors run a preview: they are
+	 * cancelled when a newer preview is requested, cache their probabilities,
+	 * predict the neighbouring frames in the background and do not export
+	 * label images.
+	 * 
+	 * @return a new factory.
+	 */
+	public IlastikDetectorFactory< T > forPreview()
+	{
+		final IlastikDetectorFactory< T > factory = copy();
+		factory.preview = true;
+		return factory;
+	}
+
 	@Override
 	public IlastikDetectorFactory< T > copy()
 	{
-		return new IlastikDetectorFactory<>();
+		final IlastikDetectorFactory< T > factory = new IlastikDetectorFactory<>();
+		factory.preview = preview;
+		return factory;
 	}
 }
@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.detection.SpotGlobalDetector;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.gui.Roi;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A detector that creates spots from a probability map exported by ilastik,
+ * instead of running ilastik on the source image.
+ * <p>
+ * The probability map is read frame by frame from the HDF5 file, and only
+ * over the interval to process. Objects are extracted the same way as in
+ * the {@link IlastikDetector}.
+ */
+public class IlastikPredictionDetector< T extends RealType< T > & NativeType< T > > implements SpotGlobalDetector< T >
+{
+
+	private final static String BASE_ERROR_MESSAGE = "IlastikPredictionDetector: ";
+
+	protected final ImgPlus< T > img;
+
+	protected final Interval interval;
+
+	protected final String predictionPath;
+
+	protected final String dataset;
+
+	protected final int classIndex;
+
+	protected final double probaThreshold;
+
+	protected final Roi roi;
+
+	protected String errorMessage;
+
+	protected long processingTime;
+
+	protected SpotCollection spots;
+
+	/**
+	 * Instantiate a detector on a precomputed probability map.
+	 * 
+	 * @param img
+	 *            the source image, possibly multiple frames, possibly
+	 *            multiple Zs. Only used for its dimensions and calibration.
+	 * @param interval
+	 *            the interval on which to operate.
+	 * @param predictionPath
+	 *            the path to the HDF5 file exported by ilastik.
+	 * @param dataset
+	 *            the path of the probability dataset in the file.
+	 * @param classIndex
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param roi
+	 *            the ROI outside of which no object is extracted. Can be
+	 *            <code>null</code>.
+	 */
+	public IlastikPredictionDetector(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final String predictionPath,
+			final String dataset,
+			final int classIndex,
+			final double probaThreshold,
+			final Roi roi )
+	{
+		this.img = img;
+		this.interval = interval;
+		this.predictionPath = predictionPath;
+		this.dataset = dataset;
+		this.classIndex = classIndex;
+		this.probaThreshold = probaThreshold;
+		this.roi = roi;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		try (final PredictionFile file = new PredictionFile( predictionPath, dataset ))
+		{
+			final String error = checkDimensions( file );
+			if ( error != null )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + error;
+				return false;
+			}
+			spots = extract( file );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Problem reading the prediction file:\n" + e.getMessage();
+			e.printStackTrace();
+			return false;
+		}
+		if ( spots == null )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Interrupted.";
+			return false;
+		}
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Extracts the spots of each frame of the interval, reading the
+	 * probabilities of one frame at a time.
+	 * 
+	 * @return the spots, or <code>null</code> if the detection was
+	 *         interrupted.
+	 */
+	private SpotCollection extract( final PredictionFile file )
+	{
+		final int nSpatialDims = img.dimensionIndex( Axes.Z ) >= 0 ? 3 : 2;
+		final long[] frameDims = new long[ nSpatialDims ];
+		final long[] origin = new long[ nSpatialDims ];
+		final long[] binning = new long[ nSpatialDims ];
+		for ( int d = 0; d < nSpatialDims; d++ )
+		{
+			frameDims[ d ] = interval.dimension( d );
+			origin[ d ] = interval.min( d );
+			binning[ d ] = 1;
+		}
+		final FrameExtractor extractor = new FrameExtractor(
+				binning,
+				frameDims,
+				origin,
+				TMUtils.getSpatialCalibration( img ),
+				false,
+				roi == null ? null : new RoiMask( roi ),
+				probaThreshold,
+				Runtime.getRuntime().availableProcessors() );
+
+		final boolean isMovie = interval.numDimensions() > nSpatialDims;
+		final int tmin = isMovie ? ( int ) interval.min( nSpatialDims ) : 0;
+		final int tmax = isMovie ? ( int ) interval.max( nSpatialDims ) : 0;
+		final SpotCollection spots = new SpotCollection();
+		for ( int t = tmin; t <= tmax; t++ )
+		{
+			if ( Thread.currentThread().isInterrupted() )
+				return null;
+			final Img< FloatType > proba = file.read( t, classIndex, origin, frameDims );
+			final List< Spot > spotsThisFrame = extractor.extract( proba );
+			spots.put( t, spotsThisFrame );
+		}
+		return spots;
+	}
+
+	/**
+	 * Checks that the probability map covers the source image.
+	 * 
+	 * @return an error message, or <code>null</code> if the dimensions match.
+	 */
+	private String checkDimensions( final PredictionFile file )
+	{
+		final String[] keys = new String[] { "x", "y", "z" };
+		final AxisType[] types = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		for ( int d = 0; d < keys.length; d++ )
+		{
+			final int id = img.dimensionIndex( types[ d ] );
+			final long expected = id < 0 ? 1 : img.dimension( id );
+			if ( file.dimension( keys[ d ] ) != expected )
+				return "The prediction file " + file + " does not match the image: expected a size of " + expected + " in " + keys[ d ].toUpperCase() + ", got " + file.dimension( keys[ d ] ) + ".";
+		}
+		final int tDim = img.dimensionIndex( Axes.TIME );
+		final long nFrames = tDim < 0 ? 1 : img.dimension( tDim );
+		if ( file.numFrames() < nFrames )
+			return "The prediction file " + file + " has " + file.numFrames() + " frames, but the image has " + nFrames + ".";
+		if ( classIndex < 0 || classIndex >= file.numClasses() )
+			return "The class index " + classIndex + " is out of range. The prediction file " + file + " has " + file.numClasses() + " classes.";
+		return null;
+	}
+
+	@Override
+	public SpotCollection getResult()
+	{
+		return spots;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == img )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Image is null.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
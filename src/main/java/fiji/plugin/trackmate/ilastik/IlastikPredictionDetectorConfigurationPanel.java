@@ -0,0 +1,305 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import static fiji.plugin.trackmate.gui.Fonts.BIG_FONT;
+import static fiji.plugin.trackmate.gui.Fonts.FONT;
+import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CLASS_INDEX;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PROBA_THRESHOLD;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_ROI;
+import static fiji.plugin.trackmate.ilastik.IlastikPredictionDetectorFactory.DEFAULT_PREDICTION_DATASET;
+import static fiji.plugin.trackmate.ilastik.IlastikPredictionDetectorFactory.KEY_PREDICTION_DATASET;
+import static fiji.plugin.trackmate.ilastik.IlastikPredictionDetectorFactory.KEY_PREDICTION_FILEPATH;
+
+import java.awt.Dimension;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.io.File;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.JButton;
+import javax.swing.JFormattedTextField;
+import javax.swing.JLabel;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingConstants;
+import javax.swing.filechooser.FileFilter;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+import org.scijava.prefs.PrefService;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.gui.GuiUtils;
+import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
+import fiji.plugin.trackmate.util.DetectionPreview;
+import fiji.plugin.trackmate.util.FileChooser;
+import fiji.plugin.trackmate.util.FileChooser.DialogType;
+import fiji.plugin.trackmate.util.TMUtils;
+
+public class IlastikPredictionDetectorConfigurationPanel extends ConfigurationPanel
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private static final NumberFormat THRESHOLD_FORMAT = new DecimalFormat( "#.##" );
+
+	private static final String TITLE = IlastikPredictionDetectorFactory.NAME;
+
+	private static final FileFilter fileFilter = new FileNameExtensionFilter( "HDF5 files.", "h5", "hdf5" );
+
+	private final Settings settings;
+
+	private final JTextField predictionFileTextField;
+
+	private final JButton btnBrowse;
+
+	private final JTextField datasetTextField;
+
+	private final JSpinner spinnerClass;
+
+	private final JFormattedTextField ftfProbaThreshold;
+
+	protected final PrefService prefService;
+
+	/**
+	 * Creates the panel.
+	 * 
+	 * @param settings
+	 *            the TrackMate settings to use.
+	 * @param model
+	 *            the TrackMate model to use.
+	 */
+	public IlastikPredictionDetectorConfigurationPanel( final Settings settings, final Model model )
+	{
+		this.settings = settings;
+		this.prefService = TMUtils.getContext().getService( PrefService.class );
+
+		final GridBagLayout gridBagLayout = new GridBagLayout();
+		gridBagLayout.columnWidths = new int[] { 144, 0, 32 };
+		gridBagLayout.rowHeights = new int[] { 0, 0, 27, 0, 0, 0, 0, 37 };
+		gridBagLayout.columnWeights = new double[] { 0., 1., 0. };
+		gridBagLayout.rowWeights = new double[] { 0., 1., 0., 0., 0., 0., 0., 0. };
+		setLayout( gridBagLayout );
+
+		final JLabel lblDetector = new JLabel( TITLE, IlastikDetectorBaseConfigurationPanel.ICON, JLabel.RIGHT );
+		lblDetector.setFont( BIG_FONT );
+		lblDetector.setHorizontalAlignment( SwingConstants.CENTER );
+		final GridBagConstraints gbcLblDetector = new GridBagConstraints();
+		gbcLblDetector.gridwidth = 3;
+		gbcLblDetector.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblDetector.fill = GridBagConstraints.HORIZONTAL;
+		gbcLblDetector.gridx = 0;
+		gbcLblDetector.gridy = 0;
+		add( lblDetector, gbcLblDetector );
+
+		/*
+		 * Help text.
+		 */
+		final GridBagConstraints gbcLblHelptext = new GridBagConstraints();
+		gbcLblHelptext.anchor = GridBagConstraints.NORTH;
+		gbcLblHelptext.fill = GridBagConstraints.BOTH;
+		gbcLblHelptext.gridwidth = 3;
+		gbcLblHelptext.insets = new Insets( 5, 10, 5, 10 );
+		gbcLblHelptext.gridx = 0;
+		gbcLblHelptext.gridy = 1;
+		add( GuiUtils.textInScrollPanel( GuiUtils.infoDisplay( IlastikPredictionDetectorFactory.INFO_TEXT ) ), gbcLblHelptext );
+
+		/*
+		 * Prediction file.
+		 */
+
+		final JLabel lblPredictionFile = new JLabel( "Prediction file:" );
+		lblPredictionFile.setFont( FONT );
+		final GridBagConstraints gbcLblPredictionFile = new GridBagConstraints();
+		gbcLblPredictionFile.anchor = GridBagConstraints.WEST;
+		gbcLblPredictionFile.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblPredictionFile.gridx = 0;
+		gbcLblPredictionFile.gridy = 2;
+		add( lblPredictionFile, gbcLblPredictionFile );
+
+		btnBrowse = new JButton( "Browse" );
+		btnBrowse.setFont( FONT );
+		final GridBagConstraints gbcBtnBrowse = new GridBagConstraints();
+		gbcBtnBrowse.insets = new Insets( 5, 0, 5, 5 );
+		gbcBtnBrowse.anchor = GridBagConstraints.SOUTHEAST;
+		gbcBtnBrowse.gridwidth = 2;
+		gbcBtnBrowse.gridx = 1;
+		gbcBtnBrowse.gridy = 2;
+		add( btnBrowse, gbcBtnBrowse );
+
+		predictionFileTextField = new JTextField( "" );
+		predictionFileTextField.setFont( SMALL_FONT );
+		final GridBagConstraints gbcTextField = new GridBagConstraints();
+		gbcTextField.gridwidth = 3;
+		gbcTextField.insets = new Insets( 5, 5, 5, 5 );
+		gbcTextField.fill = GridBagConstraints.BOTH;
+		gbcTextField.gridx = 0;
+		gbcTextField.gridy = 3;
+		add( predictionFileTextField, gbcTextField );
+		predictionFileTextField.setColumns( 10 );
+
+		/*
+		 * Dataset.
+		 */
+
+		final JLabel lblDataset = new JLabel( "Dataset:" );
+		lblDataset.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblDataset = new GridBagConstraints();
+		gbcLblDataset.anchor = GridBagConstraints.EAST;
+		gbcLblDataset.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblDataset.gridx = 0;
+		gbcLblDataset.gridy = 4;
+		add( lblDataset, gbcLblDataset );
+
+		datasetTextField = new JTextField( DEFAULT_PREDICTION_DATASET );
+		datasetTextField.setFont( SMALL_FONT );
+		final GridBagConstraints gbcDataset = new GridBagConstraints();
+		gbcDataset.fill = GridBagConstraints.HORIZONTAL;
+		gbcDataset.insets = new Insets( 5, 5, 5, 5 );
+		gbcDataset.gridx = 1;
+		gbcDataset.gridy = 4;
+		add( datasetTextField, gbcDataset );
+
+		/*
+		 * Class index.
+		 */
+
+		final JLabel lblClassId = new JLabel( "Segment class:" );
+		lblClassId.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblClassId = new GridBagConstraints();
+		gbcLblClassId.anchor = GridBagConstraints.EAST;
+		gbcLblClassId.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblClassId.gridx = 0;
+		gbcLblClassId.gridy = 5;
+		add( lblClassId, gbcLblClassId );
+
+		spinnerClass = new JSpinner( new SpinnerNumberModel( 0, 0, 255, 1 ) );
+		spinnerClass.setFont( SMALL_FONT );
+		final GridBagConstraints gbcSpinnerClass = new GridBagConstraints();
+		gbcSpinnerClass.fill = GridBagConstraints.HORIZONTAL;
+		gbcSpinnerClass.insets = new Insets( 5, 5, 5, 5 );
+		gbcSpinnerClass.gridx = 1;
+		gbcSpinnerClass.gridy = 5;
+		add( spinnerClass, gbcSpinnerClass );
+
+		/*
+		 * Proba threshold.
+		 */
+
+		final JLabel lblScoreTreshold = new JLabel( "Threshold on probability:" );
+		lblScoreTreshold.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblScoreTreshold = new GridBagConstraints();
+		gbcLblScoreTreshold.anchor = GridBagConstraints.EAST;
+		gbcLblScoreTreshold.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblScoreTreshold.gridx = 0;
+		gbcLblScoreTreshold.gridy = 6;
+		add( lblScoreTreshold, gbcLblScoreTreshold );
+
+		ftfProbaThreshold = new JFormattedTextField( THRESHOLD_FORMAT );
+		ftfProbaThreshold.setFont( SMALL_FONT );
+		ftfProbaThreshold.setMinimumSize( new Dimension( 60, 20 ) );
+		ftfProbaThreshold.setHorizontalAlignment( SwingConstants.CENTER );
+		final GridBagConstraints gbcScore = new GridBagConstraints();
+		gbcScore.fill = GridBagConstraints.HORIZONTAL;
+		gbcScore.insets = new Insets( 5, 5, 5, 5 );
+		gbcScore.gridx = 1;
+		gbcScore.gridy = 6;
+		add( ftfProbaThreshold, gbcScore );
+
+		/*
+		 * Preview.
+		 */
+
+		final DetectionPreview detectionPreview = DetectionPreview.create()
+				.model( model )
+				.settings( settings )
+				.detectorFactory( new IlastikPredictionDetectorFactory<>() )
+				.detectionSettingsSupplier( () -> getSettings() )
+				.frameSupplier( () -> settings.imp.getFrame() - 1 )
+				.axisLabel( "Probability" )
+				.get();
+
+		final GridBagConstraints gbcBtnPreview = new GridBagConstraints();
+		gbcBtnPreview.gridwidth = 3;
+		gbcBtnPreview.fill = GridBagConstraints.BOTH;
+		gbcBtnPreview.insets = new Insets( 5, 5, 5, 5 );
+		gbcBtnPreview.gridx = 0;
+		gbcBtnPreview.gridy = 7;
+		add( detectionPreview.getPanel(), gbcBtnPreview );
+
+		btnBrowse.addActionListener( l -> browse() );
+	}
+
+	@Override
+	public Map< String, Object > getSettings()
+	{
+		final HashMap< String, Object > settings = new HashMap<>( 5 );
+		settings.put( KEY_PREDICTION_FILEPATH, predictionFileTextField.getText() );
+		settings.put( KEY_PREDICTION_DATASET, datasetTextField.getText() );
+		settings.put( KEY_CLASS_INDEX, ( ( Number ) spinnerClass.getValue() ).intValue() );
+		settings.put( KEY_PROBA_THRESHOLD, ( ( Number ) ftfProbaThreshold.getValue() ).doubleValue() );
+		if ( this.settings.roi != null )
+			settings.put( KEY_ROI, this.settings.roi );
+		return settings;
+	}
+
+	@Override
+	public void setSettings( final Map< String, Object > settings )
+	{
+		String filePath = ( String ) settings.get( KEY_PREDICTION_FILEPATH );
+		if ( filePath == null || filePath.isEmpty() )
+			filePath = prefService.get( IlastikPredictionDetectorConfigurationPanel.class, KEY_PREDICTION_FILEPATH );
+		predictionFileTextField.setText( filePath );
+		datasetTextField.setText( ( String ) settings.getOrDefault( KEY_PREDICTION_DATASET, DEFAULT_PREDICTION_DATASET ) );
+		spinnerClass.setValue( settings.get( KEY_CLASS_INDEX ) );
+		ftfProbaThreshold.setValue( settings.get( KEY_PROBA_THRESHOLD ) );
+	}
+
+	@Override
+	public void clean()
+	{}
+
+	protected void browse()
+	{
+		btnBrowse.setEnabled( false );
+		try
+		{
+			final File file = FileChooser.chooseFile( this, predictionFileTextField.getText(), fileFilter, "Select an ilastik prediction file", DialogType.LOAD );
+			if ( file != null )
+			{
+				predictionFileTextField.setText( file.getAbsolutePath() );
+				prefService.put( IlastikPredictionDetectorConfigurationPanel.class, KEY_PREDICTION_FILEPATH, file.getAbsolutePath() );
+			}
+		}
+		finally
+		{
+			btnBrowse.setEnabled( true );
+		}
+	}
+}
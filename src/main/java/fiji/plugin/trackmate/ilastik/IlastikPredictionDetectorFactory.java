@@ -0,0 +1,300 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_CLASS_INDEX;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_PROBA_THRESHOLD;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CLASS_INDEX;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PROBA_THRESHOLD;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_ROI;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.checkOptionalParameter;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.readOptionalAttribute;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.writeOptionalAttribute;
+import static fiji.plugin.trackmate.io.IOUtils.readDoubleAttribute;
+import static fiji.plugin.trackmate.io.IOUtils.readIntegerAttribute;
+import static fiji.plugin.trackmate.io.IOUtils.readStringAttribute;
+import static fiji.plugin.trackmate.io.IOUtils.writeAttribute;
+import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
+import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import org.jdom2.Element;
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.detection.SpotDetectorFactory;
+import fiji.plugin.trackmate.detection.SpotGlobalDetector;
+import fiji.plugin.trackmate.detection.SpotGlobalDetectorFactory;
+import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
+import fiji.plugin.trackmate.io.IOUtils;
+import ij.gui.Roi;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+@Plugin( type = SpotDetectorFactory.class )
+public class IlastikPredictionDetectorFactory< T extends RealType< T > & NativeType< T > > implements SpotGlobalDetectorFactory< T >
+{
+
+	/*
+	 * CONSTANTS
+	 */
+
+	/**
+	 * The key to the parameter that stores the path to the HDF5 file with the
+	 * probability map exported by ilastik.
+	 */
+	public static final String KEY_PREDICTION_FILEPATH = "PREDICTION_FILEPATH";
+
+	/**
+	 * The key to the parameter that stores the path of the probability
+	 * dataset in the HDF5 file. Values are {@link String}s.
+	 */
+	public static final String KEY_PREDICTION_DATASET = "PREDICTION_DATASET";
+
+	public static final String DEFAULT_PREDICTION_DATASET = PredictionFile.DEFAULT_DATASET;
+
+	/** A string key identifying this factory. */
+	public static final String DETECTOR_KEY = "ILASTIK_PREDICTION_DETECTOR";
+
+	/** The pretty name of the target detector. */
+	public static final String NAME = "ilastik prediction file detector";
+
+	/** An html information text. */
+	public static final String INFO_TEXT = "<html>"
+			+ "This detector creates objects from a probability map that was "
+			+ "already computed by ilastik, for instance in headless or batch "
+			+ "mode, and exported as a HDF5 file. ilastik is not run again. "
+			+ "<p>"
+			+ "The probability map must have the same size in X, Y and Z as the "
+			+ "source image, and at least as many frames. Its axes are read "
+			+ "from the file. It is read one frame at a time, so it does not "
+			+ "have to fit in memory. "
+			+ "<p>"
+			+ "The probability map of the selected class is thresholded to "
+			+ "yield objects, as in the ilastik detector. Spots are created with "
+			+ "these objects, with a quality equal to the maximal value of the "
+			+ "probability image in the cell. "
+			+ "<p>"
+			+ "Documentation for this module "
+			+ "<a href=\"https://imagej.net/plugins/trackmate/trackmate-ilastik\">on the ImageJ Wiki</a>."
+			+ "<p>"
+			+ "If you use this detector for your work, please be so kind as to "
+			+ "also cite the ilastik paper: <a href=\"https://doi.org/10.1038/s41592-019-0582-9\">Berg, S., Kutra, D., Kroeger, T. et al. ilastik: "
+			+ "interactive machine learning for (bio)image analysis. Nat Methods 16, 1226–1232 (2019)</a>"
+			+ "</html>";
+
+	/*
+	 * FIELDS
+	 */
+
+	/** The image to operate on. */
+	protected ImgPlus< T > img;
+
+	protected Map< String, Object > settings;
+
+	protected String errorMessage;
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public SpotGlobalDetector< T > getDetector( final Interval interval )
+	{
+		final String predictionPath = ( String ) settings.get( KEY_PREDICTION_FILEPATH );
+		final String dataset = ( String ) settings.getOrDefault( KEY_PREDICTION_DATASET, DEFAULT_PREDICTION_DATASET );
+		final int classIndex = ( Integer ) settings.get( KEY_CLASS_INDEX );
+		final double probaThreshold = ( Double ) settings.get( KEY_PROBA_THRESHOLD );
+		final Roi roi = ( Roi ) settings.get( KEY_ROI );
+		return new IlastikPredictionDetector<>(
+				img,
+				interval,
+				predictionPath,
+				dataset,
+				classIndex,
+				probaThreshold,
+				roi );
+	}
+
+	@Override
+	public boolean forbidMultithreading()
+	{
+		// Frames are read one after another from the same file.
+		return true;
+	}
+
+	@Override
+	public boolean setTarget( final ImgPlus< T > img, final Map< String, Object > settings )
+	{
+		this.img = img;
+		this.settings = settings;
+		return checkSettings( settings );
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public boolean marshall( final Map< String, Object > settings, final Element element )
+	{
+		final StringBuilder errorHolder = new StringBuilder();
+		boolean ok = writeAttribute( settings, element, KEY_PREDICTION_FILEPATH, String.class, errorHolder );
+		ok = ok && writeOptionalAttribute( settings, element, KEY_PREDICTION_DATASET, String.class, errorHolder );
+		ok = ok && writeAttribute( settings, element, KEY_CLASS_INDEX, Integer.class, errorHolder );
+		ok = ok && writeAttribute( settings, element, KEY_PROBA_THRESHOLD, Double.class, errorHolder );
+
+		if ( !ok )
+			errorMessage = errorHolder.toString();
+
+		return ok;
+	}
+
+	@Override
+	public boolean unmarshall( final Element element, final Map< String, Object > settings )
+	{
+		settings.clear();
+		final StringBuilder errorHolder = new StringBuilder();
+		boolean ok = true;
+		ok = ok && readStringAttribute( element, settings, KEY_PREDICTION_FILEPATH, errorHolder );
+		ok = ok && readOptionalAttribute( element, settings, KEY_PREDICTION_DATASET, String.class, DEFAULT_PREDICTION_DATASET, errorHolder );
+		ok = ok && readIntegerAttribute( element, settings, KEY_CLASS_INDEX, errorHolder );
+		ok = ok && readDoubleAttribute( element, settings, KEY_PROBA_THRESHOLD, errorHolder );
+
+		if ( !ok )
+		{
+			errorMessage = errorHolder.toString();
+			return false;
+		}
+		return checkSettings( settings );
+	}
+
+	@Override
+	public ConfigurationPanel getDetectorConfigurationPanel( final Settings settings, final Model model )
+	{
+		return new IlastikPredictionDetectorConfigurationPanel( settings, model );
+	}
+
+	@Override
+	public Map< String, Object > getDefaultSettings()
+	{
+		final Map< String, Object > settings = new HashMap<>();
+		settings.put( KEY_PREDICTION_FILEPATH, "" );
+		settings.put( KEY_PREDICTION_DATASET, DEFAULT_PREDICTION_DATASET );
+		settings.put( KEY_CLASS_INDEX, DEFAULT_CLASS_INDEX );
+		settings.put( KEY_PROBA_THRESHOLD, DEFAULT_PROBA_THRESHOLD );
+		return settings;
+	}
+
+	@Override
+	public boolean checkSettings( final Map< String, Object > settings )
+	{
+		boolean ok = true;
+		final StringBuilder errorHolder = new StringBuilder();
+		ok = ok & checkParameter( settings, KEY_PREDICTION_FILEPATH, String.class, errorHolder );
+		ok = ok & checkOptionalParameter( settings, KEY_PREDICTION_DATASET, String.class, errorHolder );
+		ok = ok & checkParameter( settings, KEY_CLASS_INDEX, Integer.class, errorHolder );
+		ok = ok & checkParameter( settings, KEY_PROBA_THRESHOLD, Double.class, errorHolder );
+		final Object roi = settings.get( KEY_ROI );
+		if ( roi != null && !( roi instanceof Roi ) )
+		{
+			errorHolder.append( "Value for parameter " + KEY_ROI + " is not an ImageJ ROI, but a " + roi.getClass().getSimpleName() + ".\n" );
+			ok = false;
+		}
+		final List< String > mandatoryKeys = new ArrayList<>();
+		mandatoryKeys.add( KEY_PREDICTION_FILEPATH );
+		mandatoryKeys.add( KEY_CLASS_INDEX );
+		mandatoryKeys.add( KEY_PROBA_THRESHOLD );
+		final List< String > optionalKeys = new ArrayList<>();
+		optionalKeys.add( KEY_PREDICTION_DATASET );
+		optionalKeys.add( KEY_ROI );
+		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
+		if ( !ok )
+			errorMessage = errorHolder.toString();
+
+		// Extra test to make sure we can read the prediction file.
+		if ( ok )
+		{
+			final Object obj = settings.get( KEY_PREDICTION_FILEPATH );
+			if ( obj == null )
+			{
+				errorMessage = "The path to the prediction file is not set.";
+				return false;
+			}
+
+			if ( !IOUtils.canReadFile( ( String ) obj, errorHolder ) )
+			{
+				errorMessage = "Problem with prediction file: " + errorHolder.toString();
+				return false;
+			}
+		}
+
+		return ok;
+	}
+
+	@Override
+	public String getInfoText()
+	{
+		return INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return null;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return DETECTOR_KEY;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public boolean has2Dsegmentation()
+	{
+		return true;
+	}
+
+	@Override
+	public IlastikPredictionDetectorFactory< T > copy()
+	{
+		return new IlastikPredictionDetectorFactory<>();
+	}
+}
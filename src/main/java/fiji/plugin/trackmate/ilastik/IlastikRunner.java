@@ -23,14 +23,16 @@ package fiji.plugin.trackmate.ilastik;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.function.IntSupplier;
 
 import org.ilastik.ilastik4ij.ui.IlastikOptions;
-import org.ilastik.ilastik4ij.workflow.PixelClassificationCommand;
-import org.ilastik.ilastik4ij.workflow.WorkflowCommand;
 import org.scijava.Context;
 import org.scijava.options.OptionsService;
 
@@ -47,21 +49,22 @@ import ch.systemsx.cisd.hdf5.HDF5ObjectInformation;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
-import fiji.plugin.trackmate.detection.DetectionUtils;
-import fiji.plugin.trackmate.detection.MaskUtils;
 import fiji.plugin.trackmate.util.TMUtils;
-import net.imagej.DefaultDataset;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
 import net.imagej.ops.MetadataUtil;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
 import net.imglib2.img.ImgView;
 import net.imglib2.img.display.imagej.ImgPlusViews;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 public class IlastikRunner
@@ -100,6 +103,621 @@ public class IlastikRunner
 			final String projectFilePath,
 			final long classId,
 			final double probaThreshold ) throws IOException
+	{
+		return run( img, interval, channel, projectFilePath, classId, probaThreshold, IlastikRunnerOptions.DEFAULT );
+	}
+
+	/**
+	 * Executes the ilastik process on the specified image and return the
+	 * results as a {@link SpotCollection}, using the specified options.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval (space and time) to operate on.
+	 * @param channel
+	 *            the channel to operate on when a model trained on a single
+	 *            channel is specified.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classId
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param options
+	 *            the optional parameters of the inference.
+	 * @return a new {@link SpotCollection}
+	 * @throws IOException
+	 *             if the ilastik file cannot be found.
+	 * @param <T>
+	 *            the type of pixels in the source image. Must extend
+	 *            {@link RealType} and {@link NativeType}.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > SpotCollection run(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final IlastikRunnerOptions options ) throws IOException
+	{
+		return predict( img, interval, channel, projectFilePath, classId, probaThreshold, options ).extract();
+	}
+
+	/**
+	 * Runs the inference on the specified image, and returns the extraction
+	 * of the spots from the probabilities, so that it can be run later in
+	 * another thread. When the detection is split, for instance in chunks of
+	 * frames, the spots are extracted before this method returns.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval (space and time) to operate on.
+	 * @param channel
+	 *            the channel to operate on when a model trained on a single
+	 *            channel is specified.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classId
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param options
+	 *            the optional parameters of the inference.
+	 * @return the extraction of the spots.
+	 * @throws IOException
+	 *             if the ilastik file cannot be found.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 */
+	static < T extends RealType< T > & NativeType< T > > Extraction predict(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final IlastikRunnerOptions options ) throws IOException
+	{
+		final OptionsService optionService = context.getService( OptionsService.class );
+		final ImgPlus< T > cropped = crop( img, interval, channel, projectFilePath );
+		final List< String > classLabels = getClassLabels( projectFilePath );
+
+		/*
+		 * Discover and use Ilastik config.
+		 */
+
+		final IlastikOptions ilastikOptions = optionService.getOptions( IlastikOptions.class );
+		final int numThreads = getNumThreads( options );
+
+		/*
+		 * Spatial dimensions and binning factors of one frame.
+		 */
+
+		final long[] binning = Downsampling.getBinningFactors( cropped, options.downsamplingXY, options.downsamplingZ );
+		final int nSpatialDims = cropped.dimensionIndex( Axes.Z ) >= 0 ? 3 : 2;
+		final long[] frameBinning = new long[ nSpatialDims ];
+		final long[] frameDims = new long[ nSpatialDims ];
+		final long[] origin = new long[ nSpatialDims ];
+		final AxisType[] spatialAxes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		for ( int d = 0; d < nSpatialDims; d++ )
+		{
+			final int id = cropped.dimensionIndex( spatialAxes[ d ] );
+			frameBinning[ d ] = binning[ id ];
+			frameDims[ d ] = cropped.dimension( id );
+			origin[ d ] = interval.min( d );
+		}
+		final int tDim = cropped.dimensionIndex( Axes.TIME );
+		final int nFrames = tDim < 0 ? 1 : ( int ) cropped.dimension( tDim );
+		final int t0 = firstFrame( interval, nSpatialDims );
+
+		/*
+		 * Classify only once the frames that have the same content.
+		 */
+
+		if ( options.deduplicateFrames && nFrames > 1 )
+		{
+			final int[] representatives = FrameDeduplication.findRepresentatives( cropped, tDim, numThreads );
+			final List< Integer > uniqueFrames = new ArrayList<>();
+			for ( int t = 0; t < nFrames; t++ )
+				if ( representatives[ t ] == t )
+					uniqueFrames.add( t0 + t );
+			if ( uniqueFrames.size() < nFrames )
+			{
+				options.logger.log( String.format( Locale.US, "Deduplication: %d unique frames out of %d.\n",
+						uniqueFrames.size(), nFrames ) );
+				final ImgPlus< T > unique = FrameDeduplication.selectFrames( img, uniqueFrames );
+				final Interval uniqueInterval = timeChunk( interval, 0, uniqueFrames.size() - 1 );
+				if ( options.labelSink != null )
+					options.logger.log( "Deduplication: label images are not exported.\n" );
+				final IlastikRunnerOptions uniqueOptions = IlastikRunnerOptions.create( options )
+						.deduplicateFrames( false )
+						.labelSink( null )
+						.get();
+				final SpotCollection uniqueSpots = run( unique, uniqueInterval, channel, projectFilePath, classId, probaThreshold, uniqueOptions );
+				return done( FrameDeduplication.expand( uniqueSpots, firstFrame( uniqueInterval, nSpatialDims ), representatives, t0 ) );
+			}
+		}
+
+		/*
+		 * Classify keyframes whole, and the frames between two keyframes in
+		 * one call, only around the objects found in the first keyframe.
+		 */
+
+		if ( options.keyframes != null && nFrames > 1 )
+		{
+			final IlastikRunnerOptions frameOptions = IlastikRunnerOptions.create( options )
+					.keyframes( null )
+					.deduplicateFrames( false )
+					.get();
+			final double[] calibration = TMUtils.getSpatialCalibration( img );
+			final int last = interval.numDimensions() - 1;
+			final SpotCollection spots = runInChunks( interval, () -> options.keyframes.interval, segment -> {
+				final long t = segment.min( last );
+				final SpotCollection segmentSpots = run( img, timeChunk( interval, t, t ), channel, projectFilePath, classId, probaThreshold, frameOptions );
+				if ( segment.max( last ) == t )
+					return segmentSpots;
+
+				final List< Interval > regions = options.keyframes.regions( segmentSpots.keySet().contains( ( int ) t )
+						? segmentSpots.iterable( ( int ) t, false )
+						: Collections.< Spot >emptyList(), calibration, t, t + 1, segment.max( last ) );
+				if ( !regions.isEmpty() )
+					merge( segmentSpots, run( img, timeChunk( interval, t + 1, segment.max( last ) ), channel, projectFilePath, classId, probaThreshold,
+							IlastikRunnerOptions.create( frameOptions ).regions( regions ).get() ) );
+				return segmentSpots;
+			} );
+			final int nKeyframes = ( nFrames + options.keyframes.interval - 1 ) / options.keyframes.interval;
+			options.logger.log( String.format( Locale.US, "Keyframes: %d frames out of %d classified whole.\n", nKeyframes, nFrames ) );
+			return done( spots );
+		}
+
+		/*
+		 * Check that the inference fits in memory, and split the movie in
+		 * chunks of frames if it does not.
+		 */
+
+		long pixelsPerFrame = 1;
+		for ( int d = 0; d < nSpatialDims; d++ )
+			pixelsPerFrame *= ( frameDims[ d ] + frameBinning[ d ] - 1 ) / frameBinning[ d ];
+		final int cDim = cropped.dimensionIndex( Axes.CHANNEL );
+		final int nChannels = cDim < 0 ? 1 : ( int ) cropped.dimension( cDim );
+		final MemoryPlanner.Plan plan = MemoryPlanner.plan(
+				pixelsPerFrame,
+				nChannels,
+				Math.max( 1, cropped.firstElement().getBitsPerPixel() / 8 ),
+				classLabels == null ? 2 : Math.max( 2, classLabels.size() ),
+				probabilityCopiesOnHeap( options ),
+				options.isDownsampled() || options.roi != null || options.prescreen != null || options.regions != null || options.cascade != null,
+				options.backend.estimateOverhead( projectFilePath, nSpatialDims, pixelsPerFrame, nChannels ),
+				options.backend.usesIlastikRamBudget(),
+				nFrames,
+				MemoryPlanner.getAvailableHeap(),
+				( long ) ilastikOptions.maxRamMb << 20 );
+		if ( plan.framesPerChunk < 1 )
+			throw new MemoryPlanner.NotEnoughMemoryException( plan );
+		options.logger.log( plan.toString() );
+		if ( options.adaptiveBatching && nFrames > 1 )
+		{
+			/*
+			 * Let the batcher choose the number of frames per inference,
+			 * within the memory budget.
+			 */
+			final IlastikRunnerOptions batchOptions = IlastikRunnerOptions.create( options )
+					.adaptiveBatching( false )
+					.get();
+			final AdaptiveBatcher batcher = new AdaptiveBatcher( Math.min( plan.framesPerChunk, nFrames ), AdaptiveBatcher.DEFAULT_EFFICIENCY );
+			final int last = interval.numDimensions() - 1;
+			return done( runInChunks( interval, batcher::nextBatchSize, batch -> {
+				final long t = System.nanoTime();
+				final SpotCollection batchSpots = run( img, batch, channel, projectFilePath, classId, probaThreshold, batchOptions );
+				final double seconds = ( System.nanoTime() - t ) / 1e9;
+				batcher.record( ( int ) batch.dimension( last ), seconds );
+				options.logger.log( String.format( Locale.US, "Frames %d to %d: %.2f s. %s\n", batch.min( last ), batch.max( last ), seconds, batcher ) );
+				return batchSpots;
+			} ) );
+		}
+		if ( plan.framesPerChunk < nFrames )
+			return done( runInChunks( interval, () -> plan.framesPerChunk,
+					chunk -> run( img, chunk, channel, projectFilePath, classId, probaThreshold, options ) ) );
+
+		final RoiMask roiMask = options.roi == null ? null : new RoiMask( options.roi );
+		TileMosaic mosaic = null;
+
+		/*
+		 * If we are given regions, only send them to ilastik.
+		 */
+
+		if ( options.regions != null )
+		{
+			final long f = options.downsamplingXY;
+			final long margin = ( ( options.tileMargin + f - 1 ) / f ) * f;
+			final long tileSize = ( ( options.tileSize + f - 1 ) / f ) * f;
+			final List< TileMosaic.Piece > pieces = new ArrayList<>();
+			int nBoxes = 0;
+			for ( int t = 0; t < nFrames; t++ )
+			{
+				final List< long[] > boxes = new ArrayList<>();
+				for ( final Interval region : options.regions )
+				{
+					if ( region.numDimensions() > 2 && ( region.min( 2 ) > t0 + t || region.max( 2 ) < t0 + t ) )
+						continue;
+					final long[] box = new long[ 4 ];
+					for ( int d = 0; d < 2; d++ )
+					{
+						box[ d ] = ( Math.max( 0, region.min( d ) - origin[ d ] ) / f ) * f;
+						box[ d + 2 ] = Math.min( frameDims[ d ] - 1, region.max( d ) - origin[ d ] );
+					}
+					if ( box[ 0 ] <= box[ 2 ] && box[ 1 ] <= box[ 3 ] )
+						boxes.add( box );
+				}
+				TileMosaic.mergeOverlapping( boxes );
+				nBoxes += boxes.size();
+
+				for ( final long[] box : boxes )
+				{
+					final long[] min = new long[ nSpatialDims ];
+					final long[] max = new long[ nSpatialDims ];
+					for ( int d = 0; d < nSpatialDims; d++ )
+						max[ d ] = frameDims[ d ] - 1;
+					min[ 0 ] = box[ 0 ];
+					min[ 1 ] = box[ 1 ];
+					max[ 0 ] = box[ 2 ];
+					max[ 1 ] = box[ 3 ];
+					pieces.addAll( TileMosaic.split( min, max, tileSize, t ) );
+				}
+			}
+			if ( pieces.isEmpty() )
+				return done( new SpotCollection() );
+
+			long fullPixels = nFrames;
+			for ( final long d : frameDims )
+				fullPixels *= d;
+			final TileMosaic regions = new TileMosaic( pieces, margin, Math.max( 1, pieces.size() / nFrames ), f );
+			if ( regions.numPixels() < fullPixels )
+			{
+				mosaic = regions;
+				options.logger.log( String.format( Locale.US, "Regions: %d pixels sent to ilastik in %d regions instead of %d (%.1f%%).\n",
+						regions.numPixels(), nBoxes, fullPixels, 100. * regions.numPixels() / fullPixels ) );
+			}
+			else
+			{
+				options.logger.log( "Regions cover too much of the input, processing it whole.\n" );
+			}
+		}
+
+		/*
+		 * If we have a ROI, only send to ilastik the tiles that touch it. If
+		 * we prescreen the input, skip the tiles that are trivially empty.
+		 */
+
+		if ( mosaic == null && ( roiMask != null || options.prescreen != null ) )
+		{
+			final long f = options.downsamplingXY;
+			final long margin = ( ( options.tileMargin + f - 1 ) / f ) * f;
+			final List< TileMosaic.Piece > tiles = new ArrayList<>();
+			for ( final TileMosaic.Piece tile : getTiles( frameDims, options ) )
+				if ( roiMask == null || roiMask.intersects(
+						tile.min[ 0 ] + origin[ 0 ], tile.min[ 1 ] + origin[ 1 ],
+						tile.max[ 0 ] + origin[ 0 ], tile.max[ 1 ] + origin[ 1 ] ) )
+					tiles.add( tile );
+
+			final List< TileMosaic.Piece > pieces = new ArrayList<>( tiles.size() * nFrames );
+			for ( int t = 0; t < nFrames; t++ )
+			{
+				final boolean[] empty = new boolean[ tiles.size() ];
+				if ( options.prescreen != null && !tiles.isEmpty() )
+				{
+					final RandomAccessibleInterval< T > frame = tDim < 0 ? cropped : Views.hyperSlice( cropped, tDim, t );
+					final TilePrescreen.TileStats[] stats = TilePrescreen.computeStats(
+							frame,
+							cropped.dimensionIndex( Axes.X ),
+							cropped.dimensionIndex( Axes.Y ),
+							tiles,
+							numThreads );
+					for ( int i = 0; i < stats.length; i++ )
+						empty[ i ] = options.prescreen.isEmpty( stats[ i ] );
+				}
+				for ( int i = 0; i < tiles.size(); i++ )
+					if ( !empty[ i ] )
+						pieces.add( new TileMosaic.Piece( tiles.get( i ).min, tiles.get( i ).max, t ) );
+			}
+
+			if ( options.prescreen != null )
+			{
+				final int nTiles = tiles.size() * nFrames;
+				options.logger.log( String.format( Locale.US, "Prescreen: skipped %d empty tiles out of %d (%.1f%%).\n",
+						nTiles - pieces.size(), nTiles, nTiles == 0 ? 0. : 100. * ( nTiles - pieces.size() ) / nTiles ) );
+			}
+			if ( pieces.isEmpty() )
+				return done( new SpotCollection() );
+
+			// Is it worth it?
+			long piecePixels = 0;
+			for ( final TileMosaic.Piece piece : pieces )
+				piecePixels += ( piece.size( 0 ) + 2 * margin ) * ( piece.size( 1 ) + 2 * margin );
+			if ( piecePixels < MAX_TILE_COVERAGE * frameDims[ 0 ] * frameDims[ 1 ] * nFrames )
+				mosaic = new TileMosaic( pieces, margin, tiles.size(), f );
+			else
+				options.logger.log( "Skipped tiles cover too little of the input, processing it whole.\n" );
+		}
+
+		/*
+		 * In cascade mode, classify at full resolution only the regions
+		 * where the scout pass found candidates.
+		 */
+
+		if ( mosaic == null && options.cascade != null )
+		{
+			final Cascade.Scout scout = options.cascade.scout( cropped, frameDims, projectFilePath, classId, numThreads, options );
+			long fullPixels = nFrames;
+			for ( final long d : frameDims )
+				fullPixels *= d;
+			if ( scout.pieces.isEmpty() )
+			{
+				options.logger.log( String.format( Locale.US, "Cascade: no candidate found, %d pixels sent to ilastik instead of %d (%.1f%%).\n",
+						scout.pixels, fullPixels, 100. * scout.pixels / fullPixels ) );
+				return done( new SpotCollection() );
+			}
+
+			final long f = options.downsamplingXY;
+			final long margin = ( ( options.tileMargin + f - 1 ) / f ) * f;
+			final int[] piecesPerFrame = new int[ nFrames ];
+			int slotsPerPage = 1;
+			for ( final TileMosaic.Piece piece : scout.pieces )
+				slotsPerPage = Math.max( slotsPerPage, ++piecesPerFrame[ piece.frame ] );
+			final TileMosaic candidates = new TileMosaic( scout.pieces, margin, slotsPerPage, f );
+			final long sent = scout.pixels + candidates.numPixels();
+			if ( sent < fullPixels )
+			{
+				mosaic = candidates;
+				options.logger.log( String.format( Locale.US, "Cascade: %d pixels sent to ilastik (%d in the scout pass, %d in %d regions) instead of %d (%.1f%%).\n",
+						sent, scout.pixels, candidates.numPixels(), scout.pieces.size(), fullPixels, 100. * sent / fullPixels ) );
+			}
+			else
+			{
+				options.logger.log( "Cascade: candidate regions cover too much of the input, processing it whole.\n" );
+			}
+		}
+
+		/*
+		 * Bin the input if we are asked to.
+		 */
+
+		final ImgPlus< T > mosaicOrCropped = ( mosaic == null ) ? cropped : mosaic.assemble( cropped );
+		final ImgPlus< T > toClassify = options.isDownsampled()
+				? Downsampling.bin( mosaicOrCropped, binning )
+				: mosaicOrCropped;
+
+		/*
+		 * Run Ilastik.
+		 */
+
+		final ImgPlus< FloatType > output;
+		if ( options.cacheProbabilities )
+			output = ProbabilityFrameCache.getInstance().predict( options.backend, toClassify, projectFilePath, numThreads, options.storage );
+		else if ( options.predictionCache != null )
+			output = options.predictionCache.predict( options.backend, toClassify, projectFilePath, numThreads, options.storage, options.logger );
+		else
+			output = options.backend.predict( toClassify, projectFilePath, numThreads, options.storage );
+		if ( options.predictOnly )
+			return done( new SpotCollection() );
+		final ImgPlus< FloatType > proba = ImgPlusViews.hyperSlice( output, output.dimensionIndex( Axes.CHANNEL ), classId );
+
+		/*
+		 * Create ROIs from proba.
+		 */
+
+		final TileMosaic pieces = mosaic;
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		final FrameExtractor extractor = new FrameExtractor(
+				frameBinning,
+				frameDims,
+				origin,
+				calibration,
+				options.upsampleProbabilities,
+				roiMask,
+				probaThreshold,
+				numThreads,
+				options.spotRepresentation,
+				options.simplificationTolerance,
+				options.storage );
+
+		return () -> extract( proba, pieces, extractor, frameBinning, nFrames, t0, options );
+	}
+
+	/**
+	 * Extracts the spots of each frame from the probabilities of the class.
+	 */
+	private static SpotCollection extract(
+			final ImgPlus< FloatType > proba,
+			final TileMosaic mosaic,
+			final FrameExtractor extractor,
+			final long[] frameBinning,
+			final int nFrames,
+			final int t0,
+			final IlastikRunnerOptions options ) throws IOException
+	{
+		final SpotCollection spots = new SpotCollection();
+		final int timeIndex = proba.dimensionIndex( Axes.TIME );
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final List< Spot > spotsThisFrame;
+			if ( mosaic != null )
+			{
+				/*
+				 * Rebuild the probability map of this frame from the tiles.
+				 * Skipped tiles get a probability of 0.
+				 */
+				final Img< FloatType > probaThisFrame = options.storage.floats( extractor.getProbabilityDims() );
+				mosaic.paste( proba, t, probaThisFrame, frameBinning );
+				spotsThisFrame = extractor.extract( probaThisFrame, options.labelSink, t + t0 );
+			}
+			else
+			{
+				final RandomAccessibleInterval< FloatType > probaThisFrame = timeIndex < 0
+						? proba
+						: Views.hyperSlice( proba, timeIndex, t );
+				spotsThisFrame = extractor.extract( probaThisFrame, options.labelSink, t + t0 );
+			}
+			spots.put( t + t0, spotsThisFrame );
+			options.logger.log( String.format( Locale.US, "Frame %d: %d spots, about %d kB.\n",
+					t + t0, spotsThisFrame.size(), SpotRepresentation.estimateBytes( spotsThisFrame ) >> 10 ) );
+		}
+		return spots;
+	}
+
+	/**
+	 * The extraction of the spots of a detection from its probabilities, see
+	 * {@link IlastikRunner#predict}.
+	 */
+	interface Extraction
+	{
+		SpotCollection extract() throws IOException;
+	}
+
+	private static Extraction done( final SpotCollection spots )
+	{
+		return () -> spots;
+	}
+
+	/**
+	 * Detects the spots in consecutive chunks of frames of an interval, and
+	 * merges them.
+	 * 
+	 * @param interval
+	 *            the interval, whose last dimension is time.
+	 * @param framesPerChunk
+	 *            gives the number of frames of each chunk, when it starts.
+	 * @param detection
+	 *            detects the spots in a chunk.
+	 * @return the spots of all the chunks.
+	 * @throws IOException
+	 *             if the detection of a chunk fails.
+	 */
+	static SpotCollection runInChunks( final Interval interval, final IntSupplier framesPerChunk, final ChunkDetection detection ) throws IOException
+	{
+		final int last = interval.numDimensions() - 1;
+		final SpotCollection spots = new SpotCollection();
+		for ( long start = interval.min( last ); start <= interval.max( last ); )
+		{
+			final long end = Math.min( start + framesPerChunk.getAsInt() - 1, interval.max( last ) );
+			merge( spots, detection.run( timeChunk( interval, start, end ) ) );
+			start = end + 1;
+		}
+		return spots;
+	}
+
+	/**
+	 * Detects the spots in a chunk of frames, see
+	 * {@link IlastikRunner#runInChunks(Interval, IntSupplier, ChunkDetection)}.
+	 */
+	interface ChunkDetection
+	{
+		SpotCollection run( Interval chunk ) throws IOException;
+	}
+
+	/**
+	 * Splits the frames of an interval in consecutive chunks.
+	 * 
+	 * @param interval
+	 *            the interval, whose last dimension is time.
+	 * @param framesPerChunk
+	 *            the number of frames of each chunk, the last one possibly
+	 *            excepted.
+	 * @return the chunks, in time order.
+	 */
+	static List< Interval > timeChunks( final Interval interval, final int framesPerChunk )
+	{
+		final int last = interval.numDimensions() - 1;
+		final List< Interval > chunks = new ArrayList<>();
+		for ( long start = interval.min( last ); start <= interval.max( last ); start += framesPerChunk )
+			chunks.add( timeChunk( interval, start, Math.min( start + framesPerChunk - 1, interval.max( last ) ) ) );
+		return chunks;
+	}
+
+	/**
+	 * Returns the specified interval restricted to the frames from
+	 * <code>start</code> to <code>end</code>, inclusive.
+	 */
+	static Interval timeChunk( final Interval interval, final long start, final long end )
+	{
+		final int last = interval.numDimensions() - 1;
+		final long[] min = Intervals.minAsLongArray( interval );
+		final long[] max = Intervals.maxAsLongArray( interval );
+		min[ last ] = start;
+		max[ last ] = end;
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Returns the index of the first frame of an interval, which is the key
+	 * of its spots in the collection returned by the runner. The time axis,
+	 * if any, is the last one, after the spatial axes.
+	 */
+	private static int firstFrame( final Interval interval, final int nSpatialDims )
+	{
+		return interval.numDimensions() > nSpatialDims ? ( int ) interval.min( interval.numDimensions() - 1 ) : 0;
+	}
+
+	/**
+	 * Adds the spots of a chunk of frames to a collection.
+	 */
+	static void merge( final SpotCollection spots, final SpotCollection chunk )
+	{
+		for ( final Integer frame : chunk.keySet() )
+		{
+			final List< Spot > spotsThisFrame = new ArrayList<>();
+			for ( final Spot spot : chunk.iterable( frame, false ) )
+				spotsThisFrame.add( spot );
+			spots.put( frame, spotsThisFrame );
+		}
+	}
+
+	/**
+	 * ilastik4ij returns the probabilities on the heap, possibly typed as the
+	 * input, so they may be copied once more. The Java backend writes them
+	 * directly in the requested storage.
+	 */
+	static int probabilityCopiesOnHeap( final IlastikRunnerOptions options )
+	{
+		if ( options.storage == PredictionStorage.HEAP )
+			return 2;
+		return options.backend.isExternal() ? 1 : 0;
+	}
+
+	/**
+	 * If the tiles to process, margins included, cover more than this fraction
+	 * of the image, the image is processed whole.
+	 */
+	private static final double MAX_TILE_COVERAGE = 0.75;
+
+	/**
+	 * Returns the part of the source image to send to ilastik: the whole image
+	 * or one of its channels depending on the number of channels the model
+	 * was trained on, cropped to the specified interval.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval (space and time) to operate on.
+	 * @param channel
+	 *            the channel to operate on when a model trained on a single
+	 *            channel is specified.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @return a new zero-min {@link ImgPlus}, with the axes of the source
+	 *         image, minus the channel axis if the model was trained on a
+	 *         single channel.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 */
+	static < T extends RealType< T > & NativeType< T > > ImgPlus< T > crop(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath )
 	{
 		/*
 		 * Investigate whether the ilastik model is built on a single channel or
@@ -168,8 +786,6 @@ public class IlastikRunner
 			extendedInterval = interval;
 		}
 
-		final OptionsService optionService = context.getService( OptionsService.class );
-
 		/*
 		 * Properly set the image to process: crop it.
 		 */
@@ -179,90 +795,76 @@ public class IlastikRunner
 
 		final ImgPlus< T > cropped = new ImgPlus<>( ImgView.wrap( zeroMinCrop, input.factory() ) );
 		MetadataUtil.copyImgPlusMetadata( input, cropped );
+		return cropped;
 
-		/*
-		 * Discover and use Ilastik config.
-		 */
-
-		final IlastikOptions ilastikOptions = optionService.getOptions( IlastikOptions.class );
-		final int numThreads = ilastikOptions.numThreads <= 0 ? Runtime.getRuntime().availableProcessors()
-				: ilastikOptions.numThreads;
-
-		/*
-		 * Run Ilastik.
-		 */
-
-		final File projectFile = new File( projectFilePath );
-		PixelClassificationCommand< T > classifier = new PixelClassificationCommand<>();
-		classifier.setContext( context );
-		classifier.projectFileName = projectFile;
-		classifier.pixelClassificationType = WorkflowCommand.ROLE_PROBABILITIES;
-		classifier.inputImage = new DefaultDataset( context, cropped );
-		classifier.run();
-
-		final ImgPlus< T > output = classifier.predictions;
-		final ImgPlus< T > proba = ImgPlusViews.hyperSlice( output, output.dimensionIndex( Axes.CHANNEL ), classId );
-
-		/*
-		 * Create ROIs from proba.
-		 */
+	}
 
-		final double[] calibration = TMUtils.getSpatialCalibration( img );
-		final SpotCollection spots = new SpotCollection();
-		final int timeIndex = proba.dimensionIndex( Axes.TIME );
-		final int t0 = extendedInterval.numDimensions() > 2 ? ( int ) extendedInterval.min( 2 ) : 0;
-		for ( int t = 0; t < proba.dimension( timeIndex ); t++ )
-		{
-			final List< Spot > spotsThisFrame;
-			final ImgPlus< T > probaThisFrame = TMUtils.hyperSlice( proba, 0, t );
+	/**
+	 * Splits a frame in XY tiles, aligned on the binning blocks specified in
+	 * the options. Tiles span the whole frame in Z.
+	 * 
+	 * @param frameDims
+	 *            the frame dimensions, in X, Y and Z if any.
+	 * @param options
+	 *            the inference options.
+	 * @return a new list of tiles, in pixel coordinates of the frame.
+	 */
+	static List< TileMosaic.Piece > getTiles( final long[] frameDims, final IlastikRunnerOptions options )
+	{
+		final long f = options.downsamplingXY;
+		final long tileSize = ( ( options.tileSize + f - 1 ) / f ) * f;
+		final long[] min = new long[ frameDims.length ];
+		final long[] max = new long[ frameDims.length ];
+		for ( int d = 0; d < frameDims.length; d++ )
+			max[ d ] = frameDims[ d ] - 1;
+		return TileMosaic.split( min, max, tileSize, 0 );
+	}
 
-			if ( DetectionUtils.is2D( probaThisFrame ) )
-			{
-				/*
-				 * 2D: we compute and store the contour.
-				 */
-				final boolean simplify = true;
-				spotsThisFrame = MaskUtils.fromThresholdWithROI(
-						probaThisFrame,
-						probaThisFrame,
-						calibration,
-						probaThreshold,
-						simplify,
-						numThreads,
-						probaThisFrame );
-			}
-			else
-			{
-				/*
-				 * 3D: We create spots of the same volume that of the region.
-				 */
-				spotsThisFrame = MaskUtils.fromThreshold(
-						probaThisFrame,
-						probaThisFrame,
-						calibration,
-						probaThreshold,
-						numThreads,
-						probaThisFrame );
-			}
+	/**
+	 * Returns the number of threads to use: the one of the options if it is
+	 * set, otherwise the one of the ilastik configuration, otherwise the
+	 * number of processors.
+	 * 
+	 * @param options
+	 *            the inference options.
+	 * @return the number of threads.
+	 */
+	static int getNumThreads( final IlastikRunnerOptions options )
+	{
+		if ( options.numThreads > 0 )
+			return options.numThreads;
+		final IlastikOptions ilastikOptions = context.getService( OptionsService.class ).getOptions( IlastikOptions.class );
+		return ilastikOptions.numThreads <= 0 ? Runtime.getRuntime().availableProcessors()
+				: ilastikOptions.numThreads;
+	}
 
-			/*
-			 * Shift the spots (before this step, they have the top-left corner
-			 * of the interval as (0, 0) coordinates).
-			 */
-			final int maxD = DetectionUtils.is2D( probaThisFrame ) ? 2 : 3;
-			for ( final Spot spot : spotsThisFrame )
-			{
-				for ( int d = 0; d < maxD; d++ )
-				{
-					final double pos = spot.getDoublePosition( d );
-					final double newPos = pos + extendedInterval.min( d ) * calibration[ d ];
-					spot.putFeature( Spot.POSITION_FEATURES[ d ], newPos );
-				}
-			}
+	/**
+	 * Returns the RAM budget of the ilastik process, from the ilastik
+	 * configuration.
+	 * 
+	 * @return the budget, in bytes. 0 or less means no limit.
+	 */
+	static long getIlastikBudget()
+	{
+		final IlastikOptions ilastikOptions = context.getService( OptionsService.class ).getOptions( IlastikOptions.class );
+		return ( long ) ilastikOptions.maxRamMb << 20;
+	}
 
-			spots.put( t + t0, spotsThisFrame );
-		}
-		return spots;
+	/**
+	 * Returns the channels of the image to send to ilastik: all of them if
+	 * the model was trained on several channels, the specified one otherwise.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param channel
+	 *            the channel to use with a single-channel model.
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @return the image or a view on one of its channels.
+	 */
+	static < T extends Type< T > > ImgPlus< T > selectChannels( final ImgPlus< T > img, final int channel, final String projectFilePath )
+	{
+		return getModelNChannel( projectFilePath ) > 1 ? img : prepareImg( img, channel );
 	}
 
 	/**
@@ -279,34 +881,52 @@ public class IlastikRunner
 			return ImgPlusViews.hyperSlice( img, cDim, channel );
 	}
 
-	private static final int getModelNChannel( final String path )
+	/**
+	 * Returns the number of channels of the images the project was trained
+	 * on.
+	 * 
+	 * @param path
+	 *            the path to the ilastik project.
+	 * @return the number of channels.
+	 */
+	static final int getModelNChannel( final String path )
+	{
+		return getProjectInfo( path ).nChannels;
+	}
+
+	private static int readModelNChannel( final IHDF5Reader reader )
 	{
-		final IHDF5Reader reader = HDF5Factory.openForReading( new File( path ) );
 		final HDF5ObjectInformation info = reader.object().getObjectInformation( HDF_PATH_AXISTAGS );
 		if ( !info.exists() )
 			return 1; // assume there is only 1 channel
 
 		final String str = reader.readString( HDF_PATH_AXISTAGS );
-		@SuppressWarnings( "unchecked" )
-		final Map< String, List< Map< String, String > > > map = createJSon().fromJson( str, Map.class );
-		final List< Map< String, String > > axesList = map.get( "axes" );
-		int channelAxis = -1;
-		for ( int i = 0; i < axesList.size(); i++ )
-		{
-			final Map< String, String > axesAttributes = axesList.get( i );
-			final String axisStr = axesAttributes.get( AXIS_KEY_KEY );
-			if ( CHANNEL_AXIS_NAME.equals( axisStr ) )
-			{
-				channelAxis = i;
-				break;
-			}
-		}
+		final int channelAxis = parseAxisTags( str ).indexOf( CHANNEL_AXIS_NAME );
 		if ( channelAxis < 0 )
 			return 1;
 		final int[] shape = reader.readIntArray( HDF_PATH_SHAPE );
 		return shape[ channelAxis ];
 	}
 
+	/**
+	 * Returns the axis keys ('t', 'z', 'y', 'x', 'c') listed in an ilastik
+	 * axistags JSON string, in the order they are stored.
+	 * 
+	 * @param axisTags
+	 *            the axistags JSON string.
+	 * @return a new list of axis keys.
+	 */
+	static List< String > parseAxisTags( final String axisTags )
+	{
+		@SuppressWarnings( "unchecked" )
+		final Map< String, List< Map< String, String > > > map = createJSon().fromJson( axisTags, Map.class );
+		final List< Map< String, String > > axesList = map.get( AXES_KEY );
+		final List< String > keys = new ArrayList<>( axesList.size() );
+		for ( final Map< String, String > axesAttributes : axesList )
+			keys.add( axesAttributes.get( AXIS_KEY_KEY ) );
+		return keys;
+	}
+
 	private static final String AXES_KEY = "axes";
 
 	private static final String AXIS_KEY_KEY = "key";
@@ -344,7 +964,11 @@ public class IlastikRunner
 		final File file = new File( path );
 		if ( !file.exists() || !file.canRead() )
 			return null; // Model file not found.
-		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		return getProjectInfo( path ).classLabels;
+	}
+
+	private static List< String > readClassLabels( final IHDF5Reader reader )
+	{
 		final HDF5ObjectInformation info = reader.object().getObjectInformation( HDF_PATH_LABELNAMES );
 		if ( !info.exists() )
 			return null; // We failed to read.
@@ -354,4 +978,56 @@ public class IlastikRunner
 	}
 
 	private static final String HDF_PATH_LABELNAMES = "/PixelClassification/LabelNames";
+
+	/**
+	 * Returns what the runner needs to know of a project, read once and kept
+	 * in memory as long as the length and the modification time of the file
+	 * do not change. A detection calls it again for each chunk of frames it
+	 * is split in.
+	 */
+	private static ProjectInfo getProjectInfo( final String path )
+	{
+		final File file = new File( path );
+		final long length = file.length();
+		final long lastModified = file.lastModified();
+		synchronized ( projectInfos )
+		{
+			final ProjectInfo known = projectInfos.get( path );
+			if ( known != null && known.length == length && known.lastModified == lastModified )
+				return known;
+		}
+
+		final ProjectInfo info;
+		try (IHDF5Reader reader = HDF5Factory.openForReading( file ))
+		{
+			info = new ProjectInfo( length, lastModified, readModelNChannel( reader ), readClassLabels( reader ) );
+		}
+		synchronized ( projectInfos )
+		{
+			projectInfos.put( path, info );
+		}
+		return info;
+	}
+
+	private static final Map< String, ProjectInfo > projectInfos = new HashMap<>();
+
+	private static final class ProjectInfo
+	{
+
+		private final long length;
+
+		private final long lastModified;
+
+		private final int nChannels;
+
+		private final List< String > classLabels;
+
+		private ProjectInfo( final long length, final long lastModified, final int nChannels, final List< String > classLabels )
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.nChannels = nChannels;
+			this.classLabels = classLabels;
+		}
+	}
 }
@@ -0,0 +1,561 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.List;
+
+import fiji.plugin.trackmate.Logger;
+import ij.gui.Roi;
+import net.imglib2.Interval;
+
+/**
+ * Optional parameters of the {@link IlastikRunner}, on top of the mandatory
+ * ones (image, interval, channel, project, class and threshold).
+ * <p>
+ * Instances are immutable and created with a builder:
+ *
+ * <pre>
+ * final IlastikRunnerOptions options = IlastikRunnerOptions.create()
+ * 		.downsampling( 2, 1 )
+ * 		.upsampleProbabilities( true )
+ * 		.get();
+ * </pre>
+ */
+public class IlastikRunnerOptions
+{
+
+	/**
+	 * The options that reproduce the default behavior of the runner: full
+	 * resolution inference.
+	 */
+	public static final IlastikRunnerOptions DEFAULT = create().get();
+
+	/**
+	 * The binning factor applied in X and Y to the cropped input before
+	 * inference. 1 means no binning.
+	 */
+	public final int downsamplingXY;
+
+	/**
+	 * The binning factor applied in Z to the cropped input before inference.
+	 * 1 means no binning. Ignored for 2D images.
+	 */
+	public final int downsamplingZ;
+
+	/**
+	 * If <code>true</code>, the probability maps computed on the binned image
+	 * are interpolated back to full resolution before objects are extracted.
+	 * If <code>false</code>, objects are extracted at low resolution and
+	 * rescaled with the proper calibration.
+	 */
+	public final boolean upsampleProbabilities;
+
+	/**
+	 * The ROI to restrict inference to, in pixel coordinates of the source
+	 * image. Tiles of the input that do not touch the ROI are not sent to
+	 * ilastik, and objects outside of the ROI are not extracted. If
+	 * <code>null</code>, the whole interval is processed.
+	 */
+	public final Roi roi;
+
+	/**
+	 * The size in pixels, at full resolution, of the XY tiles used to skip the
+	 * parts of the input outside of the ROI.
+	 */
+	public final int tileSize;
+
+	/**
+	 * The margin in pixels, at full resolution, added around each tile sent
+	 * to ilastik so that filters are not truncated at the tile borders.
+	 */
+	public final int tileMargin;
+
+	/**
+	 * The rule used to skip the tiles of the input that are trivially empty.
+	 * If <code>null</code>, no tile is skipped on intensity statistics.
+	 */
+	public final TilePrescreen.Rule prescreen;
+
+	/**
+	 * The logger to report on the work skipped during inference.
+	 */
+	public final Logger logger;
+
+	/**
+	 * The backend that computes the class probabilities.
+	 */
+	public final InferenceBackend backend;
+
+	/**
+	 * The number of threads to use in the JVM. If 0, the number of threads
+	 * configured in the ilastik options is used.
+	 */
+	public final int numThreads;
+
+	/**
+	 * If <code>true</code>, the class probabilities are taken from and stored
+	 * in the {@link ProbabilityFrameCache}.
+	 */
+	public final boolean cacheProbabilities;
+
+	/**
+	 * If <code>true</code>, the class probabilities are computed, for them
+	 * to be stored in the {@link ProbabilityFrameCache}, but no spot is
+	 * extracted from them. Used by the {@link PreviewPrefetcher}.
+	 */
+	public final boolean predictOnly;
+
+	/**
+	 * The number of frames to predict in the background on each side of the
+	 * frame processed, with the {@link PreviewPrefetcher}. 0 disables
+	 * prefetching.
+	 */
+	public final int prefetch;
+
+	/**
+	 * If <code>true</code>, the run is a preview: it goes through the
+	 * {@link PreviewExecutor}, and is cancelled if another preview is
+	 * requested before it completes.
+	 */
+	public final boolean preview;
+
+	/**
+	 * Where the class probabilities are stored: on the heap, or off-heap for
+	 * movies whose probabilities do not fit in the heap.
+	 */
+	public final PredictionStorage storage;
+
+	/**
+	 * How the 2D spots are stored.
+	 */
+	public final SpotRepresentation spotRepresentation;
+
+	/**
+	 * The tolerance, in pixels, of the contour simplification when spots are
+	 * stored as {@link SpotRepresentation#COMPACT_CONTOUR}.
+	 */
+	public final double simplificationTolerance;
+
+	/**
+	 * If <code>true</code>, the frames are sent to the backend in batches
+	 * whose size is chosen by an {@link AdaptiveBatcher} from the measured
+	 * cost of the previous batches.
+	 */
+	public final boolean adaptiveBatching;
+
+	/**
+	 * If <code>true</code>, frames with identical content are classified
+	 * only once, and their spots are copied to the other frames.
+	 */
+	public final boolean deduplicateFrames;
+
+	/**
+	 * The cache to read the probabilities from and save them to, or
+	 * <code>null</code> to not cache them on disk.
+	 */
+	public final PredictionCache predictionCache;
+
+	/**
+	 * The coarse-to-fine cascade to run, or <code>null</code> to classify
+	 * the whole input at full resolution.
+	 */
+	public final Cascade cascade;
+
+	/**
+	 * The keyframes schedule, or <code>null</code> to classify every frame
+	 * whole.
+	 */
+	public final Keyframes keyframes;
+
+	/**
+	 * The regions to which the inference is restricted, as intervals in
+	 * pixels of the source image, or <code>null</code> to classify whole
+	 * frames. A 2D interval applies to every frame, a 3D interval only to the
+	 * frames of its third dimension.
+	 */
+	public final List< Interval > regions;
+
+	/**
+	 * The sink the label image of each frame is written to, or
+	 * <code>null</code> to only create spots.
+	 */
+	public final LabelSink labelSink;
+
+	private IlastikRunnerOptions( final Builder builder )
+	{
+		this.downsamplingXY = builder.downsamplingXY;
+		this.downsamplingZ = builder.downsamplingZ;
+		this.upsampleProbabilities = builder.upsampleProbabilities;
+		this.roi = builder.roi;
+		this.tileSize = builder.tileSize;
+		this.tileMargin = builder.tileMargin;
+		this.prescreen = builder.prescreen;
+		this.logger = builder.logger;
+		this.backend = builder.backend;
+		this.numThreads = builder.numThreads;
+		this.cacheProbabilities = builder.cacheProbabilities;
+		this.predictOnly = builder.predictOnly;
+		this.prefetch = builder.prefetch;
+		this.preview = builder.preview;
+		this.storage = builder.storage;
+		this.spotRepresentation = builder.spotRepresentation;
+		this.simplificationTolerance = builder.simplificationTolerance;
+		this.adaptiveBatching = builder.adaptiveBatching;
+		this.deduplicateFrames = builder.deduplicateFrames;
+		this.predictionCache = builder.predictionCache;
+		this.cascade = builder.cascade;
+		this.keyframes = builder.keyframes;
+		this.regions = builder.regions;
+		this.labelSink = builder.labelSink;
+	}
+
+	/**
+	 * Returns <code>true</code> if these options require the input to be
+	 * binned before inference.
+	 * 
+	 * @return whether the input is to be downsampled.
+	 */
+	public boolean isDownsampled()
+	{
+		return downsamplingXY > 1 || downsamplingZ > 1;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder str = new StringBuilder( super.toString() );
+		str.append( "\n - downsampling XY: " + downsamplingXY );
+		str.append( "\n - downsampling Z: " + downsamplingZ );
+		str.append( "\n - upsample probabilities: " + upsampleProbabilities );
+		str.append( "\n - ROI: " + roi );
+		str.append( "\n - tile size: " + tileSize );
+		str.append( "\n - tile margin: " + tileMargin );
+		str.append( "\n - prescreen: " + prescreen );
+		str.append( "\n - backend: " + backend.getName() );
+		str.append( "\n - threads: " + numThreads );
+		str.append( "\n - cache probabilities: " + cacheProbabilities );
+		str.append( "\n - predict only: " + predictOnly );
+		str.append( "\n - prefetch: " + prefetch );
+		str.append( "\n - preview: " + preview );
+		str.append( "\n - storage: " + storage );
+		str.append( "\n - spot representation: " + spotRepresentation );
+		str.append( "\n - simplification tolerance: " + simplificationTolerance );
+		str.append( "\n - adaptive batching: " + adaptiveBatching );
+		str.append( "\n - deduplicate frames: " + deduplicateFrames );
+		str.append( "\n - prediction cache: " + ( predictionCache == null ? "none" : predictionCache ) );
+		str.append( "\n - cascade: " + ( cascade == null ? "none" : cascade ) );
+		str.append( "\n - keyframes: " + ( keyframes == null ? "none" : keyframes ) );
+		str.append( "\n - regions: " + ( regions == null ? "whole frames" : regions.size() ) );
+		str.append( "\n - label sink: " + ( labelSink == null ? "none" : labelSink ) );
+		return str.toString();
+	}
+
+	public static Builder create()
+	{
+		return new Builder();
+	}
+
+	/**
+	 * Returns a builder initialized with the values of the specified options.
+	 * 
+	 * @param options
+	 *            the options to copy.
+	 * @return a new builder.
+	 */
+	public static Builder create( final IlastikRunnerOptions options )
+	{
+		final Builder builder = new Builder();
+		builder.downsamplingXY = options.downsamplingXY;
+		builder.downsamplingZ = options.downsamplingZ;
+		builder.upsampleProbabilities = options.upsampleProbabilities;
+		builder.roi = options.roi;
+		builder.tileSize = options.tileSize;
+		builder.tileMargin = options.tileMargin;
+		builder.prescreen = options.prescreen;
+		builder.logger = options.logger;
+		builder.backend = options.backend;
+		builder.numThreads = options.numThreads;
+		builder.cacheProbabilities = options.cacheProbabilities;
+		builder.predictOnly = options.predictOnly;
+		builder.prefetch = options.prefetch;
+		builder.preview = options.preview;
+		builder.storage = options.storage;
+		builder.spotRepresentation = options.spotRepresentation;
+		builder.simplificationTolerance = options.simplificationTolerance;
+		builder.adaptiveBatching = options.adaptiveBatching;
+		builder.deduplicateFrames = options.deduplicateFrames;
+		builder.predictionCache = options.predictionCache;
+		builder.cascade = options.cascade;
+		builder.keyframes = options.keyframes;
+		builder.regions = options.regions;
+		builder.labelSink = options.labelSink;
+		return builder;
+	}
+
+	public static class Builder
+	{
+
+		private int downsamplingXY = 1;
+
+		private int downsamplingZ = 1;
+
+		private boolean upsampleProbabilities = false;
+
+		private Roi roi = null;
+
+		private int tileSize = 512;
+
+		private int tileMargin = 40;
+
+		private TilePrescreen.Rule prescreen = null;
+
+		private Logger logger = Logger.VOID_LOGGER;
+
+		private InferenceBackend backend = new ProcessBackend();
+
+		private int numThreads = 0;
+
+		private boolean cacheProbabilities = false;
+
+		private boolean predictOnly = false;
+
+		private int prefetch = 0;
+
+		private boolean preview = false;
+
+		private PredictionStorage storage = PredictionStorage.HEAP;
+
+		private SpotRepresentation spotRepresentation = SpotRepresentation.CONTOUR;
+
+		private double simplificationTolerance = 0.5;
+
+		private boolean adaptiveBatching = false;
+
+		private boolean deduplicateFrames = false;
+
+		private PredictionCache predictionCache = null;
+
+		private Cascade cascade = null;
+
+		private Keyframes keyframes = null;
+
+		private List< Interval > regions = null;
+
+		private LabelSink labelSink = null;
+
+		/**
+		 * Sets the binning factors applied to the input before inference.
+		 * 
+		 * @param xy
+		 *            the binning factor in X and Y, must be at least 1.
+		 * @param z
+		 *            the binning factor in Z, must be at least 1.
+		 * @return this builder.
+		 */
+		public Builder downsampling( final int xy, final int z )
+		{
+			if ( xy < 1 || z < 1 )
+				throw new IllegalArgumentException( "Downsampling factors must be at least 1. Got " + xy + " and " + z + "." );
+			this.downsamplingXY = xy;
+			this.downsamplingZ = z;
+			return this;
+		}
+
+		public Builder upsampleProbabilities( final boolean upsampleProbabilities )
+		{
+			this.upsampleProbabilities = upsampleProbabilities;
+			return this;
+		}
+
+		public Builder roi( final Roi roi )
+		{
+			this.roi = roi;
+			return this;
+		}
+
+		/**
+		 * Sets the tiling used to skip the parts of the input outside of the
+		 * ROI.
+		 * 
+		 * @param tileSize
+		 *            the tile size in pixels, must be at least 1.
+		 * @param tileMargin
+		 *            the margin around tiles in pixels, must be at least 0.
+		 * @return this builder.
+		 */
+		public Builder tiling( final int tileSize, final int tileMargin )
+		{
+			if ( tileSize < 1 || tileMargin < 0 )
+				throw new IllegalArgumentException( "Invalid tiling. Got size " + tileSize + " and margin " + tileMargin + "." );
+			this.tileSize = tileSize;
+			this.tileMargin = tileMargin;
+			return this;
+		}
+
+		public Builder prescreen( final TilePrescreen.Rule prescreen )
+		{
+			this.prescreen = prescreen;
+			return this;
+		}
+
+		public Builder logger( final Logger logger )
+		{
+			this.logger = logger == null ? Logger.VOID_LOGGER : logger;
+			return this;
+		}
+
+		public Builder backend( final InferenceBackend backend )
+		{
+			if ( backend == null )
+				throw new IllegalArgumentException( "The inference backend cannot be null." );
+			this.backend = backend;
+			return this;
+		}
+
+		/**
+		 * Sets the number of threads to use in the JVM.
+		 * 
+		 * @param numThreads
+		 *            the number of threads, or 0 to use the number of threads
+		 *            configured in the ilastik options.
+		 * @return this builder.
+		 */
+		public Builder numThreads( final int numThreads )
+		{
+			if ( numThreads < 0 )
+				throw new IllegalArgumentException( "The number of threads cannot be negative. Got " + numThreads + "." );
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public Builder cacheProbabilities( final boolean cacheProbabilities )
+		{
+			this.cacheProbabilities = cacheProbabilities;
+			return this;
+		}
+
+		public Builder predictOnly( final boolean predictOnly )
+		{
+			this.predictOnly = predictOnly;
+			return this;
+		}
+
+		/**
+		 * Sets the number of frames to predict in the background on each side
+		 * of the frame processed.
+		 * 
+		 * @param prefetch
+		 *            the number of frames, or 0 to disable prefetching.
+		 * @return this builder.
+		 */
+		public Builder prefetch( final int prefetch )
+		{
+			if ( prefetch < 0 )
+				throw new IllegalArgumentException( "The number of frames to prefetch cannot be negative. Got " + prefetch + "." );
+			this.prefetch = prefetch;
+			return this;
+		}
+
+		public Builder preview( final boolean preview )
+		{
+			this.preview = preview;
+			return this;
+		}
+
+		public Builder storage( final PredictionStorage storage )
+		{
+			if ( storage == null )
+				throw new IllegalArgumentException( "The prediction storage cannot be null." );
+			this.storage = storage;
+			return this;
+		}
+
+		/**
+		 * Sets how the 2D spots are stored.
+		 * 
+		 * @param spotRepresentation
+		 *            the spot representation.
+		 * @param simplificationTolerance
+		 *            the tolerance, in pixels, of the contour simplification
+		 *            of {@link SpotRepresentation#COMPACT_CONTOUR}, must be at
+		 *            least 0.
+		 * @return this builder.
+		 */
+		public Builder spotRepresentation( final SpotRepresentation spotRepresentation, final double simplificationTolerance )
+		{
+			if ( spotRepresentation == null )
+				throw new IllegalArgumentException( "The spot representation cannot be null." );
+			if ( simplificationTolerance < 0 )
+				throw new IllegalArgumentException( "The simplification tolerance cannot be negative. Got " + simplificationTolerance + "." );
+			this.spotRepresentation = spotRepresentation;
+			this.simplificationTolerance = simplificationTolerance;
+			return this;
+		}
+
+		public Builder adaptiveBatching( final boolean adaptiveBatching )
+		{
+			this.adaptiveBatching = adaptiveBatching;
+			return this;
+		}
+
+		public Builder deduplicateFrames( final boolean deduplicateFrames )
+		{
+			this.deduplicateFrames = deduplicateFrames;
+			return this;
+		}
+
+		public Builder predictionCache( final PredictionCache predictionCache )
+		{
+			this.predictionCache = predictionCache;
+			return this;
+		}
+
+		public Builder cascade( final Cascade cascade )
+		{
+			this.cascade = cascade;
+			return this;
+		}
+
+		public Builder keyframes( final Keyframes keyframes )
+		{
+			this.keyframes = keyframes;
+			return this;
+		}
+
+		public Builder regions( final List< Interval > regions )
+		{
+			this.regions = regions;
+			return this;
+		}
+
+		public Builder labelSink( final LabelSink labelSink )
+		{
+			this.labelSink = labelSink;
+			return this;
+		}
+
+		public IlastikRunnerOptions get()
+		{
+			return new IlastikRunnerOptions( this );
+		}
+	}
+}
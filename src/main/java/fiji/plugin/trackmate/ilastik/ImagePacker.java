@@ -0,0 +1,300 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImgPlusViews;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Runs a single ilastik inference on many small images.
+ * <p>
+ * Starting ilastik and loading the project costs much more than classifying
+ * a small image, so when a batch is made of many small images it is faster
+ * to classify them together. The frames of all the images are laid out in a
+ * {@link TileMosaic}, separated by gutters of {@link IlastikRunnerOptions#tileMargin}
+ * pixels filled with the mirrored pixels of each frame, so that the filters
+ * ilastik computes near the border of a frame do not see its neighbors. The
+ * margin must be at least the radius of the largest filter of the project.
+ * After the inference, the probabilities of each frame are cut out of the
+ * mosaic and the spots are extracted with the calibration of the image they
+ * come from.
+ * <p>
+ * The pages of the mosaic are sent to the backend in as few calls as the
+ * {@link MemoryPlanner} allows.
+ * <p>
+ * The images must have the same axes and, if the model uses several
+ * channels, the same number of channels. Their sizes may differ. Images are
+ * processed whole: the downsampling, ROI, prescreening, prediction cache and
+ * label export options do not apply, and are ignored with a message in the
+ * log.
+ */
+public class ImagePacker
+{
+
+	/**
+	 * Maximal number of pixels per page of the mosaic, per channel. Above
+	 * this, the slots are spread over several pages, stacked along time.
+	 */
+	static final long MAX_PAGE_PIXELS = 1L << 24;
+
+	private ImagePacker()
+	{}
+
+	/**
+	 * Classifies several images with a single ilastik inference and returns
+	 * the spots found in each of them.
+	 * 
+	 * @param images
+	 *            the images to classify.
+	 * @param channel
+	 *            the channel to classify, if the model was trained on a
+	 *            single channel.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classId
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param options
+	 *            the optional parameters of the inference.
+	 * @return a new {@link SpotCollection} for each image, in the order of
+	 *         the images. Spot positions are in the physical coordinates of
+	 *         their image.
+	 * @throws IOException
+	 *             if the ilastik file cannot be found.
+	 * @throws MemoryPlanner.NotEnoughMemoryException
+	 *             if a single page of the mosaic does not fit in memory.
+	 * @param <T>
+	 *            the type of pixels in the source images.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > List< SpotCollection > run(
+			final List< ImgPlus< T > > images,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final IlastikRunnerOptions options ) throws IOException
+	{
+		final List< SpotCollection > results = new ArrayList<>( images.size() );
+		if ( images.isEmpty() )
+			return results;
+
+		final List< ImgPlus< T > > inputs = new ArrayList<>( images.size() );
+		for ( final ImgPlus< T > img : images )
+			inputs.add( IlastikRunner.selectChannels( img, channel, projectFilePath ) );
+		final ImgPlus< T > template = inputs.get( 0 );
+		checkAxes( inputs );
+		final int numThreads = IlastikRunner.getNumThreads( options );
+		logIgnoredOptions( options );
+
+		/*
+		 * One piece per frame of each image. Piece frame indices are global,
+		 * over all the images.
+		 */
+
+		final int nSpatialDims = template.dimensionIndex( Axes.Z ) >= 0 ? 3 : 2;
+		final List< TileMosaic.Piece > pieces = new ArrayList<>();
+		final List< RandomAccessibleInterval< T > > frames = new ArrayList<>();
+		final int[] firstPiece = new int[ inputs.size() + 1 ];
+		final long[] maxSize = new long[ nSpatialDims ];
+		for ( int i = 0; i < inputs.size(); i++ )
+		{
+			final ImgPlus< T > input = inputs.get( i );
+			final long[] dims = spatialDims( input, nSpatialDims );
+			final long[] min = new long[ nSpatialDims ];
+			final long[] max = new long[ nSpatialDims ];
+			for ( int d = 0; d < nSpatialDims; d++ )
+			{
+				max[ d ] = dims[ d ] - 1;
+				maxSize[ d ] = Math.max( maxSize[ d ], dims[ d ] );
+			}
+			firstPiece[ i ] = pieces.size();
+			final int tDim = input.dimensionIndex( Axes.TIME );
+			final long nFrames = tDim < 0 ? 1 : input.dimension( tDim );
+			for ( int t = 0; t < nFrames; t++ )
+			{
+				frames.add( tDim < 0 ? input : Views.hyperSlice( input, tDim, t ) );
+				pieces.add( new TileMosaic.Piece( min, max, pieces.size() ) );
+			}
+		}
+		firstPiece[ inputs.size() ] = pieces.size();
+
+		final long margin = options.tileMargin;
+		long slotPixels = 1;
+		for ( int d = 0; d < nSpatialDims; d++ )
+			slotPixels *= maxSize[ d ] + ( d < 2 ? 2 * margin : 0 );
+		final int slotsPerPage = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, MAX_PAGE_PIXELS / slotPixels ) );
+
+		/*
+		 * Check how many pages fit in memory, and split the mosaic in several
+		 * inferences if they do not all fit.
+		 */
+
+		final int slots = Math.min( slotsPerPage, pieces.size() );
+		final int nCols = ( int ) Math.ceil( Math.sqrt( slots ) );
+		final long pixelsPerPage = slotPixels * nCols * ( ( slots + nCols - 1 ) / nCols );
+		final int nPages = ( pieces.size() + slots - 1 ) / slots;
+		final int cDim = template.dimensionIndex( Axes.CHANNEL );
+		final int nChannels = cDim < 0 ? 1 : ( int ) template.dimension( cDim );
+		final List< String > classLabels = IlastikRunner.getClassLabels( projectFilePath );
+		final MemoryPlanner.Plan plan = MemoryPlanner.plan(
+				pixelsPerPage,
+				nChannels,
+				Math.max( 1, template.firstElement().getBitsPerPixel() / 8 ),
+				classLabels == null ? 2 : Math.max( 2, classLabels.size() ),
+				IlastikRunner.probabilityCopiesOnHeap( options ),
+				true,
+				options.backend.estimateOverhead( projectFilePath, nSpatialDims, pixelsPerPage, nChannels ),
+				options.backend.usesIlastikRamBudget(),
+				nPages,
+				MemoryPlanner.getAvailableHeap(),
+				IlastikRunner.getIlastikBudget() );
+		if ( plan.framesPerChunk < 1 )
+			throw new MemoryPlanner.NotEnoughMemoryException( plan );
+		if ( plan.framesPerChunk < nPages )
+			options.logger.log( plan.toString() );
+
+		final long[] ones = new long[ nSpatialDims ];
+		Arrays.fill( ones, 1 );
+		final List< FrameExtractor > extractors = new ArrayList<>( inputs.size() );
+		for ( int i = 0; i < inputs.size(); i++ )
+		{
+			extractors.add( new FrameExtractor(
+					ones,
+					spatialDims( inputs.get( i ), nSpatialDims ),
+					new long[ nSpatialDims ],
+					TMUtils.getSpatialCalibration( images.get( i ) ),
+					false,
+					null,
+					probaThreshold,
+					numThreads,
+					options.spotRepresentation,
+					options.simplificationTolerance,
+					options.storage ) );
+			results.add( new SpotCollection() );
+		}
+
+		final int piecesPerCall = ( int ) Math.min( Integer.MAX_VALUE, ( long ) plan.framesPerChunk * slots );
+		int image = 0;
+		for ( int start = 0; start < pieces.size(); start += piecesPerCall )
+		{
+			final int end = ( int ) Math.min( pieces.size(), ( long ) start + piecesPerCall );
+			final TileMosaic mosaic = new TileMosaic( pieces.subList( start, end ), margin, slotsPerPage, 1 );
+			final ImgPlus< T > packed = mosaic.assemble( template, frames::get );
+			options.logger.log( String.format( Locale.US, "Packed %d frames of %d images in %d pages of %d x %d pixels.\n",
+					end - start, inputs.size(), mosaic.numPages(),
+					packed.dimension( packed.dimensionIndex( Axes.X ) ), packed.dimension( packed.dimensionIndex( Axes.Y ) ) ) );
+
+			final ImgPlus< FloatType > output = options.backend.predict( packed, projectFilePath, numThreads, options.storage );
+			final ImgPlus< FloatType > proba = ImgPlusViews.hyperSlice( output, output.dimensionIndex( Axes.CHANNEL ), classId );
+
+			/*
+			 * Unpack the spots of each image.
+			 */
+
+			for ( int p = start; p < end; p++ )
+			{
+				while ( p >= firstPiece[ image + 1 ] )
+					image++;
+				final List< Spot > spotsThisFrame = extractors.get( image ).extract( mosaic.getPiece( proba, p - start, ones ) );
+				results.get( image ).put( p - firstPiece[ image ], spotsThisFrame );
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Logs the options that do not apply to packed images.
+	 */
+	private static void logIgnoredOptions( final IlastikRunnerOptions options )
+	{
+		final List< String > ignored = new ArrayList<>();
+		if ( options.isDownsampled() )
+			ignored.add( "downsampling" );
+		if ( options.roi != null )
+			ignored.add( "ROI" );
+		if ( options.prescreen != null )
+			ignored.add( "prescreen" );
+		if ( options.predictionCache != null )
+			ignored.add( "prediction cache" );
+		if ( options.labelSink != null )
+			ignored.add( "label export" );
+		if ( !ignored.isEmpty() )
+			options.logger.log( "Packed images are processed whole, ignoring the options: " + String.join( ", ", ignored ) + ".\n" );
+	}
+
+	/**
+	 * Checks that the images have the same axes, time excepted, and the same
+	 * number of channels.
+	 */
+	private static void checkAxes( final List< ? extends ImgPlus< ? > > inputs )
+	{
+		final ImgPlus< ? > template = inputs.get( 0 );
+		final List< AxisType > axes = axesWithoutTime( template );
+		final int cDim = template.dimensionIndex( Axes.CHANNEL );
+		final long nChannels = cDim < 0 ? 1 : template.dimension( cDim );
+		for ( final ImgPlus< ? > input : inputs )
+		{
+			if ( !axesWithoutTime( input ).equals( axes ) )
+				throw new IllegalArgumentException( "Cannot pack images with different axes. Expected "
+						+ axes + " for " + input.getName() + ", got " + axesWithoutTime( input ) + "." );
+			final int c = input.dimensionIndex( Axes.CHANNEL );
+			if ( ( c < 0 ? 1 : input.dimension( c ) ) != nChannels )
+				throw new IllegalArgumentException( "Cannot pack images with different numbers of channels. Expected "
+						+ nChannels + " for " + input.getName() + "." );
+		}
+	}
+
+	private static List< AxisType > axesWithoutTime( final ImgPlus< ? > img )
+	{
+		final List< AxisType > axes = new ArrayList<>();
+		for ( int d = 0; d < img.numDimensions(); d++ )
+			if ( img.axis( d ).type() != Axes.TIME )
+				axes.add( img.axis( d ).type() );
+		return axes;
+	}
+
+	private static long[] spatialDims( final ImgPlus< ? > img, final int nSpatialDims )
+	{
+		final AxisType[] spatialAxes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		final long[] dims = new long[ nSpatialDims ];
+		for ( int d = 0; d < nSpatialDims; d++ )
+			dims[ d ] = img.dimension( img.dimensionIndex( spatialAxes[ d ] ) );
+		return dims;
+	}
+}
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.scijava.plugin.SciJavaPlugin;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Interface for the implementations that compute the class probabilities of
+ * an image with the pixel classifier of an ilastik project.
+ * <p>
+ * Backends are SciJava plugins. Annotate an implementation with
+ * <code>@Plugin( type = InferenceBackend.class, name = "..." )</code> for it
+ * to be listed in the detector configuration panel and accepted in the
+ * {@link IlastikDetectorFactory#KEY_BACKEND} setting. The plugin name must
+ * be the one returned by {@link #getName()}, and implementations must have a
+ * public no-argument constructor.
+ */
+public interface InferenceBackend extends SciJavaPlugin
+{
+
+	/**
+	 * Computes the class probabilities of the specified image.
+	 * 
+	 * @param input
+	 *            the image to classify, zero-min, with X, Y and possibly Z,
+	 *            channel and time axes.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param storage
+	 *            where to store the probabilities.
+	 * @param <T>
+	 *            the pixel type of the input.
+	 * @return a new image with the axes of the input, and with one channel
+	 *         per class.
+	 * @throws IOException
+	 *             if the ilastik project cannot be read.
+	 */
+	public < T extends RealType< T > & NativeType< T > > ImgPlus< FloatType > predict(
+			ImgPlus< T > input,
+			String projectFilePath,
+			int numThreads,
+			PredictionStorage storage ) throws IOException;
+
+	/**
+	 * Reads the parameters specific to this backend from the detector
+	 * settings. Called once after the backend is created. The default
+	 * implementation does nothing.
+	 * 
+	 * @param settings
+	 *            the detector settings.
+	 */
+	public default void configure( final Map< String, Object > settings )
+	{}
+
+	/**
+	 * Prepares this backend to classify images with the specified project, so
+	 * that the first call to {@link #predict(ImgPlus, String, int, PredictionStorage)} starts
+	 * from a warm state. Implementations must return promptly when the
+	 * calling thread is interrupted. The default implementation does nothing.
+	 * 
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @throws IOException
+	 *             if the ilastik project cannot be read.
+	 */
+	public default void warmUp( final String projectFilePath ) throws IOException
+	{}
+
+	/**
+	 * Stops the predictions in progress that do not stop when their thread is
+	 * interrupted, such as external processes. Called from another thread
+	 * than the one running the prediction. The default implementation does
+	 * nothing.
+	 */
+	public default void cancel()
+	{}
+
+	/**
+	 * Estimates the memory this backend needs in the JVM on top of the input
+	 * and of the probabilities, independently of the number of frames.
+	 * The default implementation returns 0.
+	 * 
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @param nDims
+	 *            the number of spatial dimensions of a frame.
+	 * @param pixelsPerFrame
+	 *            the number of pixels of a frame.
+	 * @param nChannels
+	 *            the number of channels of the input.
+	 * @return the memory in bytes.
+	 * @throws IOException
+	 *             if the ilastik project cannot be read.
+	 */
+	public default long estimateOverhead( final String projectFilePath, final int nDims, final long pixelsPerFrame, final int nChannels ) throws IOException
+	{
+		return 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if this backend runs the inference in a
+	 * separate process, so that the calling thread mostly waits for it. The
+	 * default implementation returns <code>false</code>.
+	 * 
+	 * @return whether the inference runs outside of the JVM.
+	 */
+	public default boolean isExternal()
+	{
+		return false;
+	}
+
+	/**
+	 * Returns <code>true</code> if the inference runs on this machine within
+	 * the RAM budget of the ilastik options, which then bounds the number of
+	 * frames sent at once. The default implementation returns
+	 * {@link #isExternal()}.
+	 * 
+	 * @return whether the ilastik RAM budget applies.
+	 */
+	public default boolean usesIlastikRamBudget()
+	{
+		return isExternal();
+	}
+
+	/**
+	 * Returns a short name for this backend, for display.
+	 * 
+	 * @return the name.
+	 */
+	public String getName();
+}
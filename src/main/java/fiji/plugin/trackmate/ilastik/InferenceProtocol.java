@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * The messages exchanged by the {@link SocketBackend} and the
+ * {@link InferenceServer}.
+ * <p>
+ * A request starts with {@link #MAGIC}, {@link #VERSION} and a command. A
+ * {@link #PREDICT} request is followed by the project path, the number of
+ * threads and the input image. A {@link #WARM_UP} request is followed by the
+ * project path. The response is {@link #STATUS_OK}, followed by the
+ * probabilities for a {@link #PREDICT} request, or {@link #STATUS_ERROR}
+ * followed by the error message.
+ * <p>
+ * An image is sent as its number of dimensions, the label and size of each
+ * axis, its pixel type, then its pixel values in flat iteration order, X
+ * varying fastest. Input images keep their pixel type if it is unsigned 8-bit
+ * or 16-bit, so that they are not inflated to floats on the wire. Other
+ * inputs, and the probabilities, are sent as 32-bit floats. All numbers are
+ * big-endian.
+ */
+class InferenceProtocol
+{
+
+	static final int MAGIC = 0x494c544b; // "ILTK"
+
+	static final int VERSION = 2;
+
+	static final int PREDICT = 1;
+
+	static final int WARM_UP = 2;
+
+	static final int STATUS_OK = 0;
+
+	static final int STATUS_ERROR = 1;
+
+	static final int UINT8 = 0;
+
+	static final int UINT16 = 1;
+
+	static final int FLOAT32 = 2;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private InferenceProtocol()
+	{}
+
+	static void writeHeader( final DataOutputStream out, final int command, final String projectFilePath ) throws IOException
+	{
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeInt( command );
+		out.writeUTF( projectFilePath );
+	}
+
+	/**
+	 * Reads the header of a request.
+	 * 
+	 * @return the command.
+	 */
+	static int readHeader( final DataInputStream in ) throws IOException
+	{
+		if ( in.readInt() != MAGIC )
+			throw new IOException( "Not an inference request." );
+		final int version = in.readInt();
+		if ( version != VERSION )
+			throw new IOException( "Unsupported protocol version: " + version + ". Expected " + VERSION + "." );
+		return in.readInt();
+	}
+
+	/**
+	 * Writes an image with its own pixel type. Unsigned 8-bit and 16-bit
+	 * pixels are sent as they are, other types as 32-bit floats.
+	 */
+	static < T extends RealType< T > > void writeImage( final DataOutputStream out, final ImgPlus< T > img ) throws IOException
+	{
+		out.writeInt( img.numDimensions() );
+		for ( int d = 0; d < img.numDimensions(); d++ )
+		{
+			out.writeUTF( img.axis( d ).type().getLabel() );
+			out.writeLong( img.dimension( d ) );
+		}
+		final int type = pixelType( img.firstElement() );
+		out.writeInt( type );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE );
+		for ( final T p : Views.flatIterable( img ) )
+		{
+			if ( !buffer.hasRemaining() )
+			{
+				out.write( buffer.array(), 0, buffer.position() );
+				buffer.clear();
+			}
+			if ( type == UINT8 )
+				buffer.put( ( byte ) ( int ) p.getRealFloat() );
+			else if ( type == UINT16 )
+				buffer.putShort( ( short ) ( int ) p.getRealFloat() );
+			else
+				buffer.putFloat( p.getRealFloat() );
+		}
+		out.write( buffer.array(), 0, buffer.position() );
+	}
+
+	/**
+	 * Reads an image on the heap, with the pixel type it was sent with.
+	 */
+	static ImgPlus< ? > readImage( final DataInputStream in ) throws IOException
+	{
+		final Header header = readImageHeader( in );
+		if ( header.type == UINT8 )
+			return readPixels( in, header, ArrayImgs.unsignedBytes( header.dims ) );
+		if ( header.type == UINT16 )
+			return readPixels( in, header, ArrayImgs.unsignedShorts( header.dims ) );
+		return readPixels( in, header, ArrayImgs.floats( header.dims ) );
+	}
+
+	/**
+	 * Reads probabilities, sent as 32-bit floats, in the specified storage.
+	 */
+	static ImgPlus< FloatType > readProbabilities( final DataInputStream in, final PredictionStorage storage ) throws IOException
+	{
+		final Header header = readImageHeader( in );
+		if ( header.type != FLOAT32 )
+			throw new IOException( "Expected probabilities as 32-bit floats, got pixel type " + header.type + "." );
+		return readPixels( in, header, storage.floats( header.dims ) );
+	}
+
+	private static int pixelType( final RealType< ? > type )
+	{
+		if ( type instanceof UnsignedByteType )
+			return UINT8;
+		if ( type instanceof UnsignedShortType )
+			return UINT16;
+		return FLOAT32;
+	}
+
+	private static Header readImageHeader( final DataInputStream in ) throws IOException
+	{
+		final int n = in.readInt();
+		final Header header = new Header( n );
+		for ( int d = 0; d < n; d++ )
+		{
+			header.axes[ d ] = Axes.get( in.readUTF() );
+			header.dims[ d ] = in.readLong();
+		}
+		header.type = in.readInt();
+		if ( header.type != UINT8 && header.type != UINT16 && header.type != FLOAT32 )
+			throw new IOException( "Unknown pixel type: " + header.type + "." );
+		return header;
+	}
+
+	private static < R extends RealType< R > > ImgPlus< R > readPixels( final DataInputStream in, final Header header, final Img< R > img ) throws IOException
+	{
+		final int bytesPerPixel = header.type == UINT8 ? 1 : header.type == UINT16 ? 2 : 4;
+		final Cursor< R > cursor = Views.flatIterable( img ).cursor();
+		final ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE );
+		long remaining = Intervals.numElements( header.dims );
+		while ( remaining > 0 )
+		{
+			final int n = ( int ) Math.min( remaining, BUFFER_SIZE / bytesPerPixel );
+			in.readFully( buffer.array(), 0, bytesPerPixel * n );
+			buffer.clear();
+			for ( int i = 0; i < n; i++ )
+			{
+				if ( header.type == UINT8 )
+					cursor.next().setReal( buffer.get() & 0xff );
+				else if ( header.type == UINT16 )
+					cursor.next().setReal( buffer.getShort() & 0xffff );
+				else
+					cursor.next().setReal( buffer.getFloat() );
+			}
+			remaining -= n;
+		}
+		return new ImgPlus<>( img, "image", header.axes );
+	}
+
+	private static final class Header
+	{
+
+		private final AxisType[] axes;
+
+		private final long[] dims;
+
+		private int type;
+
+		private Header( final int n )
+		{
+			this.axes = new AxisType[ n ];
+			this.dims = new long[ n ];
+		}
+	}
+}
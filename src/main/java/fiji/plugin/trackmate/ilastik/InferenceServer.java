@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiji.plugin.trackmate.Logger;
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Serves the requests of {@link SocketBackend}s with another backend, for
+ * instance a {@link JavaBackend} kept warm between requests, or a
+ * {@link ProcessBackend} on a machine where ilastik is installed.
+ * <p>
+ * By default the server only listens on the loopback interface, so that it
+ * can only be reached from the same machine. Command line usage:
+ * 
+ * <pre>
+ * InferenceServer [--port=9753] [--backend=Java] [--bind=ADDRESS]
+ * </pre>
+ */
+public class InferenceServer implements Closeable
+{
+
+	private final InferenceBackend backend;
+
+	private final ServerSocket serverSocket;
+
+	private final ExecutorService executor;
+
+	private final Logger logger;
+
+	/**
+	 * Starts a server listening on the loopback interface.
+	 * 
+	 * @param backend
+	 *            the backend that computes the probabilities.
+	 * @param port
+	 *            the port to listen on, or 0 to pick a free port.
+	 * @param logger
+	 *            the logger to report requests to.
+	 * @throws IOException
+	 *             if the port cannot be opened.
+	 */
+	public InferenceServer( final InferenceBackend backend, final int port, final Logger logger ) throws IOException
+	{
+		this( backend, port, InetAddress.getLoopbackAddress(), logger );
+	}
+
+	/**
+	 * Starts a server.
+	 * 
+	 * @param backend
+	 *            the backend that computes the probabilities.
+	 * @param port
+	 *            the port to listen on, or 0 to pick a free port.
+	 * @param bindAddress
+	 *            the address to listen on.
+	 * @param logger
+	 *            the logger to report requests to.
+	 * @throws IOException
+	 *             if the port cannot be opened.
+	 */
+	public InferenceServer( final InferenceBackend backend, final int port, final InetAddress bindAddress, final Logger logger ) throws IOException
+	{
+		this.backend = backend;
+		this.logger = logger;
+		this.serverSocket = new ServerSocket( port, 50, bindAddress );
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newCachedThreadPool( r -> {
+			final Thread thread = new Thread( r, "TrackMate ilastik inference server thread " + count.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		executor.execute( this::acceptLoop );
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 * 
+	 * @return the port.
+	 */
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting connections. Requests in process run to completion.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		serverSocket.close();
+		executor.shutdown();
+	}
+
+	private void acceptLoop()
+	{
+		while ( !serverSocket.isClosed() )
+		{
+			try
+			{
+				final Socket socket = serverSocket.accept();
+				executor.execute( () -> serve( socket ) );
+			}
+			catch ( final SocketException e )
+			{
+				// Closed.
+				return;
+			}
+			catch ( final IOException e )
+			{
+				logger.error( "Inference server: " + e.getMessage() + "\n" );
+			}
+		}
+	}
+
+	private void serve( final Socket socket )
+	{
+		try (Socket s = socket)
+		{
+			s.setTcpNoDelay( true );
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+			try
+			{
+				final int command = InferenceProtocol.readHeader( in );
+				final String projectFilePath = in.readUTF();
+				if ( command == InferenceProtocol.WARM_UP )
+				{
+					backend.warmUp( projectFilePath );
+					out.writeInt( InferenceProtocol.STATUS_OK );
+				}
+				else if ( command == InferenceProtocol.PREDICT )
+				{
+					final int numThreads = in.readInt();
+					final ImgPlus< ? > input = InferenceProtocol.readImage( in );
+					final long start = System.currentTimeMillis();
+					final ImgPlus< FloatType > output = predict( input, projectFilePath, numThreads );
+					out.writeInt( InferenceProtocol.STATUS_OK );
+					InferenceProtocol.writeImage( out, output );
+					logger.log( String.format( Locale.US, "Inference server: classified %d pixels in %.1f s.\n",
+							Intervals.numElements( input ), ( System.currentTimeMillis() - start ) / 1000. ) );
+				}
+				else
+				{
+					throw new IOException( "Unknown command: " + command + "." );
+				}
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				out.writeInt( InferenceProtocol.STATUS_ERROR );
+				out.writeUTF( String.valueOf( e.getMessage() ) );
+			}
+			out.flush();
+		}
+		catch ( final IOException e )
+		{
+			// The client went away.
+			logger.error( "Inference server: " + e.getMessage() + "\n" );
+		}
+	}
+
+	/**
+	 * The input has the pixel type it was sent with, which the protocol
+	 * limits to real native types.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private ImgPlus< FloatType > predict( final ImgPlus< ? > input, final String projectFilePath, final int numThreads ) throws IOException
+	{
+		return backend.predict( ( ImgPlus ) input, projectFilePath, numThreads, PredictionStorage.HEAP );
+	}
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		int port = SocketBackend.DEFAULT_PORT;
+		String backendName = JavaBackend.NAME;
+		InetAddress bindAddress = InetAddress.getLoopbackAddress();
+		for ( final String arg : args )
+		{
+			if ( arg.startsWith( "--port=" ) )
+				port = Integer.parseInt( arg.substring( "--port=".length() ) );
+			else if ( arg.startsWith( "--backend=" ) )
+				backendName = arg.substring( "--backend=".length() );
+			else if ( arg.startsWith( "--bind=" ) )
+				bindAddress = InetAddress.getByName( arg.substring( "--bind=".length() ) );
+			else
+			{
+				System.err.println( "Usage: InferenceServer [--port=" + SocketBackend.DEFAULT_PORT + "] [--backend=" + JavaBackend.NAME + "] [--bind=ADDRESS]" );
+				System.exit( 1 );
+			}
+		}
+		if ( SocketBackend.NAME.equals( backendName ) )
+			throw new IllegalArgumentException( "The server cannot forward to another server." );
+
+		final InferenceServer server = new InferenceServer( IlastikDetectorFactory.getBackend( backendName ), port, bindAddress, Logger.DEFAULT_LOGGER );
+		Logger.DEFAULT_LOGGER.log( "Inference server listening on " + bindAddress.getHostAddress() + ":" + server.getPort()
+				+ " with the " + backendName + " backend.\n" );
+		Thread.currentThread().join();
+	}
+}
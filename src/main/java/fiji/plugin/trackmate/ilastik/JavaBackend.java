@@ -0,0 +1,257 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_FEATURE_CACHE_MB;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_FEATURE_CACHE_OFF_HEAP_MB;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_FEATURE_CACHE_MB;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_FEATURE_CACHE_OFF_HEAP_MB;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.scijava.Priority;
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.ilastik.classifier.FeatureCache;
+import fiji.plugin.trackmate.ilastik.classifier.PixelClassifier;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Computes the class probabilities in the JVM, without running ilastik.
+ * <p>
+ * The feature selection and the random forest are read from the ilastik
+ * project file, the features are computed with separable convolutions and
+ * the forest is evaluated on flattened trees. See the
+ * {@link fiji.plugin.trackmate.ilastik.classifier} package. The results are
+ * close to but not identical with ilastik's; use
+ * {@link JavaBackendValidation} to check them on your data.
+ * <p>
+ * Classifiers are read once per project file and kept in memory until the
+ * file is modified. Features are stored in a {@link FeatureCache}, so that
+ * they are not computed again for frames that were already classified. Its
+ * budget is read from the detector settings.
+ */
+@Plugin( type = InferenceBackend.class, name = JavaBackend.NAME, priority = Priority.NORMAL )
+public class JavaBackend implements InferenceBackend
+{
+
+	public static final String NAME = "Java";
+
+	private static final Map< String, CachedClassifier > classifiers = new HashMap<>();
+
+	private final FeatureCache cache;
+
+	/**
+	 * Creates a backend that uses the shared feature cache.
+	 */
+	public JavaBackend()
+	{
+		this( FeatureCache.getInstance() );
+	}
+
+	/**
+	 * Creates a backend that uses the specified feature cache.
+	 * 
+	 * @param cache
+	 *            the feature cache, or <code>null</code> to compute all the
+	 *            features every time.
+	 */
+	public JavaBackend( final FeatureCache cache )
+	{
+		this.cache = cache;
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > ImgPlus< FloatType > predict(
+			final ImgPlus< T > input,
+			final String projectFilePath,
+			final int numThreads,
+			final PredictionStorage storage ) throws IOException
+	{
+		final PixelClassifier classifier = getClassifier( projectFilePath );
+		final int nClasses = classifier.numClasses();
+
+		final int xDim = input.dimensionIndex( Axes.X );
+		final int yDim = input.dimensionIndex( Axes.Y );
+		final int zDim = input.dimensionIndex( Axes.Z );
+		final int cDim = input.dimensionIndex( Axes.CHANNEL );
+		final int tDim = input.dimensionIndex( Axes.TIME );
+		final int nChannels = cDim < 0 ? 1 : ( int ) input.dimension( cDim );
+		final int nFrames = tDim < 0 ? 1 : ( int ) input.dimension( tDim );
+
+		final int nSpatialDims = zDim < 0 ? 2 : 3;
+		final int[] dims = new int[ nSpatialDims ];
+		dims[ 0 ] = ( int ) input.dimension( xDim );
+		dims[ 1 ] = ( int ) input.dimension( yDim );
+		if ( zDim >= 0 )
+			dims[ 2 ] = ( int ) input.dimension( zDim );
+		long nPixels = 1;
+		for ( final int d : dims )
+			nPixels *= d;
+		if ( nPixels > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Frames are too large for the Java backend: " + nPixels + " pixels." );
+
+		/*
+		 * Output: X, Y, Z (if any), classes, T (if any).
+		 */
+
+		final int nOutDims = nSpatialDims + 1 + ( tDim < 0 ? 0 : 1 );
+		final long[] outDims = new long[ nOutDims ];
+		final AxisType[] outAxes = new AxisType[ nOutDims ];
+		final AxisType[] spatialAxes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		for ( int d = 0; d < nSpatialDims; d++ )
+		{
+			outDims[ d ] = dims[ d ];
+			outAxes[ d ] = spatialAxes[ d ];
+		}
+		outDims[ nSpatialDims ] = nClasses;
+		outAxes[ nSpatialDims ] = Axes.CHANNEL;
+		if ( tDim >= 0 )
+		{
+			outDims[ nOutDims - 1 ] = nFrames;
+			outAxes[ nOutDims - 1 ] = Axes.TIME;
+		}
+		final Img< FloatType > out = storage.floats( outDims );
+
+		final float[][] channels = new float[ nChannels ][];
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final RandomAccessibleInterval< T > frame = tDim < 0 ? input : Views.hyperSlice( input, tDim, t );
+			final int cDimFrame = ( tDim >= 0 && cDim > tDim ) ? cDim - 1 : cDim;
+			for ( int c = 0; c < nChannels; c++ )
+			{
+				final RandomAccessibleInterval< T > channel = cDim < 0 ? frame : Views.hyperSlice( frame, cDimFrame, c );
+				channels[ c ] = toFloatArray( channel, ( int ) nPixels );
+			}
+
+			final float[][] probabilities = classifier.predict( channels, dims, numThreads, cache );
+
+			final RandomAccessibleInterval< FloatType > outFrame = tDim < 0 ? out : Views.hyperSlice( out, nOutDims - 1, t );
+			for ( int k = 0; k < nClasses; k++ )
+			{
+				final float[] proba = probabilities[ k ];
+				final Cursor< FloatType > cursor = Views.flatIterable( Views.hyperSlice( outFrame, nSpatialDims, k ) ).cursor();
+				int i = 0;
+				while ( cursor.hasNext() )
+					cursor.next().set( proba[ i++ ] );
+			}
+		}
+		return new ImgPlus<>( out, input.getName() + "-probabilities", outAxes );
+	}
+
+	/**
+	 * Sets the budgets of the feature cache.
+	 */
+	@Override
+	public void configure( final Map< String, Object > settings )
+	{
+		if ( cache == null )
+			return;
+		final long heapMb = ( Integer ) settings.getOrDefault( KEY_FEATURE_CACHE_MB, DEFAULT_FEATURE_CACHE_MB );
+		final long offHeapMb = ( Integer ) settings.getOrDefault( KEY_FEATURE_CACHE_OFF_HEAP_MB, DEFAULT_FEATURE_CACHE_OFF_HEAP_MB );
+		cache.setMaxBytes( heapMb << 20, offHeapMb << 20 );
+	}
+
+	/**
+	 * Reads the classifier of the project, so that it is in the classifier
+	 * cache for the first prediction.
+	 */
+	@Override
+	public void warmUp( final String projectFilePath ) throws IOException
+	{
+		getClassifier( projectFilePath );
+	}
+
+	/**
+	 * The features of one frame, computed and kept in memory before the
+	 * forest is evaluated.
+	 */
+	@Override
+	public long estimateOverhead( final String projectFilePath, final int nDims, final long pixelsPerFrame, final int nChannels ) throws IOException
+	{
+		final int nFeatures = getClassifier( projectFilePath ).getFeatureSelection().numChannels( nDims ) * nChannels;
+		return ( long ) nFeatures * pixelsPerFrame * Float.BYTES;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	private static < T extends RealType< T > > float[] toFloatArray( final RandomAccessibleInterval< T > rai, final int nPixels )
+	{
+		final float[] data = new float[ nPixels ];
+		int i = 0;
+		for ( final T p : Views.flatIterable( rai ) )
+			data[ i++ ] = p.getRealFloat();
+		return data;
+	}
+
+	/**
+	 * Returns the classifier of the specified ilastik project, read from the
+	 * file if it was not read before or if the file changed since.
+	 * 
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @return the classifier.
+	 * @throws IOException
+	 *             if the project cannot be read.
+	 */
+	public static synchronized PixelClassifier getClassifier( final String projectFilePath ) throws IOException
+	{
+		final long lastModified = new File( projectFilePath ).lastModified();
+		final CachedClassifier cached = classifiers.get( projectFilePath );
+		if ( cached != null && cached.lastModified == lastModified )
+			return cached.classifier;
+
+		final PixelClassifier classifier = PixelClassifier.read( projectFilePath );
+		classifiers.put( projectFilePath, new CachedClassifier( classifier, lastModified ) );
+		return classifier;
+	}
+
+	private static final class CachedClassifier
+	{
+
+		private final PixelClassifier classifier;
+
+		private final long lastModified;
+
+		private CachedClassifier( final PixelClassifier classifier, final long lastModified )
+		{
+			this.classifier = classifier;
+			this.lastModified = lastModified;
+		}
+	}
+}
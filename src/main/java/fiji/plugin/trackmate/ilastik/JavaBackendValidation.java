@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.ImgView;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the class probabilities computed by the {@link JavaBackend} to
+ * reference probabilities computed by ilastik, on a sample frame.
+ */
+public class JavaBackendValidation
+{
+
+	private JavaBackendValidation()
+	{}
+
+	/**
+	 * Computes the class probabilities of the first frame of the specified
+	 * interval with ilastik and with the Java backend, and compares them.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval (space and time) to operate on. Only the first
+	 *            time-point of the interval is used.
+	 * @param channel
+	 *            the channel to operate on when a model trained on a single
+	 *            channel is specified.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classId
+	 *            the index of the class to compare.
+	 * @param probaThreshold
+	 *            the threshold on the probability used to extract objects.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new {@link Report}.
+	 * @throws IOException
+	 *             if the ilastik file cannot be found.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Report validate(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final int numThreads ) throws IOException
+	{
+		// Restrict to the first time-point.
+		final int n = interval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		interval.min( min );
+		interval.max( max );
+		if ( n > 2 )
+			max[ n - 1 ] = min[ n - 1 ];
+		final ImgPlus< T > cropped = IlastikRunner.crop( img, new FinalInterval( min, max ), channel, projectFilePath );
+
+		final long startReference = System.currentTimeMillis();
+		final ImgPlus< FloatType > reference = new ProcessBackend().predict( cropped, projectFilePath, numThreads, PredictionStorage.HEAP );
+		final long endReference = System.currentTimeMillis();
+		final ImgPlus< FloatType > candidate = new JavaBackend( null ).predict( cropped, projectFilePath, numThreads, PredictionStorage.HEAP );
+		final long endCandidate = System.currentTimeMillis();
+
+		final Report report = compare(
+				classSlice( reference, classId ),
+				classSlice( candidate, classId ),
+				probaThreshold );
+		report.timeReference = endReference - startReference;
+		report.timeJava = endCandidate - endReference;
+		return report;
+	}
+
+	/**
+	 * Compares two probability maps of the same class.
+	 * 
+	 * @param reference
+	 *            the probabilities computed by ilastik.
+	 * @param candidate
+	 *            the probabilities computed by the Java backend.
+	 * @param probaThreshold
+	 *            the threshold on the probability used to extract objects.
+	 * @return a new {@link Report}.
+	 */
+	public static Report compare(
+			final RandomAccessibleInterval< FloatType > reference,
+			final RandomAccessibleInterval< FloatType > candidate,
+			final double probaThreshold )
+	{
+		if ( !Intervals.equalDimensions( reference, candidate ) )
+			throw new IllegalArgumentException( "Probability maps have different dimensions." );
+
+		final Report report = new Report();
+		final Cursor< FloatType > cRef = Views.flatIterable( reference ).cursor();
+		final Cursor< FloatType > cCand = Views.flatIterable( candidate ).cursor();
+		double sum = 0.;
+		while ( cRef.hasNext() )
+		{
+			final double r = cRef.next().getRealDouble();
+			final double c = cCand.next().getRealDouble();
+			final double diff = Math.abs( r - c );
+			sum += diff;
+			report.maxError = Math.max( report.maxError, diff );
+			if ( ( r > probaThreshold ) != ( c > probaThreshold ) )
+				report.nFlipped++;
+			report.nPixels++;
+		}
+		report.meanError = sum / Math.max( 1, report.nPixels );
+		return report;
+	}
+
+	private static RandomAccessibleInterval< FloatType > classSlice( final ImgPlus< FloatType > proba, final long classId )
+	{
+		final ImgPlus< FloatType > zeroMin = new ImgPlus<>( ImgView.wrap( Views.zeroMin( proba ), proba.factory() ) );
+		return Views.hyperSlice( zeroMin, proba.dimensionIndex( Axes.CHANNEL ), classId );
+	}
+
+	/**
+	 * The differences between the probabilities computed by ilastik and by
+	 * the Java backend.
+	 */
+	public static class Report
+	{
+
+		public long nPixels;
+
+		/**
+		 * The number of pixels that are on different sides of the threshold.
+		 */
+		public long nFlipped;
+
+		public double meanError;
+
+		public double maxError;
+
+		public long timeReference;
+
+		public long timeJava;
+
+		/**
+		 * Returns <code>true</code> if the probabilities differ by less than
+		 * the specified tolerance everywhere.
+		 * 
+		 * @param tolerance
+		 *            the maximal difference allowed.
+		 * @return whether the Java backend matches the reference.
+		 */
+		public boolean isWithin( final double tolerance )
+		{
+			return maxError <= tolerance;
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder str = new StringBuilder();
+			str.append( String.format( Locale.US, "Probability error: mean %.3g, max %.3g.\n", meanError, maxError ) );
+			str.append( String.format( Locale.US, "Pixels on the other side of the threshold: %d out of %d (%.2f%%).\n",
+					nFlipped, nPixels, 100. * nFlipped / Math.max( 1, nPixels ) ) );
+			if ( timeReference > 0 )
+				str.append( String.format( Locale.US, "Processing time: ilastik %d ms, Java %d ms.\n", timeReference, timeJava ) );
+			return str.toString();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Restricts the inference of most frames to the neighbourhood of the objects
+ * found in the previous frame, for movies with a few objects moving slowly
+ * in a large field.
+ * <p>
+ * Every {@link #interval}-th frame is a keyframe and is classified whole, so
+ * that objects that appear are found there. The frames in between are only
+ * classified around the objects of the keyframe before them, in their
+ * bounding box dilated by the maximal displacement of an object between two
+ * frames times the distance to the keyframe. All the frames between two
+ * keyframes are sent to the backend in a single call. An object that appears
+ * between two keyframes is found at the next keyframe.
+ */
+public class Keyframes
+{
+
+	/**
+	 * The number of frames between two keyframes.
+	 */
+	public final int interval;
+
+	/**
+	 * The maximal displacement of an object between two frames, in pixels.
+	 */
+	public final double maxDisplacement;
+
+	public Keyframes( final int interval, final double maxDisplacement )
+	{
+		if ( interval < 2 )
+			throw new IllegalArgumentException( "The keyframe interval must be at least 2. Got " + interval + "." );
+		if ( maxDisplacement < 0. )
+			throw new IllegalArgumentException( "The maximal displacement must be positive. Got " + maxDisplacement + "." );
+		this.interval = interval;
+		this.maxDisplacement = maxDisplacement;
+	}
+
+	/**
+	 * Returns <code>true</code> if the frame at the specified position in
+	 * the detection interval must be classified whole.
+	 * 
+	 * @param index
+	 *            the index of the frame, counted from the first frame of the
+	 *            detection.
+	 * @return whether the frame is a keyframe.
+	 */
+	public boolean isKeyframe( final long index )
+	{
+		return index % interval == 0;
+	}
+
+	/**
+	 * Returns the regions where to look for the objects of the frames that
+	 * follow a keyframe.
+	 * 
+	 * @param spots
+	 *            the spots found in the keyframe.
+	 * @param calibration
+	 *            the pixel sizes in X and Y.
+	 * @param keyframe
+	 *            the keyframe.
+	 * @param first
+	 *            the first frame to look in.
+	 * @param last
+	 *            the last frame to look in.
+	 * @return a new list of X, Y, T intervals, in pixels and frames of the
+	 *         source image, one per spot and per frame.
+	 */
+	public List< Interval > regions( final Iterable< Spot > spots, final double[] calibration, final long keyframe, final long first, final long last )
+	{
+		final List< Interval > regions = new ArrayList<>();
+		for ( final Spot spot : spots )
+		{
+			final double[] extent = extent( spot );
+			for ( long t = first; t <= last; t++ )
+			{
+				final long[] min = new long[] { 0, 0, t };
+				final long[] max = new long[] { 0, 0, t };
+				for ( int d = 0; d < 2; d++ )
+				{
+					final double center = spot.getDoublePosition( d ) / calibration[ d ];
+					final double radius = extent[ d ] / calibration[ d ] + maxDisplacement * ( t - keyframe );
+					min[ d ] = ( long ) Math.floor( center - radius );
+					max[ d ] = ( long ) Math.ceil( center + radius );
+				}
+				regions.add( new FinalInterval( min, max ) );
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * The half-size of a spot in X and Y, in physical units: that of its
+	 * contour if it has one, its radius otherwise. The contour of a
+	 * {@link LazyContourSpot} is not traced: the size of its bounding box is
+	 * used instead, which is larger.
+	 */
+	private static double[] extent( final Spot spot )
+	{
+		if ( spot instanceof LazyContourSpot )
+		{
+			final LazyContourSpot lazy = ( LazyContourSpot ) spot;
+			return new double[] { lazy.boundsSize( 0 ), lazy.boundsSize( 1 ) };
+		}
+		final SpotRoi roi = spot.getRoi();
+		if ( roi == null || roi.x == null || roi.x.length == 0 )
+		{
+			final Double radius = spot.getFeature( Spot.RADIUS );
+			final double r = radius == null ? 0. : radius.doubleValue();
+			return new double[] { r, r };
+		}
+		final double[] extent = new double[ 2 ];
+		for ( int i = 0; i < roi.x.length; i++ )
+		{
+			extent[ 0 ] = Math.max( extent[ 0 ], Math.abs( roi.x[ i ] ) );
+			extent[ 1 ] = Math.max( extent[ 1 ], Math.abs( roi.y[ i ] ) );
+		}
+		return extent;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "every " + interval + " frames, max displacement " + maxDisplacement + " pixels";
+	}
+}
@@ -0,0 +1,379 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ch.systemsx.cisd.base.mdarray.MDIntArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Writes the label image of the objects found in each frame to an HDF5 file,
+ * while the detection runs.
+ * <p>
+ * When the spots are made from a labeling of the frame, its labels are
+ * written as they are. Otherwise the frame is labeled from the probability
+ * map the spots are extracted from, on a thread of its own, while the spots
+ * are created. The objects are the same as the spots: pixels strictly above
+ * the threshold, 4-connected in 2D and 6-connected in 3D. Labels are numbered from 1 in
+ * each frame, 0 is the background. At most one frame waits to be written,
+ * so the memory used does not grow with the movie.
+ * <p>
+ * The labels are stored in the dataset {@value #DATASET}, of 32-bit
+ * integers, with dimensions (T, Z, Y, X) or (T, Y, X) and one chunk per
+ * plane, compressed. The labels are in the pixels of the probability map:
+ * relative to the detection interval, whose top-left corner is stored in the
+ * {@value #ORIGIN_ATTRIBUTE} attribute, and binned if objects are extracted
+ * at low resolution, with the factors of the {@value #BINNING_ATTRIBUTE}
+ * attribute. An existing file is overwritten.
+ */
+public class LabelSink implements Closeable
+{
+
+	public static final String DATASET = "/labels";
+
+	public static final String AXES_ATTRIBUTE = "axes";
+
+	public static final String ORIGIN_ATTRIBUTE = "origin";
+
+	public static final String BINNING_ATTRIBUTE = "binning";
+
+	private final File file;
+
+	private final int nFrames;
+
+	private final ExecutorService executor;
+
+	private IHDF5Writer writer;
+
+	private Future< ? > pending;
+
+	private Exception error;
+
+	/**
+	 * Creates a sink for a movie.
+	 * 
+	 * @param file
+	 *            the HDF5 file to write.
+	 * @param nFrames
+	 *            the number of frames of the movie. Frames that are not
+	 *            written are left to 0.
+	 */
+	public LabelSink( final File file, final int nFrames )
+	{
+		this.file = file;
+		this.nFrames = Math.max( 1, nFrames );
+		this.executor = Executors.newSingleThreadExecutor( r -> {
+			final Thread thread = new Thread( r, "TrackMate ilastik label export thread" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Labels and writes one frame in the background. Waits for the previous
+	 * frame to be written first. Errors are reported by {@link #close()}.
+	 * 
+	 * @param frame
+	 *            the index of the frame in the movie.
+	 * @param proba
+	 *            the probability map of the frame, 2D or 3D, zero-min. It
+	 *            must not be modified until the next call to this method or
+	 *            to {@link #close()}.
+	 * @param threshold
+	 *            the probability above which a pixel belongs to an object.
+	 * @param origin
+	 *            the position of the probability map top-left corner in the
+	 *            source image.
+	 * @param binning
+	 *            the binning factors of the probability map.
+	 * @param numThreads
+	 *            the number of threads to label the frame with.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 */
+	public synchronized < R extends RealType< R > > void write(
+			final int frame,
+			final RandomAccessibleInterval< R > proba,
+			final double threshold,
+			final long[] origin,
+			final long[] binning,
+			final int numThreads )
+	{
+		await();
+		if ( error != null )
+			return;
+		pending = executor.submit( () -> {
+			writeFrame( frame, proba, threshold, origin, binning, numThreads );
+			return null;
+		} );
+	}
+
+	/**
+	 * Writes the labels of one frame in the background. Waits for the
+	 * previous frame to be written first. Errors are reported by
+	 * {@link #close()}.
+	 * 
+	 * @param frame
+	 *            the index of the frame in the movie.
+	 * @param labels
+	 *            the labels of the frame, in raster order, 0 for the
+	 *            background. They must not be modified afterwards.
+	 * @param dims
+	 *            the dimensions of the frame.
+	 * @param origin
+	 *            the position of the frame top-left corner in the source
+	 *            image.
+	 * @param binning
+	 *            the binning factors of the frame.
+	 */
+	public synchronized void write(
+			final int frame,
+			final int[] labels,
+			final long[] dims,
+			final long[] origin,
+			final long[] binning )
+	{
+		await();
+		if ( error != null )
+			return;
+		pending = executor.submit( () -> {
+			writeFrame( frame, labels, dims, origin, binning );
+			return null;
+		} );
+	}
+
+	/**
+	 * Waits for the last frame to be written and closes the file.
+	 * 
+	 * @throws IOException
+	 *             if a frame could not be written.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		await();
+		executor.shutdown();
+		try
+		{
+			if ( writer != null )
+				writer.close();
+		}
+		catch ( final RuntimeException e )
+		{
+			if ( error == null )
+				error = e;
+		}
+		writer = null;
+		if ( error != null )
+			throw new IOException( "Could not write the label image " + file + ": " + error.getMessage(), error );
+	}
+
+	private void await()
+	{
+		if ( pending == null )
+			return;
+		try
+		{
+			pending.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			pending.cancel( true );
+			error = e;
+		}
+		catch ( final ExecutionException e )
+		{
+			error = ( e.getCause() instanceof Exception ) ? ( Exception ) e.getCause() : e;
+		}
+		pending = null;
+	}
+
+	/**
+	 * Labels the frame and writes it.
+	 */
+	private < R extends RealType< R > > void writeFrame(
+			final int frame,
+			final RandomAccessibleInterval< R > proba,
+			final double threshold,
+			final long[] origin,
+			final long[] binning,
+			final int numThreads )
+	{
+		writeFrame( frame, label( proba, threshold, numThreads ), Intervals.dimensionsAsLongArray( proba ), origin, binning );
+	}
+
+	/**
+	 * Writes the labels of a frame plane by plane. HDF5 dimensions are in C
+	 * order, the reverse of ImgLib2.
+	 */
+	private void writeFrame(
+			final int frame,
+			final int[] labels,
+			final long[] frameDims,
+			final long[] origin,
+			final long[] binning )
+	{
+		final int n = frameDims.length;
+		final int width = ( int ) frameDims[ 0 ];
+		final int height = ( int ) frameDims[ 1 ];
+		final int depth = n > 2 ? ( int ) frameDims[ 2 ] : 1;
+
+		final long[] dims = new long[ n + 1 ];
+		final int[] blockDims = new int[ n + 1 ];
+		dims[ 0 ] = nFrames;
+		for ( int d = 0; d < n; d++ )
+			dims[ n - d ] = frameDims[ d ];
+		for ( int i = 0; i < n - 1; i++ )
+			blockDims[ i ] = 1;
+		blockDims[ n - 1 ] = height;
+		blockDims[ n ] = width;
+
+		if ( writer == null )
+		{
+			file.delete();
+			writer = HDF5Factory.open( file );
+			writer.int32().createMDArray( DATASET, dims, blockDims, HDF5IntStorageFeatures.INT_DEFLATE );
+			writer.string().setAttr( DATASET, AXES_ATTRIBUTE, n > 2 ? "T,Z,Y,X" : "T,Y,X" );
+			writer.int32().setArrayAttr( DATASET, ORIGIN_ATTRIBUTE, toInts( origin ) );
+			writer.int32().setArrayAttr( DATASET, BINNING_ATTRIBUTE, toInts( binning ) );
+		}
+
+		final int planeSize = width * height;
+		final long[] offset = new long[ n + 1 ];
+		offset[ 0 ] = frame;
+		for ( int z = 0; z < depth; z++ )
+		{
+			if ( n > 2 )
+				offset[ 1 ] = z;
+			final int[] plane = new int[ planeSize ];
+			System.arraycopy( labels, z * planeSize, plane, 0, planeSize );
+			writer.int32().writeMDArrayBlockWithOffset( DATASET, new MDIntArray( plane, blockDims ), offset );
+		}
+	}
+
+	/**
+	 * Labels the objects of a 2D or 3D probability map. Each plane is labeled
+	 * with the {@link ParallelLabeling}, then the labels that touch across
+	 * planes are merged.
+	 * 
+	 * @return the labels, in raster order.
+	 */
+	static < R extends RealType< R > > int[] label( final RandomAccessibleInterval< R > proba, final double threshold, final int numThreads )
+	{
+		final int width = ( int ) proba.dimension( 0 );
+		final int height = ( int ) proba.dimension( 1 );
+		final int depth = proba.numDimensions() > 2 ? ( int ) proba.dimension( 2 ) : 1;
+		final int planeSize = width * height;
+		final int[] labels = new int[ planeSize * depth ];
+		if ( depth == 1 )
+		{
+			ParallelLabeling.label( width, height, ParallelLabeling.reader( proba, threshold ), labels, numThreads );
+			return labels;
+		}
+
+		/*
+		 * Label each plane, with labels following the ones of the previous
+		 * planes.
+		 */
+		int nProvisional = 0;
+		final int[] plane = new int[ planeSize ];
+		for ( int z = 0; z < depth; z++ )
+		{
+			final RandomAccessibleInterval< R > slice = Views.hyperSlice( proba, 2, proba.min( 2 ) + z );
+			final int n = ParallelLabeling.label( width, height, ParallelLabeling.reader( slice, threshold ), plane, numThreads );
+			final int offset = z * planeSize;
+			for ( int i = 0; i < planeSize; i++ )
+				labels[ offset + i ] = plane[ i ] == 0 ? 0 : plane[ i ] + nProvisional;
+			nProvisional += n;
+		}
+
+		/*
+		 * Merge the labels that touch across planes. The root of a set is its
+		 * smallest label, that is: the label of its first pixel in raster
+		 * order. Then number the roots consecutively.
+		 */
+		final int[] parent = new int[ nProvisional + 1 ];
+		for ( int l = 0; l <= nProvisional; l++ )
+			parent[ l ] = l;
+		for ( int i = planeSize; i < labels.length; i++ )
+		{
+			final int a = labels[ i - planeSize ];
+			final int b = labels[ i ];
+			if ( a == 0 || b == 0 )
+				continue;
+			final int ra = find( parent, a );
+			final int rb = find( parent, b );
+			if ( ra < rb )
+				parent[ rb ] = ra;
+			else if ( rb < ra )
+				parent[ ra ] = rb;
+		}
+		final int[] remap = new int[ nProvisional + 1 ];
+		int nLabels = 0;
+		for ( int l = 1; l <= nProvisional; l++ )
+		{
+			final int root = find( parent, l );
+			remap[ l ] = ( root == l ) ? ++nLabels : remap[ root ];
+		}
+		for ( int i = 0; i < labels.length; i++ )
+			labels[ i ] = remap[ labels[ i ] ];
+		return labels;
+	}
+
+	private static int find( final int[] parent, int l )
+	{
+		while ( parent[ l ] != l )
+		{
+			parent[ l ] = parent[ parent[ l ] ];
+			l = parent[ l ];
+		}
+		return l;
+	}
+
+	@Override
+	public String toString()
+	{
+		return file.getAbsolutePath();
+	}
+
+	private static int[] toInts( final long[] values )
+	{
+		final int[] ints = new int[ values.length ];
+		for ( int d = 0; d < values.length; d++ )
+			ints[ d ] = ( int ) values[ d ];
+		return ints;
+	}
+}
@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import fiji.plugin.trackmate.detection.MaskUtils;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A 2D spot whose contour is only traced when its ROI is read.
+ * <p>
+ * Most spots of a detection can be discarded right after by the quality and
+ * feature filters, so tracing and storing all the contours is wasted. The
+ * spot only keeps its label and bounding box in the labeled frame it comes
+ * from. The frame is stored once for all its spots, as runs of labeled
+ * pixels. The first time {@link #getRoi()} is called, the object is traced
+ * and its contour simplified as TrackMate does, and the ROI is kept.
+ */
+public class LazyContourSpot extends Spot
+{
+
+	/**
+	 * The labeled frame the spot comes from.
+	 */
+	private final LabeledFrame frame;
+
+	private final int label;
+
+	/**
+	 * The bounding box of the object, as min X, min Y, max X, max Y, in
+	 * pixels of the labeled frame.
+	 */
+	private final int[] bounds;
+
+	private SpotRoi roi;
+
+	private boolean traced;
+
+	LazyContourSpot( final double x, final double y, final double radius, final double quality, final LabeledFrame frame, final int label, final int[] bounds )
+	{
+		super( x, y, 0., radius, quality );
+		this.frame = frame;
+		this.label = label;
+		this.bounds = bounds;
+	}
+
+	private LazyContourSpot( final LazyContourSpot spot )
+	{
+		super(
+				spot.getDoublePosition( 0 ),
+				spot.getDoublePosition( 1 ),
+				spot.getDoublePosition( 2 ),
+				spot.getFeature( Spot.RADIUS ),
+				spot.getFeature( Spot.QUALITY ) );
+		for ( final Map.Entry< String, Double > feature : spot.getFeatures().entrySet() )
+			putFeature( feature.getKey(), feature.getValue() );
+		this.frame = spot.frame;
+		this.label = spot.label;
+		this.bounds = spot.bounds;
+		synchronized ( spot )
+		{
+			this.roi = spot.roi == null ? null : spot.roi.copy();
+			this.traced = spot.traced;
+		}
+	}
+
+	@Override
+	public synchronized SpotRoi getRoi()
+	{
+		if ( !traced )
+		{
+			roi = trace();
+			traced = true;
+		}
+		return roi;
+	}
+
+	@Override
+	public synchronized void setRoi( final SpotRoi roi )
+	{
+		this.roi = roi;
+		this.traced = true;
+	}
+
+	/**
+	 * Returns <code>true</code> if the contour of this spot has been traced
+	 * or set.
+	 * 
+	 * @return whether the spot has its ROI.
+	 */
+	public synchronized boolean isTraced()
+	{
+		return traced;
+	}
+
+	/**
+	 * Returns the size of the bounding box of the object, in physical units.
+	 * Does not trace the contour.
+	 * 
+	 * @param d
+	 *            the dimension, 0 for X or 1 for Y.
+	 * @return the size of the bounding box along this dimension.
+	 */
+	public double boundsSize( final int d )
+	{
+		return ( bounds[ d + 2 ] - bounds[ d ] + 1 ) * frame.calibration[ d ];
+	}
+
+	/**
+	 * Returns a copy of this spot, with its own ID. The labeled frame is
+	 * shared.
+	 * 
+	 * @return a new spot.
+	 */
+	public LazyContourSpot copy()
+	{
+		return new LazyContourSpot( this );
+	}
+
+	/**
+	 * Returns the memory used by this spot on top of a spot without contour,
+	 * in bytes: its reference in the labeled frame, and its ROI if it has
+	 * been traced. The labeled frame itself is shared and not counted.
+	 * 
+	 * @return the size in bytes.
+	 */
+	public synchronized long contourBytes()
+	{
+		final long reference = 8 + 4 + 16 + 4 * bounds.length;
+		return ( roi == null ) ? reference : reference + 16 + 2 * ( 16 + 8 * roi.x.length );
+	}
+
+	/**
+	 * Traces the contour of the object with TrackMate, on a mask of its
+	 * bounding box with a 1-pixel border. The vertices are made relative to
+	 * the center of mass of the object, which is the spot position.
+	 */
+	private SpotRoi trace()
+	{
+		final int minX = bounds[ 0 ];
+		final int minY = bounds[ 1 ];
+		final int width = bounds[ 2 ] - minX + 3;
+		final int height = bounds[ 3 ] - minY + 3;
+		final float[] mask = new float[ width * height ];
+		double sumX = 0.;
+		double sumY = 0.;
+		long count = 0;
+		for ( int y = minY; y <= bounds[ 3 ]; y++ )
+		{
+			for ( int r = frame.rowStart[ y ]; r < frame.rowStart[ y + 1 ]; r++ )
+			{
+				if ( frame.runs[ 3 * r + 2 ] != label )
+					continue;
+				final int x0 = frame.runs[ 3 * r ];
+				final int length = frame.runs[ 3 * r + 1 ];
+				final int offset = ( y - minY + 1 ) * width - minX + 1;
+				for ( int x = x0; x < x0 + length; x++ )
+					mask[ offset + x ] = 1f;
+				sumX += length * ( x0 + ( length - 1 ) / 2. );
+				sumY += ( double ) length * y;
+				count += length;
+			}
+		}
+		if ( count == 0 )
+			return null;
+
+		final Img< FloatType > img = ArrayImgs.floats( mask, width, height );
+		final List< Spot > spots = MaskUtils.fromThresholdWithROI( img, img, frame.calibration, 0.5, true, 1, img );
+		Spot largest = null;
+		for ( final Spot spot : spots )
+			if ( spot.getRoi() != null && ( largest == null || spot.getRoi().area() > largest.getRoi().area() ) )
+				largest = spot;
+		if ( largest == null )
+			return null;
+
+		final SpotRoi traced = largest.getRoi();
+		final double dx = ( minX - 1 ) * frame.calibration[ 0 ] + largest.getDoublePosition( 0 ) - frame.calibration[ 0 ] * sumX / count;
+		final double dy = ( minY - 1 ) * frame.calibration[ 1 ] + largest.getDoublePosition( 1 ) - frame.calibration[ 1 ] * sumY / count;
+		final double[] x = new double[ traced.x.length ];
+		final double[] y = new double[ traced.y.length ];
+		for ( int i = 0; i < x.length; i++ )
+		{
+			x[ i ] = traced.x[ i ] + dx;
+			y[ i ] = traced.y[ i ] + dy;
+		}
+		return new SpotRoi( x, y );
+	}
+
+	/**
+	 * The labels of a 2D frame, stored as runs of pixels with the same label
+	 * along X, background excluded. Shared by all the spots of the frame.
+	 */
+	static final class LabeledFrame
+	{
+
+		/**
+		 * The pixel sizes in X and Y.
+		 */
+		private final double[] calibration;
+
+		/**
+		 * The index of the first run of each row, and the number of runs
+		 * last.
+		 */
+		private final int[] rowStart;
+
+		/**
+		 * The runs, as x, length, label.
+		 */
+		private final int[] runs;
+
+		LabeledFrame( final int[] labels, final int width, final int height, final double[] calibration )
+		{
+			this.calibration = new double[] { calibration[ 0 ], calibration[ 1 ] };
+			this.rowStart = new int[ height + 1 ];
+			int nRuns = 0;
+			for ( int y = 0; y < height; y++ )
+			{
+				rowStart[ y ] = nRuns;
+				final int row = y * width;
+				for ( int x = 0; x < width; x++ )
+					if ( labels[ row + x ] != 0 && ( x == 0 || labels[ row + x - 1 ] != labels[ row + x ] ) )
+						nRuns++;
+			}
+			rowStart[ height ] = nRuns;
+
+			this.runs = new int[ 3 * nRuns ];
+			int r = 0;
+			for ( int y = 0; y < height; y++ )
+			{
+				final int row = y * width;
+				int x = 0;
+				while ( x < width )
+				{
+					final int l = labels[ row + x ];
+					if ( l == 0 )
+					{
+						x++;
+						continue;
+					}
+					final int x0 = x;
+					while ( x < width && labels[ row + x ] == l )
+						x++;
+					runs[ r++ ] = x0;
+					runs[ r++ ] = x - x0;
+					runs[ r++ ] = l;
+				}
+			}
+		}
+	}
+}
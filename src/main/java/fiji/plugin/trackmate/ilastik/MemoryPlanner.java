@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Estimates the memory needed to classify a movie and picks the number of
+ * frames sent to the backend at once, so that the inference fits in the JVM
+ * heap and in the RAM budget of ilastik.
+ * <p>
+ * Per frame, the JVM holds the copy of the input made when it is binned or
+ * tiled, and the class probabilities twice (as returned by the backend and as
+ * 32-bit floats), unless they are stored off-heap. The backend may need a fixed amount of memory on top, for
+ * instance the features of one frame for the Java backend. When ilastik runs
+ * in a separate process, it holds the input and the probabilities of all the
+ * frames sent to it.
+ */
+public class MemoryPlanner
+{
+
+	/**
+	 * Fraction of the free heap that the inference may use.
+	 */
+	private static final double HEAP_SAFETY = 0.8;
+
+	private MemoryPlanner()
+	{}
+
+	/**
+	 * Plans the inference of a movie.
+	 * 
+	 * @param pixelsPerFrame
+	 *            the number of pixels of one frame sent to the backend, after
+	 *            binning.
+	 * @param nChannels
+	 *            the number of channels sent to the backend.
+	 * @param bytesPerPixel
+	 *            the size in bytes of one input pixel.
+	 * @param nClasses
+	 *            the number of classes of the classifier.
+	 * @param probabilityCopiesOnHeap
+	 *            the number of copies of the probabilities held on the heap.
+	 * @param inputCopied
+	 *            whether the input is copied before inference (binning or
+	 *            tiling).
+	 * @param jvmOverhead
+	 *            the fixed memory needed by the backend in the JVM, in bytes.
+	 * @param externalProcess
+	 *            whether the backend runs in a separate process, subject to
+	 *            the ilastik RAM budget.
+	 * @param nFrames
+	 *            the number of frames to process.
+	 * @param jvmAvailable
+	 *            the memory available in the JVM, in bytes.
+	 * @param ilastikBudget
+	 *            the RAM budget of ilastik, in bytes. 0 or less means no
+	 *            limit.
+	 * @return a new plan. Its {@link Plan#framesPerChunk} is 0 if a single
+	 *         frame does not fit.
+	 */
+	public static Plan plan(
+			final long pixelsPerFrame,
+			final int nChannels,
+			final int bytesPerPixel,
+			final int nClasses,
+			final int probabilityCopiesOnHeap,
+			final boolean inputCopied,
+			final long jvmOverhead,
+			final boolean externalProcess,
+			final int nFrames,
+			final long jvmAvailable,
+			final long ilastikBudget )
+	{
+		final Plan plan = new Plan();
+		plan.nFrames = nFrames;
+		plan.jvmAvailable = jvmAvailable;
+		plan.jvmFixed = jvmOverhead;
+		final long probaBytes = pixelsPerFrame * nClasses * Float.BYTES;
+		plan.jvmPerFrame = probabilityCopiesOnHeap * probaBytes + ( inputCopied ? pixelsPerFrame * nChannels * bytesPerPixel : 0 );
+		plan.ilastikBudget = externalProcess ? ilastikBudget : 0;
+		plan.ilastikPerFrame = externalProcess ? pixelsPerFrame * nChannels * Float.BYTES + probaBytes : 0;
+
+		long frames = ( jvmAvailable - plan.jvmFixed ) / Math.max( 1, plan.jvmPerFrame );
+		if ( plan.ilastikBudget > 0 )
+			frames = Math.min( frames, plan.ilastikBudget / Math.max( 1, plan.ilastikPerFrame ) );
+		plan.framesPerChunk = ( int ) Math.max( 0, Math.min( nFrames, frames ) );
+		return plan;
+	}
+
+	/**
+	 * Returns the memory available in the JVM heap for the inference: a
+	 * fraction of the heap that is not in use or that can still be
+	 * allocated.
+	 * 
+	 * @return the available memory, in bytes.
+	 */
+	public static long getAvailableHeap()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		final long used = runtime.totalMemory() - runtime.freeMemory();
+		return ( long ) ( HEAP_SAFETY * ( runtime.maxMemory() - used ) );
+	}
+
+	/**
+	 * The chunking of a movie and the memory estimates it is based on.
+	 */
+	public static class Plan
+	{
+
+		public int nFrames;
+
+		/**
+		 * The number of frames sent to the backend at once. 0 if a single
+		 * frame does not fit in memory.
+		 */
+		public int framesPerChunk;
+
+		public long jvmAvailable;
+
+		public long jvmFixed;
+
+		public long jvmPerFrame;
+
+		public long ilastikBudget;
+
+		public long ilastikPerFrame;
+
+		public int numChunks()
+		{
+			return framesPerChunk <= 0 ? 0 : ( nFrames + framesPerChunk - 1 ) / framesPerChunk;
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder str = new StringBuilder();
+			str.append( String.format( Locale.US, "Memory plan: %d frames in %d chunk(s) of %d frames.\n",
+					nFrames, numChunks(), framesPerChunk ) );
+			str.append( String.format( Locale.US, " - JVM: %d MB available, %d MB fixed + %d MB per frame.\n",
+					jvmAvailable >> 20, jvmFixed >> 20, jvmPerFrame >> 20 ) );
+			if ( ilastikPerFrame > 0 )
+				str.append( String.format( Locale.US, " - ilastik: %s, %d MB per frame.\n",
+						ilastikBudget > 0 ? ( ilastikBudget >> 20 ) + " MB budget" : "no budget", ilastikPerFrame >> 20 ) );
+			return str.toString();
+		}
+	}
+
+	/**
+	 * Thrown when a single frame cannot be classified within the memory
+	 * available.
+	 */
+	public static class NotEnoughMemoryException extends IOException
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		public NotEnoughMemoryException( final Plan plan )
+		{
+			super( "Not enough memory to classify a single frame. Increase the maximal memory of Fiji "
+					+ "or of ilastik, or use a larger downsampling factor.\n" + plan );
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import fiji.plugin.trackmate.ilastik.classifier.Parallel;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+
+/**
+ * Connected-component labeling of a thresholded 2D probability map, in
+ * parallel over horizontal strips.
+ * <p>
+ * Each strip is labeled independently, then the labels that touch across
+ * strip boundaries are merged with a lock-free union-find. Components are
+ * 4-connected and pixels strictly above the threshold are foreground, as in
+ * <code>MaskUtils.toLabeling</code>, so the objects are the same. Labels
+ * are numbered from 1 in the raster order of the first pixel of each object.
+ */
+public class ParallelLabeling
+{
+
+	/**
+	 * Frames with fewer pixels are labeled by TrackMate in a single thread:
+	 * splitting them does not pay off.
+	 */
+	public static final long MIN_PIXELS = 1L << 22;
+
+	/**
+	 * The minimal height of a strip, in rows.
+	 */
+	private static final int MIN_STRIP_HEIGHT = 64;
+
+	private ParallelLabeling()
+	{}
+
+	/**
+	 * Returns <code>true</code> if the specified frame is worth labeling in
+	 * parallel.
+	 * 
+	 * @param frame
+	 *            the 2D frame.
+	 * @param numThreads
+	 *            the number of threads available.
+	 * @return whether to use this labeling.
+	 */
+	public static boolean accepts( final RandomAccessibleInterval< ? > frame, final int numThreads )
+	{
+		if ( numThreads < 2 || frame.numDimensions() != 2 )
+			return false;
+		final long nPixels = frame.dimension( 0 ) * frame.dimension( 1 );
+		return nPixels >= MIN_PIXELS && nPixels < Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Labels the connected components of the pixels above a threshold.
+	 * 
+	 * @param frame
+	 *            the 2D probability map.
+	 * @param threshold
+	 *            the threshold on the probability.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 * @return a new zero-min labeling, where each object has its own
+	 *         {@link Integer} label.
+	 */
+	public static < R extends RealType< R > > ImgLabeling< Integer, IntType > label(
+			final RandomAccessibleInterval< R > frame,
+			final double threshold,
+			final int numThreads )
+	{
+		final int width = ( int ) frame.dimension( 0 );
+		final int height = ( int ) frame.dimension( 1 );
+		final int[] labels = new int[ width * height ];
+		final int nLabels = label( width, height, reader( frame, threshold ), labels, numThreads );
+		return labeling( labels, width, height, nLabels );
+	}
+
+	/**
+	 * Wraps labels computed by
+	 * {@link #label(int, int, MaskReader, int[], int)} in a labeling, without
+	 * copying them.
+	 * 
+	 * @param labels
+	 *            the labels, in raster order, 0 for the background.
+	 * @param width
+	 *            the width of the frame.
+	 * @param height
+	 *            the height of the frame.
+	 * @param nLabels
+	 *            the number of labels.
+	 * @return a new zero-min labeling, where each object has its own
+	 *         {@link Integer} label.
+	 */
+	static ImgLabeling< Integer, IntType > labeling( final int[] labels, final int width, final int height, final int nLabels )
+	{
+		final ImgLabeling< Integer, IntType > labeling = new ImgLabeling<>( ArrayImgs.ints( labels, width, height ) );
+		final List< Set< Integer > > labelSets = new ArrayList<>( nLabels + 1 );
+		labelSets.add( new HashSet<>() );
+		for ( int l = 1; l <= nLabels; l++ )
+			labelSets.add( new HashSet<>( Collections.singleton( l ) ) );
+		labeling.getMapping().setLabelSets( labelSets );
+		return labeling;
+	}
+
+	/**
+	 * Returns a reader that thresholds the pixels of a 2D frame, with the
+	 * {@link ProbabilityKernels} if it is stored in a primitive array.
+	 */
+	static < R extends RealType< R > > MaskReader reader( final RandomAccessibleInterval< R > frame, final double threshold )
+	{
+		final MaskReader arrayReader = arrayReader( frame, threshold );
+		if ( arrayReader != null )
+			return arrayReader;
+
+		final int width = ( int ) frame.dimension( 0 );
+		final long minX = frame.min( 0 );
+		final long minY = frame.min( 1 );
+		return ( fromRow, toRow, mask ) -> {
+			final RandomAccess< R > ra = frame.randomAccess();
+			int i = 0;
+			for ( int y = fromRow; y < toRow; y++ )
+			{
+				ra.setPosition( minX, 0 );
+				ra.setPosition( minY + y, 1 );
+				for ( int x = 0; x < width; x++ )
+				{
+					mask[ i++ ] = ra.get().getRealDouble() > threshold;
+					ra.fwd( 0 );
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns a reader that thresholds the pixels with the
+	 * {@link ProbabilityKernels}, if the frame is stored in a primitive
+	 * array.
+	 * 
+	 * @return a new reader, or <code>null</code> if the frame is not stored
+	 *         in a float or 8-bit unsigned array.
+	 */
+	static MaskReader arrayReader( final RandomAccessibleInterval< ? > frame, final double threshold )
+	{
+		final int width = ( int ) frame.dimension( 0 );
+		final float[] floats = ProbabilityKernels.floats( frame );
+		if ( floats != null )
+			return ( fromRow, toRow, mask ) -> ProbabilityKernels.threshold( floats, fromRow * width, toRow * width, threshold, mask );
+		final byte[] bytes = ProbabilityKernels.uint8s( frame );
+		if ( bytes != null )
+			return ( fromRow, toRow, mask ) -> ProbabilityKernels.threshold( bytes, fromRow * width, toRow * width, threshold, mask );
+		return null;
+	}
+
+	/**
+	 * Labels the connected components of a mask.
+	 * 
+	 * @param width
+	 *            the width of the mask.
+	 * @param height
+	 *            the height of the mask.
+	 * @param mask
+	 *            reads the mask, one strip of rows at a time.
+	 * @param labels
+	 *            the array to write the labels to, in raster order, 0 for
+	 *            background.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the number of objects.
+	 */
+	static int label( final int width, final int height, final MaskReader mask, final int[] labels, final int numThreads )
+	{
+		final int nStrips = Math.max( 1, Math.min( numThreads, height / MIN_STRIP_HEIGHT ) );
+		final int[] stripStart = new int[ nStrips + 1 ];
+		for ( int s = 0; s <= nStrips; s++ )
+			stripStart[ s ] = ( int ) ( ( long ) s * height / nStrips );
+
+		/*
+		 * Label each strip with local labels.
+		 */
+		final int[] nLocal = new int[ nStrips ];
+		Parallel.forEachChunk( nStrips, numThreads, ( from, to ) -> {
+			for ( int s = ( int ) from; s < to; s++ )
+				nLocal[ s ] = labelStrip( width, stripStart[ s ], stripStart[ s + 1 ], mask, labels );
+		} );
+
+		final int[] offset = new int[ nStrips + 1 ];
+		for ( int s = 0; s < nStrips; s++ )
+			offset[ s + 1 ] = offset[ s ] + nLocal[ s ];
+		final int nProvisional = offset[ nStrips ];
+
+		/*
+		 * Merge the labels that touch across strip boundaries. The root of a
+		 * set is its smallest label, that is: the label of its first pixel
+		 * in raster order.
+		 */
+		final AtomicIntegerArray parent = new AtomicIntegerArray( nProvisional + 1 );
+		for ( int l = 0; l <= nProvisional; l++ )
+			parent.set( l, l );
+		Parallel.forEachChunk( nStrips - 1, numThreads, ( from, to ) -> {
+			for ( int b = ( int ) from + 1; b <= to; b++ )
+			{
+				final int above = ( stripStart[ b ] - 1 ) * width;
+				final int below = stripStart[ b ] * width;
+				for ( int x = 0; x < width; x++ )
+				{
+					final int la = labels[ above + x ];
+					final int lb = labels[ below + x ];
+					if ( la != 0 && lb != 0 )
+						union( parent, la + offset[ b - 1 ], lb + offset[ b ] );
+				}
+			}
+		} );
+
+		/*
+		 * Number the roots consecutively and relabel.
+		 */
+		final int[] remap = new int[ nProvisional + 1 ];
+		int nLabels = 0;
+		for ( int l = 1; l <= nProvisional; l++ )
+		{
+			final int root = find( parent, l );
+			remap[ l ] = ( root == l ) ? ++nLabels : remap[ root ];
+		}
+		Parallel.forEachChunk( nStrips, numThreads, ( from, to ) -> {
+			for ( int s = ( int ) from; s < to; s++ )
+			{
+				final int off = offset[ s ];
+				for ( int i = stripStart[ s ] * width; i < stripStart[ s + 1 ] * width; i++ )
+					if ( labels[ i ] != 0 )
+						labels[ i ] = remap[ labels[ i ] + off ];
+			}
+		} );
+		return nLabels;
+	}
+
+	/**
+	 * Two-pass labeling of one strip, with local labels from 1 in raster
+	 * order.
+	 * 
+	 * @return the number of objects in the strip.
+	 */
+	private static int labelStrip( final int width, final int fromRow, final int toRow, final MaskReader mask, final int[] labels )
+	{
+		final boolean[] fg = new boolean[ ( toRow - fromRow ) * width ];
+		mask.read( fromRow, toRow, fg );
+		final int start = fromRow * width;
+
+		int[] parent = new int[ 64 ];
+		int next = 1;
+		for ( int i = 0; i < fg.length; i++ )
+		{
+			if ( !fg[ i ] )
+				continue;
+			final int x = i % width;
+			final int left = ( x > 0 && fg[ i - 1 ] ) ? labels[ start + i - 1 ] : 0;
+			final int up = ( i >= width && fg[ i - width ] ) ? labels[ start + i - width ] : 0;
+			if ( left == 0 && up == 0 )
+			{
+				if ( next == parent.length )
+					parent = Arrays.copyOf( parent, 2 * parent.length );
+				parent[ next ] = next;
+				labels[ start + i ] = next++;
+			}
+			else if ( left == 0 || up == 0 )
+			{
+				labels[ start + i ] = Math.max( left, up );
+			}
+			else
+			{
+				final int rl = findLocal( parent, left );
+				final int ru = findLocal( parent, up );
+				final int root = Math.min( rl, ru );
+				parent[ Math.max( rl, ru ) ] = root;
+				labels[ start + i ] = root;
+			}
+		}
+
+		final int[] remap = new int[ next ];
+		int n = 0;
+		for ( int l = 1; l < next; l++ )
+		{
+			final int root = findLocal( parent, l );
+			remap[ l ] = ( root == l ) ? ++n : remap[ root ];
+		}
+		for ( int i = 0; i < fg.length; i++ )
+			if ( fg[ i ] )
+				labels[ start + i ] = remap[ labels[ start + i ] ];
+			else
+				labels[ start + i ] = 0;
+		return n;
+	}
+
+	private static int findLocal( final int[] parent, int l )
+	{
+		while ( parent[ l ] != l )
+		{
+			parent[ l ] = parent[ parent[ l ] ];
+			l = parent[ l ];
+		}
+		return l;
+	}
+
+	private static int find( final AtomicIntegerArray parent, int l )
+	{
+		while ( true )
+		{
+			final int p = parent.get( l );
+			if ( p == l )
+				return l;
+			final int gp = parent.get( p );
+			if ( gp != p )
+				parent.compareAndSet( l, p, gp );
+			l = p;
+		}
+	}
+
+	/**
+	 * Lock-free union: the larger root is linked to the smaller one, retrying
+	 * if another thread changed it in the meantime.
+	 */
+	private static void union( final AtomicIntegerArray parent, final int a, final int b )
+	{
+		int ra = a;
+		int rb = b;
+		while ( true )
+		{
+			ra = find( parent, ra );
+			rb = find( parent, rb );
+			if ( ra == rb )
+				return;
+			final int hi = Math.max( ra, rb );
+			final int lo = Math.min( ra, rb );
+			if ( parent.compareAndSet( hi, hi, lo ) )
+				return;
+		}
+	}
+
+	/**
+	 * Reads the foreground mask of a range of rows.
+	 */
+	@FunctionalInterface
+	interface MaskReader
+	{
+
+		/**
+		 * Writes in <code>mask</code> whether each pixel of the rows from
+		 * <code>fromRow</code> inclusive to <code>toRow</code> exclusive is
+		 * foreground, in raster order.
+		 */
+		void read( int fromRow, int toRow, boolean[] mask );
+	}
+}
@@ -0,0 +1,384 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import fiji.plugin.trackmate.Logger;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * A cache of the class probabilities on disk, so that a detection can be run
+ * again without a new inference, for instance after a saved TrackMate
+ * session is reopened, or to try another threshold or class.
+ * <p>
+ * The probabilities of each inference are saved in an HDF5 file of the cache
+ * folder, whose name is made of a fingerprint of the project file, a
+ * fingerprint of the pixels sent to the backend, and the backend name. An
+ * inference whose file exists reads it instead of running the backend. The
+ * class and the threshold are not part of the key: changing them only
+ * triggers the extraction of the spots again.
+ * <p>
+ * A cache is created for each detection, and gives its {@link Reference}
+ * with {@link #getReference(Logger)}: the folder, the fingerprint of the
+ * project and a fingerprint of the images sent to the backend, combined from
+ * the ones computed for the file names. The reference saved by a previous
+ * detection is compared with it, to report whether the cached probabilities
+ * could be reused.
+ */
+public class PredictionCache
+{
+
+	/**
+	 * The dataset the probabilities are stored in.
+	 */
+	public static final String DATASET = "/probabilities";
+
+	private static final String AXES_ATTRIBUTE = "axes";
+
+	private static final String PROJECT_ATTRIBUTE = "project_fingerprint";
+
+	private static final String IMAGE_ATTRIBUTE = "image_fingerprint";
+
+	private static final String BACKEND_ATTRIBUTE = "backend";
+
+	/**
+	 * Project fingerprints, keyed by path, with the length and modification
+	 * time they were computed for.
+	 */
+	private static final Map< String, long[] > projectFingerprints = new HashMap<>();
+
+	private final File folder;
+
+	private final Reference expected;
+
+	private long projectFingerprint;
+
+	/**
+	 * The sum of the fingerprints of the inputs, which does not depend on the
+	 * order in which they are predicted.
+	 */
+	private long imageFingerprint;
+
+	private int nPredictions;
+
+	/**
+	 * Creates a cache.
+	 * 
+	 * @param folder
+	 *            the folder to store the probabilities in. Created if needed.
+	 * @param expected
+	 *            the reference saved by a previous detection, used to report
+	 *            whether the cached probabilities are still valid. May be
+	 *            <code>null</code>.
+	 */
+	public PredictionCache( final File folder, final Reference expected )
+	{
+		this.folder = folder;
+		this.expected = expected;
+	}
+
+	/**
+	 * Returns the reference of the predictions made through this cache, and
+	 * logs whether it differs from the reference saved by a previous
+	 * detection.
+	 * 
+	 * @param logger
+	 *            the logger to report differences to.
+	 * @return the reference, or <code>null</code> if nothing was predicted.
+	 */
+	public synchronized Reference getReference( final Logger logger )
+	{
+		if ( nPredictions == 0 )
+			return null;
+		final Reference reference = new Reference( folder, projectFingerprint, imageFingerprint );
+		if ( expected != null )
+		{
+			if ( expected.projectFingerprint != reference.projectFingerprint )
+				logger.log( "The ilastik project changed since the cached probabilities were computed.\n" );
+			if ( expected.imageFingerprint != reference.imageFingerprint )
+				logger.log( "The image changed since the cached probabilities were computed.\n" );
+		}
+		return reference;
+	}
+
+	/**
+	 * Returns the class probabilities of the specified input, read from the
+	 * cache folder if they are there, or computed by the backend and saved
+	 * there otherwise.
+	 * 
+	 * @param backend
+	 *            the backend to compute the probabilities with.
+	 * @param input
+	 *            the image to classify.
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param storage
+	 *            where to store the probabilities.
+	 * @param logger
+	 *            the logger to report cache hits and misses to.
+	 * @param <T>
+	 *            the pixel type of the input.
+	 * @return the class probabilities.
+	 * @throws IOException
+	 *             if the ilastik project cannot be read.
+	 */
+	public < T extends RealType< T > & NativeType< T > > ImgPlus< FloatType > predict(
+			final InferenceBackend backend,
+			final ImgPlus< T > input,
+			final String projectFilePath,
+			final int numThreads,
+			final PredictionStorage storage,
+			final Logger logger ) throws IOException
+	{
+		final long projectFingerprint = fingerprintProject( projectFilePath );
+		final long fingerprint = ProbabilityFrameCache.fingerprint( input );
+		synchronized ( this )
+		{
+			this.projectFingerprint = projectFingerprint;
+			this.imageFingerprint += fingerprint;
+			nPredictions++;
+		}
+
+		final File file = new File( folder, String.format( "ilastik-%016x-%016x-%s.h5",
+				projectFingerprint, fingerprint, backend.getName().replaceAll( "[^A-Za-z0-9]", "_" ) ) );
+		ImgPlus< FloatType > proba = null;
+		if ( file.exists() )
+		{
+			try
+			{
+				proba = read( file, projectFingerprint, fingerprint, backend.getName(), storage );
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				logger.log( "Could not read cached probabilities " + file + ": " + e.getMessage() + "\n" );
+			}
+		}
+
+		if ( proba != null )
+		{
+			logger.log( "Reusing the cached probabilities " + file.getName() + ".\n" );
+		}
+		else
+		{
+			proba = backend.predict( input, projectFilePath, numThreads, storage );
+			// A cancelled prediction may be incomplete.
+			if ( !Thread.currentThread().isInterrupted() )
+			{
+				try
+				{
+					folder.mkdirs();
+					write( file, proba, projectFingerprint, fingerprint, backend.getName() );
+				}
+				catch ( final RuntimeException e )
+				{
+					file.delete();
+					logger.log( "Could not save the probabilities to " + file + ": " + e.getMessage() + "\n" );
+				}
+			}
+		}
+		return proba;
+	}
+
+	/**
+	 * Computes a fingerprint of the content of the project file. Fingerprints
+	 * are kept in memory as long as the length and the modification time of
+	 * the file do not change.
+	 * 
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @return the fingerprint.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public static long fingerprintProject( final String projectFilePath ) throws IOException
+	{
+		final File file = new File( projectFilePath );
+		final long length = file.length();
+		final long lastModified = file.lastModified();
+		synchronized ( projectFingerprints )
+		{
+			final long[] known = projectFingerprints.get( projectFilePath );
+			if ( known != null && known[ 0 ] == length && known[ 1 ] == lastModified )
+				return known[ 2 ];
+		}
+
+		final CRC32 crc = new CRC32();
+		final byte[] buffer = new byte[ 1 << 20 ];
+		try (InputStream is = new FileInputStream( file ))
+		{
+			int n;
+			while ( ( n = is.read( buffer ) ) >= 0 )
+				crc.update( buffer, 0, n );
+		}
+		final long fingerprint = ( length << 32 ) ^ crc.getValue();
+		synchronized ( projectFingerprints )
+		{
+			projectFingerprints.put( projectFilePath, new long[] { length, lastModified, fingerprint } );
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Writes the probabilities plane by plane. HDF5 dimensions are in C
+	 * order, the reverse of ImgLib2.
+	 */
+	private static void write( final File file, final ImgPlus< FloatType > proba, final long projectFingerprint, final long imageFingerprint, final String backend )
+	{
+		final int n = proba.numDimensions();
+		final long[] dims = new long[ n ];
+		final int[] blockDims = new int[ n ];
+		final StringBuilder axes = new StringBuilder();
+		for ( int d = 0; d < n; d++ )
+		{
+			dims[ n - 1 - d ] = proba.dimension( d );
+			blockDims[ n - 1 - d ] = d < 2 ? ( int ) proba.dimension( d ) : 1;
+			axes.append( d == 0 ? "" : "," ).append( proba.axis( d ).type().getLabel() );
+		}
+
+		try (IHDF5Writer writer = HDF5Factory.open( file ))
+		{
+			writer.float32().createMDArray( DATASET, dims, blockDims );
+			writer.string().setAttr( DATASET, AXES_ATTRIBUTE, axes.toString() );
+			writer.string().setAttr( DATASET, PROJECT_ATTRIBUTE, Long.toHexString( projectFingerprint ) );
+			writer.string().setAttr( DATASET, IMAGE_ATTRIBUTE, Long.toHexString( imageFingerprint ) );
+			writer.string().setAttr( DATASET, BACKEND_ATTRIBUTE, backend );
+
+			final float[] plane = new float[ blockDims[ n - 1 ] * blockDims[ n - 2 ] ];
+			final long[] offset = new long[ n ];
+			final Cursor< FloatType > cursor = Views.flatIterable( proba ).cursor();
+			long planeIndex = 0;
+			while ( cursor.hasNext() )
+			{
+				for ( int i = 0; i < plane.length; i++ )
+					plane[ i ] = cursor.next().get();
+				planeOffset( planeIndex++, dims, offset );
+				writer.float32().writeMDArrayBlockWithOffset( DATASET, new MDFloatArray( plane, blockDims ), offset );
+			}
+		}
+	}
+
+	private static ImgPlus< FloatType > read( final File file, final long projectFingerprint, final long imageFingerprint, final String backend, final PredictionStorage storage ) throws IOException
+	{
+		try (IHDF5Reader reader = HDF5Factory.openForReading( file ))
+		{
+			if ( !Long.toHexString( projectFingerprint ).equals( reader.string().getAttr( DATASET, PROJECT_ATTRIBUTE ) )
+					|| !Long.toHexString( imageFingerprint ).equals( reader.string().getAttr( DATASET, IMAGE_ATTRIBUTE ) )
+					|| !backend.equals( reader.string().getAttr( DATASET, BACKEND_ATTRIBUTE ) ) )
+				throw new IOException( "The file does not match the input." );
+
+			final String[] labels = reader.string().getAttr( DATASET, AXES_ATTRIBUTE ).split( "," );
+			final int n = labels.length;
+			final long[] hdfDims = reader.object().getDataSetInformation( DATASET ).getDimensions();
+			final long[] dims = new long[ n ];
+			final int[] blockDims = new int[ n ];
+			final AxisType[] axes = new AxisType[ n ];
+			for ( int d = 0; d < n; d++ )
+			{
+				axes[ d ] = Axes.get( labels[ d ] );
+				dims[ d ] = hdfDims[ n - 1 - d ];
+				blockDims[ n - 1 - d ] = d < 2 ? ( int ) dims[ d ] : 1;
+			}
+
+			final Img< FloatType > img = storage.floats( dims );
+			final long[] offset = new long[ n ];
+			final Cursor< FloatType > cursor = Views.flatIterable( img ).cursor();
+			long planeIndex = 0;
+			while ( cursor.hasNext() )
+			{
+				planeOffset( planeIndex++, hdfDims, offset );
+				final float[] plane = reader.float32().readMDArrayBlockWithOffset( DATASET, blockDims, offset ).getAsFlatArray();
+				for ( final float v : plane )
+					cursor.next().set( v );
+			}
+			return new ImgPlus<>( img, file.getName(), axes );
+		}
+	}
+
+	/**
+	 * Computes the HDF5 offset of a plane, from its index in flat iteration
+	 * order. The last two HDF5 dimensions are the plane.
+	 */
+	private static void planeOffset( final long planeIndex, final long[] hdfDims, final long[] offset )
+	{
+		long index = planeIndex;
+		for ( int i = hdfDims.length - 3; i >= 0; i-- )
+		{
+			offset[ i ] = index % hdfDims[ i ];
+			index /= hdfDims[ i ];
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return folder.toString();
+	}
+
+	/**
+	 * Where the probabilities of a detection are cached, and what they were
+	 * computed from.
+	 */
+	public static class Reference
+	{
+
+		public final File folder;
+
+		public final long projectFingerprint;
+
+		public final long imageFingerprint;
+
+		public Reference( final File folder, final long projectFingerprint, final long imageFingerprint )
+		{
+			this.folder = folder;
+			this.projectFingerprint = projectFingerprint;
+			this.imageFingerprint = imageFingerprint;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( Locale.US, "%s (project %016x, image %016x)", folder, projectFingerprint, imageFingerprint );
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A probability map exported by ilastik in a HDF5 file, read one frame and
+ * one class at a time.
+ * <p>
+ * The axes of the dataset are read from its 'axistags' attribute, as written
+ * by ilastik. If it is missing, they are guessed from the rank of the
+ * dataset: 'yxc', 'tyxc' or 'tzyxc'. Only the block of the dataset that is
+ * requested is read from the file, so the whole probability map never has
+ * to fit in memory.
+ */
+public class PredictionFile implements Closeable
+{
+
+	/**
+	 * The path of the dataset in the HDF5 files exported by ilastik.
+	 */
+	public static final String DEFAULT_DATASET = "/exported_data";
+
+	private static final String AXISTAGS_ATTRIBUTE = "axistags";
+
+	private final IHDF5Reader reader;
+
+	private final String dataset;
+
+	/** Axis keys of the dataset, slowest varying first. */
+	private final List< String > axes;
+
+	/** Dimensions of the dataset, slowest varying first. */
+	private final long[] dims;
+
+	/**
+	 * Opens a prediction file.
+	 * 
+	 * @param path
+	 *            the path to the HDF5 file.
+	 * @param dataset
+	 *            the path of the probability dataset in the file.
+	 * @throws IOException
+	 *             if the file or the dataset cannot be read, or if its axes
+	 *             cannot be determined.
+	 */
+	public PredictionFile( final String path, final String dataset ) throws IOException
+	{
+		final File file = new File( path );
+		if ( !file.exists() || !file.canRead() )
+			throw new IOException( "Cannot read prediction file: " + path );
+
+		this.reader = HDF5Factory.openForReading( file );
+		this.dataset = dataset;
+		try
+		{
+			if ( !reader.object().isDataSet( dataset ) )
+				throw new IOException( "The file " + path + " does not contain a dataset " + dataset + "." );
+			final HDF5DataSetInformation info = reader.object().getDataSetInformation( dataset );
+			this.dims = info.getDimensions();
+			this.axes = reader.object().hasAttribute( dataset, AXISTAGS_ATTRIBUTE )
+					? IlastikRunner.parseAxisTags( reader.string().getAttr( dataset, AXISTAGS_ATTRIBUTE ) )
+					: guessAxes( dims.length );
+			if ( axes == null || axes.size() != dims.length )
+				throw new IOException( "Cannot determine the axes of the dataset " + dataset + " with dimensions " + Arrays.toString( dims ) + "." );
+			if ( !axes.contains( "x" ) || !axes.contains( "y" ) )
+				throw new IOException( "The dataset " + dataset + " has no X or Y axis. Axes are " + axes + "." );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			reader.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the size of the dataset along the specified axis, or 1 if it
+	 * does not have this axis.
+	 * 
+	 * @param axis
+	 *            the axis key, one of 't', 'z', 'y', 'x' or 'c'.
+	 * @return the size along this axis.
+	 */
+	public long dimension( final String axis )
+	{
+		final int i = axes.indexOf( axis );
+		return i < 0 ? 1 : dims[ i ];
+	}
+
+	/**
+	 * Returns <code>true</code> if the dataset has the specified axis.
+	 * 
+	 * @param axis
+	 *            the axis key, one of 't', 'z', 'y', 'x' or 'c'.
+	 * @return whether the dataset has this axis.
+	 */
+	public boolean hasAxis( final String axis )
+	{
+		return axes.contains( axis );
+	}
+
+	/**
+	 * Returns the number of classes in the probability map.
+	 * 
+	 * @return the number of classes.
+	 */
+	public int numClasses()
+	{
+		return ( int ) dimension( "c" );
+	}
+
+	/**
+	 * Returns the number of frames in the probability map.
+	 * 
+	 * @return the number of frames.
+	 */
+	public int numFrames()
+	{
+		return ( int ) dimension( "t" );
+	}
+
+	/**
+	 * Reads the probability of one class, in a block of one frame.
+	 * 
+	 * @param frame
+	 *            the frame to read. Ignored if the dataset has no time axis.
+	 * @param classIndex
+	 *            the class to read.
+	 * @param min
+	 *            the position of the block in X, Y and Z if any.
+	 * @param size
+	 *            the size of the block in X, Y and Z if any.
+	 * @return a new image with X, Y and Z if any as dimensions, in this
+	 *         order.
+	 */
+	public Img< FloatType > read( final int frame, final int classIndex, final long[] min, final long[] size )
+	{
+		final String[] spatialAxes = new String[] { "x", "y", "z" };
+		final int[] blockDims = new int[ dims.length ];
+		final long[] offset = new long[ dims.length ];
+		Arrays.fill( blockDims, 1 );
+		if ( hasAxis( "t" ) )
+			offset[ axes.indexOf( "t" ) ] = frame;
+		if ( hasAxis( "c" ) )
+			offset[ axes.indexOf( "c" ) ] = classIndex;
+		for ( int d = 0; d < size.length; d++ )
+		{
+			final int i = axes.indexOf( spatialAxes[ d ] );
+			if ( i < 0 )
+				continue;
+			blockDims[ i ] = ( int ) size[ d ];
+			offset[ i ] = min[ d ];
+		}
+		final float[] block = reader.float32().readMDArrayBlockWithOffset( dataset, blockDims, offset ).getAsFlatArray();
+
+		/*
+		 * The block is in C order, in the axis order of the dataset. Copy it
+		 * to an image with X varying fastest.
+		 */
+		final long[] strides = new long[ size.length ];
+		long stride = 1;
+		for ( int i = dims.length - 1; i >= 0; i-- )
+		{
+			final int d = Arrays.asList( spatialAxes ).indexOf( axes.get( i ) );
+			if ( d >= 0 && d < size.length )
+				strides[ d ] = stride;
+			stride *= blockDims[ i ];
+		}
+		final long sx = size[ 0 ];
+		final long sy = size[ 1 ];
+		final long sz = size.length > 2 ? size[ 2 ] : 1;
+		final long strideZ = size.length > 2 ? strides[ 2 ] : 0;
+		final float[] out = new float[ ( int ) ( sx * sy * sz ) ];
+		int o = 0;
+		for ( long z = 0; z < sz; z++ )
+			for ( long y = 0; y < sy; y++ )
+			{
+				final long start = z * strideZ + y * strides[ 1 ];
+				for ( long x = 0; x < sx; x++ )
+					out[ o++ ] = block[ ( int ) ( start + x * strides[ 0 ] ) ];
+			}
+		return ArrayImgs.floats( out, size );
+	}
+
+	@Override
+	public void close()
+	{
+		reader.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return dataset + " " + axes + " " + Arrays.toString( dims );
+	}
+
+	private static List< String > guessAxes( final int rank )
+	{
+		switch ( rank )
+		{
+		case 3:
+			return new ArrayList<>( Arrays.asList( "y", "x", "c" ) );
+		case 4:
+			return new ArrayList<>( Arrays.asList( "t", "y", "x", "c" ) );
+		case 5:
+			return new ArrayList<>( Arrays.asList( "t", "z", "y", "x", "c" ) );
+		default:
+			return null;
+		}
+	}
+}
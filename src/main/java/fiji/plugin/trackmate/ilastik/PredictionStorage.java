@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Where the class probabilities computed by the backends are stored.
+ * <p>
+ * Off-heap images are {@link PlanarImg}s whose planes are backed by
+ * {@link FloatBuffer}s instead of Java arrays. They are accessed through the
+ * usual cursors and random accesses, so the extraction of objects works on
+ * them unchanged, but the garbage collector does not have to manage their
+ * pixels.
+ */
+public enum PredictionStorage
+{
+
+	/**
+	 * Java arrays on the heap.
+	 */
+	HEAP,
+
+	/**
+	 * Direct buffers, outside of the heap. Their total size is limited by the
+	 * <code>-XX:MaxDirectMemorySize</code> JVM option.
+	 */
+	DIRECT,
+
+	/**
+	 * Scratch files in the temporary folder, mapped in memory. The operating
+	 * system pages them in and out, so movies larger than the physical
+	 * memory can be processed. The files are deleted when they are no longer
+	 * used, or when the JVM exits.
+	 */
+	MAPPED;
+
+	/**
+	 * Creates a new 32-bit float image with this storage.
+	 * 
+	 * @param dims
+	 *            the image dimensions. The product of the first two must be
+	 *            less than 2^31.
+	 * @return a new image, filled with 0.
+	 */
+	public Img< FloatType > floats( final long... dims )
+	{
+		if ( this == HEAP )
+			return PlanarImgs.floats( dims );
+
+		final long planeSize = dims.length < 2 ? dims[ 0 ] : dims[ 0 ] * dims[ 1 ];
+		if ( planeSize > Integer.MAX_VALUE / Float.BYTES )
+			throw new IllegalArgumentException( "Planes are too large for off-heap storage: " + planeSize + " pixels." );
+		long nPlanes = 1;
+		for ( int d = 2; d < dims.length; d++ )
+			nPlanes *= dims[ d ];
+
+		final List< FloatBufferAccess > planes = new ArrayList<>( ( int ) nPlanes );
+		if ( this == DIRECT )
+		{
+			for ( long p = 0; p < nPlanes; p++ )
+				planes.add( new FloatBufferAccess( ( int ) planeSize ) );
+		}
+		else
+		{
+			try
+			{
+				final File file = File.createTempFile( "trackmate-ilastik-", ".raw" );
+				try (RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+				{
+					final long planeBytes = planeSize * Float.BYTES;
+					raf.setLength( nPlanes * planeBytes );
+					final FileChannel channel = raf.getChannel();
+					for ( long p = 0; p < nPlanes; p++ )
+					{
+						final ByteBuffer bytes = channel.map( FileChannel.MapMode.READ_WRITE, p * planeBytes, planeBytes );
+						planes.add( new FloatBufferAccess( bytes.order( ByteOrder.nativeOrder() ).asFloatBuffer() ) );
+					}
+				}
+				// Mappings stay valid once the file is deleted, where supported.
+				if ( !file.delete() )
+					file.deleteOnExit();
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( "Could not create a scratch file for the probabilities.", e );
+			}
+		}
+
+		final PlanarImg< FloatType, FloatBufferAccess > img = new PlanarImg<>( planes, dims, new Fraction() );
+		img.setLinkedType( new FloatType( img ) );
+		return img;
+	}
+
+	/**
+	 * A plane of 32-bit floats backed by a {@link FloatBuffer}.
+	 */
+	static final class FloatBufferAccess implements FloatAccess, ArrayDataAccess< FloatBufferAccess >
+	{
+
+		private final FloatBuffer buffer;
+
+		FloatBufferAccess( final int size )
+		{
+			this( ByteBuffer.allocateDirect( size * Float.BYTES ).order( ByteOrder.nativeOrder() ).asFloatBuffer() );
+		}
+
+		FloatBufferAccess( final FloatBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public float getValue( final int index )
+		{
+			return buffer.get( index );
+		}
+
+		@Override
+		public void setValue( final int index, final float value )
+		{
+			buffer.put( index, value );
+		}
+
+		@Override
+		public FloatBufferAccess createArray( final int numEntities )
+		{
+			return new FloatBufferAccess( numEntities );
+		}
+
+		@Override
+		public Object getCurrentStorageArray()
+		{
+			return buffer;
+		}
+
+		@Override
+		public int getArrayLength()
+		{
+			return buffer.capacity();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import net.imagej.ImgPlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Verifies a prescreening rule by comparing the objects detected with
+ * prescreening to the ones detected with full inference, on frames sampled
+ * regularly over the interval to process.
+ * <p>
+ * Spots are matched with
+ * {@link DownsamplingValidation#compare(List, List, double)}. Spots found
+ * with full inference that have no match are the ones lost in tiles that
+ * were wrongly found to be empty.
+ */
+public class PrescreenValidation
+{
+
+	private PrescreenValidation()
+	{}
+
+	/**
+	 * Runs the detection with and without prescreening on sampled frames, and
+	 * compares the results.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval (space and time) to operate on.
+	 * @param channel
+	 *            the channel to operate on when a model trained on a single
+	 *            channel is specified.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classId
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param options
+	 *            the options, with the prescreening rule to verify.
+	 * @param nSamples
+	 *            the number of frames to sample.
+	 * @param maxDistance
+	 *            the maximal distance, in physical units, between two spots
+	 *            that can be matched.
+	 * @return a new list of {@link Report}s, one per sampled frame.
+	 * @throws IOException
+	 *             if the ilastik file cannot be found.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > List< Report > validate(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final IlastikRunnerOptions options,
+			final int nSamples,
+			final double maxDistance ) throws IOException
+	{
+		final IlastikRunnerOptions fullOptions = IlastikRunnerOptions.create( options )
+				.prescreen( null )
+				.get();
+
+		final int n = interval.numDimensions();
+		final long tmin = n > 2 ? interval.min( n - 1 ) : 0;
+		final long tmax = n > 2 ? interval.max( n - 1 ) : 0;
+		final long nFrames = tmax - tmin + 1;
+		final int nSampled = ( int ) Math.max( 1, Math.min( nSamples, nFrames ) );
+
+		final List< Report > reports = new ArrayList<>( nSampled );
+		for ( int i = 0; i < nSampled; i++ )
+		{
+			final long t = tmin + i * nFrames / nSampled;
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			interval.min( min );
+			interval.max( max );
+			if ( n > 2 )
+			{
+				min[ n - 1 ] = t;
+				max[ n - 1 ] = t;
+			}
+			final Interval frame = new FinalInterval( min, max );
+
+			final long startFull = System.currentTimeMillis();
+			final SpotCollection full = IlastikRunner.run( img, frame, channel, projectFilePath, classId, probaThreshold, fullOptions );
+			final long endFull = System.currentTimeMillis();
+			final SpotCollection prescreened = IlastikRunner.run( img, frame, channel, projectFilePath, classId, probaThreshold, options );
+			final long endPrescreened = System.currentTimeMillis();
+
+			final DownsamplingValidation.Report comparison = DownsamplingValidation.compare( toList( full ), toList( prescreened ), maxDistance );
+			final Report report = new Report();
+			report.frame = t;
+			report.nFull = comparison.nReference;
+			report.nPrescreened = comparison.nDownsampled;
+			report.nMatched = comparison.nMatched;
+			report.timeFull = endFull - startFull;
+			report.timePrescreened = endPrescreened - endFull;
+			reports.add( report );
+		}
+		return reports;
+	}
+
+	private static List< Spot > toList( final SpotCollection spots )
+	{
+		final List< Spot > list = new ArrayList<>();
+		for ( final Spot spot : spots.iterable( false ) )
+			list.add( spot );
+		return list;
+	}
+
+	/**
+	 * The differences between the detections with and without prescreening
+	 * on one frame.
+	 */
+	public static class Report
+	{
+
+		public long frame;
+
+		public int nFull;
+
+		public int nPrescreened;
+
+		public int nMatched;
+
+		public long timeFull;
+
+		public long timePrescreened;
+
+		/**
+		 * Returns the number of spots found with full inference that were
+		 * lost with prescreening.
+		 * 
+		 * @return the number of missed spots.
+		 */
+		public int getMissed()
+		{
+			return nFull - nMatched;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( Locale.US, "Frame %d: %d spots with full inference, %d with prescreening, %d missed. "
+					+ "Processing time: full %d ms, prescreened %d ms.",
+					frame, nFull, nPrescreened, getMissed(), timeFull, timePrescreened );
+		}
+	}
+}
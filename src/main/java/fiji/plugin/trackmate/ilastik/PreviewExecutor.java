@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Runs previews so that only the latest request goes to completion.
+ * <p>
+ * A request waits for a short debounce delay before starting, so that a
+ * burst of setting changes yields a single run. When a new request arrives,
+ * the run in progress is cancelled: its thread is interrupted and the
+ * cancellation hook of its backend is called, which stops the external
+ * ilastik process if there is one. The superseded request then fails with a
+ * {@link CancellationException}.
+ * <p>
+ * Previews are run by the thread that submits them, typically the one of the
+ * TrackMate preview panel.
+ */
+public class PreviewExecutor
+{
+
+	/**
+	 * The delay in milliseconds a request waits for a newer one before
+	 * starting.
+	 */
+	public static final long DEBOUNCE_DELAY = 200;
+
+	private static PreviewExecutor instance;
+
+	private long latest;
+
+	private Thread running;
+
+	private Runnable runningCancel;
+
+	public static synchronized PreviewExecutor getInstance()
+	{
+		if ( instance == null )
+			instance = new PreviewExecutor();
+		return instance;
+	}
+
+	/**
+	 * Runs a preview in the calling thread, unless a newer preview is
+	 * submitted before it starts or while it runs.
+	 * 
+	 * @param task
+	 *            the preview to run.
+	 * @param onCancel
+	 *            called, from another thread, if the preview is superseded
+	 *            while it runs. May be <code>null</code>.
+	 * @param <V>
+	 *            the result type.
+	 * @return the result of the preview.
+	 * @throws CancellationException
+	 *             if the preview was superseded by a newer one.
+	 * @throws Exception
+	 *             if the preview failed.
+	 */
+	public < V > V run( final Callable< V > task, final Runnable onCancel ) throws Exception
+	{
+		final long ticket;
+		synchronized ( this )
+		{
+			ticket = ++latest;
+			cancelRunning();
+		}
+
+		try
+		{
+			Thread.sleep( DEBOUNCE_DELAY );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException( "Preview interrupted." );
+		}
+
+		synchronized ( this )
+		{
+			if ( ticket != latest )
+				throw new CancellationException( "Preview superseded by a newer one." );
+			running = Thread.currentThread();
+			runningCancel = onCancel;
+		}
+
+		try
+		{
+			final V result = task.call();
+			synchronized ( this )
+			{
+				if ( ticket != latest )
+					throw new CancellationException( "Preview superseded by a newer one." );
+			}
+			return result;
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				if ( running == Thread.currentThread() )
+				{
+					running = null;
+					runningCancel = null;
+				}
+				// Do not leak a cancellation to the caller's next task.
+				if ( ticket != latest )
+					Thread.interrupted();
+			}
+		}
+	}
+
+	private void cancelRunning()
+	{
+		if ( running == null )
+			return;
+		running.interrupt();
+		if ( runningCancel != null )
+			runningCancel.run();
+		running = null;
+		runningCancel = null;
+	}
+}
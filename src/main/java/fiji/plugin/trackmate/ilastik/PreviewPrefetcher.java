@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.Logger;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Predicts the frames around the one just previewed in the background, so
+ * that the probabilities are in the {@link ProbabilityFrameCache} when the
+ * user previews them.
+ * <p>
+ * Prefetches run one at a time, in a low-priority thread, nearest frames
+ * first, with a backend of their own, so that cancelling them does not stop
+ * the preview. Only the probabilities are computed: spots are extracted by
+ * the preview. A new preview cancels the prefetches, including the one in
+ * progress.
+ */
+public class PreviewPrefetcher
+{
+
+	private static PreviewPrefetcher instance;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "TrackMate ilastik prefetch thread" );
+		thread.setDaemon( true );
+		thread.setPriority( Thread.MIN_PRIORITY );
+		return thread;
+	} );
+
+	private final List< Future< ? > > pending = new ArrayList<>();
+
+	/**
+	 * The backend the prefetches run with.
+	 */
+	private InferenceBackend backend;
+
+	/**
+	 * What the probabilities depend on, for the prefetches in the queue.
+	 */
+	private List< Object > context;
+
+	public static synchronized PreviewPrefetcher getInstance()
+	{
+		if ( instance == null )
+			instance = new PreviewPrefetcher();
+		return instance;
+	}
+
+	/**
+	 * Sets the backend the next prefetches run with. It must not be the one
+	 * of the preview. The prefetches in progress are cancelled.
+	 * 
+	 * @param backend
+	 *            the backend, configured as the one of the preview.
+	 */
+	public synchronized void setBackend( final InferenceBackend backend )
+	{
+		cancel();
+		this.backend = backend;
+	}
+
+	/**
+	 * Schedules the prediction of the frames around the specified one.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval of the frame just previewed, with a single
+	 *            time-point.
+	 * @param channel
+	 *            the channel to operate on.
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @param classId
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            the threshold on the probability map.
+	 * @param options
+	 *            the options of the preview. Their
+	 *            {@link IlastikRunnerOptions#prefetch} field gives the number
+	 *            of frames to predict on each side. If no backend was set, or
+	 *            if it is not of the type of the one of the preview, a new
+	 *            one with the default configuration is used.
+	 * @param <T>
+	 *            the pixel type of the source image.
+	 */
+	public synchronized < T extends RealType< T > & NativeType< T > > void prefetch(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final IlastikRunnerOptions options )
+	{
+		final int tDim = img.dimensionIndex( Axes.TIME );
+		if ( tDim < 0 || options.prefetch <= 0 )
+			return;
+		if ( backend == null || !backend.getName().equals( options.backend.getName() ) )
+			setBackend( IlastikDetectorFactory.getBackend( options.backend.getName() ) );
+
+		final List< Object > newContext = Arrays.asList(
+				img,
+				channel,
+				projectFilePath,
+				new File( projectFilePath ).lastModified(),
+				options.backend.getName(),
+				options.downsamplingXY,
+				options.downsamplingZ,
+				options.roi,
+				String.valueOf( options.prescreen ),
+				interval.dimension( 0 ),
+				interval.dimension( 1 ),
+				interval.min( 0 ),
+				interval.min( 1 ) );
+		if ( newContext.equals( context ) )
+			cancelPending( false );
+		else
+			cancel();
+		context = newContext;
+
+		final IlastikRunnerOptions prefetchOptions = IlastikRunnerOptions.create( options )
+				.prefetch( 0 )
+				.preview( false )
+				.cacheProbabilities( true )
+				.predictOnly( true )
+				.backend( backend )
+				.labelSink( null )
+				.logger( Logger.VOID_LOGGER )
+				.numThreads( Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) )
+				.get();
+		final int last = interval.numDimensions() - 1;
+		final long t = interval.min( last );
+		final long nFrames = img.dimension( tDim );
+		for ( int d = 1; d <= options.prefetch; d++ )
+		{
+			for ( final long frame : new long[] { t + d, t - d } )
+			{
+				if ( frame < 0 || frame >= nFrames )
+					continue;
+				final long[] min = new long[ interval.numDimensions() ];
+				final long[] max = new long[ interval.numDimensions() ];
+				interval.min( min );
+				interval.max( max );
+				min[ last ] = frame;
+				max[ last ] = frame;
+				final Interval frameInterval = new FinalInterval( min, max );
+				pending.add( executor.submit( () -> {
+					try
+					{
+						IlastikRunner.run( img, frameInterval, channel, projectFilePath, classId, probaThreshold, prefetchOptions );
+					}
+					catch ( final Exception e )
+					{
+						// Prefetching is best-effort: the preview will report it.
+					}
+				} ) );
+			}
+		}
+	}
+
+	/**
+	 * Cancels all prefetches, including the one in progress, and stops the
+	 * external process it may be waiting for.
+	 */
+	public synchronized void cancel()
+	{
+		cancelPending( true );
+		context = null;
+	}
+
+	private void cancelPending( final boolean interruptRunning )
+	{
+		for ( final Future< ? > future : pending )
+			future.cancel( interruptRunning );
+		pending.clear();
+		if ( interruptRunning && backend != null )
+			backend.cancel();
+	}
+}
@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import fiji.plugin.trackmate.ilastik.classifier.Fingerprint;
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A memory-bounded cache of the class probabilities computed by the
+ * inference backends, used to answer preview requests on frames that were
+ * already classified or prefetched.
+ * <p>
+ * Entries are keyed by a fingerprint of the pixels and dimensions sent to
+ * the backend, the project file and its modification time, and the backend
+ * name. The class and the threshold are not part of the key, so changing
+ * them does not require a new inference. Entries are evicted in
+ * least-recently-used order when the cache exceeds its budget.
+ * <p>
+ * Cached probabilities are shared and must not be modified.
+ */
+public class ProbabilityFrameCache
+{
+
+	private static ProbabilityFrameCache instance;
+
+	private final LinkedHashMap< Key, ImgPlus< FloatType > > map = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private long maxBytes;
+
+	private long bytes;
+
+	public ProbabilityFrameCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cache shared by the previews. By default it may use an
+	 * eighth of the maximal heap size.
+	 * 
+	 * @return the shared cache.
+	 */
+	public static synchronized ProbabilityFrameCache getInstance()
+	{
+		if ( instance == null )
+			instance = new ProbabilityFrameCache( Runtime.getRuntime().maxMemory() / 8 );
+		return instance;
+	}
+
+	/**
+	 * Returns the class probabilities of the specified input, from the cache
+	 * if they are there, or computed by the backend and stored otherwise.
+	 * 
+	 * @param backend
+	 *            the backend to compute the probabilities with.
+	 * @param input
+	 *            the image to classify.
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param storage
+	 *            where to store the probabilities.
+	 * @param <T>
+	 *            the pixel type of the input.
+	 * @return the class probabilities.
+	 * @throws IOException
+	 *             if the ilastik project cannot be read.
+	 */
+	public < T extends RealType< T > & NativeType< T > > ImgPlus< FloatType > predict(
+			final InferenceBackend backend,
+			final ImgPlus< T > input,
+			final String projectFilePath,
+			final int numThreads,
+			final PredictionStorage storage ) throws IOException
+	{
+		final Key key = new Key( fingerprint( input ), projectFilePath, backend.getName() );
+		synchronized ( this )
+		{
+			final ImgPlus< FloatType > cached = map.get( key );
+			if ( cached != null )
+				return cached;
+		}
+
+		final ImgPlus< FloatType > proba = backend.predict( input, projectFilePath, numThreads, storage );
+		// A cancelled prediction may be incomplete.
+		if ( !Thread.currentThread().isInterrupted() )
+			put( key, proba );
+		return proba;
+	}
+
+	private synchronized void put( final Key key, final ImgPlus< FloatType > proba )
+	{
+		final long size = Intervals.numElements( proba ) * Float.BYTES;
+		if ( size > maxBytes )
+			return;
+		final ImgPlus< FloatType > previous = map.put( key, proba );
+		if ( previous != null )
+			bytes -= Intervals.numElements( previous ) * Float.BYTES;
+		bytes += size;
+
+		final Iterator< Entry< Key, ImgPlus< FloatType > > > it = map.entrySet().iterator();
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			bytes -= Intervals.numElements( it.next().getValue() ) * Float.BYTES;
+			it.remove();
+		}
+	}
+
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		final Iterator< Entry< Key, ImgPlus< FloatType > > > it = map.entrySet().iterator();
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			bytes -= Intervals.numElements( it.next().getValue() ) * Float.BYTES;
+			it.remove();
+		}
+	}
+
+	public synchronized void clear()
+	{
+		map.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * Computes a 64-bit fingerprint of the pixel values, dimensions and pixel
+	 * type of an image.
+	 * 
+	 * @param img
+	 *            the image.
+	 * @param <T>
+	 *            the pixel type.
+	 * @return the fingerprint.
+	 */
+	public static < T extends RealType< T > > long fingerprint( final ImgPlus< T > img )
+	{
+		final Fingerprint fingerprint = new Fingerprint( Intervals.dimensionsAsLongArray( img ), img.firstElement().getClass().getName() );
+		for ( final T p : Views.flatIterable( img ) )
+			fingerprint.add( p.getRealFloat() );
+		return fingerprint.get();
+	}
+
+	private static final class Key
+	{
+
+		private final long fingerprint;
+
+		private final String projectFilePath;
+
+		private final long lastModified;
+
+		private final String backend;
+
+		private Key( final long fingerprint, final String projectFilePath, final String backend )
+		{
+			this.fingerprint = fingerprint;
+			this.projectFilePath = projectFilePath;
+			this.lastModified = new File( projectFilePath ).lastModified();
+			this.backend = backend;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key o = ( Key ) obj;
+			return fingerprint == o.fingerprint
+					&& lastModified == o.lastModified
+					&& projectFilePath.equals( o.projectFilePath )
+					&& backend.equals( o.backend );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = Long.hashCode( fingerprint );
+			h = 31 * h + Long.hashCode( lastModified );
+			h = 31 * h + projectFilePath.hashCode();
+			return 31 * h + backend.hashCode();
+		}
+	}
+}
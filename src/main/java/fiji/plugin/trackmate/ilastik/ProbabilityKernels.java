@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Kernels of the extraction of objects, specialized for probability maps
+ * stored in primitive arrays: 32-bit floats, or 8-bit unsigned integers as
+ * exported by ilastik.
+ * <p>
+ * They are plain counted loops over the arrays, without the
+ * <code>RealType</code> accessors of the generic path, which the JIT
+ * compiler can unroll and vectorize. They give the same results as the
+ * generic path: a pixel is foreground if its value is strictly above the
+ * threshold.
+ */
+public class ProbabilityKernels
+{
+
+	/** Number of statistics per object: count, sum of X, sum of Y, max. */
+	public static final int N_STATS = 4;
+
+	private ProbabilityKernels()
+	{}
+
+	/**
+	 * Returns the array storing a float image.
+	 * 
+	 * @param frame
+	 *            the image.
+	 * @return the array in which the pixels are stored in raster order, or
+	 *         <code>null</code> if the image is not a float {@link ArrayImg}.
+	 */
+	public static float[] floats( final RandomAccessibleInterval< ? > frame )
+	{
+		if ( !( frame instanceof ArrayImg ) )
+			return null;
+		final ArrayImg< ?, ? > img = ( ArrayImg< ?, ? > ) frame;
+		if ( !( img.firstElement() instanceof FloatType ) )
+			return null;
+		final Object access = img.update( null );
+		return ( access instanceof FloatArray ) ? ( ( FloatArray ) access ).getCurrentStorageArray() : null;
+	}
+
+	/**
+	 * Returns the array storing a 8-bit unsigned image.
+	 * 
+	 * @param frame
+	 *            the image.
+	 * @return the array in which the pixels are stored in raster order, or
+	 *         <code>null</code> if the image is not a 8-bit unsigned
+	 *         {@link ArrayImg}.
+	 */
+	public static byte[] uint8s( final RandomAccessibleInterval< ? > frame )
+	{
+		if ( !( frame instanceof ArrayImg ) )
+			return null;
+		final ArrayImg< ?, ? > img = ( ArrayImg< ?, ? > ) frame;
+		if ( !( img.firstElement() instanceof UnsignedByteType ) )
+			return null;
+		final Object access = img.update( null );
+		return ( access instanceof ByteArray ) ? ( ( ByteArray ) access ).getCurrentStorageArray() : null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the kernels can be used on the specified
+	 * image.
+	 * 
+	 * @param frame
+	 *            the image.
+	 * @return whether the image is stored in a float or 8-bit unsigned
+	 *         array.
+	 */
+	public static boolean accepts( final RandomAccessibleInterval< ? > frame )
+	{
+		return floats( frame ) != null || uint8s( frame ) != null;
+	}
+
+	/**
+	 * Thresholds a range of pixels.
+	 * 
+	 * @param src
+	 *            the pixels.
+	 * @param from
+	 *            the index of the first pixel, inclusive.
+	 * @param to
+	 *            the index of the last pixel, exclusive.
+	 * @param threshold
+	 *            the threshold.
+	 * @param dst
+	 *            the array to write the mask to, from index 0.
+	 */
+	public static void threshold( final float[] src, final int from, final int to, final double threshold, final boolean[] dst )
+	{
+		final float t = floatThreshold( threshold );
+		for ( int i = from; i < to; i++ )
+			dst[ i - from ] = src[ i ] > t;
+	}
+
+	/**
+	 * Thresholds a range of 8-bit unsigned pixels.
+	 * 
+	 * @param src
+	 *            the pixels.
+	 * @param from
+	 *            the index of the first pixel, inclusive.
+	 * @param to
+	 *            the index of the last pixel, exclusive.
+	 * @param threshold
+	 *            the threshold, in the 0-255 range of the pixels.
+	 * @param dst
+	 *            the array to write the mask to, from index 0.
+	 */
+	public static void threshold( final byte[] src, final int from, final int to, final double threshold, final boolean[] dst )
+	{
+		final int t = uint8Threshold( threshold );
+		for ( int i = from; i < to; i++ )
+			dst[ i - from ] = ( src[ i ] & 0xff ) > t;
+	}
+
+	/**
+	 * Accumulates the statistics of labeled objects over a range of rows: the
+	 * number of pixels, the sums of their X and Y positions, and the maximal
+	 * value.
+	 * 
+	 * @param labels
+	 *            the labels, in raster order, 0 for background, from 1.
+	 * @param src
+	 *            the pixels, in raster order.
+	 * @param width
+	 *            the width of the image.
+	 * @param fromRow
+	 *            the first row, inclusive.
+	 * @param toRow
+	 *            the last row, exclusive.
+	 * @param stats
+	 *            the statistics, {@link #N_STATS} per label, label 1 first.
+	 *            The max must be initialized to negative infinity.
+	 */
+	public static void accumulate( final int[] labels, final float[] src, final int width, final int fromRow, final int toRow, final double[] stats )
+	{
+		for ( int y = fromRow; y < toRow; y++ )
+		{
+			final int row = y * width;
+			for ( int x = 0; x < width; x++ )
+			{
+				final int l = labels[ row + x ];
+				if ( l == 0 )
+					continue;
+				final int s = ( l - 1 ) * N_STATS;
+				stats[ s ]++;
+				stats[ s + 1 ] += x;
+				stats[ s + 2 ] += y;
+				stats[ s + 3 ] = Math.max( stats[ s + 3 ], src[ row + x ] );
+			}
+		}
+	}
+
+	/**
+	 * Accumulates the statistics of labeled objects over a range of rows of
+	 * a 8-bit unsigned image.
+	 * 
+	 * @see #accumulate(int[], float[], int, int, int, double[])
+	 */
+	public static void accumulate( final int[] labels, final byte[] src, final int width, final int fromRow, final int toRow, final double[] stats )
+	{
+		for ( int y = fromRow; y < toRow; y++ )
+		{
+			final int row = y * width;
+			for ( int x = 0; x < width; x++ )
+			{
+				final int l = labels[ row + x ];
+				if ( l == 0 )
+					continue;
+				final int s = ( l - 1 ) * N_STATS;
+				stats[ s ]++;
+				stats[ s + 1 ] += x;
+				stats[ s + 2 ] += y;
+				stats[ s + 3 ] = Math.max( stats[ s + 3 ], src[ row + x ] & 0xff );
+			}
+		}
+	}
+
+	/**
+	 * The largest float not above the threshold: for a float value
+	 * <code>v</code>, <code>v &gt; threshold</code> if and only if
+	 * <code>v &gt; floatThreshold( threshold )</code>, so the comparison can
+	 * be made in single precision.
+	 */
+	static float floatThreshold( final double threshold )
+	{
+		final float t = ( float ) threshold;
+		return ( t > threshold ) ? Math.nextDown( t ) : t;
+	}
+
+	/**
+	 * The largest integer not above the threshold, clamped to the range of
+	 * 8-bit unsigned values.
+	 */
+	static int uint8Threshold( final double threshold )
+	{
+		return ( int ) Math.max( -1, Math.min( 255, Math.floor( threshold ) ) );
+	}
+}
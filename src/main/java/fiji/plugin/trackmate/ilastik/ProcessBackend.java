@@ -0,0 +1,340 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.ilastik.ilastik4ij.ui.IlastikOptions;
+import org.ilastik.ilastik4ij.workflow.PixelClassificationCommand;
+import org.ilastik.ilastik4ij.workflow.WorkflowCommand;
+import org.scijava.Context;
+import org.scijava.Priority;
+import org.scijava.options.OptionsService;
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.DefaultDataset;
+import net.imagej.ImgPlus;
+import net.imagej.ops.MetadataUtil;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Computes the class probabilities by running ilastik in a separate process,
+ * through the ilastik4ij plugin.
+ */
+@Plugin( type = InferenceBackend.class, name = ProcessBackend.NAME, priority = Priority.HIGH )
+public class ProcessBackend implements InferenceBackend
+{
+
+	public static final String NAME = "ilastik";
+
+	private final static Context context = TMUtils.getContext();
+
+	/**
+	 * The IDs of the ilastik processes already attributed to a call, so that
+	 * two calls that start ilastik at the same time do not claim the same
+	 * process.
+	 */
+	private final static Set< Long > claimed = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * How often to look for the process that ilastik4ij started, in ms.
+	 */
+	private static final long POLL_INTERVAL = 20;
+
+	/**
+	 * The methods of the process API of Java 9 and later, or
+	 * <code>null</code> on Java 8.
+	 */
+	private static final ProcessApi PROCESS_API = ProcessApi.find();
+
+	/**
+	 * The handles of the ilastik processes started by this backend and still
+	 * running, as <code>java.lang.ProcessHandle</code>s.
+	 */
+	private final Set< Object > processes = ConcurrentHashMap.newKeySet();
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > ImgPlus< FloatType > predict(
+			final ImgPlus< T > input,
+			final String projectFilePath,
+			final int numThreads,
+			final PredictionStorage storage ) throws IOException
+	{
+		final File projectFile = new File( projectFilePath );
+		if ( !projectFile.exists() || !projectFile.canRead() )
+			throw new IOException( "Cannot read ilastik project file: " + projectFilePath );
+
+		final PixelClassificationCommand< T > classifier = new PixelClassificationCommand<>();
+		classifier.setContext( context );
+		classifier.projectFileName = projectFile;
+		classifier.pixelClassificationType = WorkflowCommand.ROLE_PROBABILITIES;
+		classifier.inputImage = new DefaultDataset( context, input );
+
+		// A superseded request does not start ilastik.
+		if ( Thread.currentThread().isInterrupted() )
+			throw new InterruptedIOException( "The prediction was cancelled before ilastik started." );
+
+		/*
+		 * ilastik4ij does not expose the process it starts. Claim the first
+		 * ilastik process on this project that appears among the children of
+		 * the JVM and that no other call claimed, so that cancel() only
+		 * destroys it. No lock is held while ilastik4ij exports the input, so
+		 * predictions run concurrently. Two calls on the same project that
+		 * start ilastik at the same time may swap their processes.
+		 */
+		final Map< Long, Object > started = new ConcurrentHashMap<>();
+		Thread watcher = null;
+		if ( PROCESS_API != null )
+		{
+			final Set< Long > before = ilastikProcesses( projectFile.getName() ).keySet();
+			watcher = new Thread( () -> {
+				try
+				{
+					while ( !Thread.currentThread().isInterrupted() )
+					{
+						final Map< Long, Object > now = ilastikProcesses( projectFile.getName() );
+						now.keySet().removeAll( before );
+						for ( final Map.Entry< Long, Object > entry : now.entrySet() )
+						{
+							if ( claimed.add( entry.getKey() ) )
+							{
+								started.put( entry.getKey(), entry.getValue() );
+								processes.add( entry.getValue() );
+								return;
+							}
+						}
+						Thread.sleep( POLL_INTERVAL );
+					}
+				}
+				catch ( final InterruptedException e )
+				{
+					// The call ended before the process was seen.
+				}
+			}, "TrackMate ilastik process watcher" );
+			watcher.setDaemon( true );
+			watcher.start();
+		}
+		try
+		{
+			classifier.run();
+		}
+		finally
+		{
+			if ( watcher != null )
+			{
+				watcher.interrupt();
+				try
+				{
+					watcher.join();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			processes.removeAll( started.values() );
+			claimed.removeAll( started.keySet() );
+		}
+		return toFloat( classifier.predictions, storage );
+	}
+
+	/**
+	 * ilastik is started for each prediction, so it cannot be kept warm. This
+	 * checks that the ilastik executable is configured and reads the project
+	 * file once, so that it is in the file system cache when ilastik loads
+	 * it.
+	 */
+	@Override
+	public void warmUp( final String projectFilePath ) throws IOException
+	{
+		final IlastikOptions ilastikOptions = context.getService( OptionsService.class ).getOptions( IlastikOptions.class );
+		final File executable = ilastikOptions.executableFile;
+		if ( executable == null || !executable.exists() )
+			throw new IOException( "The ilastik executable is not configured. Set it in Plugins > ilastik > Configure ilastik executable location." );
+
+		final File projectFile = new File( projectFilePath );
+		if ( !projectFile.exists() || !projectFile.canRead() )
+			throw new IOException( "Cannot read ilastik project file: " + projectFilePath );
+		final byte[] buffer = new byte[ 1 << 20 ];
+		try (InputStream is = new FileInputStream( projectFile ))
+		{
+			while ( is.read( buffer ) >= 0 )
+				if ( Thread.currentThread().isInterrupted() )
+					return;
+		}
+	}
+
+	/**
+	 * Destroys the ilastik processes started by this backend, and their
+	 * children. The processes started by other backends, for instance by
+	 * another detection or by another plugin, are left running.
+	 * <p>
+	 * This requires the process API of Java 9 and later, accessed by
+	 * reflection. On Java 8, this does nothing and the process runs to
+	 * completion, but its result is discarded.
+	 */
+	@Override
+	public void cancel()
+	{
+		if ( PROCESS_API == null )
+			return;
+		try
+		{
+			for ( final Object process : processes )
+			{
+				final Stream< ? > children = ( Stream< ? > ) PROCESS_API.descendants.invoke( process );
+				for ( final Object child : children.toArray() )
+					PROCESS_API.destroy.invoke( child );
+				PROCESS_API.destroy.invoke( process );
+			}
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the descendants of the JVM whose command line contains
+	 * "ilastik" and the specified project file name, by process ID. Where the
+	 * arguments of a process cannot be read, only its command is checked.
+	 */
+	private static Map< Long, Object > ilastikProcesses( final String projectFileName )
+	{
+		final Map< Long, Object > processes = new HashMap<>();
+		try
+		{
+			final Stream< ? > children = ( Stream< ? > ) PROCESS_API.descendants.invoke( PROCESS_API.current.invoke( null ) );
+			for ( final Object child : children.toArray() )
+			{
+				final Object info = PROCESS_API.info.invoke( child );
+				final Optional< ? > line = ( Optional< ? > ) PROCESS_API.commandLine.invoke( info );
+				final Optional< ? > cmd = line.isPresent() ? line : ( Optional< ? > ) PROCESS_API.command.invoke( info );
+				if ( cmd.isPresent() && cmd.get().toString().toLowerCase().contains( "ilastik" )
+						&& ( !line.isPresent() || cmd.get().toString().contains( projectFileName ) ) )
+					processes.put( ( Long ) PROCESS_API.pid.invoke( child ), child );
+			}
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			e.printStackTrace();
+		}
+		return processes;
+	}
+
+	private static final class ProcessApi
+	{
+
+		private final Method current;
+
+		private final Method descendants;
+
+		private final Method info;
+
+		private final Method command;
+
+		private final Method commandLine;
+
+		private final Method pid;
+
+		private final Method destroy;
+
+		private ProcessApi() throws ReflectiveOperationException
+		{
+			final Class< ? > processHandle = Class.forName( "java.lang.ProcessHandle" );
+			final Class< ? > processInfo = Class.forName( "java.lang.ProcessHandle$Info" );
+			this.current = processHandle.getMethod( "current" );
+			this.descendants = processHandle.getMethod( "descendants" );
+			this.info = processHandle.getMethod( "info" );
+			this.command = processInfo.getMethod( "command" );
+			this.commandLine = processInfo.getMethod( "commandLine" );
+			this.pid = processHandle.getMethod( "pid" );
+			this.destroy = processHandle.getMethod( "destroy" );
+		}
+
+		private static ProcessApi find()
+		{
+			try
+			{
+				return new ProcessApi();
+			}
+			catch ( final ReflectiveOperationException e )
+			{
+				// Java 8: cannot reach the ilastik process.
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public boolean isExternal()
+	{
+		return true;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	/**
+	 * ilastik returns probabilities as 32-bit floats, but ilastik4ij types
+	 * them as the input. Check and copy if needed. They are also copied if
+	 * they are to be stored off-heap, so that the heap copy made by ilastik4ij
+	 * can be collected right away.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static < T extends RealType< T > & NativeType< T > > ImgPlus< FloatType > toFloat( final ImgPlus< T > predictions, final PredictionStorage storage )
+	{
+		final Object type = predictions.firstElement();
+		if ( type instanceof FloatType && storage == PredictionStorage.HEAP )
+			return ( ImgPlus ) predictions;
+
+		final Img< FloatType > img = storage.floats( Intervals.dimensionsAsLongArray( predictions ) );
+		final Cursor< T > cIn = Views.flatIterable( predictions ).cursor();
+		final Cursor< FloatType > cOut = Views.flatIterable( img ).cursor();
+		while ( cIn.hasNext() )
+			cOut.next().setReal( cIn.next().getRealFloat() );
+		final ImgPlus< FloatType > out = new ImgPlus<>( img );
+		MetadataUtil.copyImgPlusMetadata( predictions, out );
+		return out;
+	}
+}
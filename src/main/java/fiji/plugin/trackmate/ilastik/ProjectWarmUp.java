@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Speculative warm-up of an ilastik project, started in the background as
+ * soon as a project is selected, so that the first preview does not pay for
+ * loading it.
+ * <p>
+ * The warm-up reads the project metadata, checks that the project was
+ * trained on as many channels as the image has (or on one channel), and
+ * calls {@link InferenceBackend#warmUp(String)}. Only one warm-up runs at a
+ * time: submitting a new one cancels the previous one.
+ */
+public class ProjectWarmUp
+{
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "TrackMate ilastik warm-up thread" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private Future< ? > current;
+
+	/**
+	 * Starts the warm-up of the specified project in the background, and
+	 * cancels the warm-up in progress, if any.
+	 * 
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @param nImageChannels
+	 *            the number of channels of the image to classify.
+	 * @param backend
+	 *            the backend to warm up.
+	 * @param logger
+	 *            the logger to report problems with the project to.
+	 */
+	public synchronized void submit( final String projectFilePath, final int nImageChannels, final InferenceBackend backend, final Logger logger )
+	{
+		cancel();
+		current = executor.submit( () -> warmUp( projectFilePath, nImageChannels, backend, logger ) );
+	}
+
+	/**
+	 * Cancels the warm-up in progress, if any.
+	 */
+	public synchronized void cancel()
+	{
+		if ( current != null )
+			current.cancel( true );
+		current = null;
+	}
+
+	private static void warmUp( final String projectFilePath, final int nImageChannels, final InferenceBackend backend, final Logger logger )
+	{
+		try
+		{
+			final long start = System.currentTimeMillis();
+			final List< String > labels = IlastikRunner.getClassLabels( projectFilePath );
+			if ( labels == null || labels.isEmpty() )
+			{
+				logger.error( "The ilastik project " + projectFilePath + " has no class label. Is it a trained pixel classification project?\n" );
+				return;
+			}
+			final int modelNChannels = IlastikRunner.getModelNChannel( projectFilePath );
+			if ( modelNChannels > 1 && modelNChannels != nImageChannels )
+			{
+				logger.error( "The ilastik project was trained on images with " + modelNChannels
+						+ " channels, but the image has " + nImageChannels + ".\n" );
+				return;
+			}
+			if ( Thread.currentThread().isInterrupted() )
+				return;
+
+			backend.warmUp( projectFilePath );
+			if ( Thread.currentThread().isInterrupted() )
+				return;
+			logger.log( String.format( "Prepared the ilastik project for the %s backend in %.1f s.\n",
+					backend.getName(), ( System.currentTimeMillis() - start ) / 1000. ) );
+		}
+		catch ( final Exception e )
+		{
+			if ( !Thread.currentThread().isInterrupted() )
+				logger.error( "Problem preparing the ilastik project:\n" + e.getMessage() + '\n' );
+		}
+	}
+}
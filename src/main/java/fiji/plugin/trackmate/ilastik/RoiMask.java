@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.awt.Rectangle;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A rasterized version of an ImageJ ROI, used to restrict the inference to
+ * the pixels that are inside the ROI specified in the TrackMate settings.
+ * <p>
+ * Coordinates are expressed in pixels of the source image, not of the
+ * cropped image sent to ilastik.
+ */
+public class RoiMask
+{
+
+	private final Rectangle bounds;
+
+	/**
+	 * The mask over the ROI bounds, or <code>null</code> if the ROI is a
+	 * rectangle.
+	 */
+	private final byte[] mask;
+
+	public RoiMask( final Roi roi )
+	{
+		this.bounds = roi.getBounds();
+		final ImageProcessor ip = roi.getMask();
+		this.mask = ( ip == null ) ? null : ( byte[] ) ip.getPixels();
+	}
+
+	/**
+	 * Returns <code>true</code> if the pixel at the specified position is
+	 * inside the ROI.
+	 * 
+	 * @param x
+	 *            the X position, in pixels of the source image.
+	 * @param y
+	 *            the Y position, in pixels of the source image.
+	 * @return whether the pixel is inside the ROI.
+	 */
+	public boolean contains( final long x, final long y )
+	{
+		final long lx = x - bounds.x;
+		final long ly = y - bounds.y;
+		if ( lx < 0 || ly < 0 || lx >= bounds.width || ly >= bounds.height )
+			return false;
+		return mask == null || mask[ ( int ) ( ly * bounds.width + lx ) ] != 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if at least one pixel of the specified
+	 * rectangle is inside the ROI.
+	 * 
+	 * @param minX
+	 *            the min X of the rectangle, inclusive.
+	 * @param minY
+	 *            the min Y of the rectangle, inclusive.
+	 * @param maxX
+	 *            the max X of the rectangle, inclusive.
+	 * @param maxY
+	 *            the max Y of the rectangle, inclusive.
+	 * @return whether the rectangle touches the ROI.
+	 */
+	public boolean intersects( final long minX, final long minY, final long maxX, final long maxY )
+	{
+		final long x0 = Math.max( minX, bounds.x );
+		final long y0 = Math.max( minY, bounds.y );
+		final long x1 = Math.min( maxX, bounds.x + bounds.width - 1 );
+		final long y1 = Math.min( maxY, bounds.y + bounds.height - 1 );
+		if ( x0 > x1 || y0 > y1 )
+			return false;
+		if ( mask == null )
+			return true;
+
+		for ( long y = y0; y <= y1; y++ )
+		{
+			final int offset = ( int ) ( ( y - bounds.y ) * bounds.width - bounds.x );
+			for ( long x = x0; x <= x1; x++ )
+				if ( mask[ offset + ( int ) x ] != 0 )
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sets to 0 the pixels of a 2D or 3D probability map that are outside the
+	 * ROI, so that no object can be found there.
+	 * <p>
+	 * The probability map may have been computed on a binned image. The pixel
+	 * at position <code>i</code> of the probability map is tested at position
+	 * <code>origin + i * f + (f - 1) / 2</code> in the source image, where
+	 * <code>f</code> is the binning factor.
+	 * 
+	 * @param frame
+	 *            the probability map to mask, zero-min.
+	 * @param originX
+	 *            the X position of the probability map top-left corner in the
+	 *            source image.
+	 * @param originY
+	 *            the Y position of the probability map top-left corner in the
+	 *            source image.
+	 * @param factorX
+	 *            the binning factor in X.
+	 * @param factorY
+	 *            the binning factor in Y.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 */
+	public < R extends RealType< R > > void apply(
+			final RandomAccessibleInterval< R > frame,
+			final long originX,
+			final long originY,
+			final long factorX,
+			final long factorY )
+	{
+		final long shiftX = originX + ( factorX - 1 ) / 2;
+		final long shiftY = originY + ( factorY - 1 ) / 2;
+		final Cursor< R > cursor = Views.iterable( frame ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final long x = shiftX + cursor.getLongPosition( 0 ) * factorX;
+			final long y = shiftY + cursor.getLongPosition( 1 ) * factorY;
+			if ( !contains( x, y ) )
+				cursor.get().setZero();
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.DEFAULT_BACKEND_ADDRESS;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_BACKEND_ADDRESS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.scijava.Priority;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Computes the class probabilities by sending the pixels to an
+ * {@link InferenceServer} over a socket.
+ * <p>
+ * The server runs in another JVM, usually on the same machine through the
+ * loopback interface, or on a compute server. It keeps its backend warm
+ * between requests, and takes the inference off the JVM of the GUI. The
+ * project path is resolved on the server, so it must be valid there.
+ * <p>
+ * The address of the server is read from the
+ * {@link IlastikDetectorFactory#KEY_BACKEND_ADDRESS} setting, as
+ * <code>host:port</code>.
+ */
+@Plugin( type = InferenceBackend.class, name = SocketBackend.NAME, priority = Priority.LOW )
+public class SocketBackend implements InferenceBackend
+{
+
+	public static final String NAME = "Server";
+
+	public static final int DEFAULT_PORT = 9753;
+
+	/**
+	 * How long to wait for the server to accept a connection, in ms.
+	 */
+	public static final int CONNECT_TIMEOUT = 10_000;
+
+	/**
+	 * How long to wait for the server to answer by default, in ms. An
+	 * inference of a large chunk can take a while.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 60 * 60 * 1000;
+
+	private String host = "localhost";
+
+	private int port = DEFAULT_PORT;
+
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+	/**
+	 * The connections in progress, closed to cancel them. The backend may be
+	 * shared by several detections running at once.
+	 */
+	private final Set< Socket > open = ConcurrentHashMap.newKeySet();
+
+	@Override
+	public void configure( final Map< String, Object > settings )
+	{
+		setAddress( ( String ) settings.getOrDefault( KEY_BACKEND_ADDRESS, DEFAULT_BACKEND_ADDRESS ) );
+	}
+
+	/**
+	 * Sets the address of the server.
+	 * 
+	 * @param address
+	 *            the address, as <code>host:port</code> or <code>host</code>
+	 *            for the default port.
+	 * @throws IllegalArgumentException
+	 *             if the port is not a number.
+	 */
+	public void setAddress( final String address )
+	{
+		final int colon = address.lastIndexOf( ':' );
+		if ( colon < 0 )
+		{
+			host = address.trim();
+			port = DEFAULT_PORT;
+			return;
+		}
+		host = address.substring( 0, colon ).trim();
+		try
+		{
+			port = Integer.parseInt( address.substring( colon + 1 ).trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "Invalid inference server address: " + address + ". Expected host:port." );
+		}
+	}
+
+	/**
+	 * Sets how long to wait for the server to answer a request, before
+	 * failing it.
+	 * 
+	 * @param readTimeout
+	 *            the timeout in ms. 0 waits forever.
+	 */
+	public void setReadTimeout( final int readTimeout )
+	{
+		this.readTimeout = Math.max( 0, readTimeout );
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > ImgPlus< FloatType > predict(
+			final ImgPlus< T > input,
+			final String projectFilePath,
+			final int numThreads,
+			final PredictionStorage storage ) throws IOException
+	{
+		try (Socket socket = connect())
+		{
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+			InferenceProtocol.writeHeader( out, InferenceProtocol.PREDICT, projectFilePath );
+			out.writeInt( numThreads );
+			InferenceProtocol.writeImage( out, input );
+			out.flush();
+
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+			checkStatus( in );
+			return InferenceProtocol.readProbabilities( in, storage );
+		}
+	}
+
+	/**
+	 * Asks the server to warm up its own backend for the project.
+	 */
+	@Override
+	public void warmUp( final String projectFilePath ) throws IOException
+	{
+		try (Socket socket = connect())
+		{
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+			InferenceProtocol.writeHeader( out, InferenceProtocol.WARM_UP, projectFilePath );
+			out.flush();
+			checkStatus( new DataInputStream( socket.getInputStream() ) );
+		}
+	}
+
+	/**
+	 * Closes the connections of the predictions in progress. The server
+	 * finishes the predictions, but their results are discarded.
+	 */
+	@Override
+	public void cancel()
+	{
+		for ( final Socket socket : open )
+		{
+			try
+			{
+				socket.close();
+			}
+			catch ( final IOException e )
+			{
+				// Already closed.
+			}
+		}
+	}
+
+	/**
+	 * The inference runs in the server process, so it does not use the heap
+	 * of this JVM.
+	 */
+	@Override
+	public boolean isExternal()
+	{
+		return true;
+	}
+
+	/**
+	 * The server runs on another machine, or with its own configuration: the
+	 * local ilastik RAM budget does not apply to it.
+	 */
+	@Override
+	public boolean usesIlastikRamBudget()
+	{
+		return false;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public String toString()
+	{
+		return NAME + " (" + host + ":" + port + ")";
+	}
+
+	/**
+	 * Opens a connection to the server. It is forgotten when it is closed.
+	 */
+	private Socket connect() throws IOException
+	{
+		final Socket socket = new Socket()
+		{
+			@Override
+			public synchronized void close() throws IOException
+			{
+				open.remove( this );
+				super.close();
+			}
+		};
+		open.add( socket );
+		try
+		{
+			socket.connect( new InetSocketAddress( host, port ), CONNECT_TIMEOUT );
+			socket.setSoTimeout( readTimeout );
+			socket.setTcpNoDelay( true );
+		}
+		catch ( final IOException e )
+		{
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	private static void checkStatus( final DataInputStream in ) throws IOException
+	{
+		final int status = in.readInt();
+		if ( status != InferenceProtocol.STATUS_OK )
+			throw new IOException( "Inference server error: " + in.readUTF() );
+	}
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * How the 2D spots created from the probability maps are stored. Dense and
+ * long movies can yield millions of spots, and their contours then dominate
+ * the memory used by the detection.
+ */
+public enum SpotRepresentation
+{
+	/**
+	 * Spots have the simplified contour computed by TrackMate.
+	 */
+	CONTOUR,
+
+	/**
+	 * Spots have a contour simplified with a tolerance of our choosing, and
+	 * packed in a {@link CompactContourSpot}.
+	 */
+	COMPACT_CONTOUR,
+
+	/**
+	 * Spots have no contour, only a position, a radius and a quality.
+	 */
+	CENTROID,
+
+	/**
+	 * Spots are {@link LazyContourSpot}s: their contour is only traced, from
+	 * the labels of their frame, when their ROI is first read. Spots that are
+	 * filtered out never pay for it.
+	 */
+	LAZY_CONTOUR;
+
+	/**
+	 * A rough estimate of the memory used by a spot without its contour,
+	 * mostly its feature map, in bytes.
+	 */
+	private static final long SPOT_BYTES = 500;
+
+	/**
+	 * Returns <code>true</code> if the contours computed by TrackMate have to
+	 * be simplified before being stored in this representation.
+	 * 
+	 * @return whether TrackMate simplifies the contours.
+	 */
+	public boolean simplifyContours()
+	{
+		return this != COMPACT_CONTOUR;
+	}
+
+	/**
+	 * Converts the spots of one frame to this representation.
+	 * 
+	 * @param spots
+	 *            the spots, as created by TrackMate.
+	 * @param pixelSize
+	 *            the pixel sizes in X and Y of the image the spots were
+	 *            extracted from.
+	 * @param tolerance
+	 *            the tolerance, in pixels, of the contour simplification of
+	 *            {@link #COMPACT_CONTOUR}.
+	 * @return the spots in this representation. Can be the input list.
+	 */
+	public List< Spot > convert( final List< Spot > spots, final double[] pixelSize, final double tolerance )
+	{
+		switch ( this )
+		{
+		case CONTOUR:
+		default:
+			return spots;
+
+		case COMPACT_CONTOUR:
+		{
+			final double[] sharedPixelSize = new double[] { pixelSize[ 0 ], pixelSize[ 1 ] };
+			final List< Spot > out = new ArrayList<>( spots.size() );
+			for ( final Spot spot : spots )
+				out.add( CompactContourSpot.compact( spot, sharedPixelSize, tolerance ) );
+			return out;
+		}
+
+		case CENTROID:
+			for ( final Spot spot : spots )
+				spot.setRoi( null );
+			return spots;
+		}
+	}
+
+	/**
+	 * Estimates the memory used by a collection of spots.
+	 * 
+	 * @param spots
+	 *            the spots.
+	 * @return an estimate of their size, in bytes.
+	 */
+	public static long estimateBytes( final Iterable< Spot > spots )
+	{
+		long bytes = 0;
+		for ( final Spot spot : spots )
+		{
+			bytes += SPOT_BYTES;
+			if ( spot instanceof CompactContourSpot )
+			{
+				bytes += ( ( CompactContourSpot ) spot ).contourBytes();
+				continue;
+			}
+			if ( spot instanceof LazyContourSpot )
+			{
+				bytes += ( ( LazyContourSpot ) spot ).contourBytes();
+				continue;
+			}
+			final SpotRoi roi = spot.getRoi();
+			if ( roi != null )
+				bytes += 16 + 2 * ( 16 + 8 * roi.x.length );
+		}
+		return bytes;
+	}
+}
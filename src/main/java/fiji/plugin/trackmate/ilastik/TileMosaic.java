@@ -0,0 +1,484 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Packs rectangular pieces of an image into a mosaic, so that they can be
+ * classified in a single ilastik call, and gives access to the probabilities
+ * of each piece in the result.
+ * <p>
+ * Each piece is a region of one frame of the source image. In the mosaic,
+ * pieces are laid out on a grid of slots, with a margin around them filled
+ * with the source pixels surrounding the piece, so that the filters ilastik
+ * computes are not affected by the neighbor slots. Slots are arranged in
+ * pages, and pages are stacked along the time axis of the mosaic.
+ * <p>
+ * The margin is only added in X and Y. In Z, pieces are expected to span the
+ * whole depth of the source image.
+ */
+public class TileMosaic
+{
+
+	/**
+	 * A region of one frame of the source image.
+	 */
+	public static class Piece
+	{
+
+		/** Min position, in pixels of the frame (X, Y, and Z if any). */
+		public final long[] min;
+
+		/** Max position, in pixels of the frame (X, Y, and Z if any). */
+		public final long[] max;
+
+		/** The index of the frame along the time axis of the source image. */
+		public final int frame;
+
+		public Piece( final long[] min, final long[] max, final int frame )
+		{
+			this.min = min;
+			this.max = max;
+			this.frame = frame;
+		}
+
+		public long size( final int d )
+		{
+			return max[ d ] - min[ d ] + 1;
+		}
+
+		public long numPixels()
+		{
+			long n = 1;
+			for ( int d = 0; d < min.length; d++ )
+				n *= size( d );
+			return n;
+		}
+	}
+
+	private final List< Piece > pieces;
+
+	private final long margin;
+
+	/** Size of a slot, margins included, in X, Y and Z if any. */
+	private final long[] slotSize;
+
+	private final int nCols;
+
+	private final int nRows;
+
+	private final int nPages;
+
+	private final int slotsPerPage;
+
+	private final Map< Integer, List< Integer > > piecesPerFrame;
+
+	/**
+	 * Creates a mosaic layout.
+	 * 
+	 * @param pieces
+	 *            the pieces to pack. They must all have the same number of
+	 *            dimensions, 2 or 3.
+	 * @param margin
+	 *            the margin to add around each piece in X and Y, in pixels.
+	 * @param slotsPerPage
+	 *            the maximal number of pieces in one page of the mosaic.
+	 * @param alignment
+	 *            the size of the slots in X and Y is rounded up to a multiple
+	 *            of this value. Use the binning factor if the mosaic is to be
+	 *            binned before inference, 1 otherwise.
+	 */
+	public TileMosaic( final List< Piece > pieces, final long margin, final int slotsPerPage, final long alignment )
+	{
+		if ( pieces.isEmpty() )
+			throw new IllegalArgumentException( "Cannot build a mosaic without pieces." );
+		this.pieces = Collections.unmodifiableList( new ArrayList<>( pieces ) );
+		this.margin = margin;
+		this.slotsPerPage = Math.max( 1, Math.min( slotsPerPage, pieces.size() ) );
+		this.nCols = ( int ) Math.ceil( Math.sqrt( this.slotsPerPage ) );
+		this.nRows = ( this.slotsPerPage + nCols - 1 ) / nCols;
+		this.nPages = ( pieces.size() + this.slotsPerPage - 1 ) / this.slotsPerPage;
+
+		final int n = pieces.get( 0 ).min.length;
+		this.slotSize = new long[ n ];
+		for ( final Piece piece : pieces )
+			for ( int d = 0; d < n; d++ )
+				slotSize[ d ] = Math.max( slotSize[ d ], piece.size( d ) );
+		for ( int d = 0; d < 2; d++ )
+		{
+			slotSize[ d ] += 2 * margin;
+			slotSize[ d ] = ( ( slotSize[ d ] + alignment - 1 ) / alignment ) * alignment;
+		}
+
+		this.piecesPerFrame = new HashMap<>();
+		for ( int i = 0; i < pieces.size(); i++ )
+			piecesPerFrame.computeIfAbsent( pieces.get( i ).frame, k -> new ArrayList<>() ).add( i );
+	}
+
+	public List< Piece > getPieces()
+	{
+		return pieces;
+	}
+
+	public int numPages()
+	{
+		return nPages;
+	}
+
+	/**
+	 * Returns the indices of the pieces that belong to the specified frame of
+	 * the source image.
+	 * 
+	 * @param frame
+	 *            the frame index.
+	 * @return the list of piece indices. Possibly empty.
+	 */
+	public List< Integer > getPiecesOfFrame( final int frame )
+	{
+		return piecesPerFrame.getOrDefault( frame, Collections.emptyList() );
+	}
+
+	/**
+	 * Returns the number of pixels of the mosaic, per channel, margins and
+	 * empty slots included.
+	 * 
+	 * @return the number of pixels.
+	 */
+	public long numPixels()
+	{
+		long n = ( long ) nCols * nRows * nPages;
+		for ( final long s : slotSize )
+			n *= s;
+		return n;
+	}
+
+	/**
+	 * Builds the mosaic image from the source image.
+	 * 
+	 * @param source
+	 *            the source image, zero-min, with X, Y, and possibly Z,
+	 *            channel and time axes.
+	 * @param <T>
+	 *            the pixel type.
+	 * @return a new image with the same axes as the source. If the source has
+	 *         no time axis and the mosaic has several pages, a time axis is
+	 *         appended.
+	 */
+	public < T extends RealType< T > & NativeType< T > > ImgPlus< T > assemble( final ImgPlus< T > source )
+	{
+		final int tDimSource = source.dimensionIndex( Axes.TIME );
+		return assemble( source, frame -> tDimSource < 0 ? source : Views.hyperSlice( source, tDimSource, frame ) );
+	}
+
+	/**
+	 * Builds the mosaic image from frames that may come from several images.
+	 * The {@link Piece#frame} index of each piece is passed to the specified
+	 * function to get the frame it is cut from. All the frames must have the
+	 * axes of the template image, without its time axis, and the same number
+	 * of channels. Their sizes in X, Y and Z may differ.
+	 * 
+	 * @param template
+	 *            the image that gives the axes, the channels and the pixel
+	 *            type of the mosaic.
+	 * @param frames
+	 *            returns the zero-min frame of the specified index.
+	 * @param <T>
+	 *            the pixel type.
+	 * @return a new image with the same axes as the template. If the template
+	 *         has no time axis and the mosaic has several pages, a time axis
+	 *         is appended.
+	 */
+	public < T extends RealType< T > & NativeType< T > > ImgPlus< T > assemble(
+			final ImgPlus< T > template,
+			final IntFunction< RandomAccessibleInterval< T > > frames )
+	{
+		final int tDimSource = template.dimensionIndex( Axes.TIME );
+		final boolean appendTime = tDimSource < 0 && nPages > 1;
+		final int nDims = template.numDimensions() + ( appendTime ? 1 : 0 );
+		final long[] dims = new long[ nDims ];
+		final AxisType[] axes = new AxisType[ nDims ];
+		int tDim = tDimSource;
+		for ( int d = 0; d < template.numDimensions(); d++ )
+		{
+			final AxisType type = template.axis( d ).type();
+			axes[ d ] = type;
+			if ( type == Axes.X )
+				dims[ d ] = nCols * slotSize[ 0 ];
+			else if ( type == Axes.Y )
+				dims[ d ] = nRows * slotSize[ 1 ];
+			else if ( type == Axes.Z )
+				dims[ d ] = slotSize[ 2 ];
+			else if ( type == Axes.TIME )
+				dims[ d ] = nPages;
+			else
+				dims[ d ] = template.dimension( d );
+		}
+		if ( appendTime )
+		{
+			tDim = nDims - 1;
+			axes[ tDim ] = Axes.TIME;
+			dims[ tDim ] = nPages;
+		}
+
+		final Img< T > out = template.factory().create( dims );
+		final int[] spatialDims = spatialDims( template, tDimSource );
+		final int nFrameDims = template.numDimensions() - ( tDimSource < 0 ? 0 : 1 );
+		for ( int i = 0; i < pieces.size(); i++ )
+		{
+			final Piece piece = pieces.get( i );
+			final RandomAccessibleInterval< T > frame = frames.apply( piece.frame );
+			final RandomAccessibleInterval< T > page = tDim < 0
+					? out
+					: Views.hyperSlice( out, tDim, i / slotsPerPage );
+
+			final long[] srcMin = new long[ nFrameDims ];
+			final long[] srcMax = new long[ nFrameDims ];
+			final long[] dstMin = new long[ nFrameDims ];
+			final long[] dstMax = new long[ nFrameDims ];
+			frame.min( srcMin );
+			frame.max( srcMax );
+			page.min( dstMin );
+			page.max( dstMax );
+			final long[] slotOrigin = slotOrigin( i );
+			for ( int s = 0; s < spatialDims.length; s++ )
+			{
+				final int d = spatialDims[ s ];
+				final long m = ( s < 2 ) ? margin : 0;
+				srcMin[ d ] = piece.min[ s ] - m;
+				srcMax[ d ] = srcMin[ d ] + slotSize[ s ] - 1;
+				dstMin[ d ] = slotOrigin[ s ];
+				dstMax[ d ] = dstMin[ d ] + slotSize[ s ] - 1;
+			}
+			final RandomAccessible< T > extended = Views.extendMirrorSingle( frame );
+			copy( Views.interval( extended, srcMin, srcMax ), Views.interval( page, dstMin, dstMax ) );
+		}
+
+		final ImgPlus< T > mosaic = new ImgPlus<>( out, template.getName() + "-mosaic", axes );
+		return mosaic;
+	}
+
+	/**
+	 * Returns a view on the probabilities of one piece, without its margin.
+	 * The probability map may have been computed on a binned version of the
+	 * mosaic, in which case the slot size and the margins must be multiples
+	 * of the binning factors.
+	 * 
+	 * @param proba
+	 *            the probabilities of one class computed on the mosaic, with
+	 *            X, Y, and possibly Z and time axes, in this order.
+	 * @param pieceIndex
+	 *            the index of the piece.
+	 * @param factors
+	 *            the binning factors that were applied to the mosaic, in X, Y
+	 *            and Z if any.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 * @return a zero-min view on the piece probabilities.
+	 */
+	public < R extends RealType< R > > RandomAccessibleInterval< R > getPiece(
+			final RandomAccessibleInterval< R > proba,
+			final int pieceIndex,
+			final long[] factors )
+	{
+		final Piece piece = pieces.get( pieceIndex );
+		final int n = piece.min.length;
+		final RandomAccessibleInterval< R > page = ( proba.numDimensions() > n )
+				? Views.hyperSlice( proba, proba.numDimensions() - 1, pieceIndex / slotsPerPage )
+				: proba;
+
+		final long[] slotOrigin = slotOrigin( pieceIndex );
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final long m = ( d < 2 ) ? margin : 0;
+			min[ d ] = ( slotOrigin[ d ] + m ) / factors[ d ];
+			max[ d ] = min[ d ] + ( piece.size( d ) + factors[ d ] - 1 ) / factors[ d ] - 1;
+		}
+		return Views.zeroMin( Views.interval( page, min, max ) );
+	}
+
+	/**
+	 * Copies the probabilities of all the pieces of one frame into a
+	 * probability map of the whole frame. Pixels that are not covered by a
+	 * piece are left untouched.
+	 * 
+	 * @param proba
+	 *            the probabilities of one class computed on the mosaic.
+	 * @param frame
+	 *            the index of the frame in the source image.
+	 * @param target
+	 *            the probability map of the whole frame, zero-min.
+	 * @param factors
+	 *            the binning factors that were applied to the mosaic, in X, Y
+	 *            and Z if any.
+	 * @param <R>
+	 *            the pixel type of the probability map.
+	 * @param <S>
+	 *            the pixel type of the target.
+	 */
+	public < R extends RealType< R >, S extends RealType< S > > void paste(
+			final RandomAccessibleInterval< R > proba,
+			final int frame,
+			final RandomAccessibleInterval< S > target,
+			final long[] factors )
+	{
+		for ( final int i : getPiecesOfFrame( frame ) )
+		{
+			final Piece piece = pieces.get( i );
+			final RandomAccessibleInterval< R > src = getPiece( proba, i, factors );
+			final int n = piece.min.length;
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			final long[] size = new long[ n ];
+			for ( int d = 0; d < n; d++ )
+			{
+				min[ d ] = piece.min[ d ] / factors[ d ];
+				max[ d ] = Math.min( target.max( d ), min[ d ] + src.dimension( d ) - 1 );
+				size[ d ] = max[ d ] - min[ d ] + 1;
+			}
+			final Cursor< S > ct = Views.flatIterable( Views.interval( target, min, max ) ).cursor();
+			final Cursor< R > cs = Views.flatIterable( Views.interval( src, new FinalInterval( size ) ) ).cursor();
+			while ( ct.hasNext() )
+				ct.next().setReal( cs.next().getRealDouble() );
+		}
+	}
+
+	/**
+	 * Splits a rectangular region of a frame into tiles of at most the
+	 * specified size in X and Y.
+	 * 
+	 * @param min
+	 *            the min of the region (X, Y, and Z if any).
+	 * @param max
+	 *            the max of the region (X, Y, and Z if any).
+	 * @param tileSize
+	 *            the maximal size of a tile in X and Y.
+	 * @param frame
+	 *            the frame the region belongs to.
+	 * @return a new list of pieces.
+	 */
+	public static List< Piece > split( final long[] min, final long[] max, final long tileSize, final int frame )
+	{
+		final List< Piece > tiles = new ArrayList<>();
+		for ( long y = min[ 1 ]; y <= max[ 1 ]; y += tileSize )
+		{
+			for ( long x = min[ 0 ]; x <= max[ 0 ]; x += tileSize )
+			{
+				final long[] tmin = min.clone();
+				final long[] tmax = max.clone();
+				tmin[ 0 ] = x;
+				tmin[ 1 ] = y;
+				tmax[ 0 ] = Math.min( max[ 0 ], x + tileSize - 1 );
+				tmax[ 1 ] = Math.min( max[ 1 ], y + tileSize - 1 );
+				tiles.add( new Piece( tmin, tmax, frame ) );
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Merges in place the rectangles that overlap, until none do.
+	 * 
+	 * @param boxes
+	 *            the rectangles, as <code>{ minX, minY, maxX, maxY }</code>.
+	 */
+	public static void mergeOverlapping( final List< long[] > boxes )
+	{
+		boolean merged = true;
+		while ( merged )
+		{
+			merged = false;
+			for ( int i = 0; i < boxes.size() && !merged; i++ )
+			{
+				for ( int j = i + 1; j < boxes.size(); j++ )
+				{
+					final long[] a = boxes.get( i );
+					final long[] b = boxes.get( j );
+					if ( a[ 0 ] <= b[ 2 ] && b[ 0 ] <= a[ 2 ] && a[ 1 ] <= b[ 3 ] && b[ 1 ] <= a[ 3 ] )
+					{
+						a[ 0 ] = Math.min( a[ 0 ], b[ 0 ] );
+						a[ 1 ] = Math.min( a[ 1 ], b[ 1 ] );
+						a[ 2 ] = Math.max( a[ 2 ], b[ 2 ] );
+						a[ 3 ] = Math.max( a[ 3 ], b[ 3 ] );
+						boxes.remove( j );
+						merged = true;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private long[] slotOrigin( final int pieceIndex )
+	{
+		final int slot = pieceIndex % slotsPerPage;
+		final long[] origin = new long[ slotSize.length ];
+		origin[ 0 ] = ( slot % nCols ) * slotSize[ 0 ];
+		origin[ 1 ] = ( slot / nCols ) * slotSize[ 1 ];
+		return origin;
+	}
+
+	/**
+	 * The indices of the X, Y and Z (if any) dimensions in one frame of the
+	 * source image, that is: after the time dimension is removed.
+	 */
+	private static int[] spatialDims( final ImgPlus< ? > source, final int tDim )
+	{
+		final AxisType[] types = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+		final int n = source.dimensionIndex( Axes.Z ) < 0 ? 2 : 3;
+		final int[] dims = new int[ n ];
+		for ( int s = 0; s < n; s++ )
+		{
+			final int d = source.dimensionIndex( types[ s ] );
+			dims[ s ] = ( tDim >= 0 && d > tDim ) ? d - 1 : d;
+		}
+		return dims;
+	}
+
+	private static < T extends Type< T > > void copy( final RandomAccessibleInterval< T > from, final RandomAccessibleInterval< T > to )
+	{
+		final Cursor< T > cFrom = Views.flatIterable( from ).cursor();
+		final Cursor< T > cTo = Views.flatIterable( to ).cursor();
+		while ( cFrom.hasNext() )
+			cTo.next().set( cFrom.next() );
+	}
+}
@@ -0,0 +1,296 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.ilastik.classifier.Parallel;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Cheap pre-screening of the input before inference.
+ * <p>
+ * The input is split in XY tiles, and simple intensity statistics are
+ * computed on each tile of each frame. Tiles that are found to be trivially
+ * empty by a {@link Rule} are not sent to ilastik, and their probability is
+ * taken to be 0.
+ * <p>
+ * The rule is calibrated on a sample frame with
+ * {@link #calibrate(ImgPlus, Interval, int, String, long, double, IlastikRunnerOptions, double)}:
+ * the thresholds are set below the statistics of all the tiles where
+ * full-inference found objects.
+ */
+public class TilePrescreen
+{
+
+	private TilePrescreen()
+	{}
+
+	/**
+	 * Intensity statistics of one tile, over all its pixels (all Zs and all
+	 * channels).
+	 */
+	public static class TileStats
+	{
+
+		public final double min;
+
+		public final double max;
+
+		public final double mean;
+
+		public final double std;
+
+		public TileStats( final double min, final double max, final double mean, final double std )
+		{
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+			this.std = std;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( Locale.US, "min = %.3g, max = %.3g, mean = %.3g, std = %.3g", min, max, mean, std );
+		}
+	}
+
+	/**
+	 * The rule deciding whether a tile is trivially empty: its maximal
+	 * intensity and its standard deviation must both be below their
+	 * thresholds.
+	 */
+	public static class Rule
+	{
+
+		/** The maximal standard deviation of an empty tile. */
+		public final double maxStd;
+
+		/** The maximal intensity of an empty tile. */
+		public final double maxIntensity;
+
+		public Rule( final double maxStd, final double maxIntensity )
+		{
+			this.maxStd = maxStd;
+			this.maxIntensity = maxIntensity;
+		}
+
+		public boolean isEmpty( final TileStats stats )
+		{
+			return stats.std <= maxStd && stats.max <= maxIntensity;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( Locale.US, "empty if std <= %.3g and max <= %.3g", maxStd, maxIntensity );
+		}
+	}
+
+	/**
+	 * Computes the statistics of the specified tiles of one frame, in
+	 * parallel.
+	 * 
+	 * @param frame
+	 *            the frame, zero-min, with X, Y, and possibly Z and channel
+	 *            axes.
+	 * @param xDim
+	 *            the index of the X dimension in the frame.
+	 * @param yDim
+	 *            the index of the Y dimension in the frame.
+	 * @param tiles
+	 *            the tiles, in pixel coordinates of the frame.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param <T>
+	 *            the pixel type.
+	 * @return a new array, one statistics object per tile.
+	 */
+	public static < T extends RealType< T > > TileStats[] computeStats(
+			final RandomAccessibleInterval< T > frame,
+			final int xDim,
+			final int yDim,
+			final List< TileMosaic.Piece > tiles,
+			final int numThreads )
+	{
+		final TileStats[] stats = new TileStats[ tiles.size() ];
+		Parallel.forEachChunk( tiles.size(), numThreads, ( from, to ) -> {
+			final long[] min = new long[ frame.numDimensions() ];
+			final long[] max = new long[ frame.numDimensions() ];
+			for ( int i = ( int ) from; i < to; i++ )
+			{
+				final TileMosaic.Piece tile = tiles.get( i );
+				frame.min( min );
+				frame.max( max );
+				min[ xDim ] = tile.min[ 0 ];
+				max[ xDim ] = tile.max[ 0 ];
+				min[ yDim ] = tile.min[ 1 ];
+				max[ yDim ] = tile.max[ 1 ];
+				stats[ i ] = stats( Views.interval( frame, min, max ) );
+			}
+		} );
+		return stats;
+	}
+
+	private static < T extends RealType< T > > TileStats stats( final RandomAccessibleInterval< T > view )
+	{
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0.;
+		double sumSq = 0.;
+		long n = 0;
+		for ( final T p : Views.flatIterable( view ) )
+		{
+			final double v = p.getRealDouble();
+			if ( v < min )
+				min = v;
+			if ( v > max )
+				max = v;
+			sum += v;
+			sumSq += v * v;
+			n++;
+		}
+		final double mean = sum / n;
+		final double var = Math.max( 0., sumSq / n - mean * mean );
+		return new TileStats( min, max, mean, Math.sqrt( var ) );
+	}
+
+	/**
+	 * Calibrates a prescreening rule on the first frame of the specified
+	 * interval. Full inference is run on this frame, and the rule thresholds
+	 * are set to a fraction of the smallest statistics found in the tiles
+	 * that contain objects, so that none of these tiles would have been
+	 * skipped.
+	 * 
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval (space and time) to operate on. Only the first
+	 *            time-point of the interval is used.
+	 * @param channel
+	 *            the channel to operate on when a model trained on a single
+	 *            channel is specified.
+	 * @param projectFilePath
+	 *            the path to the ilastik project containing the classifier.
+	 * @param classId
+	 *            the index of the class to extract.
+	 * @param probaThreshold
+	 *            a threshold on the probability map to extract objects.
+	 * @param options
+	 *            the inference options. The tile size and the downsampling
+	 *            factor are used, the prescreening rule is ignored.
+	 * @param safety
+	 *            the fraction, between 0 and 1, of the smallest statistics of
+	 *            tiles with objects to use as thresholds. Smaller is safer.
+	 * @return a new rule, or <code>null</code> if no object was found in the
+	 *         sample frame.
+	 * @throws IOException
+	 *             if the ilastik file cannot be found.
+	 * @param <T>
+	 *            the type of pixels in the source image.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Rule calibrate(
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int channel,
+			final String projectFilePath,
+			final long classId,
+			final double probaThreshold,
+			final IlastikRunnerOptions options,
+			final double safety ) throws IOException
+	{
+		// Restrict to the first time-point.
+		final int n = interval.numDimensions();
+		final long[] imin = new long[ n ];
+		final long[] imax = new long[ n ];
+		interval.min( imin );
+		interval.max( imax );
+		if ( n > 2 )
+			imax[ n - 1 ] = imin[ n - 1 ];
+		final Interval firstFrame = new FinalInterval( imin, imax );
+
+		final IlastikRunnerOptions fullOptions = IlastikRunnerOptions.create( options )
+				.prescreen( null )
+				.get();
+		final SpotCollection spots = IlastikRunner.run( img, firstFrame, channel, projectFilePath, classId, probaThreshold, fullOptions );
+
+		/*
+		 * Tile statistics on the sample frame.
+		 */
+
+		final ImgPlus< T > cropped = IlastikRunner.crop( img, firstFrame, channel, projectFilePath );
+		final int tDim = cropped.dimensionIndex( Axes.TIME );
+		final RandomAccessibleInterval< T > frame = tDim < 0 ? cropped : Views.hyperSlice( cropped, tDim, 0 );
+		final int xDim = cropped.dimensionIndex( Axes.X );
+		final int yDim = cropped.dimensionIndex( Axes.Y );
+		final long[] frameDims = new long[] { cropped.dimension( xDim ), cropped.dimension( yDim ) };
+		final List< TileMosaic.Piece > tiles = IlastikRunner.getTiles( frameDims, options );
+		final TileStats[] stats = computeStats( frame, xDim, yDim, tiles, Runtime.getRuntime().availableProcessors() );
+
+		/*
+		 * Tiles that contain objects.
+		 */
+
+		final double[] cal = TMUtils.getSpatialCalibration( img );
+		final boolean[] occupied = new boolean[ tiles.size() ];
+		for ( final Spot spot : spots.iterable( false ) )
+		{
+			final double r = spot.getFeature( Spot.RADIUS ).doubleValue();
+			final double x0 = ( spot.getDoublePosition( 0 ) - r ) / cal[ 0 ] - imin[ 0 ];
+			final double x1 = ( spot.getDoublePosition( 0 ) + r ) / cal[ 0 ] - imin[ 0 ];
+			final double y0 = ( spot.getDoublePosition( 1 ) - r ) / cal[ 1 ] - imin[ 1 ];
+			final double y1 = ( spot.getDoublePosition( 1 ) + r ) / cal[ 1 ] - imin[ 1 ];
+			for ( int i = 0; i < tiles.size(); i++ )
+			{
+				final TileMosaic.Piece tile = tiles.get( i );
+				if ( x1 >= tile.min[ 0 ] && x0 <= tile.max[ 0 ] + 1 && y1 >= tile.min[ 1 ] && y0 <= tile.max[ 1 ] + 1 )
+					occupied[ i ] = true;
+			}
+		}
+
+		double minStd = Double.POSITIVE_INFINITY;
+		double minMax = Double.POSITIVE_INFINITY;
+		for ( int i = 0; i < tiles.size(); i++ )
+		{
+			if ( !occupied[ i ] )
+				continue;
+			minStd = Math.min( minStd, stats[ i ].std );
+			minMax = Math.min( minMax, stats[ i ].max );
+		}
+		if ( Double.isInfinite( minStd ) )
+			return null;
+		return new Rule( safety * minStd, safety * minMax );
+	}
+}
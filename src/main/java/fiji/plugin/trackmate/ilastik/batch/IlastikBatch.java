@@ -0,0 +1,562 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.batch;
+
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CLASSIFIER_FILEPATH;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_CLASS_INDEX;
+import static fiji.plugin.trackmate.ilastik.IlastikDetectorFactory.KEY_PROBA_THRESHOLD;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.ilastik.IlastikDetector;
+import fiji.plugin.trackmate.ilastik.IlastikDetectorFactory;
+import fiji.plugin.trackmate.ilastik.IlastikRunnerOptions;
+import fiji.plugin.trackmate.ilastik.ImagePacker;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Runs the ilastik detector on a list of files in a single JVM, without the
+ * TrackMate GUI.
+ * <p>
+ * All files share the SciJava context, the classifier cache of the Java
+ * backend and the feature cache. Files are processed concurrently, within a
+ * global budget of threads and memory. For each input file, the spots are
+ * saved in a TrackMate XML file, and a summary CSV file lists the number of
+ * spots and the processing time of each file. If a file has a ROI, the
+ * detection is restricted to it, except when files are packed.
+ * <p>
+ * Command line usage:
+ *
+ * <pre>
+ * IlastikBatch project.ilp "/data/movies/*.tif" [options] [KEY=VALUE ...]
+ * </pre>
+ *
+ * Options are <code>--output=DIR</code> (default: next to each input file),
+ * <code>--parallel=N</code> (number of files processed at once),
+ * <code>--threads=N</code> (total number of threads) and
+ * <code>--memory=MB</code> (memory budget for the images in process) and
+ * <code>--pack=N</code> (number of small files classified together in a
+ * single ilastik inference, see {@link ImagePacker}). The
+ * other arguments are detector settings, with the keys of the
+ * {@link IlastikDetectorFactory}, for instance <code>CLASS_INDEX=1</code> or
+ * <code>BACKEND=Java</code>.
+ */
+public class IlastikBatch
+{
+
+	/**
+	 * The name of the summary file written in the output folder.
+	 */
+	public static final String SUMMARY_FILE_NAME = "ilastik-batch-summary.csv";
+
+	/**
+	 * Ratio between the memory used to process a file and its size on disk:
+	 * the image itself, plus the probability maps and the features computed
+	 * for one frame.
+	 */
+	private static final int MEMORY_FACTOR = 3;
+
+	private final Map< String, Object > detectorSettings;
+
+	private final List< File > files;
+
+	private final File outputFolder;
+
+	private final int numParallel;
+
+	private final int numThreads;
+
+	private final int memoryBudgetMB;
+
+	private final Logger logger;
+
+	private int packSize = 1;
+
+	/**
+	 * Creates a batch.
+	 * 
+	 * @param detectorSettings
+	 *            the settings of the ilastik detector, including the path to
+	 *            the project file.
+	 * @param files
+	 *            the files to process.
+	 * @param outputFolder
+	 *            the folder to write the results in, or <code>null</code> to
+	 *            write them next to each input file.
+	 * @param numParallel
+	 *            the number of files processed at once.
+	 * @param numThreads
+	 *            the total number of threads, shared by the files processed
+	 *            at once.
+	 * @param memoryBudgetMB
+	 *            the memory budget in MB. Files are not started if the
+	 *            estimated memory of the files in process would exceed it.
+	 * @param logger
+	 *            the logger to report progress to.
+	 */
+	public IlastikBatch(
+			final Map< String, Object > detectorSettings,
+			final List< File > files,
+			final File outputFolder,
+			final int numParallel,
+			final int numThreads,
+			final int memoryBudgetMB,
+			final Logger logger )
+	{
+		this.detectorSettings = detectorSettings;
+		this.files = files;
+		this.outputFolder = outputFolder;
+		this.numParallel = Math.max( 1, numParallel );
+		this.numThreads = Math.max( 1, numThreads );
+		this.memoryBudgetMB = Math.max( 1, memoryBudgetMB );
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the number of files classified together in one ilastik inference.
+	 * Packing amortizes the start of ilastik over many files, and is meant
+	 * for small images with the same axes. With a value of 1, the default,
+	 * each file is classified separately.
+	 * 
+	 * @param packSize
+	 *            the number of files per inference.
+	 */
+	public void setPackSize( final int packSize )
+	{
+		this.packSize = Math.max( 1, packSize );
+	}
+
+	/**
+	 * Processes all the files and writes the summary file.
+	 * 
+	 * @return the result for each file, in the order of the files.
+	 * @throws IOException
+	 *             if the summary file cannot be written.
+	 */
+	public List< Result > run() throws IOException
+	{
+		final IlastikDetectorFactory< ? > factory = new IlastikDetectorFactory<>();
+		if ( !factory.checkSettings( detectorSettings ) )
+			throw new IllegalArgumentException( factory.getErrorMessage() );
+
+		final int threadsPerFile = Math.max( 1, numThreads / numParallel );
+		final IlastikRunnerOptions options = IlastikRunnerOptions.create( IlastikDetectorFactory.getRunnerOptions( detectorSettings ) )
+				.numThreads( threadsPerFile )
+				.get();
+		logger.log( String.format( Locale.US, "Processing %d files, %d at a time with %d threads each.\n",
+				files.size(), numParallel, threadsPerFile ) );
+
+		final Semaphore memory = new Semaphore( memoryBudgetMB );
+		final ExecutorService executor = Executors.newFixedThreadPool( numParallel );
+		final List< List< File > > groups = new ArrayList<>();
+		for ( int i = 0; i < files.size(); i += packSize )
+			groups.add( files.subList( i, Math.min( files.size(), i + packSize ) ) );
+		final List< Future< List< Result > > > futures = new ArrayList<>( groups.size() );
+		for ( final List< File > group : groups )
+			futures.add( executor.submit( () -> {
+				// Groups larger than the budget run alone.
+				long size = 0;
+				for ( final File file : group )
+					size += file.length();
+				final int permits = ( int ) Math.min( memoryBudgetMB,
+						Math.max( 1, MEMORY_FACTOR * ( size >> 20 ) ) );
+				memory.acquire( permits );
+				try
+				{
+					return group.size() == 1
+							? Collections.singletonList( process( group.get( 0 ), options ) )
+							: processPacked( group, options );
+				}
+				finally
+				{
+					memory.release( permits );
+				}
+			} ) );
+		executor.shutdown();
+
+		final List< Result > results = new ArrayList<>( files.size() );
+		for ( int i = 0; i < groups.size(); i++ )
+		{
+			try
+			{
+				results.addAll( futures.get( i ).get() );
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				for ( final File file : groups.get( i ) )
+				{
+					final Result result = new Result( file );
+					result.errorMessage = e.getMessage();
+					results.add( result );
+				}
+			}
+		}
+
+		final File summaryFolder = outputFolder != null ? outputFolder
+				: files.isEmpty() ? new File( "." ) : files.get( 0 ).getAbsoluteFile().getParentFile();
+		writeSummary( results, new File( summaryFolder, SUMMARY_FILE_NAME ) );
+		return results;
+	}
+
+	private < T extends RealType< T > & NativeType< T > > Result process( final File file, final IlastikRunnerOptions options )
+	{
+		final Result result = new Result( file );
+		final long start = System.currentTimeMillis();
+		final ImagePlus imp = IJ.openImage( file.getAbsolutePath() );
+		if ( imp == null )
+		{
+			result.errorMessage = "Could not open image.";
+			logger.error( file.getName() + ": " + result.errorMessage + "\n" );
+			return result;
+		}
+
+		final Settings settings = new Settings( imp );
+		settings.detectorFactory = new IlastikDetectorFactory<>();
+		settings.detectorSettings = new HashMap<>( detectorSettings );
+
+		final ImgPlus< T > img = TMUtils.rawWraps( imp );
+		final Interval interval = TMUtils.getInterval( img, settings );
+		final IlastikDetector< T > detector = new IlastikDetector<>(
+				img,
+				interval,
+				( Integer ) detectorSettings.get( KEY_TARGET_CHANNEL ) - 1,
+				( String ) detectorSettings.get( KEY_CLASSIFIER_FILEPATH ),
+				( Integer ) detectorSettings.get( KEY_CLASS_INDEX ),
+				( Double ) detectorSettings.get( KEY_PROBA_THRESHOLD ),
+				settings.roi == null ? options : IlastikRunnerOptions.create( options ).roi( settings.roi ).get() );
+		if ( !detector.checkInput() || !detector.process() )
+		{
+			result.errorMessage = detector.getErrorMessage();
+			logger.error( file.getName() + ": " + result.errorMessage + "\n" );
+			imp.close();
+			return result;
+		}
+		IlastikDetectorFactory.putPredictionCacheReference( detector.getPredictionCacheReference(), settings.detectorSettings );
+		save( file, imp, settings, detector.getResult(), result );
+		result.processingTime = System.currentTimeMillis() - start;
+		log( result );
+		return result;
+	}
+
+	/**
+	 * Classifies a group of files with a single ilastik inference. The
+	 * processing time of the group is split evenly between its files.
+	 */
+	private < T extends RealType< T > & NativeType< T > > List< Result > processPacked( final List< File > group, final IlastikRunnerOptions options )
+	{
+		final long start = System.currentTimeMillis();
+		final List< Result > results = new ArrayList<>( group.size() );
+		final List< Result > opened = new ArrayList<>( group.size() );
+		final List< ImagePlus > imps = new ArrayList<>( group.size() );
+		final List< ImgPlus< T > > imgs = new ArrayList<>( group.size() );
+		for ( final File file : group )
+		{
+			final Result result = new Result( file );
+			results.add( result );
+			final ImagePlus imp = IJ.openImage( file.getAbsolutePath() );
+			if ( imp == null )
+			{
+				result.errorMessage = "Could not open image.";
+				logger.error( file.getName() + ": " + result.errorMessage + "\n" );
+				continue;
+			}
+			opened.add( result );
+			imps.add( imp );
+			imgs.add( TMUtils.rawWraps( imp ) );
+		}
+		if ( imgs.isEmpty() )
+			return results;
+
+		List< SpotCollection > spots;
+		try
+		{
+			spots = ImagePacker.run(
+					imgs,
+					( Integer ) detectorSettings.get( KEY_TARGET_CHANNEL ) - 1,
+					( String ) detectorSettings.get( KEY_CLASSIFIER_FILEPATH ),
+					( Integer ) detectorSettings.get( KEY_CLASS_INDEX ),
+					( Double ) detectorSettings.get( KEY_PROBA_THRESHOLD ),
+					options );
+		}
+		catch ( final IOException | IllegalArgumentException e )
+		{
+			for ( int i = 0; i < opened.size(); i++ )
+			{
+				final Result result = opened.get( i );
+				result.errorMessage = e.getMessage();
+				logger.error( result.file.getName() + ": " + result.errorMessage + "\n" );
+				imps.get( i ).close();
+			}
+			return results;
+		}
+
+		final long elapsed = System.currentTimeMillis() - start;
+		for ( int i = 0; i < opened.size(); i++ )
+		{
+			final Result result = opened.get( i );
+			final ImagePlus imp = imps.get( i );
+			final Settings settings = new Settings( imp );
+			settings.detectorFactory = new IlastikDetectorFactory<>();
+			settings.detectorSettings = new HashMap<>( detectorSettings );
+			save( result.file, imp, settings, spots.get( i ), result );
+			result.processingTime = elapsed / opened.size();
+			log( result );
+		}
+		return results;
+	}
+
+	/**
+	 * Saves the spots found in one file in a TrackMate XML file, and closes
+	 * the image.
+	 */
+	private void save( final File file, final ImagePlus imp, final Settings settings, final SpotCollection spots, final Result result )
+	{
+		result.nFrames = imp.getNFrames();
+		for ( final Integer frame : spots.keySet() )
+			for ( final Spot spot : spots.iterable( frame, false ) )
+				spot.putFeature( Spot.POSITION_T, Double.valueOf( frame * settings.dt ) );
+		spots.setVisible( true );
+		result.nSpots = spots.getNSpots( true );
+
+		final Model model = new Model();
+		final Calibration calibration = imp.getCalibration();
+		model.setPhysicalUnits( calibration.getUnit(), calibration.getTimeUnit() );
+		model.setSpots( spots, false );
+		imp.close();
+
+		final File folder = outputFolder != null ? outputFolder : file.getAbsoluteFile().getParentFile();
+		final String name = file.getName().replaceFirst( "\\.[^.]*$", "" ) + ".xml";
+		final TmXmlWriter writer = new TmXmlWriter( new File( folder, name ), logger );
+		writer.appendLog( "Detection with the ilastik batch on " + TMUtils.getCurrentTimeString() + ".\n" );
+		writer.appendModel( model );
+		writer.appendSettings( settings );
+		try
+		{
+			writer.writeToFile();
+		}
+		catch ( final IOException e )
+		{
+			result.errorMessage = "Could not write results: " + e.getMessage();
+			logger.error( file.getName() + ": " + result.errorMessage + "\n" );
+		}
+	}
+
+	private void log( final Result result )
+	{
+		if ( result.errorMessage != null )
+			return;
+		logger.log( String.format( Locale.US, "%s: %d spots in %d frames, %.1f s.\n",
+				result.file.getName(), result.nSpots, result.nFrames, result.processingTime / 1000. ) );
+	}
+
+	private static void writeSummary( final List< Result > results, final File file ) throws IOException
+	{
+		try (final PrintWriter writer = new PrintWriter( file, "UTF-8" ))
+		{
+			writer.println( "File,Frames,Spots,Time (ms),Error" );
+			for ( final Result result : results )
+				writer.println( String.format( Locale.US, "\"%s\",%d,%d,%d,\"%s\"",
+						result.file.getAbsolutePath(), result.nFrames, result.nSpots, result.processingTime,
+						result.errorMessage == null ? "" : result.errorMessage.replace( '"', '\'' ).replace( '\n', ' ' ) ) );
+		}
+	}
+
+	/**
+	 * Returns the files matching a glob pattern, sorted by path. The pattern
+	 * is matched against the whole path, so folders can contain wildcards
+	 * too, for instance <code>/data/&#42;&#42;/&#42;.tif</code>.
+	 * 
+	 * @param glob
+	 *            the glob pattern.
+	 * @return the matching files.
+	 * @throws IOException
+	 *             if the folders cannot be read.
+	 */
+	public static List< File > listFiles( final String glob ) throws IOException
+	{
+		// Walk from the deepest folder without wildcards.
+		final String normalized = glob.replace( '\\', '/' );
+		int firstWildcard = normalized.length();
+		for ( final char c : new char[] { '*', '?', '[', '{' } )
+		{
+			final int i = normalized.indexOf( c );
+			if ( i >= 0 )
+				firstWildcard = Math.min( firstWildcard, i );
+		}
+		final int lastSeparator = normalized.lastIndexOf( '/', firstWildcard );
+		final Path base = Paths.get( lastSeparator < 0 ? "." : normalized.substring( 0, lastSeparator + 1 ) );
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher( "glob:"
+				+ ( lastSeparator < 0 ? "./" + normalized : normalized ) );
+		if ( !Files.isDirectory( base ) )
+			return new ArrayList<>();
+
+		try (Stream< Path > paths = Files.walk( base ))
+		{
+			return paths
+					.filter( Files::isRegularFile )
+					.filter( p -> matcher.matches( p ) )
+					.sorted()
+					.map( Path::toFile )
+					.collect( Collectors.toList() );
+		}
+	}
+
+	/**
+	 * Parses detector settings given as <code>KEY=VALUE</code>, on top of the
+	 * default settings of the ilastik detector. Values are converted to the
+	 * class of the default value of the key.
+	 * 
+	 * @param projectFilePath
+	 *            the path to the ilastik project.
+	 * @param args
+	 *            the settings to parse.
+	 * @return a new settings map.
+	 */
+	public static Map< String, Object > parseSettings( final String projectFilePath, final List< String > args )
+	{
+		final Map< String, Object > settings = new IlastikDetectorFactory<>().getDefaultSettings();
+		settings.put( KEY_CLASSIFIER_FILEPATH, projectFilePath );
+		for ( final String arg : args )
+		{
+			final int eq = arg.indexOf( '=' );
+			if ( eq < 0 )
+				throw new IllegalArgumentException( "Detector settings must be given as KEY=VALUE. Got " + arg + "." );
+			final String key = arg.substring( 0, eq ).trim();
+			final String value = arg.substring( eq + 1 ).trim();
+			final Object defaultValue = settings.get( key );
+			if ( defaultValue instanceof Integer )
+				settings.put( key, Integer.valueOf( value ) );
+			else if ( defaultValue instanceof Double )
+				settings.put( key, Double.valueOf( value ) );
+			else if ( defaultValue instanceof Boolean )
+				settings.put( key, Boolean.valueOf( value ) );
+			else
+				settings.put( key, value );
+		}
+		return settings;
+	}
+
+	/**
+	 * The outcome of processing one file.
+	 */
+	public static class Result
+	{
+
+		public final File file;
+
+		public int nFrames;
+
+		public int nSpots;
+
+		public long processingTime;
+
+		/**
+		 * The reason why the file could not be processed, or
+		 * <code>null</code> if it was processed.
+		 */
+		public String errorMessage;
+
+		public Result( final File file )
+		{
+			this.file = file;
+		}
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		Locale.setDefault( Locale.ROOT );
+		if ( args.length < 2 )
+		{
+			System.err.println( "Usage: IlastikBatch project.ilp \"/path/to/*.tif\" "
+					+ "[--output=DIR] [--parallel=N] [--threads=N] [--memory=MB] [--pack=N] [KEY=VALUE ...]" );
+			System.exit( 1 );
+		}
+
+		File outputFolder = null;
+		int numParallel = 1;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		int memoryBudgetMB = ( int ) ( Runtime.getRuntime().maxMemory() >> 20 ) / 2;
+		int packSize = 1;
+		final List< String > settingArgs = new ArrayList<>();
+		for ( int i = 2; i < args.length; i++ )
+		{
+			final String arg = args[ i ];
+			if ( arg.startsWith( "--output=" ) )
+				outputFolder = new File( arg.substring( "--output=".length() ) );
+			else if ( arg.startsWith( "--parallel=" ) )
+				numParallel = Integer.parseInt( arg.substring( "--parallel=".length() ) );
+			else if ( arg.startsWith( "--threads=" ) )
+				numThreads = Integer.parseInt( arg.substring( "--threads=".length() ) );
+			else if ( arg.startsWith( "--memory=" ) )
+				memoryBudgetMB = Integer.parseInt( arg.substring( "--memory=".length() ) );
+			else if ( arg.startsWith( "--pack=" ) )
+				packSize = Integer.parseInt( arg.substring( "--pack=".length() ) );
+			else
+				settingArgs.add( arg );
+		}
+		if ( outputFolder != null )
+			outputFolder.mkdirs();
+
+		final Map< String, Object > settings = parseSettings( args[ 0 ], settingArgs );
+		final List< File > files = listFiles( args[ 1 ] );
+		final IlastikBatch batch = new IlastikBatch( settings, files, outputFolder, numParallel, numThreads, memoryBudgetMB, Logger.DEFAULT_LOGGER );
+		batch.setPackSize( packSize );
+		final List< Result > results = batch.run();
+		final long nFailed = results.stream().filter( r -> r.errorMessage != null ).count();
+		System.exit( nFailed == 0 ? 0 : 2 );
+	}
+}
@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+/**
+ * Separable convolutions with Gaussian kernels and their derivatives, on
+ * images stored as flat <code>float[]</code> arrays, X first.
+ * <p>
+ * Borders are treated by reflection, as in ilastik.
+ */
+public class Convolution
+{
+
+	private Convolution()
+	{}
+
+	/**
+	 * Returns the kernel of the Gaussian or of one of its derivatives. The
+	 * kernel is normalized so that the convolution returns the exact
+	 * derivative of polynomials of the same order.
+	 * 
+	 * @param sigma
+	 *            the Gaussian standard deviation, in pixels.
+	 * @param order
+	 *            the derivative order, 0, 1 or 2.
+	 * @return a new kernel of odd length, centered.
+	 */
+	public static double[] gaussianKernel( final double sigma, final int order )
+	{
+		final int radius = Math.max( 1, ( int ) Math.ceil( 3. * sigma + 0.5 * order ) );
+		final double[] kernel = new double[ 2 * radius + 1 ];
+		final double s2 = sigma * sigma;
+		for ( int i = 0; i < kernel.length; i++ )
+		{
+			final double x = i - radius;
+			final double g = Math.exp( -x * x / ( 2. * s2 ) );
+			switch ( order )
+			{
+			case 0:
+				kernel[ i ] = g;
+				break;
+			case 1:
+				kernel[ i ] = -x / s2 * g;
+				break;
+			case 2:
+				kernel[ i ] = ( x * x / s2 - 1. ) / s2 * g;
+				break;
+			default:
+				throw new IllegalArgumentException( "Unsupported derivative order: " + order );
+			}
+		}
+
+		switch ( order )
+		{
+		case 0:
+		{
+			double sum = 0.;
+			for ( final double k : kernel )
+				sum += k;
+			for ( int i = 0; i < kernel.length; i++ )
+				kernel[ i ] /= sum;
+			break;
+		}
+		case 1:
+		{
+			// Sum of x * k(x) must be -1.
+			double sum = 0.;
+			for ( int i = 0; i < kernel.length; i++ )
+				sum += ( i - radius ) * kernel[ i ];
+			for ( int i = 0; i < kernel.length; i++ )
+				kernel[ i ] /= -sum;
+			break;
+		}
+		case 2:
+		{
+			// Sum of k(x) must be 0, sum of x^2 * k(x) must be 2.
+			double mean = 0.;
+			for ( final double k : kernel )
+				mean += k;
+			mean /= kernel.length;
+			double sum = 0.;
+			for ( int i = 0; i < kernel.length; i++ )
+			{
+				kernel[ i ] -= mean;
+				final double x = i - radius;
+				sum += x * x * kernel[ i ];
+			}
+			for ( int i = 0; i < kernel.length; i++ )
+				kernel[ i ] *= 2. / sum;
+			break;
+		}
+		}
+		return kernel;
+	}
+
+	/**
+	 * Convolves an image with one kernel per dimension.
+	 * 
+	 * @param source
+	 *            the image, X first.
+	 * @param dims
+	 *            the image dimensions.
+	 * @param kernels
+	 *            one kernel per dimension, centered. A <code>null</code>
+	 *            kernel leaves the corresponding dimension untouched.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new image.
+	 */
+	public static float[] convolve( final float[] source, final int[] dims, final double[][] kernels, final int numThreads )
+	{
+		float[] current = source;
+		for ( int d = 0; d < dims.length; d++ )
+		{
+			if ( kernels[ d ] == null )
+				continue;
+			current = convolveAlong( current, dims, d, kernels[ d ], numThreads );
+		}
+		if ( current == source )
+			return source.clone();
+		return current;
+	}
+
+	private static float[] convolveAlong( final float[] source, final int[] dims, final int dim, final double[] kernel, final int numThreads )
+	{
+		int stride = 1;
+		for ( int d = 0; d < dim; d++ )
+			stride *= dims[ d ];
+		final int n = dims[ dim ];
+		final int nLines = source.length / n;
+		final int radius = kernel.length / 2;
+		final float[] target = new float[ source.length ];
+		final int lineStride = stride;
+
+		// Reflected index of each position of the extended line.
+		final int[] index = new int[ n + 2 * radius ];
+		for ( int i = 0; i < index.length; i++ )
+			index[ i ] = reflect( i - radius, n );
+
+		Parallel.forEachChunk( nLines, numThreads, ( from, to ) -> {
+			final double[] line = new double[ n + 2 * radius ];
+			for ( long l = from; l < to; l++ )
+			{
+				// Line l starts at: (l / stride) * n * stride + l % stride.
+				final int offset = ( int ) ( ( l / lineStride ) * n * lineStride + l % lineStride );
+				for ( int i = 0; i < line.length; i++ )
+					line[ i ] = source[ offset + index[ i ] * lineStride ];
+				for ( int i = 0; i < n; i++ )
+				{
+					// Convolution: out(p) = sum_x in(p - x) k(x).
+					double sum = 0.;
+					for ( int j = 0; j < kernel.length; j++ )
+						sum += kernel[ j ] * line[ i + 2 * radius - j ];
+					target[ offset + i * lineStride ] = ( float ) sum;
+				}
+			}
+		} );
+		return target;
+	}
+
+	private static int reflect( final int i, final int n )
+	{
+		if ( n == 1 )
+			return 0;
+		final int period = 2 * n - 2;
+		int r = Math.abs( i ) % period;
+		if ( r >= n )
+			r = period - r;
+		return r;
+	}
+}
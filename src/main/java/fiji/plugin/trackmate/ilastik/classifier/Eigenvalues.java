@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+/**
+ * Eigenvalues of the symmetric 2x2 and 3x3 tensors computed by the structure
+ * tensor and Hessian features, sorted in decreasing order as in ilastik.
+ */
+public class Eigenvalues
+{
+
+	private Eigenvalues()
+	{}
+
+	/**
+	 * Computes the eigenvalues of the 2x2 symmetric matrix
+	 * <code>[[a, b], [b, c]]</code>.
+	 * 
+	 * @param out
+	 *            an array of length 2 in which to write the eigenvalues.
+	 */
+	public static void symmetric2( final double a, final double b, final double c, final double[] out )
+	{
+		final double mean = 0.5 * ( a + c );
+		final double half = 0.5 * ( a - c );
+		final double d = Math.sqrt( half * half + b * b );
+		out[ 0 ] = mean + d;
+		out[ 1 ] = mean - d;
+	}
+
+	/**
+	 * Computes the eigenvalues of the 3x3 symmetric matrix
+	 * <code>[[a, b, c], [b, d, e], [c, e, f]]</code>, with the
+	 * trigonometric method.
+	 * 
+	 * @param out
+	 *            an array of length 3 in which to write the eigenvalues.
+	 */
+	public static void symmetric3( final double a, final double b, final double c, final double d, final double e, final double f, final double[] out )
+	{
+		final double p1 = b * b + c * c + e * e;
+		if ( p1 == 0. )
+		{
+			// Diagonal.
+			out[ 0 ] = a;
+			out[ 1 ] = d;
+			out[ 2 ] = f;
+			sort3( out );
+			return;
+		}
+
+		final double q = ( a + d + f ) / 3.;
+		final double p2 = ( a - q ) * ( a - q ) + ( d - q ) * ( d - q ) + ( f - q ) * ( f - q ) + 2. * p1;
+		final double p = Math.sqrt( p2 / 6. );
+
+		// B = (A - q I) / p.
+		final double ba = ( a - q ) / p;
+		final double bd = ( d - q ) / p;
+		final double bf = ( f - q ) / p;
+		final double bb = b / p;
+		final double bc = c / p;
+		final double be = e / p;
+		final double detB = ba * ( bd * bf - be * be ) - bb * ( bb * bf - be * bc ) + bc * ( bb * be - bd * bc );
+		final double r = Math.max( -1., Math.min( 1., detB / 2. ) );
+		final double phi = Math.acos( r ) / 3.;
+
+		out[ 0 ] = q + 2. * p * Math.cos( phi );
+		out[ 2 ] = q + 2. * p * Math.cos( phi + 2. * Math.PI / 3. );
+		out[ 1 ] = 3. * q - out[ 0 ] - out[ 2 ];
+	}
+
+	private static void sort3( final double[] v )
+	{
+		if ( v[ 0 ] < v[ 1 ] )
+			swap( v, 0, 1 );
+		if ( v[ 1 ] < v[ 2 ] )
+			swap( v, 1, 2 );
+		if ( v[ 0 ] < v[ 1 ] )
+			swap( v, 0, 1 );
+	}
+
+	private static void swap( final double[] v, final int i, final int j )
+	{
+		final double tmp = v[ i ];
+		v[ i ] = v[ j ];
+		v[ j ] = tmp;
+	}
+}
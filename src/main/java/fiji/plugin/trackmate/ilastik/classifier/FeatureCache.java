@@ -0,0 +1,322 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import fiji.plugin.trackmate.ilastik.classifier.FeatureSelection.Feature;
+
+/**
+ * A memory-bounded cache of feature images, shared by all the classifiers
+ * evaluated in the JVM.
+ * <p>
+ * Features are keyed by the fingerprint of the input channel they were
+ * computed from, and by the feature type, scale and 2D flag. They do not
+ * depend on the classifier, so running the detector again on the same frames
+ * with another class, with another project trained on the same features, or
+ * when the preview goes back to a frame, skips the filters.
+ * <p>
+ * Entries are evicted in least-recently-used order when the cache exceeds
+ * its heap budget. If an off-heap budget is set, evicted entries are moved
+ * to direct buffers, outside of the Java heap, and are copied back to the
+ * heap when they are used again. The Java backend sets the budgets from the
+ * detector settings. The cache is only emptied when the configuration panel
+ * is closed.
+ */
+public class FeatureCache
+{
+
+	private static FeatureCache instance;
+
+	private final LinkedHashMap< Key, float[][] > heap = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private final LinkedHashMap< Key, FloatBuffer[] > offHeap = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private long maxHeapBytes;
+
+	private long maxOffHeapBytes;
+
+	private long heapBytes;
+
+	private long offHeapBytes;
+
+	private long hits;
+
+	private long misses;
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param maxHeapBytes
+	 *            the maximal size in bytes of the features kept on the heap.
+	 * @param maxOffHeapBytes
+	 *            the maximal size in bytes of the features moved off-heap
+	 *            when they are evicted from the heap. 0 disables the
+	 *            off-heap store.
+	 */
+	public FeatureCache( final long maxHeapBytes, final long maxOffHeapBytes )
+	{
+		this.maxHeapBytes = maxHeapBytes;
+		this.maxOffHeapBytes = maxOffHeapBytes;
+	}
+
+	/**
+	 * Returns the cache shared by the Java backend. Until its budgets are
+	 * set, it may use a quarter of the maximal heap size, and does not use
+	 * off-heap memory.
+	 * 
+	 * @return the shared cache.
+	 */
+	public static synchronized FeatureCache getInstance()
+	{
+		if ( instance == null )
+			instance = new FeatureCache( Runtime.getRuntime().maxMemory() / 4, 0 );
+		return instance;
+	}
+
+	/**
+	 * Returns the feature channels cached for the specified input and feature,
+	 * or <code>null</code> if they are not in the cache. The arrays returned
+	 * must not be modified.
+	 * 
+	 * @param fingerprint
+	 *            the fingerprint of the input channel.
+	 * @param feature
+	 *            the feature.
+	 * @return the feature channels, or <code>null</code>.
+	 */
+	public synchronized float[][] get( final long fingerprint, final Feature feature )
+	{
+		final Key key = new Key( fingerprint, feature );
+		final float[][] channels = heap.get( key );
+		if ( channels != null )
+		{
+			hits++;
+			return channels;
+		}
+
+		final FloatBuffer[] buffers = offHeap.remove( key );
+		if ( buffers == null )
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		offHeapBytes -= size( buffers );
+		final float[][] restored = new float[ buffers.length ][];
+		for ( int i = 0; i < buffers.length; i++ )
+		{
+			restored[ i ] = new float[ buffers[ i ].capacity() ];
+			buffers[ i ].rewind();
+			buffers[ i ].get( restored[ i ] );
+		}
+		putOnHeap( key, restored );
+		return restored;
+	}
+
+	/**
+	 * Stores the feature channels computed for the specified input and
+	 * feature. The arrays must not be modified afterwards.
+	 * 
+	 * @param fingerprint
+	 *            the fingerprint of the input channel.
+	 * @param feature
+	 *            the feature.
+	 * @param channels
+	 *            the feature channels.
+	 */
+	public synchronized void put( final long fingerprint, final Feature feature, final float[][] channels )
+	{
+		putOnHeap( new Key( fingerprint, feature ), channels );
+	}
+
+	private void putOnHeap( final Key key, final float[][] channels )
+	{
+		final long bytes = size( channels );
+		if ( bytes > maxHeapBytes )
+			return;
+		final float[][] previous = heap.put( key, channels );
+		if ( previous != null )
+			heapBytes -= size( previous );
+		heapBytes += bytes;
+		evict();
+	}
+
+	private void evict()
+	{
+		final Iterator< Entry< Key, float[][] > > it = heap.entrySet().iterator();
+		while ( heapBytes > maxHeapBytes && it.hasNext() )
+		{
+			final Entry< Key, float[][] > eldest = it.next();
+			it.remove();
+			final long bytes = size( eldest.getValue() );
+			heapBytes -= bytes;
+			if ( bytes <= maxOffHeapBytes )
+				spill( eldest.getKey(), eldest.getValue(), bytes );
+		}
+	}
+
+	private void spill( final Key key, final float[][] channels, final long bytes )
+	{
+		final Iterator< Entry< Key, FloatBuffer[] > > it = offHeap.entrySet().iterator();
+		while ( offHeapBytes + bytes > maxOffHeapBytes && it.hasNext() )
+		{
+			offHeapBytes -= size( it.next().getValue() );
+			it.remove();
+		}
+
+		final FloatBuffer[] buffers = new FloatBuffer[ channels.length ];
+		for ( int i = 0; i < channels.length; i++ )
+		{
+			buffers[ i ] = ByteBuffer.allocateDirect( channels[ i ].length * Float.BYTES )
+					.order( ByteOrder.nativeOrder() )
+					.asFloatBuffer();
+			buffers[ i ].put( channels[ i ] );
+		}
+		offHeap.put( key, buffers );
+		offHeapBytes += bytes;
+	}
+
+	/**
+	 * Sets the memory budgets of this cache, evicting entries if needed.
+	 * 
+	 * @param maxHeapBytes
+	 *            the maximal size in bytes of the features kept on the heap.
+	 * @param maxOffHeapBytes
+	 *            the maximal size in bytes of the features kept off-heap.
+	 */
+	public synchronized void setMaxBytes( final long maxHeapBytes, final long maxOffHeapBytes )
+	{
+		this.maxHeapBytes = maxHeapBytes;
+		this.maxOffHeapBytes = maxOffHeapBytes;
+		final Iterator< Entry< Key, FloatBuffer[] > > it = offHeap.entrySet().iterator();
+		while ( offHeapBytes > maxOffHeapBytes && it.hasNext() )
+		{
+			offHeapBytes -= size( it.next().getValue() );
+			it.remove();
+		}
+		evict();
+	}
+
+	public synchronized void clear()
+	{
+		heap.clear();
+		offHeap.clear();
+		heapBytes = 0;
+		offHeapBytes = 0;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return super.toString() + ": " + heap.size() + " features on heap (" + ( heapBytes >> 20 ) + " MB), "
+				+ offHeap.size() + " off-heap (" + ( offHeapBytes >> 20 ) + " MB), "
+				+ hits + " hits, " + misses + " misses";
+	}
+
+	private static long size( final float[][] channels )
+	{
+		long bytes = 0;
+		for ( final float[] channel : channels )
+			bytes += ( long ) channel.length * Float.BYTES;
+		return bytes;
+	}
+
+	private static long size( final FloatBuffer[] buffers )
+	{
+		long bytes = 0;
+		for ( final FloatBuffer buffer : buffers )
+			bytes += ( long ) buffer.capacity() * Float.BYTES;
+		return bytes;
+	}
+
+	/**
+	 * Computes a 64-bit fingerprint of the pixels of one channel and of its
+	 * dimensions, used as the cache key of the features computed from it.
+	 * 
+	 * @param data
+	 *            the pixels, X first.
+	 * @param dims
+	 *            the dimensions.
+	 * @return the fingerprint.
+	 */
+	public static long fingerprint( final float[] data, final int[] dims )
+	{
+		return Fingerprint.of( data, dims );
+	}
+
+	private static final class Key
+	{
+
+		private final long fingerprint;
+
+		private final FeatureType type;
+
+		private final double scale;
+
+		private final boolean in2d;
+
+		private Key( final long fingerprint, final Feature feature )
+		{
+			this.fingerprint = fingerprint;
+			this.type = feature.type;
+			this.scale = feature.scale;
+			this.in2d = feature.in2d;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key o = ( Key ) obj;
+			return fingerprint == o.fingerprint
+					&& type == o.type
+					&& Double.compare( scale, o.scale ) == 0
+					&& in2d == o.in2d;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = Long.hashCode( fingerprint );
+			h = 31 * h + type.hashCode();
+			h = 31 * h + Double.hashCode( scale );
+			return 31 * h + ( in2d ? 1 : 0 );
+		}
+	}
+}
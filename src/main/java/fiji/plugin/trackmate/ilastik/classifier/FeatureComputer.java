@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import fiji.plugin.trackmate.ilastik.classifier.FeatureSelection.Feature;
+
+/**
+ * Computes the ilastik pixel features of one channel of one frame.
+ * <p>
+ * Gaussian derivatives are cached, so that features computed at the same
+ * scale share their convolutions.
+ */
+public class FeatureComputer
+{
+
+	/** Ratio of the two scales of the difference of Gaussians, as in ilastik. */
+	private static final double DOG_RATIO = 0.66;
+
+	/** Ratio of the outer to inner scale of the structure tensor, as in ilastik. */
+	private static final double STRUCTURE_TENSOR_RATIO = 0.5;
+
+	private final float[] data;
+
+	private final int[] dims;
+
+	private final int numThreads;
+
+	private final Map< String, float[] > cache = new HashMap<>();
+
+	/**
+	 * Creates a feature computer.
+	 * 
+	 * @param data
+	 *            the pixels of one channel of one frame, X first.
+	 * @param dims
+	 *            the frame dimensions, 2D or 3D.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 */
+	public FeatureComputer( final float[] data, final int[] dims, final int numThreads )
+	{
+		this.data = data;
+		this.dims = dims;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Computes one feature and stores its channels in the specified array.
+	 * 
+	 * @param feature
+	 *            the feature to compute.
+	 * @param out
+	 *            the array of feature channels to write to.
+	 * @param offset
+	 *            the index of the first channel to write.
+	 * @return the number of channels written.
+	 */
+	public int compute( final Feature feature, final float[][] out, final int offset )
+	{
+		final int n = feature.numDims( dims.length );
+		final double sigma = feature.scale;
+		switch ( feature.type )
+		{
+		case GAUSSIAN_SMOOTHING:
+			out[ offset ] = derivative( sigma, new int[ n ] );
+			return 1;
+
+		case LAPLACIAN_OF_GAUSSIAN:
+		{
+			final float[] log = new float[ data.length ];
+			for ( int d = 0; d < n; d++ )
+			{
+				final int[] orders = new int[ n ];
+				orders[ d ] = 2;
+				final float[] dd = derivative( sigma, orders );
+				for ( int i = 0; i < log.length; i++ )
+					log[ i ] += dd[ i ];
+			}
+			out[ offset ] = log;
+			return 1;
+		}
+
+		case GAUSSIAN_GRADIENT_MAGNITUDE:
+		{
+			final double[] sq = new double[ data.length ];
+			for ( int d = 0; d < n; d++ )
+			{
+				final float[] g = derivative( sigma, order1( n, d ) );
+				for ( int i = 0; i < sq.length; i++ )
+					sq[ i ] += g[ i ] * g[ i ];
+			}
+			final float[] mag = new float[ data.length ];
+			for ( int i = 0; i < mag.length; i++ )
+				mag[ i ] = ( float ) Math.sqrt( sq[ i ] );
+			out[ offset ] = mag;
+			return 1;
+		}
+
+		case DIFFERENCE_OF_GAUSSIANS:
+		{
+			final float[] g1 = derivative( sigma, new int[ n ] );
+			final float[] g2 = derivative( DOG_RATIO * sigma, new int[ n ] );
+			final float[] dog = new float[ data.length ];
+			for ( int i = 0; i < dog.length; i++ )
+				dog[ i ] = g1[ i ] - g2[ i ];
+			out[ offset ] = dog;
+			return 1;
+		}
+
+		case STRUCTURE_TENSOR_EIGENVALUES:
+		{
+			final float[][] g = new float[ n ][];
+			for ( int d = 0; d < n; d++ )
+				g[ d ] = derivative( sigma, order1( n, d ) );
+			final double[][] kernels = kernels( STRUCTURE_TENSOR_RATIO * sigma, new int[ n ] );
+			final float[][] tensor = new float[ n * ( n + 1 ) / 2 ][];
+			int k = 0;
+			for ( int d1 = 0; d1 < n; d1++ )
+			{
+				for ( int d2 = d1; d2 < n; d2++ )
+				{
+					final float[] product = new float[ data.length ];
+					for ( int i = 0; i < product.length; i++ )
+						product[ i ] = g[ d1 ][ i ] * g[ d2 ][ i ];
+					tensor[ k++ ] = Convolution.convolve( product, dims, kernels, numThreads );
+				}
+			}
+			eigenvalues( tensor, n, out, offset );
+			return n;
+		}
+
+		case HESSIAN_OF_GAUSSIAN_EIGENVALUES:
+		{
+			final float[][] tensor = new float[ n * ( n + 1 ) / 2 ][];
+			int k = 0;
+			for ( int d1 = 0; d1 < n; d1++ )
+			{
+				for ( int d2 = d1; d2 < n; d2++ )
+				{
+					final int[] orders = new int[ n ];
+					orders[ d1 ]++;
+					orders[ d2 ]++;
+					tensor[ k++ ] = derivative( sigma, orders );
+				}
+			}
+			eigenvalues( tensor, n, out, offset );
+			return n;
+		}
+
+		default:
+			throw new IllegalArgumentException( "Unknown feature: " + feature.type );
+		}
+	}
+
+	/**
+	 * Computes the eigenvalues of a symmetric tensor field stored as its
+	 * upper triangle, row by row.
+	 */
+	private void eigenvalues( final float[][] tensor, final int n, final float[][] out, final int offset )
+	{
+		for ( int c = 0; c < n; c++ )
+			out[ offset + c ] = new float[ data.length ];
+
+		Parallel.forEachChunk( data.length, numThreads, ( from, to ) -> {
+			final double[] ev = new double[ n ];
+			for ( int i = ( int ) from; i < to; i++ )
+			{
+				if ( n == 2 )
+					Eigenvalues.symmetric2( tensor[ 0 ][ i ], tensor[ 1 ][ i ], tensor[ 2 ][ i ], ev );
+				else
+					Eigenvalues.symmetric3( tensor[ 0 ][ i ], tensor[ 1 ][ i ], tensor[ 2 ][ i ],
+							tensor[ 3 ][ i ], tensor[ 4 ][ i ], tensor[ 5 ][ i ], ev );
+				for ( int c = 0; c < n; c++ )
+					out[ offset + c ][ i ] = ( float ) ev[ c ];
+			}
+		} );
+	}
+
+	/**
+	 * Returns the convolution of the data with the specified Gaussian
+	 * derivative. Dimensions beyond the length of the orders array are not
+	 * convolved.
+	 */
+	private float[] derivative( final double sigma, final int[] orders )
+	{
+		final StringBuilder key = new StringBuilder().append( sigma );
+		for ( final int o : orders )
+			key.append( ':' ).append( o );
+		return cache.computeIfAbsent( key.toString(), k -> Convolution.convolve( data, dims, kernels( sigma, orders ), numThreads ) );
+	}
+
+	private double[][] kernels( final double sigma, final int[] orders )
+	{
+		final double[][] kernels = new double[ dims.length ][];
+		for ( int d = 0; d < orders.length; d++ )
+			kernels[ d ] = Convolution.gaussianKernel( sigma, orders[ d ] );
+		return kernels;
+	}
+
+	private static int[] order1( final int n, final int d )
+	{
+		final int[] orders = new int[ n ];
+		orders[ d ] = 1;
+		return orders;
+	}
+}
@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ch.systemsx.cisd.hdf5.HDF5EnumerationValueMDArray;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * The pixel features selected in an ilastik project, in the order in which
+ * ilastik stacks them to feed the classifier: feature-major, then
+ * scale-major.
+ */
+public class FeatureSelection
+{
+
+	/**
+	 * One feature computed at one scale.
+	 */
+	public static class Feature
+	{
+
+		public final FeatureType type;
+
+		public final double scale;
+
+		/**
+		 * If <code>true</code>, the feature is computed slice by slice on 3D
+		 * images.
+		 */
+		public final boolean in2d;
+
+		public Feature( final FeatureType type, final double scale, final boolean in2d )
+		{
+			this.type = type;
+			this.scale = scale;
+			this.in2d = in2d;
+		}
+
+		/**
+		 * Returns the number of spatial dimensions this feature is computed
+		 * in, for an image with the specified number of dimensions.
+		 * 
+		 * @param nDims
+		 *            the number of spatial dimensions of the image.
+		 * @return the number of dimensions.
+		 */
+		public int numDims( final int nDims )
+		{
+			return in2d ? Math.min( 2, nDims ) : nDims;
+		}
+
+		@Override
+		public String toString()
+		{
+			return type.getIlastikId() + "(" + scale + ( in2d ? ", 2D" : "" ) + ")";
+		}
+	}
+
+	private static final String HDF_PATH_FEATURE_IDS = "/FeatureSelections/FeatureIds";
+
+	private static final String HDF_PATH_SCALES = "/FeatureSelections/Scales";
+
+	private static final String HDF_PATH_SELECTION_MATRIX = "/FeatureSelections/SelectionMatrix";
+
+	private static final String HDF_PATH_COMPUTE_IN_2D = "/FeatureSelections/ComputeIn2d";
+
+	private final List< Feature > features;
+
+	public FeatureSelection( final List< Feature > features )
+	{
+		this.features = Collections.unmodifiableList( new ArrayList<>( features ) );
+	}
+
+	public List< Feature > getFeatures()
+	{
+		return features;
+	}
+
+	/**
+	 * Returns the number of feature channels computed for each channel of
+	 * the input.
+	 * 
+	 * @param nDims
+	 *            the number of spatial dimensions of the input.
+	 * @return the number of feature channels.
+	 */
+	public int numChannels( final int nDims )
+	{
+		int n = 0;
+		for ( final Feature feature : features )
+			n += feature.type.numChannels( feature.numDims( nDims ) );
+		return n;
+	}
+
+	/**
+	 * Reads the feature selection of an ilastik project.
+	 * 
+	 * @param reader
+	 *            a reader on the ilastik project file.
+	 * @return a new feature selection.
+	 * @throws IOException
+	 *             if the project does not contain a feature selection, or if
+	 *             it contains a feature unknown to this implementation.
+	 */
+	public static FeatureSelection read( final IHDF5Reader reader ) throws IOException
+	{
+		if ( !reader.object().exists( HDF_PATH_SELECTION_MATRIX ) )
+			throw new IOException( "The ilastik project does not contain a feature selection." );
+
+		final String[] ids = reader.readStringArray( HDF_PATH_FEATURE_IDS );
+		final double[] scales = reader.readDoubleArray( HDF_PATH_SCALES );
+		final HDF5EnumerationValueMDArray matrix = reader.enumeration().readMDArray( HDF_PATH_SELECTION_MATRIX );
+		final boolean[] in2d = new boolean[ scales.length ];
+		if ( reader.object().exists( HDF_PATH_COMPUTE_IN_2D ) )
+		{
+			final HDF5EnumerationValueMDArray arr = reader.enumeration().readMDArray( HDF_PATH_COMPUTE_IN_2D );
+			for ( int j = 0; j < scales.length; j++ )
+				in2d[ j ] = arr.getOrdinal( j ) != 0;
+		}
+
+		final List< Feature > features = new ArrayList<>();
+		for ( int i = 0; i < ids.length; i++ )
+		{
+			for ( int j = 0; j < scales.length; j++ )
+			{
+				if ( matrix.getOrdinal( i, j ) == 0 )
+					continue;
+				final FeatureType type = FeatureType.fromIlastikId( ids[ i ] );
+				if ( type == null )
+					throw new IOException( "Unsupported ilastik feature: " + ids[ i ] + "." );
+				features.add( new Feature( type, scales[ j ], in2d[ j ] ) );
+			}
+		}
+		return new FeatureSelection( features );
+	}
+
+	@Override
+	public String toString()
+	{
+		return features.toString();
+	}
+}
@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+/**
+ * The pixel features ilastik offers for pixel classification.
+ */
+public enum FeatureType
+{
+	GAUSSIAN_SMOOTHING( "GaussianSmoothing" ),
+	LAPLACIAN_OF_GAUSSIAN( "LaplacianOfGaussian" ),
+	GAUSSIAN_GRADIENT_MAGNITUDE( "GaussianGradientMagnitude" ),
+	DIFFERENCE_OF_GAUSSIANS( "DifferenceOfGaussians" ),
+	STRUCTURE_TENSOR_EIGENVALUES( "StructureTensorEigenvalues" ),
+	HESSIAN_OF_GAUSSIAN_EIGENVALUES( "HessianOfGaussianEigenvalues" );
+
+	private final String ilastikId;
+
+	private FeatureType( final String ilastikId )
+	{
+		this.ilastikId = ilastikId;
+	}
+
+	/**
+	 * Returns the id of this feature in ilastik project files.
+	 * 
+	 * @return the feature id.
+	 */
+	public String getIlastikId()
+	{
+		return ilastikId;
+	}
+
+	/**
+	 * Returns the number of channels this feature generates for each channel
+	 * of the input.
+	 * 
+	 * @param nDims
+	 *            the number of spatial dimensions the feature is computed in.
+	 * @return the number of channels.
+	 */
+	public int numChannels( final int nDims )
+	{
+		switch ( this )
+		{
+		case STRUCTURE_TENSOR_EIGENVALUES:
+		case HESSIAN_OF_GAUSSIAN_EIGENVALUES:
+			return nDims;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Returns the feature with the specified ilastik id.
+	 * 
+	 * @param ilastikId
+	 *            the id of the feature in the ilastik project file.
+	 * @return the feature, or <code>null</code> if this feature is unknown.
+	 */
+	public static FeatureType fromIlastikId( final String ilastikId )
+	{
+		for ( final FeatureType type : values() )
+			if ( type.ilastikId.equals( ilastikId ) )
+				return type;
+		return null;
+	}
+}
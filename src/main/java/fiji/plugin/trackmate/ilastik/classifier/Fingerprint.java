@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+/**
+ * Computes a 64-bit FNV-1a fingerprint of pixel values, seeded with the
+ * dimensions and the pixel type of the image they come from, so that two
+ * images with the same values but different shapes or types do not collide.
+ * <p>
+ * Values are added one at a time, in flat iteration order, then
+ * {@link #get()} returns the fingerprint after a final mix, so that close
+ * inputs yield distant fingerprints.
+ */
+public class Fingerprint
+{
+
+	private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long PRIME = 0x100000001b3L;
+
+	private long h = OFFSET_BASIS;
+
+	/**
+	 * Starts a fingerprint.
+	 * 
+	 * @param dims
+	 *            the dimensions of the image.
+	 * @param pixelType
+	 *            a name for the pixel type of the image.
+	 */
+	public Fingerprint( final long[] dims, final String pixelType )
+	{
+		for ( final long d : dims )
+			add( d );
+		add( pixelType.hashCode() );
+	}
+
+	/**
+	 * Starts a fingerprint.
+	 * 
+	 * @param dims
+	 *            the dimensions of the image.
+	 * @param pixelType
+	 *            a name for the pixel type of the image.
+	 */
+	public Fingerprint( final int[] dims, final String pixelType )
+	{
+		for ( final int d : dims )
+			add( d );
+		add( pixelType.hashCode() );
+	}
+
+	/**
+	 * Adds a pixel value.
+	 * 
+	 * @param v
+	 *            the value.
+	 */
+	public void add( final float v )
+	{
+		add( Float.floatToIntBits( v ) );
+	}
+
+	private void add( final long v )
+	{
+		h ^= v;
+		h *= PRIME;
+	}
+
+	/**
+	 * Returns the fingerprint of the values added so far.
+	 * 
+	 * @return the fingerprint.
+	 */
+	public long get()
+	{
+		long x = h;
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		return x;
+	}
+
+	/**
+	 * Computes the fingerprint of an array of 32-bit floats.
+	 * 
+	 * @param data
+	 *            the pixels, X first.
+	 * @param dims
+	 *            the dimensions.
+	 * @return the fingerprint.
+	 */
+	public static long of( final float[] data, final int[] dims )
+	{
+		final Fingerprint fingerprint = new Fingerprint( dims, "float32" );
+		for ( final float v : data )
+			fingerprint.add( v );
+		return fingerprint.get();
+	}
+}
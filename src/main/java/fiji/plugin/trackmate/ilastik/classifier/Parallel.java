@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a range of indices in chunks processed in parallel.
+ * <p>
+ * The chunks are run on a shared pool of daemon threads, which grows as
+ * needed and reuses its idle threads, so that calls made for each frame or
+ * tile do not start new threads. Callers bound their own parallelism with
+ * the number of chunks.
+ */
+public class Parallel
+{
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool( r -> {
+		final Thread thread = new Thread( r, "TrackMate ilastik worker " + count.incrementAndGet() );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private Parallel()
+	{}
+
+	/**
+	 * Processes the range <code>[0, n)</code> in chunks, one per thread.
+	 * 
+	 * @param n
+	 *            the size of the range.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param task
+	 *            the task to run on each chunk.
+	 */
+	public static void forEachChunk( final long n, final int numThreads, final RangeTask task )
+	{
+		final int nChunks = ( int ) Math.max( 1, Math.min( n, numThreads ) );
+		if ( nChunks == 1 )
+		{
+			task.run( 0, n );
+			return;
+		}
+
+		final List< Future< ? > > futures = new ArrayList<>( nChunks );
+		try
+		{
+			for ( int c = 0; c < nChunks; c++ )
+			{
+				final long from = c * n / nChunks;
+				final long to = ( c + 1 ) * n / nChunks;
+				futures.add( executor.submit( () -> task.run( from, to ) ) );
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Future< ? > future : futures )
+				future.cancel( true );
+			Thread.currentThread().interrupt();
+			throw new CancellationException( "Interrupted." );
+		}
+		catch ( final ExecutionException e )
+		{
+			for ( final Future< ? > future : futures )
+				future.cancel( true );
+			throw new RuntimeException( e.getMessage(), e );
+		}
+	}
+
+	@FunctionalInterface
+	public interface RangeTask
+	{
+
+		/**
+		 * Processes the indices from <code>from</code> inclusive to
+		 * <code>to</code> exclusive.
+		 */
+		void run( long from, long to );
+	}
+}
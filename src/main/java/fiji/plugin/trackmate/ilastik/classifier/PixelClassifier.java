@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import fiji.plugin.trackmate.ilastik.classifier.FeatureSelection.Feature;
+
+/**
+ * The pixel classifier of an ilastik project: a feature selection and a
+ * random forest, evaluated in Java.
+ */
+public class PixelClassifier
+{
+
+	private final FeatureSelection selection;
+
+	private final RandomForest forest;
+
+	public PixelClassifier( final FeatureSelection selection, final RandomForest forest )
+	{
+		this.selection = selection;
+		this.forest = forest;
+	}
+
+	public FeatureSelection getFeatureSelection()
+	{
+		return selection;
+	}
+
+	public RandomForest getForest()
+	{
+		return forest;
+	}
+
+	public int numClasses()
+	{
+		return forest.numClasses();
+	}
+
+	/**
+	 * Computes the features of one frame.
+	 * 
+	 * @param channels
+	 *            the pixels of each channel of the frame, X first.
+	 * @param dims
+	 *            the frame dimensions, 2D or 3D.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the feature channels, in the order the forest expects them.
+	 */
+	public float[][] computeFeatures( final float[][] channels, final int[] dims, final int numThreads )
+	{
+		return computeFeatures( channels, dims, numThreads, null );
+	}
+
+	/**
+	 * Computes the features of one frame, reusing the ones found in the
+	 * specified cache and storing the new ones in it.
+	 * 
+	 * @param channels
+	 *            the pixels of each channel of the frame, X first.
+	 * @param dims
+	 *            the frame dimensions, 2D or 3D.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param cache
+	 *            the feature cache, or <code>null</code> to compute all
+	 *            features.
+	 * @return the feature channels, in the order the forest expects them.
+	 *         They must not be modified if a cache is used.
+	 */
+	public float[][] computeFeatures( final float[][] channels, final int[] dims, final int numThreads, final FeatureCache cache )
+	{
+		final int nFeatures = selection.numChannels( dims.length ) * channels.length;
+		if ( nFeatures != forest.numFeatures() )
+			throw new IllegalArgumentException( "The classifier expects " + forest.numFeatures()
+					+ " features, but the feature selection yields " + nFeatures + " for an image with "
+					+ channels.length + " channel(s) in " + dims.length + "D." );
+
+		final long[] fingerprints = new long[ channels.length ];
+		if ( cache != null )
+			for ( int c = 0; c < channels.length; c++ )
+				fingerprints[ c ] = FeatureCache.fingerprint( channels[ c ], dims );
+
+		// Created on first cache miss, as they keep the smoothed images.
+		final FeatureComputer[] computers = new FeatureComputer[ channels.length ];
+		final float[][] features = new float[ nFeatures ][];
+		int offset = 0;
+		for ( final Feature feature : selection.getFeatures() )
+		{
+			if ( Thread.currentThread().isInterrupted() )
+				throw new CancellationException( "Feature computation interrupted." );
+			final int n = feature.type.numChannels( feature.numDims( dims.length ) );
+			for ( int c = 0; c < channels.length; c++ )
+			{
+				float[][] computed = cache == null ? null : cache.get( fingerprints[ c ], feature );
+				if ( computed == null )
+				{
+					if ( computers[ c ] == null )
+						computers[ c ] = new FeatureComputer( channels[ c ], dims, numThreads );
+					computed = new float[ n ][];
+					computers[ c ].compute( feature, computed, 0 );
+					if ( cache != null )
+						cache.put( fingerprints[ c ], feature, computed );
+				}
+				System.arraycopy( computed, 0, features, offset, n );
+				offset += n;
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * Computes the class probabilities of one frame.
+	 * 
+	 * @param channels
+	 *            the pixels of each channel of the frame, X first.
+	 * @param dims
+	 *            the frame dimensions, 2D or 3D.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the probabilities, one array per class.
+	 */
+	public float[][] predict( final float[][] channels, final int[] dims, final int numThreads )
+	{
+		return predict( channels, dims, numThreads, null );
+	}
+
+	/**
+	 * Computes the class probabilities of one frame, with features taken
+	 * from and stored in the specified cache.
+	 * 
+	 * @param channels
+	 *            the pixels of each channel of the frame, X first.
+	 * @param dims
+	 *            the frame dimensions, 2D or 3D.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param cache
+	 *            the feature cache, or <code>null</code>.
+	 * @return the probabilities, one array per class.
+	 */
+	public float[][] predict( final float[][] channels, final int[] dims, final int numThreads, final FeatureCache cache )
+	{
+		final float[][] features = computeFeatures( channels, dims, numThreads, cache );
+		return forest.predict( features, channels[ 0 ].length, numThreads );
+	}
+
+	/**
+	 * Reads the pixel classifier of an ilastik project.
+	 * 
+	 * @param projectFilePath
+	 *            the path to the ilastik project file.
+	 * @return a new classifier.
+	 * @throws IOException
+	 *             if the file cannot be read or does not contain a trained
+	 *             pixel classifier.
+	 */
+	public static PixelClassifier read( final String projectFilePath ) throws IOException
+	{
+		final File file = new File( projectFilePath );
+		if ( !file.exists() || !file.canRead() )
+			throw new IOException( "Cannot read ilastik project file: " + projectFilePath );
+
+		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		try
+		{
+			final FeatureSelection selection = FeatureSelection.read( reader );
+			final RandomForest forest = RandomForest.read( reader );
+			return new PixelClassifier( selection, forest );
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
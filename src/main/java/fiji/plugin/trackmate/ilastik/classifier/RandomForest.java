@@ -0,0 +1,372 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.ilastik.classifier;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * A random forest trained by ilastik, evaluated in Java.
+ * <p>
+ * ilastik stores its classifier as one or several VIGRA random forests. Each
+ * tree is a <code>topology</code> integer array and a
+ * <code>parameters</code> double array. The two first elements of the
+ * topology are the number of features and of classes, and the root node
+ * starts at index 2. A split node is laid out as
+ * <code>[type, parameter address, left child, right child, feature]</code>
+ * with the threshold at <code>parameters[address + 1]</code>; a leaf node
+ * has its class probabilities starting at
+ * <code>parameters[address + 1]</code>.
+ * <p>
+ * For evaluation, all the trees are flattened in a few primitive arrays:
+ * nodes are numbered in breadth-first order, and the children of a node
+ * are encoded as positive indices for split nodes and as negative indices
+ * <code>-(leaf + 1)</code> for leaves.
+ */
+public class RandomForest
+{
+
+	private static final String HDF_PATH_FORESTS = "/PixelClassification/ClassifierForests";
+
+	private static final int LEAF_NODE_TAG = 0x40000000;
+
+	private static final int THRESHOLD_NODE = 0;
+
+	private final int nFeatures;
+
+	private final int nClasses;
+
+	/** The root of each tree, encoded as a child. */
+	private final int[] roots;
+
+	/** Feature index, left child and right child of each split node. */
+	private final int[] nodes;
+
+	/** Threshold of each split node. */
+	private final double[] thresholds;
+
+	/** Class probabilities of each leaf, nClasses values per leaf. */
+	private final float[] leaves;
+
+	private RandomForest( final int nFeatures, final int nClasses, final int[] roots, final int[] nodes, final double[] thresholds, final float[] leaves )
+	{
+		this.nFeatures = nFeatures;
+		this.nClasses = nClasses;
+		this.roots = roots;
+		this.nodes = nodes;
+		this.thresholds = thresholds;
+		this.leaves = leaves;
+	}
+
+	public int numFeatures()
+	{
+		return nFeatures;
+	}
+
+	public int numClasses()
+	{
+		return nClasses;
+	}
+
+	public int numTrees()
+	{
+		return roots.length;
+	}
+
+	/**
+	 * Computes the class probabilities of one sample.
+	 * 
+	 * @param features
+	 *            the feature vector of the sample.
+	 * @param probabilities
+	 *            an array of length the number of classes, in which to write
+	 *            the probabilities.
+	 */
+	public void predict( final float[] features, final double[] probabilities )
+	{
+		for ( int c = 0; c < nClasses; c++ )
+			probabilities[ c ] = 0.;
+
+		for ( final int root : roots )
+		{
+			int next = root;
+			while ( next >= 0 )
+			{
+				final int n = 3 * next;
+				next = ( features[ nodes[ n ] ] < thresholds[ next ] ) ? nodes[ n + 1 ] : nodes[ n + 2 ];
+			}
+			final int leaf = ( -next - 1 ) * nClasses;
+			for ( int c = 0; c < nClasses; c++ )
+				probabilities[ c ] += leaves[ leaf + c ];
+		}
+
+		double sum = 0.;
+		for ( int c = 0; c < nClasses; c++ )
+			sum += probabilities[ c ];
+		if ( sum > 0. )
+			for ( int c = 0; c < nClasses; c++ )
+				probabilities[ c ] /= sum;
+	}
+
+	/**
+	 * Computes the class probabilities of all the pixels of an image, in
+	 * parallel.
+	 * 
+	 * @param features
+	 *            the feature channels, one array per feature.
+	 * @param nPixels
+	 *            the number of pixels.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new array of class probabilities, one array per class.
+	 */
+	public float[][] predict( final float[][] features, final int nPixels, final int numThreads )
+	{
+		if ( features.length != nFeatures )
+			throw new IllegalArgumentException( "The classifier expects " + nFeatures + " features, got " + features.length + "." );
+
+		final float[][] out = new float[ nClasses ][ nPixels ];
+		Parallel.forEachChunk( nPixels, numThreads, ( from, to ) -> {
+			final float[] sample = new float[ nFeatures ];
+			final double[] probabilities = new double[ nClasses ];
+			for ( int i = ( int ) from; i < to; i++ )
+			{
+				for ( int f = 0; f < nFeatures; f++ )
+					sample[ f ] = features[ f ][ i ];
+				predict( sample, probabilities );
+				for ( int c = 0; c < nClasses; c++ )
+					out[ c ][ i ] = ( float ) probabilities[ c ];
+			}
+		} );
+		return out;
+	}
+
+	/**
+	 * Reads all the forests of the pixel classifier stored in an ilastik
+	 * project, and merges them in a single forest.
+	 * 
+	 * @param reader
+	 *            a reader on the ilastik project file.
+	 * @return a new random forest.
+	 * @throws IOException
+	 *             if the project does not contain a trained classifier, or
+	 *             if it cannot be read.
+	 */
+	public static RandomForest read( final IHDF5Reader reader ) throws IOException
+	{
+		if ( !reader.object().exists( HDF_PATH_FORESTS ) )
+			throw new IOException( "The ilastik project does not contain a trained classifier." );
+
+		final List< int[] > topologies = new ArrayList<>();
+		final List< double[] > parameters = new ArrayList<>();
+		for ( final String forest : reader.object().getGroupMembers( HDF_PATH_FORESTS ) )
+		{
+			final String forestPath = HDF_PATH_FORESTS + "/" + forest;
+			if ( !reader.object().isGroup( forestPath ) )
+				continue;
+			for ( final String tree : reader.object().getGroupMembers( forestPath ) )
+			{
+				if ( !tree.startsWith( "Tree_" ) )
+					continue;
+				final String treePath = forestPath + "/" + tree;
+				topologies.add( reader.readIntArray( treePath + "/topology" ) );
+				parameters.add( reader.readDoubleArray( treePath + "/parameters" ) );
+			}
+		}
+		if ( topologies.isEmpty() )
+			throw new IOException( "The ilastik project does not contain a trained classifier." );
+		return flatten( topologies, parameters );
+	}
+
+	/**
+	 * Flattens VIGRA trees in primitive arrays.
+	 * 
+	 * @param topologies
+	 *            the topology array of each tree.
+	 * @param parameters
+	 *            the parameters array of each tree.
+	 * @return a new random forest.
+	 * @throws IOException
+	 *             if the trees are inconsistent or use unsupported node
+	 *             types.
+	 */
+	public static RandomForest flatten( final List< int[] > topologies, final List< double[] > parameters ) throws IOException
+	{
+		final int nFeatures = topologies.get( 0 )[ 0 ];
+		final int nClasses = topologies.get( 0 )[ 1 ];
+
+		final int[] roots = new int[ topologies.size() ];
+		final IntList nodes = new IntList();
+		final DoubleList thresholds = new DoubleList();
+		final FloatList leaves = new FloatList();
+		for ( int t = 0; t < topologies.size(); t++ )
+		{
+			final int[] topology = topologies.get( t );
+			final double[] params = parameters.get( t );
+			if ( topology[ 0 ] != nFeatures || topology[ 1 ] != nClasses )
+				throw new IOException( "Inconsistent trees in the ilastik classifier." );
+
+			/*
+			 * Breadth-first traversal. Each entry of the queue is the index
+			 * of a split node in the topology array and its index in the
+			 * flattened arrays.
+			 */
+			final Deque< int[] > queue = new ArrayDeque<>();
+			roots[ t ] = encode( topology, params, 2, nClasses, nodes, thresholds, leaves, queue );
+			while ( !queue.isEmpty() )
+			{
+				final int[] entry = queue.poll();
+				final int address = entry[ 0 ];
+				final int node = entry[ 1 ];
+				nodes.set( 3 * node, topology[ address + 4 ] );
+				thresholds.set( node, params[ topology[ address + 1 ] + 1 ] );
+				nodes.set( 3 * node + 1, encode( topology, params, topology[ address + 2 ], nClasses, nodes, thresholds, leaves, queue ) );
+				nodes.set( 3 * node + 2, encode( topology, params, topology[ address + 3 ], nClasses, nodes, thresholds, leaves, queue ) );
+			}
+		}
+		return new RandomForest( nFeatures, nClasses, roots, nodes.toArray(), thresholds.toArray(), leaves.toArray() );
+	}
+
+	/**
+	 * Allocates the node at the specified address of a topology array, and
+	 * returns its encoded index. Split nodes are queued to be filled later.
+	 */
+	private static int encode(
+			final int[] topology,
+			final double[] params,
+			final int address,
+			final int nClasses,
+			final IntList nodes,
+			final DoubleList thresholds,
+			final FloatList leaves,
+			final Deque< int[] > queue ) throws IOException
+	{
+		final int type = topology[ address ];
+		if ( ( type & LEAF_NODE_TAG ) != 0 )
+		{
+			if ( type != LEAF_NODE_TAG )
+				throw new IOException( "Unsupported leaf node type in the ilastik classifier: " + type );
+			final int leaf = leaves.size() / nClasses;
+			final int start = topology[ address + 1 ] + 1;
+			for ( int c = 0; c < nClasses; c++ )
+				leaves.add( ( float ) params[ start + c ] );
+			return -leaf - 1;
+		}
+		if ( type != THRESHOLD_NODE )
+			throw new IOException( "Unsupported split node type in the ilastik classifier: " + type );
+
+		final int node = thresholds.size();
+		thresholds.add( 0. );
+		nodes.add( 0 );
+		nodes.add( 0 );
+		nodes.add( 0 );
+		queue.add( new int[] { address, node } );
+		return node;
+	}
+
+	/*
+	 * Growable primitive arrays, to avoid boxing while flattening trees.
+	 */
+
+	private static final class IntList
+	{
+		private int[] data = new int[ 1024 ];
+
+		private int size = 0;
+
+		void add( final int v )
+		{
+			if ( size == data.length )
+				data = Arrays.copyOf( data, 2 * size );
+			data[ size++ ] = v;
+		}
+
+		void set( final int i, final int v )
+		{
+			data[ i ] = v;
+		}
+
+		int[] toArray()
+		{
+			return Arrays.copyOf( data, size );
+		}
+	}
+
+	private static final class DoubleList
+	{
+		private double[] data = new double[ 1024 ];
+
+		private int size = 0;
+
+		void add( final double v )
+		{
+			if ( size == data.length )
+				data = Arrays.copyOf( data, 2 * size );
+			data[ size++ ] = v;
+		}
+
+		void set( final int i, final double v )
+		{
+			data[ i ] = v;
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		double[] toArray()
+		{
+			return Arrays.copyOf( data, size );
+		}
+	}
+
+	private static final class FloatList
+	{
+		private float[] data = new float[ 1024 ];
+
+		private int size = 0;
+
+		void add( final float v )
+		{
+			if ( size == data.length )
+				data = Arrays.copyOf( data, 2 * size );
+			data[ size++ ] = v;
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		float[] toArray()
+		{
+			return Arrays.copyOf( data, size );
+		}
+	}
+}
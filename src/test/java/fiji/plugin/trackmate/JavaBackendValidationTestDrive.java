@@ -0,0 +1,56 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate;
+
+import java.io.IOException;
+
+import fiji.plugin.trackmate.ilastik.JavaBackendValidation;
+import fiji.plugin.trackmate.ilastik.JavaBackendValidation.Report;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+public class JavaBackendValidationTestDrive
+{
+
+	public static < T extends RealType< T > & NativeType< T > > void main( final String[] args ) throws IOException
+	{
+		final String imagePath = "D:/Projects/NVerttiQuintero/Data/Series063a.tif";
+		final String classifierPath = "D:/Projects/NVerttiQuintero/Ilastik/NVertti.ilp";
+
+		final ImagePlus imp = IJ.openImage( imagePath );
+		final Settings settings = new Settings( imp );
+		settings.tstart = 10;
+		settings.tend = 10;
+		final ImgPlus< T > img = TMUtils.rawWraps( imp );
+		final Interval interval = TMUtils.getInterval( img, settings );
+
+		final Report report = JavaBackendValidation.validate( img, interval, 0, classifierPath, 0, 0.5,
+				Runtime.getRuntime().availableProcessors() );
+		System.out.println( report );
+		System.out.println( "Within tolerance: " + report.isWithin( 0.05 ) );
+	}
+}
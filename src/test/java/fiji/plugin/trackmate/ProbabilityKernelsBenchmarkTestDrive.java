@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import fiji.plugin.trackmate.ilastik.ProbabilityKernels;
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Compares the thresholding and the per-object statistics of the
+ * {@link ProbabilityKernels} with the generic loops over
+ * <code>RealType</code> accessors, on synthetic probability maps.
+ */
+public class ProbabilityKernelsBenchmarkTestDrive
+{
+
+	private static final int REPEATS = 10;
+
+	/** Size of the square cells of the synthetic map, one object per cell. */
+	private static final int CELL = 32;
+
+	public static void main( final String[] args )
+	{
+		for ( final int size : new int[] { 2048, 4096, 8192 } )
+		{
+			final float[] floats = new float[ size * size ];
+			final byte[] bytes = new byte[ size * size ];
+			final int[] labels = new int[ size * size ];
+			fill( size, floats, bytes, labels );
+
+			final ArrayImg< FloatType, FloatArray > fImg = ArrayImgs.floats( floats, size, size );
+			final ArrayImg< UnsignedByteType, ByteArray > bImg = ArrayImgs.unsignedBytes( bytes, size, size );
+			final boolean[] mask = new boolean[ size * size ];
+			final int nLabels = ( size / CELL ) * ( size / CELL );
+			final double[] stats = new double[ nLabels * ProbabilityKernels.N_STATS ];
+
+			System.out.println( String.format( Locale.US, "Frame %d x %d:", size, size ) );
+			report( "threshold float",
+					time( () -> thresholdGeneric( fImg, 0.5, mask ) ),
+					time( () -> ProbabilityKernels.threshold( floats, 0, floats.length, 0.5, mask ) ) );
+			report( "threshold uint8",
+					time( () -> thresholdGeneric( bImg, 127, mask ) ),
+					time( () -> ProbabilityKernels.threshold( bytes, 0, bytes.length, 127, mask ) ) );
+			report( "statistics float",
+					time( () -> accumulateGeneric( fImg, labels, stats ) ),
+					time( () -> ProbabilityKernels.accumulate( labels, floats, size, 0, size, stats ) ) );
+			report( "statistics uint8",
+					time( () -> accumulateGeneric( bImg, labels, stats ) ),
+					time( () -> ProbabilityKernels.accumulate( labels, bytes, size, 0, size, stats ) ) );
+		}
+	}
+
+	/**
+	 * One Gaussian blob per cell. Pixels above 0.5 are labeled with their
+	 * cell index.
+	 */
+	private static void fill( final int size, final float[] floats, final byte[] bytes, final int[] labels )
+	{
+		final int nCellsX = size / CELL;
+		final double sigma2 = 2. * ( CELL / 6. ) * ( CELL / 6. );
+		for ( int y = 0; y < size; y++ )
+			for ( int x = 0; x < size; x++ )
+			{
+				final int i = y * size + x;
+				final double dx = x % CELL - CELL / 2.;
+				final double dy = y % CELL - CELL / 2.;
+				final float p = ( float ) Math.exp( -( dx * dx + dy * dy ) / sigma2 );
+				floats[ i ] = p;
+				bytes[ i ] = ( byte ) Math.round( 255 * p );
+				labels[ i ] = ( p > 0.5 && x / CELL < nCellsX && y / CELL < nCellsX ) ? 1 + ( y / CELL ) * nCellsX + x / CELL : 0;
+			}
+	}
+
+	private static < R extends RealType< R > & NativeType< R > > void thresholdGeneric( final ArrayImg< R, ? > img, final double threshold, final boolean[] mask )
+	{
+		final Cursor< R > cursor = img.cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+			mask[ i++ ] = cursor.next().getRealDouble() > threshold;
+	}
+
+	private static < R extends RealType< R > & NativeType< R > > void accumulateGeneric( final ArrayImg< R, ? > img, final int[] labels, final double[] stats )
+	{
+		final Cursor< R > cursor = img.localizingCursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+		{
+			final double v = cursor.next().getRealDouble();
+			final int l = labels[ i++ ];
+			if ( l == 0 )
+				continue;
+			final int s = ( l - 1 ) * ProbabilityKernels.N_STATS;
+			stats[ s ]++;
+			stats[ s + 1 ] += cursor.getIntPosition( 0 );
+			stats[ s + 2 ] += cursor.getIntPosition( 1 );
+			stats[ s + 3 ] = Math.max( stats[ s + 3 ], v );
+		}
+	}
+
+	/**
+	 * Returns the median time of a task, in ms, after a warm-up run.
+	 */
+	private static double time( final Runnable task )
+	{
+		task.run();
+		final double[] times = new double[ REPEATS ];
+		for ( int r = 0; r < REPEATS; r++ )
+		{
+			final long start = System.nanoTime();
+			task.run();
+			times[ r ] = ( System.nanoTime() - start ) / 1e6;
+		}
+		Arrays.sort( times );
+		return times[ REPEATS / 2 ];
+	}
+
+	private static void report( final String name, final double generic, final double kernel )
+	{
+		System.out.println( String.format( Locale.US, " - %-18s generic %8.2f ms, kernel %8.2f ms, speed-up x%.1f",
+				name, generic, kernel, generic / kernel ) );
+	}
+}